@@ -0,0 +1,34 @@
+package com.rsmart.rfabric.jasperreports;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of the token authentication hot path with the GC profiler, so every
+ * result is reported together with its allocation rate (gc.alloc.rate.norm, bytes per
+ * operation). Takes optional benchmark name patterns; by default runs the signature,
+ * token parsing, provider and filter benchmarks.
+ *
+ * <pre>
+ *   java -cp target/benchmarks.jar com.rsmart.rfabric.jasperreports.HotPathBenchmarks [pattern...]
+ * </pre>
+ */
+public final class HotPathBenchmarks {
+
+  private static final String[] HOT_PATH = {
+      "SignatureBenchmark", "AuthTokenBenchmark", "AuthenticationProviderBenchmark", "FilterBenchmark" };
+
+  private HotPathBenchmarks() {}
+
+  public static void main (final String[] args) throws RunnerException {
+    final OptionsBuilder options = new OptionsBuilder();
+    for (final String pattern : (args.length > 0) ? args : HOT_PATH) {
+      options.include(pattern);
+    }
+    final Options built = options.addProfiler(GCProfiler.class).build();
+    new Runner(built).run();
+  }
+}
@@ -0,0 +1,81 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures parsing of {@link AuthToken}s in both formats, reading the parts the provider
+ * reads, against the String.split based parsing it replaced.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthTokenBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class TokenStrings {
+    String legacy;
+    String v2;
+
+    @Setup
+    public void setup() {
+      legacy = Tokens.legacy(Tokens.USER);
+      v2 = Tokens.v2(Tokens.USER);
+    }
+  }
+
+  private static void consume (final AuthToken token, final Blackhole blackhole) {
+    blackhole.consume(token.getHashLength());
+    blackhole.consume(token.getName());
+    blackhole.consume(token.getNonce());
+    blackhole.consume(token.getSignedContent());
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void splitLegacySingleThread(final TokenStrings tokens, final Blackhole blackhole) {
+    final String[] parts = tokens.legacy.split(AuthToken.TOKEN_SEPARATOR);
+    blackhole.consume(parts[0].length());
+    blackhole.consume(parts[1]);
+    blackhole.consume(parts[2]);
+    blackhole.consume(parts[1] + AuthToken.TOKEN_SEPARATOR + parts[2]);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void parseLegacySingleThread(final TokenStrings tokens, final Blackhole blackhole) {
+    consume(new AuthToken(tokens.legacy), blackhole);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public void parseLegacyAllCores(final TokenStrings tokens, final Blackhole blackhole) {
+    consume(new AuthToken(tokens.legacy), blackhole);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void parseV2SingleThread(final TokenStrings tokens, final Blackhole blackhole) {
+    consume(new AuthToken(tokens.v2), blackhole);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public void parseV2AllCores(final TokenStrings tokens, final Blackhole blackhole) {
+    consume(new AuthToken(tokens.v2), blackhole);
+  }
+}
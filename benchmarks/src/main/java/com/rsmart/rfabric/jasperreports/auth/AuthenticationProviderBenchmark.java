@@ -0,0 +1,85 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.Authentication;
+
+/**
+ * Measures {@link AuthTokenAuthenticationProvider#authenticate(Authentication)} for a
+ * valid token, from parsing the token string to the authenticated result, with a
+ * {@link StubUserProvider} so that only this project's code is timed. The cached variants
+ * enable the verified-authentication cache and so measure the repeated-token path.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthenticationProviderBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Provider {
+    @Param({ "legacy", "v2" })
+    String format;
+
+    AuthTokenAuthenticationProvider provider;
+    AuthTokenAuthenticationProvider cachedProvider;
+    String token;
+
+    @Setup
+    public void setup() {
+      provider = new AuthTokenAuthenticationProvider(Tokens.SECRET);
+      provider.setExternalUserProvider(new StubUserProvider());
+
+      cachedProvider = new AuthTokenAuthenticationProvider(Tokens.SECRET);
+      cachedProvider.setExternalUserProvider(new StubUserProvider());
+      cachedProvider.setCacheTimeToLive(TimeUnit.HOURS.toMillis(1));
+
+      token = "v2".equals(format) ? Tokens.v2(Tokens.USER) : Tokens.legacy(Tokens.USER);
+    }
+  }
+
+  private static Authentication authenticate (final AuthTokenAuthenticationProvider provider, final String token) {
+    final Authentication result = provider.authenticate(new AuthTokenAuthentication(new AuthToken(token)));
+    if (result == null || !result.isAuthenticated()) {
+      throw new IllegalStateException("benchmark token was not accepted");
+    }
+    return result;
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Authentication authenticateSingleThread(final Provider state) {
+    return authenticate(state.provider, state.token);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Authentication authenticateAllCores(final Provider state) {
+    return authenticate(state.provider, state.token);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Authentication authenticateCachedSingleThread(final Provider state) {
+    return authenticate(state.cachedProvider, state.token);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Authentication authenticateCachedAllCores(final Provider state) {
+    return authenticate(state.cachedProvider, state.token);
+  }
+}
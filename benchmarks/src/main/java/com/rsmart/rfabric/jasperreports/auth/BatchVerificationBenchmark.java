@@ -0,0 +1,105 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.Authentication;
+import org.springframework.security.GrantedAuthority;
+
+/**
+ * Measures the verification of a batch of tokens for a few users, as the rFabric scheduler
+ * sends them: {@link AuthTokenAuthenticationProvider#verifyAll(List)} against one
+ * authenticate() call per token. Each user directory lookup takes lookupMicros, so the
+ * difference includes the lookups verifyAll saves by looking each user up once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchVerificationBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Batch {
+    @Param({ "1000" })
+    int size;
+
+    @Param({ "50" })
+    int users;
+
+    @Param({ "0", "200" })
+    long lookupMicros;
+
+    AuthTokenAuthenticationProvider provider;
+    List<String> tokens;
+
+    @Setup
+    public void setup() {
+      final StubUserProvider directory = new StubUserProvider();
+      provider = new AuthTokenAuthenticationProvider(Tokens.SECRET);
+      provider.setExternalUserProvider(new ExternalUserProvider() {
+        public boolean userExists (final String user) {
+          pause();
+          return directory.userExists(user);
+        }
+
+        public GrantedAuthority[] getAuthoritiesForUser (final String user) {
+          pause();
+          return directory.getAuthoritiesForUser(user);
+        }
+      });
+
+      tokens = new ArrayList<String>(size);
+      for (int i = 0; i < size; i++) {
+        tokens.add(Tokens.v2("user" + (i % users) + "@email.com"));
+      }
+    }
+
+    private void pause() {
+      if (lookupMicros > 0) {
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(lookupMicros));
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      provider.destroy();
+    }
+  }
+
+  @Benchmark
+  public List<TokenVerification> verifyAll (final Batch batch) {
+    final List<TokenVerification> results = batch.provider.verifyAll(batch.tokens);
+    if (!results.get(0).isValid()) {
+      throw new IllegalStateException("benchmark token was not accepted");
+    }
+    return results;
+  }
+
+  @Benchmark
+  public Authentication authenticateEach (final Batch batch) {
+    Authentication last = null;
+    for (final String token : batch.tokens) {
+      last = batch.provider.authenticate(new AuthTokenAuthentication(new AuthToken(token)));
+      if (last == null) {
+        throw new IllegalStateException("benchmark token was not accepted");
+      }
+    }
+    return last;
+  }
+}
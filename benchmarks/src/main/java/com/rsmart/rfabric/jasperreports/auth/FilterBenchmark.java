@@ -0,0 +1,146 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.Authentication;
+import org.springframework.security.context.SecurityContextHolder;
+import org.springframework.security.providers.ProviderManager;
+
+/**
+ * Measures {@link RESTTokenAuthenticationFilter#doFilter} for a request bearing a valid
+ * token in its header: token extraction, authentication through a ProviderManager and the
+ * {@link AuthTokenAuthenticationProvider}, and publication to the SecurityContext. The
+ * chain only counts calls. The request and response are dynamic proxies, which costs the
+ * same in every variant. The reused variants present the request with the SecurityContext
+ * a session would restore after an earlier request bearing the same token, to a filter
+ * which trusts it for an hour.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Filter {
+    RESTTokenAuthenticationFilter filter;
+    RESTTokenAuthenticationFilter reusingFilter;
+    Authentication restored;
+    HttpServletRequest request;
+    HttpServletResponse response;
+
+    @Setup
+    public void setup() throws Exception {
+      final AuthTokenAuthenticationProvider provider = new AuthTokenAuthenticationProvider(Tokens.SECRET);
+      provider.setExternalUserProvider(new StubUserProvider());
+
+      final ProviderManager manager = new ProviderManager();
+      manager.setProviders(Collections.singletonList(provider));
+      manager.afterPropertiesSet();
+
+      filter = new RESTTokenAuthenticationFilter();
+      filter.setAuthenticationManager(manager);
+      reusingFilter = new RESTTokenAuthenticationFilter();
+      reusingFilter.setAuthenticationManager(manager);
+      reusingFilter.setContextTimeToLive(TimeUnit.HOURS.toMillis(1));
+
+      final String token = Tokens.legacy(Tokens.USER);
+      request = requestWithHeader(RESTTokenAuthenticationFilter.AUTH_TOKEN_HEADER, token);
+      response = (HttpServletResponse) Proxy.newProxyInstance(FilterBenchmark.class.getClassLoader(),
+          new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+              throw new IllegalStateException("benchmark token was not accepted");
+            }
+          });
+      restored = provider.authenticate(new AuthTokenAuthentication(new AuthToken(token)));
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Chain implements FilterChain {
+    long calls;
+
+    public void doFilter(final ServletRequest request, final ServletResponse response) {
+      calls++;
+    }
+  }
+
+  static HttpServletRequest requestWithHeader (final String header, final String value) {
+    return (HttpServletRequest) Proxy.newProxyInstance(FilterBenchmark.class.getClassLoader(),
+        new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+          public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            if ("getHeader".equals(method.getName()) && header.equals(args[0])) {
+              return value;
+            }
+            return null;
+          }
+        });
+  }
+
+  private static long doFilter (final Filter state, final Chain chain) throws IOException, ServletException {
+    try {
+      state.filter.doFilter(state.request, state.response, chain);
+    } finally {
+      SecurityContextHolder.clearContext();
+    }
+    return chain.calls;
+  }
+
+  private static long doFilterReused (final Filter state, final Chain chain) throws IOException, ServletException {
+    try {
+      SecurityContextHolder.getContext().setAuthentication(state.restored);
+      state.reusingFilter.doFilter(state.request, state.response, chain);
+    } finally {
+      SecurityContextHolder.clearContext();
+    }
+    return chain.calls;
+  }
+
+  @Benchmark
+  @Threads(1)
+  public long doFilterSingleThread(final Filter state, final Chain chain) throws Exception {
+    return doFilter(state, chain);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public long doFilterAllCores(final Filter state, final Chain chain) throws Exception {
+    return doFilter(state, chain);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public long doFilterReusedSingleThread(final Filter state, final Chain chain) throws Exception {
+    return doFilterReused(state, chain);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public long doFilterReusedAllCores(final Filter state, final Chain chain) throws Exception {
+    return doFilterReused(state, chain);
+  }
+}
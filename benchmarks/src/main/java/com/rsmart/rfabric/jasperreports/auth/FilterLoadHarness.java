@@ -0,0 +1,472 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.springframework.context.support.GenericXmlApplicationContext;
+
+/**
+ * Drives {@link RESTTokenAuthenticationFilter} in an embedded Jetty with thousands of
+ * concurrent HTTP clients, to size JasperReports Server nodes for token authenticated
+ * traffic. The filter chain and authentication manager come from a Spring context,
+ * loadtest-security.xml by default, which reproduces the rFabric wiring of
+ * applicationContext-security.xml and applicationContext-security-web.xml; the servlet
+ * behind the chain only answers 200.
+ *
+ * Each client sends one request at a time, as soon as its previous one is answered,
+ * bearing a pre-minted token drawn from a mix of valid, invalid (bad signature) and
+ * malformed tokens. After a warm up, the harness reports for each kind of token the
+ * requests per second, the responses by status, the p50, p99, p99.9 and maximum latency,
+ * and for the server the bytes allocated per request by its threads (the heap churn) and
+ * the collections run. Arguments are key=value pairs:
+ *
+ * <ul>
+ *   <li>clients: concurrent clients (2000)</li>
+ *   <li>warmup, duration: seconds of warm up and of measurement (10, 30)</li>
+ *   <li>mix: percentages of each kind of token ("valid:90,invalid:5,malformed:5")</li>
+ *   <li>tokens: distinct tokens of each kind (1000); fewer repeat more, and hit the cache</li>
+ *   <li>format: "legacy" or "v2" valid tokens (legacy)</li>
+ *   <li>serverThreads: threads serving requests (200)</li>
+ *   <li>context: the Spring context to load (classpath:loadtest-security.xml)</li>
+ * </ul>
+ *
+ * <pre>
+ *   java -cp target/benchmarks.jar com.rsmart.rfabric.jasperreports.auth.FilterLoadHarness clients=4000 mix=valid:80,invalid:20
+ * </pre>
+ */
+public final class FilterLoadHarness {
+
+  static final String SERVER_THREADS = "loadtest-server";
+  static final String PATH = "/jasperserver/rest/report";
+
+  enum Kind { valid, invalid, malformed }
+
+  private final Map<String, String> options = new HashMap<String, String>();
+
+  private final Stats[] stats = new Stats[Kind.values().length];
+  private volatile boolean running = true;
+
+  private HttpClient client;
+  private String url;
+  private String[] schedule;
+  private Kind[] scheduleKinds;
+
+  private FilterLoadHarness (final String[] args) {
+    options.put("clients", "2000");
+    options.put("warmup", "10");
+    options.put("duration", "30");
+    options.put("mix", "valid:90,invalid:5,malformed:5");
+    options.put("tokens", "1000");
+    options.put("format", "legacy");
+    options.put("serverThreads", "200");
+    options.put("context", "classpath:loadtest-security.xml");
+    for (final String arg : args) {
+      final int equals = arg.indexOf('=');
+      if (equals <= 0 || !options.containsKey(arg.substring(0, equals))) {
+        throw new IllegalArgumentException("unknown argument: " + arg + "; expected one of " + options.keySet());
+      }
+      options.put(arg.substring(0, equals), arg.substring(equals + 1));
+    }
+  }
+
+  private int intOption (final String name) {
+    return Integer.parseInt(options.get(name));
+  }
+
+  public static void main (final String[] args) throws Exception {
+    new FilterLoadHarness(args).run();
+  }
+
+  private void run() throws Exception {
+    final GenericXmlApplicationContext context = new GenericXmlApplicationContext(options.get("context"));
+    final Server server = startServer(context.getBean("filterChainProxy", Filter.class));
+    try {
+      mintSchedule();
+      startClients();
+
+      System.out.printf("%d clients, mix %s, %s tokens, %s distinct of each kind, against %s%n",
+          intOption("clients"), options.get("mix"), options.get("format"), options.get("tokens"), url);
+      measure("warmup", intOption("warmup"));
+      final String[] results = measure("measurement", intOption("duration"));
+      for (final String line : results) {
+        System.out.println(line);
+      }
+    } finally {
+      running = false;
+      client.stop();
+      server.stop();
+      context.close();
+    }
+  }
+
+  private Server startServer (final Filter filterChain) throws Exception {
+    final int threads = intOption("serverThreads");
+    final QueuedThreadPool pool = new QueuedThreadPool(threads);
+    pool.setMinThreads(threads);
+    pool.setName(SERVER_THREADS);
+
+    final Server server = new Server();
+    server.setThreadPool(pool);
+    final SelectChannelConnector connector = new SelectChannelConnector();
+    connector.setPort(0);
+    connector.setAcceptQueueSize(intOption("clients"));
+    server.addConnector(connector);
+
+    final ServletContextHandler handler = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+    handler.setContextPath("/jasperserver");
+    handler.addFilter(new FilterHolder(filterChain), "/*", EnumSet.of(DispatcherType.REQUEST));
+    handler.addServlet(new ServletHolder(new HttpServlet() {
+      @Override
+      protected void doGet (final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().print("OK");
+      }
+    }), "/*");
+    server.setHandler(handler);
+    server.start();
+
+    url = "http://localhost:" + connector.getLocalPort() + PATH;
+    return server;
+  }
+
+  /**
+   * Mints the tokens of each kind and lays them out in a shuffled schedule of 10000
+   * requests, in the proportions of the mix, which the clients walk from different offsets.
+   */
+  private void mintSchedule() {
+    final int distinct = intOption("tokens");
+    final boolean v2 = "v2".equals(options.get("format"));
+    final Map<Kind, String[]> tokens = new HashMap<Kind, String[]>();
+    for (final Kind kind : Kind.values()) {
+      final String[] minted = new String[distinct];
+      for (int i = 0; i < distinct; i++) {
+        final String valid = v2 ? Tokens.v2(Tokens.USER) : Tokens.legacy(Tokens.USER);
+        if (kind == Kind.valid) {
+          minted[i] = valid;
+        } else if (kind == Kind.invalid) {
+          // signed for one user, presented for another
+          minted[i] = valid.replace(Tokens.USER, "mallory@email.com");
+        } else {
+          minted[i] = (i % 2 == 0) ? "not-a-token-" + i : AuthToken.V2_PREFIX + "k1;soon;later;" + Tokens.USER;
+        }
+      }
+      tokens.put(kind, minted);
+    }
+
+    final List<Kind> kinds = new ArrayList<Kind>();
+    for (final String share : options.get("mix").split(",")) {
+      final String[] parts = share.split(":");
+      final Kind kind = Kind.valueOf(parts[0].trim());
+      for (int i = 0, n = Integer.parseInt(parts[1].trim()) * 100; i < n; i++) {
+        kinds.add(kind);
+      }
+    }
+    Collections.shuffle(kinds, new Random(42));
+
+    schedule = new String[kinds.size()];
+    scheduleKinds = kinds.toArray(new Kind[kinds.size()]);
+    for (int i = 0; i < schedule.length; i++) {
+      schedule[i] = tokens.get(scheduleKinds[i])[i % distinct];
+    }
+  }
+
+  private void startClients() throws Exception {
+    final int clients = intOption("clients");
+    for (final Kind kind : Kind.values()) {
+      stats[kind.ordinal()] = new Stats();
+    }
+
+    final QueuedThreadPool pool = new QueuedThreadPool(64);
+    pool.setName("loadtest-client");
+    client = new HttpClient();
+    client.setThreadPool(pool);
+    client.setMaxConnectionsPerAddress(clients);
+    client.setMaxQueueSizePerAddress(clients);
+    client.setConnectTimeout(30000);
+    client.setTimeout(60000);
+    client.start();
+
+    for (int i = 0; i < clients; i++) {
+      send(i * (schedule.length / clients + 1));
+    }
+  }
+
+  /**
+   * Sends the request at position of the schedule; its response sends the next one.
+   */
+  private void send (final int position) {
+    if (!running) {
+      return;
+    }
+    final int at = position % schedule.length;
+    final Stats kindStats = stats[scheduleKinds[at].ordinal()];
+    final long start = System.nanoTime();
+
+    final HttpExchange exchange = new HttpExchange() {
+      private int status;
+
+      @Override
+      protected void onResponseStatus (final Buffer version, final int status, final Buffer reason) {
+        this.status = status;
+      }
+
+      @Override
+      protected void onResponseComplete() {
+        kindStats.record(status, System.nanoTime() - start);
+        send(at + 1);
+      }
+
+      @Override
+      protected void onConnectionFailed (final Throwable cause) {
+        failed();
+      }
+
+      @Override
+      protected void onException (final Throwable cause) {
+        failed();
+      }
+
+      @Override
+      protected void onExpire() {
+        failed();
+      }
+
+      private void failed() {
+        kindStats.record(0, System.nanoTime() - start);
+        send(at + 1);
+      }
+    };
+    exchange.setMethod("GET");
+    exchange.setURL(url);
+    exchange.setRequestHeader(RESTTokenAuthenticationFilter.AUTH_TOKEN_HEADER, schedule[at]);
+    try {
+      client.send(exchange);
+    } catch (IOException e) {
+      kindStats.record(0, 0);
+    }
+  }
+
+  /**
+   * Resets the statistics, lets the clients run for seconds and reports what they saw.
+   */
+  private String[] measure (final String phase, final int seconds) throws InterruptedException {
+    for (final Stats kindStats : stats) {
+      kindStats.reset();
+    }
+    final long allocatedBefore = serverAllocatedBytes();
+    final long[] gcBefore = collections();
+    final long start = System.nanoTime();
+
+    TimeUnit.SECONDS.sleep(seconds);
+
+    final double elapsed = (System.nanoTime() - start) / 1e9;
+    final long allocated = serverAllocatedBytes() - allocatedBefore;
+    final long[] gc = collections();
+
+    final List<String> lines = new ArrayList<String>();
+    long total = 0;
+    lines.add(String.format("%-10s %10s %10s %9s %9s %9s %9s  %s",
+        "tokens", "requests", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "responses"));
+    for (final Kind kind : Kind.values()) {
+      final Stats kindStats = stats[kind.ordinal()];
+      final long[] latencies = kindStats.latencies.snapshot();
+      final long count = Histogram.count(latencies);
+      total += count;
+      lines.add(String.format("%-10s %10d %10.0f %9.2f %9.2f %9.2f %9.2f  %s", kind, count, count / elapsed,
+          Histogram.percentile(latencies, 0.5) / 1000.0, Histogram.percentile(latencies, 0.99) / 1000.0,
+          Histogram.percentile(latencies, 0.999) / 1000.0, kindStats.latencies.getMaximum() / 1000.0,
+          kindStats.getStatuses()));
+    }
+    lines.add(String.format("%-10s %10d %10.0f", "all", total, total / elapsed));
+    lines.add((allocated < 0)
+        ? "heap churn: not measurable on this JVM"
+        : String.format("heap churn: %.0f bytes/request, %.1f MB/s by %s threads",
+            (double) allocated / Math.max(total, 1), allocated / elapsed / (1 << 20), SERVER_THREADS));
+    lines.add(String.format("gc: %d collections, %d ms", gc[0] - gcBefore[0], gc[1] - gcBefore[1]));
+
+    System.out.printf("%s: %d requests in %.1f s%n", phase, total, elapsed);
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  /**
+   * @return the bytes allocated so far by the server's threads, or -1 if the JVM cannot tell
+   */
+  private static long serverAllocatedBytes() {
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    final com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+    if (!allocation.isThreadAllocatedMemorySupported() || !allocation.isThreadAllocatedMemoryEnabled()) {
+      return -1;
+    }
+
+    long bytes = 0;
+    for (final ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+      if (info != null && info.getThreadName().startsWith(SERVER_THREADS)) {
+        bytes += Math.max(allocation.getThreadAllocatedBytes(info.getThreadId()), 0);
+      }
+    }
+    return bytes;
+  }
+
+  private static long[] collections() {
+    final long[] totals = new long[2];
+    for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      totals[0] += Math.max(collector.getCollectionCount(), 0);
+      totals[1] += Math.max(collector.getCollectionTime(), 0);
+    }
+    return totals;
+  }
+
+  /**
+   * The responses to the requests bearing one kind of token.
+   */
+  static final class Stats {
+    final Histogram latencies = new Histogram();
+    private final Map<Integer, AtomicLong> statuses = Collections.synchronizedMap(new HashMap<Integer, AtomicLong>());
+
+    void record (final int status, final long nanos) {
+      latencies.record(nanos / 1000);
+      AtomicLong count = statuses.get(status);
+      if (count == null) {
+        synchronized (statuses) {
+          count = statuses.get(status);
+          if (count == null) {
+            count = new AtomicLong();
+            statuses.put(status, count);
+          }
+        }
+      }
+      count.incrementAndGet();
+    }
+
+    void reset() {
+      latencies.reset();
+      statuses.clear();
+    }
+
+    /**
+     * @return the number of responses by status, 0 standing for a failed exchange
+     */
+    String getStatuses() {
+      final StringBuilder builder = new StringBuilder();
+      synchronized (statuses) {
+        for (final Map.Entry<Integer, AtomicLong> entry : statuses.entrySet()) {
+          builder.append(entry.getKey()).append('=').append(entry.getValue()).append(' ');
+        }
+      }
+      return builder.toString();
+    }
+  }
+
+  /**
+   * A concurrent histogram of microsecond latencies, in buckets no wider than 1/32 of
+   * their lower bound, so percentiles are within about 3% of the recorded values.
+   */
+  static final class Histogram {
+    private static final int LINEAR = 64;
+    private static final int SUB_BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (64 - 6) * SUB_BUCKETS);
+    private final AtomicLong maximum = new AtomicLong();
+
+    static int index (final long micros) {
+      if (micros < LINEAR) {
+        return (int) Math.max(micros, 0);
+      }
+      final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+      final int shift = exponent - 5;
+      return LINEAR + (exponent - 6) * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+    }
+
+    static long lowerBound (final int index) {
+      if (index < LINEAR) {
+        return index;
+      }
+      final int exponent = (index - LINEAR) / SUB_BUCKETS + 6;
+      return (long) ((index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS) << (exponent - 5);
+    }
+
+    void record (final long micros) {
+      counts.incrementAndGet(index(micros));
+      long seen = maximum.get();
+      while (micros > seen && !maximum.compareAndSet(seen, micros)) {
+        seen = maximum.get();
+      }
+    }
+
+    void reset() {
+      for (int i = 0; i < counts.length(); i++) {
+        counts.set(i, 0);
+      }
+      maximum.set(0);
+    }
+
+    long getMaximum() {
+      return maximum.get();
+    }
+
+    /**
+     * @return the bucket counts as of now, for consistent percentiles while recording goes on
+     */
+    long[] snapshot() {
+      final long[] snapshot = new long[counts.length()];
+      for (int i = 0; i < snapshot.length; i++) {
+        snapshot[i] = counts.get(i);
+      }
+      return snapshot;
+    }
+
+    static long count (final long[] snapshot) {
+      long total = 0;
+      for (final long bucket : snapshot) {
+        total += bucket;
+      }
+      return total;
+    }
+
+    /**
+     * @return the lower bound of the bucket of the snapshot holding the given quantile, between 0 and 1
+     */
+    static long percentile (final long[] snapshot, final double quantile) {
+      final long target = Math.max((long) Math.ceil(quantile * count(snapshot)), 1);
+      long seen = 0;
+      for (int i = 0; i < snapshot.length; i++) {
+        seen += snapshot[i];
+        if (seen >= target) {
+          return lowerBound(i);
+        }
+      }
+      return 0;
+    }
+  }
+}
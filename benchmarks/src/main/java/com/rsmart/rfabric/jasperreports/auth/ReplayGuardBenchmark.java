@@ -0,0 +1,96 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link ReplayGuard} sized for a one hour window holding millions of nonces.
+ * Every fresh nonce is distinct, so a run of a few seconds fills the guard well past the
+ * hourly rate it was sized for; a result of N ops/ms sustains N * 3.6 million nonces per
+ * hour. The replay benchmarks present nonces which have already been recorded.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplayGuardBenchmark {
+
+  static final String NAME = "jdoe@email.com";
+  static final int REPLAYED = 4096;
+
+  @State(Scope.Benchmark)
+  public static class Guard {
+    @Param({ "5000000" })
+    long noncesPerHour;
+
+    ReplayGuard guard;
+    final AtomicInteger threadIds = new AtomicInteger();
+
+    @Setup
+    public void setup() {
+      guard = new ReplayGuard(TimeUnit.HOURS.toMillis(1), 12, noncesPerHour, 0.000001);
+      for (int i = 0; i < REPLAYED; i++) {
+        guard.firstUse(NAME, "replayed-" + i);
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Nonces {
+    String prefix;
+    long next;
+    int replayed;
+
+    @Setup
+    public void setup(final Guard guard) {
+      prefix = "t" + guard.threadIds.incrementAndGet() + "-";
+    }
+
+    String fresh() {
+      return prefix + next++;
+    }
+
+    String replayed() {
+      replayed = (replayed + 1) & (REPLAYED - 1);
+      return "replayed-" + replayed;
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean freshSingleThread(final Guard guard, final Nonces nonces) {
+    return guard.guard.firstUse(NAME, nonces.fresh());
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public boolean freshAllCores(final Guard guard, final Nonces nonces) {
+    return guard.guard.firstUse(NAME, nonces.fresh());
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean replayedSingleThread(final Guard guard, final Nonces nonces) {
+    return guard.guard.firstUse(NAME, nonces.replayed());
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public boolean replayedAllCores(final Guard guard, final Nonces nonces) {
+    return guard.guard.firstUse(NAME, nonces.replayed());
+  }
+}
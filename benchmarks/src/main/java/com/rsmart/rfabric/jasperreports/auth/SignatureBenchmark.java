@@ -0,0 +1,98 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.security.InvalidKeyException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the legacy {@link Signature}, which re-keys its Mac on every call, with a
+ * single {@link KeyedSignature} shared by every benchmark thread. Throughput of the
+ * shared KeyedSignature should grow linearly from the single threaded to the all
+ * cores variant since the threads share no mutable state.
+ *
+ * The verify benchmarks compare checking a presented hash by encoding the computed HMAC
+ * and comparing Strings with the byte level, constant time verifyRFC2104HMAC.
+ *
+ * The legacy Signature is confined to one thread per instance; sharing it between
+ * threads, as the provider used to, is a data race rather than a benchmark.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignatureBenchmark {
+
+  static final String SECRET = "secret key";
+  static final String MESSAGE = "jdoe@email.com;b5f1c3a2e4d6978a";
+
+  @State(Scope.Benchmark)
+  public static class SharedKeyedSignature {
+    KeyedSignature signature;
+
+    String hash;
+
+    @Setup
+    public void setup() {
+      signature = new KeyedSignature(SECRET);
+      hash = signature.calculateRFC2104HMACWithEncoding(MESSAGE, true);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class ThreadConfinedSignature {
+    Signature signature;
+
+    @Setup
+    public void setup() {
+      signature = new Signature();
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String legacySingleThread(final ThreadConfinedSignature state) throws InvalidKeyException {
+    return state.signature.calculateRFC2104HMACWithEncoding(MESSAGE, SECRET, true);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public String legacyAllCores(final ThreadConfinedSignature state) throws InvalidKeyException {
+    return state.signature.calculateRFC2104HMACWithEncoding(MESSAGE, SECRET, true);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String keyedSingleThread(final SharedKeyedSignature state) {
+    return state.signature.calculateRFC2104HMACWithEncoding(MESSAGE, true);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public String keyedAllCores(final SharedKeyedSignature state) {
+    return state.signature.calculateRFC2104HMACWithEncoding(MESSAGE, true);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean encodeAndEqualsVerify(final SharedKeyedSignature state) {
+    return state.signature.calculateRFC2104HMACWithEncoding(MESSAGE, true).equals(state.hash);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean constantTimeVerify(final SharedKeyedSignature state) {
+    return state.signature.verifyRFC2104HMAC(MESSAGE, state.hash);
+  }
+}
@@ -0,0 +1,22 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import org.springframework.security.GrantedAuthority;
+import org.springframework.security.GrantedAuthorityImpl;
+
+/**
+ * An ExternalUserProvider which answers from memory, so benchmarks of the authentication
+ * path measure this project's code rather than a directory service.
+ */
+public class StubUserProvider implements ExternalUserProvider {
+
+  private final GrantedAuthority[] authorities = new GrantedAuthority[] {
+      new GrantedAuthorityImpl("ROLE_USER"), new GrantedAuthorityImpl("ROLE_ADMINISTRATOR") };
+
+  public boolean userExists (final String user) {
+    return true;
+  }
+
+  public GrantedAuthority[] getAuthoritiesForUser (final String user) {
+    return authorities;
+  }
+}
@@ -0,0 +1,37 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.security.SecureRandom;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Mints tokens for benchmarks, in both formats, signed with {@link #SECRET}.
+ */
+final class Tokens {
+
+  static final String SECRET = "secret key";
+  static final String USER = "jdoe@email.com";
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private Tokens() {}
+
+  static String nonce() {
+    final byte[] bytes = new byte[16];
+    RANDOM.nextBytes(bytes);
+    return Hex.encodeHexString(bytes);
+  }
+
+  static String legacy (final String user) {
+    final String toSign = user + AuthToken.TOKEN_SEPARATOR + nonce();
+    return new KeyedSignature(SECRET).calculateRFC2104HMACWithEncoding(toSign, true)
+        + AuthToken.TOKEN_SEPARATOR + toSign;
+  }
+
+  static String v2 (final String user) {
+    final long now = System.currentTimeMillis() / 1000;
+    // valid for a day, longer than any benchmark run
+    final String toSign = AuthToken.V2_PREFIX + "k1;" + now + ";" + (now + 86400) + ";" + user + ";" + nonce();
+    return toSign + AuthToken.TOKEN_SEPARATOR + new KeyedSignature(SECRET).calculateRawHMACWithEncoding(toSign);
+  }
+}
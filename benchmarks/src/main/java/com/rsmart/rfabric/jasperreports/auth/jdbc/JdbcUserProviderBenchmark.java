@@ -0,0 +1,113 @@
+package com.rsmart.rfabric.jasperreports.auth.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.GrantedAuthority;
+
+/**
+ * Measures {@link JdbcUserProvider} lookups per second against an in-memory H2 user and
+ * role store, from 64 threads sharing a pool of maximumConnections connections. resolveUser
+ * answers with the one joined query the AuthTokenAuthenticationProvider uses;
+ * existsThenAuthorities makes the two calls a plain ExternalUserProvider would get.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(64)
+public class JdbcUserProviderBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Directory {
+    @Param({ "100000" })
+    int users;
+
+    @Param({ "4", "16" })
+    int maximumConnections;
+
+    JdbcUserProvider provider;
+    Connection keepAlive;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException {
+      final JdbcDataSource dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:benchmark" + maximumConnections);
+      // an in-memory database lives as long as a connection to it is open
+      keepAlive = dataSource.getConnection();
+      final Statement ddl = keepAlive.createStatement();
+      ddl.execute("CREATE TABLE users (user_name VARCHAR(100) PRIMARY KEY)");
+      ddl.execute("CREATE TABLE user_roles (user_name VARCHAR(100), role_name VARCHAR(100))");
+      ddl.execute("CREATE INDEX user_roles_user ON user_roles (user_name)");
+      ddl.close();
+
+      final PreparedStatement user = keepAlive.prepareStatement("INSERT INTO users VALUES (?)");
+      final PreparedStatement role = keepAlive.prepareStatement("INSERT INTO user_roles VALUES (?, ?)");
+      for (int i = 0; i < users; i++) {
+        user.setString(1, name(i));
+        user.addBatch();
+        role.setString(1, name(i));
+        role.setString(2, "ROLE_USER");
+        role.addBatch();
+        if (i % 10 == 0) {
+          role.setString(1, name(i));
+          role.setString(2, "ROLE_ADMINISTRATOR");
+          role.addBatch();
+        }
+      }
+      user.executeBatch();
+      role.executeBatch();
+      user.close();
+      role.close();
+
+      provider = new JdbcUserProvider();
+      provider.setDataSource(dataSource);
+      provider.setMaximumConnections(maximumConnections);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+      provider.destroy();
+      keepAlive.close();
+    }
+
+    String randomUser() {
+      return name(ThreadLocalRandom.current().nextInt(users));
+    }
+
+    static String name (final int i) {
+      return "user" + i + "@email.com";
+    }
+  }
+
+  @Benchmark
+  public GrantedAuthority[] resolveUser (final Directory directory) throws SQLException {
+    return directory.provider.resolveUser(directory.randomUser());
+  }
+
+  @Benchmark
+  public GrantedAuthority[] existsThenAuthorities (final Directory directory) throws SQLException {
+    final String user = directory.randomUser();
+    return directory.provider.userExists(user) ? directory.provider.getAuthoritiesForUser(user) : null;
+  }
+}
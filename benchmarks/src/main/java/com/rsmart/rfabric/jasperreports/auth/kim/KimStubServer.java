@@ -0,0 +1,340 @@
+package com.rsmart.rfabric.jasperreports.auth.kim;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import org.apache.cxf.Bus;
+import org.apache.cxf.BusFactory;
+import org.apache.cxf.endpoint.Server;
+import org.apache.cxf.jaxws.JaxWsServerFactoryBean;
+import org.kuali.rice.kim.v2_0.GetAuthorizedPermissionsByTemplateResponse;
+import org.kuali.rice.kim.v2_0.GetPrincipalByPrincipalName;
+import org.kuali.rice.kim.v2_0.GetPrincipalByPrincipalNameResponse;
+import org.kuali.rice.kim.v2_0.IdentityService;
+import org.kuali.rice.kim.v2_0.IdentityService_Service;
+import org.kuali.rice.kim.v2_0.PermissionService;
+import org.kuali.rice.kim.v2_0.PermissionService_Service;
+import org.kuali.rice.kim.v2_0.PermissionType;
+import org.kuali.rice.kim.v2_0.PrincipalType;
+
+/**
+ * An in-process stand in for Kuali Rice, serving the bundled rice-kim-api-2.1.1
+ * IdentityService and PermissionService WSDLs over HTTP with CXF. Only the operations
+ * KimUserProvider uses are answered, from a dataset of principals and the permissions
+ * granted to them:
+ *
+ * <ul>
+ *   <li>getPrincipalByPrincipalName: the principal, if it was added</li>
+ *   <li>hasPermission: whether the principal was granted the permission</li>
+ *   <li>getAuthorizedPermissionsByTemplate: every permission granted to the principal,
+ *       in the requested namespace, whatever the template</li>
+ * </ul>
+ *
+ * Every request can be delayed by a {@link Latency} drawn at random, globally or per
+ * operation, and fail with a SOAP fault at a given rate, to reproduce a slow or flaky
+ * KIM offline.
+ *
+ * <pre>
+ *   final KimStubServer kim = new KimStubServer()
+ *       .addPrincipal("jdoe", "ROLE_USER")
+ *       .setLatency(KimStubServer.logNormal(5, 40))
+ *       .setErrorRate(0.01);
+ *   kim.start(0);
+ *   provider.setIdentityServiceAddress(kim.getIdentityServiceAddress());
+ * </pre>
+ */
+public class KimStubServer {
+
+  public static final String IDENTITY_WSDL = "/wsdl/rice-kim-api-2.1.1-IdentityService.wsdl";
+  public static final String PERMISSION_WSDL = "/wsdl/rice-kim-api-2.1.1-PermissionService.wsdl";
+
+  /**
+   * A distribution of response delays.
+   */
+  public interface Latency {
+    long nextNanos(Random random);
+  }
+
+  public static final Latency NONE = fixed(0);
+
+  /**
+   * CXF logs every fault with its stack trace, which would cost more than the faults themselves.
+   */
+  private static final Logger FAULT_LOG = Logger.getLogger("org.apache.cxf.phase.PhaseInterceptorChain");
+
+  private final Map<String, Set<String>> principals = new ConcurrentHashMap<String, Set<String>>();
+  private final Map<String, Latency> operationLatencies = new ConcurrentHashMap<String, Latency>();
+  private volatile Latency latency = NONE;
+  private volatile double errorRate = 0;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong injectedErrors = new AtomicLong();
+  private final ThreadLocal<Random> randoms = new ThreadLocal<Random>() {
+    @Override
+    protected Random initialValue() {
+      return new Random();
+    }
+  };
+
+  private Bus bus;
+  private String baseAddress;
+
+  /**
+   * Always delays by millis.
+   */
+  public static Latency fixed (final double millis) {
+    final long nanos = (long) (millis * 1000000);
+    return new Latency() {
+      public long nextNanos (final Random random) {
+        return nanos;
+      }
+    };
+  }
+
+  /**
+   * Delays by between minMillis and maxMillis, uniformly.
+   */
+  public static Latency uniform (final double minMillis, final double maxMillis) {
+    return new Latency() {
+      public long nextNanos (final Random random) {
+        return (long) ((minMillis + random.nextDouble() * (maxMillis - minMillis)) * 1000000);
+      }
+    };
+  }
+
+  /**
+   * Delays by a log-normally distributed time with the given median and 99th percentile,
+   * the long tailed shape of real service latencies.
+   */
+  public static Latency logNormal (final double medianMillis, final double p99Millis) {
+    if (medianMillis <= 0 || p99Millis < medianMillis) {
+      throw new IllegalArgumentException ("need 0 < medianMillis <= p99Millis");
+    }
+    final double mu = Math.log(medianMillis);
+    // 2.326 is the 99th percentile of the standard normal distribution
+    final double sigma = (Math.log(p99Millis) - mu) / 2.326;
+    return new Latency() {
+      public long nextNanos (final Random random) {
+        return (long) (Math.exp(mu + sigma * random.nextGaussian()) * 1000000);
+      }
+    };
+  }
+
+  /**
+   * Adds a principal, granted the named permissions.
+   */
+  public KimStubServer addPrincipal (final String principalName, final String... permissionNames) {
+    final Set<String> granted = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    Collections.addAll(granted, permissionNames);
+    principals.put(principalName, granted);
+    return this;
+  }
+
+  /**
+   * Sets the delay of every operation without a latency of its own.
+   */
+  public KimStubServer setLatency (final Latency latency) {
+    this.latency = (latency == null) ? NONE : latency;
+    return this;
+  }
+
+  /**
+   * Sets the delay of one operation, e.g. "hasPermission". null restores the global latency.
+   */
+  public KimStubServer setLatency (final String operation, final Latency latency) {
+    if (latency == null) {
+      operationLatencies.remove(operation);
+    } else {
+      operationLatencies.put(operation, latency);
+    }
+    return this;
+  }
+
+  /**
+   * Sets the fraction of requests, between 0 and 1, answered with a SOAP fault.
+   */
+  public KimStubServer setErrorRate (final double errorRate) {
+    if (errorRate < 0 || errorRate > 1) {
+      throw new IllegalArgumentException ("errorRate must be between 0 and 1");
+    }
+    this.errorRate = errorRate;
+    if (errorRate > 0) {
+      FAULT_LOG.setLevel(Level.SEVERE);
+    }
+    return this;
+  }
+
+  /**
+   * Publishes both services on localhost.
+   *
+   * @param port the port to listen on; 0 picks a free one
+   */
+  public synchronized void start (final int port) throws IOException {
+    if (bus != null) {
+      throw new IllegalStateException ("already started");
+    }
+    baseAddress = "http://localhost:" + ((port == 0) ? freePort() : port) + "/kim/";
+
+    // a bus of our own, so that stopping it stops the Jetty engine and its threads
+    bus = BusFactory.newInstance().createBus();
+    publish(IdentityService.class, IDENTITY_WSDL, IdentityService_Service.SERVICE,
+        IdentityService_Service.IdentityServicePort, getIdentityServiceAddress());
+    publish(PermissionService.class, PERMISSION_WSDL, PermissionService_Service.SERVICE,
+        PermissionService_Service.PermissionServicePort, getPermissionServiceAddress());
+  }
+
+  public synchronized void stop() {
+    if (bus != null) {
+      bus.shutdown(true);
+      bus = null;
+    }
+  }
+
+  public String getIdentityServiceAddress() {
+    return baseAddress + "IdentityService";
+  }
+
+  public String getPermissionServiceAddress() {
+    return baseAddress + "PermissionService";
+  }
+
+  /**
+   * @return the URL of the bundled WSDL of the IdentityService, for IdentityService_Service
+   */
+  public static URL getIdentityServiceWsdl() {
+    return KimStubServer.class.getResource(IDENTITY_WSDL);
+  }
+
+  /**
+   * @return the URL of the bundled WSDL of the PermissionService, for PermissionService_Service
+   */
+  public static URL getPermissionServiceWsdl() {
+    return KimStubServer.class.getResource(PERMISSION_WSDL);
+  }
+
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  public long getInjectedErrorCount() {
+    return injectedErrors.get();
+  }
+
+  private static int freePort() throws IOException {
+    final ServerSocket socket = new ServerSocket(0);
+    try {
+      return socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+  }
+
+  private <T> Server publish (final Class<T> serviceClass, final String wsdl, final QName service,
+      final QName endpoint, final String address) {
+    final JaxWsServerFactoryBean factory = new JaxWsServerFactoryBean();
+    factory.setBus(bus);
+    factory.setServiceClass(serviceClass);
+    factory.setServiceBean(implement(serviceClass));
+    factory.setWsdlLocation(KimStubServer.class.getResource(wsdl).toString());
+    factory.setServiceName(service);
+    factory.setEndpointName(endpoint);
+    factory.setAddress(address);
+    return factory.create();
+  }
+
+  /**
+   * Implements the operations of serviceClass which KimUserProvider calls; any other
+   * operation faults.
+   */
+  private <T> T implement (final Class<T> serviceClass) {
+    return serviceClass.cast(Proxy.newProxyInstance(serviceClass.getClassLoader(),
+        new Class<?>[] { serviceClass }, new InvocationHandler() {
+          public Object invoke (final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final String operation = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+              return method.invoke(this, args);
+            }
+            simulate(operation);
+
+            if ("getPrincipalByPrincipalName".equals(operation)) {
+              return getPrincipalByPrincipalName((GetPrincipalByPrincipalName) args[0]);
+            }
+            if ("hasPermission".equals(operation)) {
+              return Boolean.valueOf(hasPermission((String) args[0], (String) args[2]));
+            }
+            if ("getAuthorizedPermissionsByTemplate".equals(operation)) {
+              return getAuthorizedPermissions((String) args[0], (String) args[1]);
+            }
+            throw new UnsupportedOperationException (operation + " is not implemented by the KIM stub");
+          }
+        }));
+  }
+
+  private void simulate (final String operation) throws InterruptedException {
+    requests.incrementAndGet();
+    final Random random = randoms.get();
+
+    final Latency operationLatency = operationLatencies.get(operation);
+    final long delay = ((operationLatency != null) ? operationLatency : latency).nextNanos(random);
+    if (delay > 0) {
+      TimeUnit.NANOSECONDS.sleep(delay);
+    }
+
+    if (errorRate > 0 && random.nextDouble() < errorRate) {
+      injectedErrors.incrementAndGet();
+      throw new IllegalStateException ("fault injected by the KIM stub into " + operation);
+    }
+  }
+
+  private GetPrincipalByPrincipalNameResponse getPrincipalByPrincipalName (final GetPrincipalByPrincipalName request) {
+    final GetPrincipalByPrincipalNameResponse response = new GetPrincipalByPrincipalNameResponse();
+    final String name = request.getPrincipalName();
+    if (name != null && principals.containsKey(name)) {
+      final PrincipalType principal = new PrincipalType();
+      principal.setPrincipalId(name);
+      principal.setPrincipalName(name);
+      principal.setEntityId(name);
+      principal.setActive(true);
+      response.setPrincipal(principal);
+    }
+    return response;
+  }
+
+  private boolean hasPermission (final String principalId, final String permissionName) {
+    final Set<String> granted = principals.get(principalId);
+    return granted != null && granted.contains(permissionName);
+  }
+
+  private GetAuthorizedPermissionsByTemplateResponse.Permissions getAuthorizedPermissions (
+      final String principalId, final String namespaceCode) {
+    final GetAuthorizedPermissionsByTemplateResponse.Permissions permissions =
+        new GetAuthorizedPermissionsByTemplateResponse.Permissions();
+    final Set<String> granted = principals.get(principalId);
+    if (granted != null) {
+      for (final String name : granted) {
+        final PermissionType permission = new PermissionType();
+        permission.setId(principalId + ":" + name);
+        permission.setNamespaceCode(namespaceCode);
+        permission.setName(name);
+        permission.setActive(true);
+        permissions.getPermission().add(permission);
+      }
+    }
+    return permissions;
+  }
+}
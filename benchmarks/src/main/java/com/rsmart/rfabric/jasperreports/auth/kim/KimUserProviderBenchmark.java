@@ -0,0 +1,146 @@
+package com.rsmart.rfabric.jasperreports.auth.kim;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.kuali.rice.kim.v2_0.IdentityService_Service;
+import org.kuali.rice.kim.v2_0.PermissionService_Service;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.GrantedAuthority;
+
+/**
+ * Measures {@link KimUserProvider#userExists} and {@link KimUserProvider#getAuthoritiesForUser}
+ * over SOAP against a {@link KimStubServer} on localhost, so the provider's throughput and
+ * tail latency can be seen under a given KIM latency and error rate. SampleTime mode
+ * reports the p50, p99 and p99.9 of each call.
+ *
+ * <ul>
+ *   <li>latency: "none", "fixed:MS", "uniform:MIN:MAX" or "lognormal:MEDIAN:P99", in milliseconds</li>
+ *   <li>errorRate: the fraction of KIM calls answered with a fault</li>
+ *   <li>lookup: how authorities are resolved; "sequential" and "parallel" (8 threads)
+ *       hasPermission calls, or one "template" call</li>
+ * </ul>
+ *
+ * Failed calls are counted as a false or empty answer rather than ending the run, e.g.
+ * <pre>
+ *   java -jar target/benchmarks.jar KimUserProviderBenchmark -p latency=lognormal:5:50 -p errorRate=0.01
+ * </pre>
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KimUserProviderBenchmark {
+
+  static final String USER = "jdoe";
+  static final String[] AUTHORITIES = { "ROLE_USER", "ROLE_REPORT_VIEWER", "ROLE_REPORT_AUTHOR", "ROLE_ADMINISTRATOR" };
+
+  @State(Scope.Benchmark)
+  public static class Kim {
+    @Param({ "lognormal:1:10" })
+    String latency;
+
+    @Param({ "0" })
+    double errorRate;
+
+    @Param({ "sequential", "parallel", "template" })
+    String lookup;
+
+    KimStubServer server;
+    KimUserProvider provider;
+
+    @Setup
+    public void setup() throws Exception {
+      server = new KimStubServer()
+          .addPrincipal(USER, AUTHORITIES[0], AUTHORITIES[1], AUTHORITIES[2])
+          .setLatency(latency(latency))
+          .setErrorRate(errorRate);
+      server.start(0);
+
+      provider = new KimUserProvider();
+      provider.setIdentityService(new IdentityService_Service(KimStubServer.getIdentityServiceWsdl()));
+      provider.setIdentityServiceAddress(server.getIdentityServiceAddress());
+      provider.setPermissionService(new PermissionService_Service(KimStubServer.getPermissionServiceWsdl()));
+      provider.setPermissionServiceAddress(server.getPermissionServiceAddress());
+      provider.setAvailableAuthorities(Arrays.asList(AUTHORITIES));
+      if ("parallel".equals(lookup)) {
+        provider.setPermissionCheckParallelism(8);
+      } else if ("template".equals(lookup)) {
+        provider.setPermissionTemplateName("Use Screen");
+      }
+    }
+
+    @TearDown
+    public void tearDown() {
+      provider.destroy();
+      server.stop();
+    }
+  }
+
+  static KimStubServer.Latency latency (final String spec) {
+    final String[] parts = spec.split(":");
+    if ("none".equals(parts[0])) {
+      return KimStubServer.NONE;
+    } else if ("fixed".equals(parts[0])) {
+      return KimStubServer.fixed(Double.parseDouble(parts[1]));
+    } else if ("uniform".equals(parts[0])) {
+      return KimStubServer.uniform(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+    } else if ("lognormal".equals(parts[0])) {
+      return KimStubServer.logNormal(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+    }
+    throw new IllegalArgumentException("unknown latency: " + spec);
+  }
+
+  private static boolean userExists (final Kim kim) {
+    try {
+      return kim.provider.userExists(USER);
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  private static GrantedAuthority[] getAuthoritiesForUser (final Kim kim) {
+    try {
+      return kim.provider.getAuthoritiesForUser(USER);
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean userExistsSingleThread(final Kim kim) {
+    return userExists(kim);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public boolean userExistsConcurrent(final Kim kim) {
+    return userExists(kim);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public GrantedAuthority[] getAuthoritiesForUserSingleThread(final Kim kim) {
+    return getAuthoritiesForUser(kim);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public GrantedAuthority[] getAuthoritiesForUserConcurrent(final Kim kim) {
+    return getAuthoritiesForUser(kim);
+  }
+}
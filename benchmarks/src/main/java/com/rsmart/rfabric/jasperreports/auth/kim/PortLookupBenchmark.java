@@ -0,0 +1,66 @@
+package com.rsmart.rfabric.jasperreports.auth.kim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cxf.frontend.ClientProxy;
+import org.apache.cxf.message.Message;
+import org.kuali.rice.kim.v2_0.IdentityService;
+import org.kuali.rice.kim.v2_0.IdentityService_Service;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of obtaining a configured IdentityService port for one lookup: a new
+ * CXF proxy per lookup, as KimUserProvider used to create, against borrowing one from a
+ * {@link PortPool}. No request is sent; run with "-prof gc" to compare allocation per lookup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PortLookupBenchmark {
+
+  static final String ADDRESS = "http://localhost:9090/identityServicePort";
+
+  IdentityService_Service service;
+  PortPool<IdentityService> pool;
+
+  @Setup
+  public void setup() {
+    service = new IdentityService_Service(
+        getClass().getResource("/wsdl/rice-kim-api-2.1.1-IdentityService.wsdl"));
+    pool = new PortPool<IdentityService>(32) {
+      protected IdentityService create() {
+        return newPort();
+      }
+    };
+  }
+
+  IdentityService newPort() {
+    final IdentityService port = service.getIdentityServicePort();
+    ClientProxy.getClient(port).getRequestContext().put(Message.ENDPOINT_ADDRESS, ADDRESS);
+    return port;
+  }
+
+  @Benchmark
+  public IdentityService newPortPerLookup() {
+    return newPort();
+  }
+
+  @Benchmark
+  public IdentityService pooledPort() {
+    final IdentityService port = pool.borrow();
+    pool.release(port);
+    return port;
+  }
+}
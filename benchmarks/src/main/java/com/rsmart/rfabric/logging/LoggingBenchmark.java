@@ -0,0 +1,119 @@
+package com.rsmart.rfabric.logging;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.varia.NullAppender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a debug statement with two parameters, as KimUserProvider writes them, when
+ * debug is disabled and when it is enabled with an appender which discards everything.
+ * The stackWalking benchmarks reproduce the original static FormattedLogger, which looked
+ * the caller's Log up from a stack trace and formatted through a PrintWriter; the guarded
+ * benchmarks are the usual commons-logging idiom of checking the level and concatenating.
+ * Run with -prof gc to see the allocation per statement.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoggingBenchmark {
+
+  static final String DISABLED = "loggingbenchmark.disabled";
+  static final String ENABLED = "loggingbenchmark.enabled";
+
+  FormattedLogger disabled;
+  FormattedLogger enabled;
+  Log disabledLog;
+  Log enabledLog;
+
+  String user = "jdoe@email.com";
+  String reason = "Read timed out";
+
+  @Setup
+  public void setup() {
+    Logger.getLogger(DISABLED).setLevel(Level.INFO);
+    final Logger discarding = Logger.getLogger(ENABLED);
+    discarding.setLevel(Level.DEBUG);
+    discarding.setAdditivity(false);
+    discarding.addAppender(new NullAppender());
+
+    disabledLog = LogFactory.getLog(DISABLED);
+    enabledLog = LogFactory.getLog(ENABLED);
+    disabled = new FormattedLogger(disabledLog);
+    enabled = new FormattedLogger(enabledLog);
+  }
+
+  @Benchmark
+  public void stackWalkingDisabled() {
+    stackWalking(DISABLED, "Unable to determine permissions for: %s: reason: %s", user, reason);
+  }
+
+  @Benchmark
+  public void guardedDisabled() {
+    if (disabledLog.isDebugEnabled()) {
+      disabledLog.debug("Unable to determine permissions for: " + user + ": reason: " + reason);
+    }
+  }
+
+  @Benchmark
+  public void formattedDisabled() {
+    disabled.debug("Unable to determine permissions for: %s: reason: %s", user, reason);
+  }
+
+  @Benchmark
+  public void stackWalkingEnabled() {
+    stackWalking(ENABLED, "Unable to determine permissions for: %s: reason: %s", user, reason);
+  }
+
+  @Benchmark
+  public void guardedEnabled() {
+    if (enabledLog.isDebugEnabled()) {
+      enabledLog.debug("Unable to determine permissions for: " + user + ": reason: " + reason);
+    }
+  }
+
+  @Benchmark
+  public void formattedEnabled() {
+    enabled.debug("Unable to determine permissions for: %s: reason: %s", user, reason);
+  }
+
+  /**
+   * The original FormattedLogger.debug: the caller's class is taken from a stack trace
+   * before the level is checked. Its Log is then looked up by name, since the benchmark's
+   * own class would resolve to a logger with no level set.
+   */
+  static void stackWalking(final String name, final String pattern, final Object ... objs) {
+    Log log;
+    try {
+      Class.forName(new Throwable().getStackTrace()[1].getClassName());
+      log = LogFactory.getLog(name);
+    }
+    catch (Exception e) {
+      log = LogFactory.getLog(FormattedLogger.class);
+    }
+    if (log.isDebugEnabled()) {
+      final StringWriter retval = new StringWriter();
+      final PrintWriter writer = new PrintWriter(retval);
+      writer.printf(pattern, objs);
+      log.debug(retval.toString());
+    }
+  }
+}
@@ -1,5 +1,10 @@
 #!/bin/sh
+#
+# Prints a token for a user:
+#   ./genToken.sh <shared secret> <user>
+# or one for each user name read from stdin (or -users <file>), in the same order:
+#   ./genToken.sh [-keyId <id> | -keyRing <file>] [-ttl <seconds>] [-threads <n>] <shared secret> < users.txt > tokens.txt
 
 CP=~/.m2/repository/commons-codec/commons-codec/1.7/commons-codec-1.7.jar:~/.m2/repository/commons-logging/commons-logging-api/1.1/commons-logging-api-1.1.jar:~/.m2/repository/commons-logging/commons-logging/1.1.1/commons-logging-1.1.1.jar:target/classes
 
-java -classpath $CP com.rsmart.rfabric.jasperreports.auth.AuthTokenGenerator $1 $2
+exec java $JAVA_OPTS -classpath $CP com.rsmart.rfabric.jasperreports.auth.AuthTokenGenerator "$@"
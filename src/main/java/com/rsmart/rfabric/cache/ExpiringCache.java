@@ -0,0 +1,445 @@
+package com.rsmart.rfabric.cache;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread safe cache whose entries expire a time after they were loaded. The time
+ * to live is fixed unless a subclass overrides {@link #timeToLive(Object)} to choose it per
+ * value, e.g. to keep negative results for a shorter time.
+ * Values are loaded through a {@link CacheLoader} on a miss; concurrent misses on the same
+ * key wait for a single load instead of each calling the loader. When the cache grows past
+ * its maximum size the oldest entries are evicted first.
+ *
+ * A loader which returns null or throws leaves nothing in the cache; every caller waiting
+ * on that load receives the same null or exception. Expired entries are dropped lazily,
+ * when they are next read or when they reach the head of the eviction order.
+ *
+ * If refresh-ahead is enabled, a hit on an entry which is past the given fraction of its
+ * time to live reloads it asynchronously while the current value is still served, so keys
+ * which are read often are replaced before they expire and their readers never wait.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ExpiringCache<K, V> {
+
+  /**
+   * Loads the value for a key which is missing from the cache.
+   */
+  public interface CacheLoader<K, V> {
+    V load(K key) throws Exception;
+  }
+
+  private final ConcurrentMap<K, Entry<K, V>> entries = new ConcurrentHashMap<K, Entry<K, V>>();
+  private final Queue<Entry<K, V>> insertionOrder = new ConcurrentLinkedQueue<Entry<K, V>>();
+  // entries replaced or removed from the map since the eviction order was last compacted
+  private final AtomicInteger superseded = new AtomicInteger();
+
+  private final long timeToLive;
+  private final int maximumSize;
+  private volatile boolean statisticsEnabled = true;
+  private volatile Executor refreshExecutor = null;
+  private volatile double refreshAheadRatio = 1.0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong refreshes = new AtomicLong();
+
+  /**
+   * @param timeToLive milliseconds an entry stays valid after it has been loaded
+   * @param maximumSize number of entries beyond which the oldest are evicted
+   */
+  public ExpiringCache (final long timeToLive, final int maximumSize) {
+    if (timeToLive <= 0) {
+      throw new IllegalArgumentException ("timeToLive <= 0");
+    }
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException ("maximumSize <= 0");
+    }
+    this.timeToLive = timeToLive;
+    this.maximumSize = maximumSize;
+  }
+
+  /**
+   * Returns the cached value for key, or null if there is none or it has expired. Does not
+   * wait for a load in progress.
+   */
+  public V getIfPresent (final K key) {
+    final Entry<K, V> entry = entries.get(key);
+    if (entry == null || !entry.isLoaded() || entry.isExpired(now())) {
+      return null;
+    }
+    final V value = entry.value;
+    if (value != null) {
+      recordHit();
+    }
+    return value;
+  }
+
+  /**
+   * Returns the cached value for key, loading it with loader if it is missing or has
+   * expired. Only one thread loads a given key at a time; others wait for its result.
+   *
+   * @throws RuntimeException thrown by the loader, as is
+   * @throws CacheLoaderException wrapping a checked exception thrown by the loader
+   */
+  public V get (final K key, final CacheLoader<K, V> loader) {
+    while (true) {
+      final Entry<K, V> existing = entries.get(key);
+
+      if (existing != null && !(existing.isLoaded() && existing.isExpired(now()))) {
+        final V value = existing.await();
+        if (existing.isFailed()) {
+          // share the outcome of the load we waited on rather than repeating it
+          existing.rethrow();
+          return null;
+        }
+        recordHit();
+        refreshAhead(existing, loader);
+        return value;
+      }
+
+      final Entry<K, V> created = new Entry<K, V>(key);
+      final boolean installed = (existing == null)
+          ? entries.putIfAbsent(key, created) == null
+          : entries.replace(key, existing, created);
+      if (!installed) {
+        // another thread won the race to (re)load this key
+        continue;
+      }
+      if (existing != null) {
+        supersede();
+      }
+      recordMiss();
+      return load(created, loader);
+    }
+  }
+
+  /**
+   * Stores value for key, replacing any cached or loading value. Callers waiting on a load
+   * in progress still receive that load's outcome.
+   */
+  public void put (final K key, final V value) {
+    if (value == null) {
+      throw new IllegalArgumentException ("value == null");
+    }
+    final Entry<K, V> created = new Entry<K, V>(key);
+    final Entry<K, V> previous = entries.put(key, created);
+    if (previous != null) {
+      supersede();
+    }
+    install(created, value);
+  }
+
+  private V load (final Entry<K, V> entry, final CacheLoader<K, V> loader) {
+    V value = null;
+    Throwable failure = null;
+    try {
+      value = loader.load(entry.key);
+    } catch (Throwable t) {
+      failure = t;
+    }
+
+    if (failure != null || value == null) {
+      entries.remove(entry.key, entry);
+      entry.complete(null, failure, 0, 0);
+      entry.rethrow();
+      return null;
+    }
+
+    install(entry, value);
+    return value;
+  }
+
+  private void install (final Entry<K, V> entry, final V value) {
+    final long now = now();
+    final long ttl = timeToLive(value);
+    entry.complete(value, null, now + ttl, now + (long) (ttl * refreshAheadRatio));
+    insertionOrder.add(entry);
+    evict(now);
+  }
+
+  /**
+   * Counts an entry which has just been replaced in, or removed from, the map. Its node stays
+   * in the eviction order, where evict skips it once it reaches the head; so that keys which
+   * are replaced often do not fill the order with dead nodes behind a live head, every
+   * maximumSize of them trigger a compaction, which keeps the cost of a replacement constant
+   * on average instead of scanning the order each time.
+   */
+  private void supersede() {
+    final int count = superseded.incrementAndGet();
+    if (count >= maximumSize && superseded.compareAndSet(count, 0)) {
+      compact();
+    }
+  }
+
+  /**
+   * Drops the nodes of entries which are no longer in the map from the eviction order.
+   */
+  private void compact() {
+    for (final Iterator<Entry<K, V>> i = insertionOrder.iterator(); i.hasNext(); ) {
+      final Entry<K, V> entry = i.next();
+      if (entries.get(entry.key) != entry) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Starts an asynchronous reload of entry if refresh-ahead is enabled and the entry is due
+   * for one. At most one refresh of an entry runs at a time. A refresh which fails or loads
+   * null leaves the current value in place until it expires.
+   */
+  private void refreshAhead (final Entry<K, V> entry, final CacheLoader<K, V> loader) {
+    final Executor executor = refreshExecutor;
+    if (executor == null || now() < entry.refreshAt || !entry.claimRefresh()) {
+      return;
+    }
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            final V value = loader.load(entry.key);
+            if (value == null) {
+              return;
+            }
+            final Entry<K, V> refreshed = new Entry<K, V>(entry.key);
+            if (entries.replace(entry.key, entry, refreshed)) {
+              supersede();
+              install(refreshed, value);
+              if (statisticsEnabled) {
+                refreshes.incrementAndGet();
+              }
+            }
+          } catch (Exception e) {
+            // keep serving the current value; the next read after expiry loads synchronously
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the executor is saturated or shut down; the entry will be loaded when it expires
+    }
+  }
+
+  /**
+   * Returns how long, in milliseconds, value stays valid after it has been loaded. Defaults
+   * to the time to live the cache was constructed with.
+   */
+  protected long timeToLive (final V value) {
+    return timeToLive;
+  }
+
+  /**
+   * Enables refresh-ahead. Entries read after ratio of their time to live has passed are
+   * reloaded on executor.
+   *
+   * @param executor runs the reloads; null disables refresh-ahead
+   * @param ratio fraction of the time to live, between 0 and 1, after which a read refreshes
+   */
+  public void setRefreshAhead (final Executor executor, final double ratio) {
+    if (ratio <= 0 || ratio > 1) {
+      throw new IllegalArgumentException ("ratio must be > 0 and <= 1");
+    }
+    this.refreshAheadRatio = (executor == null) ? 1.0 : ratio;
+    this.refreshExecutor = executor;
+  }
+
+  /**
+   * Drops superseded and expired entries from the head of the eviction order, then evicts
+   * the oldest entries until the cache is back within its maximum size.
+   */
+  private void evict (final long now) {
+    Entry<K, V> oldest;
+    while ((oldest = insertionOrder.peek()) != null) {
+      if (entries.get(oldest.key) == oldest && !oldest.isExpired(now)) {
+        break;
+      }
+      if (insertionOrder.remove(oldest)) {
+        entries.remove(oldest.key, oldest);
+      }
+    }
+
+    while (entries.size() > maximumSize && (oldest = insertionOrder.poll()) != null) {
+      if (entries.remove(oldest.key, oldest) && statisticsEnabled) {
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Removes the entry for key, if any.
+   */
+  public void invalidate (final K key) {
+    if (entries.remove(key) != null) {
+      supersede();
+    }
+  }
+
+  /**
+   * Removes every entry.
+   */
+  public void clear() {
+    entries.clear();
+    insertionOrder.clear();
+    superseded.set(0);
+  }
+
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  private void recordHit() {
+    if (statisticsEnabled) {
+      hits.incrementAndGet();
+    }
+  }
+
+  private void recordMiss() {
+    if (statisticsEnabled) {
+      misses.incrementAndGet();
+    }
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the number of entries in the eviction order; for tests, as it takes linear time.
+   */
+  int evictionOrderSize() {
+    return insertionOrder.size();
+  }
+
+  public long getTimeToLive() {
+    return timeToLive;
+  }
+
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  public boolean isStatisticsEnabled() {
+    return statisticsEnabled;
+  }
+
+  /**
+   * Turns collection of hit, miss and eviction counts on or off.
+   */
+  public void setStatisticsEnabled (final boolean statisticsEnabled) {
+    this.statisticsEnabled = statisticsEnabled;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  public long getRefreshCount() {
+    return refreshes.get();
+  }
+
+  /**
+   * Wraps a checked exception thrown by a {@link CacheLoader}.
+   */
+  public static class CacheLoaderException extends RuntimeException {
+    private static final long serialVersionUID = -2374810582139672045L;
+
+    public CacheLoaderException (final Throwable cause) {
+      super(cause);
+    }
+  }
+
+  /**
+   * A cache slot. It is published in the map before its value is loaded; readers which
+   * find it unloaded wait on the latch for the loading thread to complete it.
+   */
+  private static final class Entry<K, V> {
+    final K key;
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private volatile V value;
+    private volatile Throwable failure;
+    private volatile boolean failed;
+    private volatile long expiresAt;
+    private volatile long refreshAt;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    Entry (final K key) {
+      this.key = key;
+    }
+
+    void complete (final V value, final Throwable failure, final long expiresAt,
+        final long refreshAt) {
+      this.value = value;
+      this.failure = failure;
+      this.failed = (value == null);
+      this.expiresAt = expiresAt;
+      this.refreshAt = refreshAt;
+      loaded.countDown();
+    }
+
+    boolean claimRefresh() {
+      return refreshing.compareAndSet(false, true);
+    }
+
+    boolean isLoaded() {
+      return loaded.getCount() == 0;
+    }
+
+    boolean isFailed() {
+      return failed;
+    }
+
+    boolean isExpired (final long now) {
+      return now >= expiresAt;
+    }
+
+    V await() {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          loaded.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      return value;
+    }
+
+    void rethrow() {
+      final Throwable t = failure;
+      if (t == null) {
+        return;
+      }
+      if (t instanceof RuntimeException) {
+        throw (RuntimeException) t;
+      }
+      if (t instanceof Error) {
+        throw (Error) t;
+      }
+      throw new CacheLoaderException(t);
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.util.concurrent.Future;
+
+import org.springframework.security.GrantedAuthority;
+
+/**
+ * An ExternalUserProvider which can also answer without blocking the caller. Both lookups
+ * return immediately with a Future, so a caller can start them together and wait for the
+ * slower one rather than for their sum.
+ *
+ * Blocking providers can be offered through this interface with
+ * {@link AsyncUserProviderAdapter}.
+ */
+public interface AsyncExternalUserProvider extends ExternalUserProvider {
+
+  /**
+   * Starts determining if the external service recognizes the given user name.
+   *
+   * @param user
+   * @return a Future for the answer; it fails with the exception userExists would throw
+   */
+  public Future<Boolean> userExistsAsync(String user);
+
+  /**
+   * Starts resolving the roles filled by the given user.
+   *
+   * @param user
+   * @return a Future for the user's authorities
+   */
+  public Future<GrantedAuthority[]> getAuthoritiesForUserAsync(String user);
+}
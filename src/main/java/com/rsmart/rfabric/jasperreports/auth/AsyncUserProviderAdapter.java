@@ -0,0 +1,195 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.security.GrantedAuthority;
+
+/**
+ * Offers a blocking ExternalUserProvider as an AsyncExternalUserProvider by running its
+ * lookups on a thread pool. The request thread still waits for the answers, but the two
+ * lookups of a login run at the same time. Providers which are already asynchronous are
+ * used as they are; see {@link #adapt(ExternalUserProvider)}.
+ *
+ * Unless an executor is supplied, a pool of daemon threads is created on first use, with
+ * room for queueSize lookups waiting for a thread. Call destroy() to stop it. A lookup the
+ * executor refuses, e.g. because the queue is full while the delegate is slow, fails at
+ * once with a RejectedExecutionException rather than waiting behind the backlog; such
+ * lookups are counted by getRejectedLookups().
+ *
+ * Typical Spring configuration:
+ * <pre>
+ *   &lt;bean id="asyncUserProvider" class="...AsyncUserProviderAdapter" destroy-method="destroy"&gt;
+ *     &lt;constructor-arg ref="cachingUserProvider"/&gt;
+ *     &lt;property name="threads" value="16"/&gt;
+ *     &lt;property name="queueSize" value="256"/&gt;
+ *   &lt;/bean&gt;
+ * </pre>
+ */
+public class AsyncUserProviderAdapter implements AsyncExternalUserProvider {
+
+  private final ExternalUserProvider delegate;
+  private final boolean ownsExecutor;
+  private volatile ExecutorService executor;
+  private int threads = 16;
+  private int queueSize = 256;
+  private final AtomicLong rejectedLookups = new AtomicLong();
+
+  /**
+   * Adapts delegate, running its lookups on a pool owned by the adapter.
+   */
+  public AsyncUserProviderAdapter (final ExternalUserProvider delegate) {
+    this(delegate, null);
+  }
+
+  /**
+   * Adapts delegate, running its lookups on executor. The executor is not shut down by
+   * destroy().
+   */
+  public AsyncUserProviderAdapter (final ExternalUserProvider delegate, final ExecutorService executor) {
+    if (delegate == null) {
+      throw new IllegalArgumentException ("delegate == null");
+    }
+    this.delegate = delegate;
+    this.executor = executor;
+    this.ownsExecutor = (executor == null);
+  }
+
+  /**
+   * Returns provider itself if it is already asynchronous, otherwise an adapter for it.
+   */
+  public static AsyncExternalUserProvider adapt (final ExternalUserProvider provider) {
+    if (provider instanceof AsyncExternalUserProvider) {
+      return (AsyncExternalUserProvider) provider;
+    }
+    return new AsyncUserProviderAdapter(provider);
+  }
+
+  public ExternalUserProvider getDelegate() {
+    return delegate;
+  }
+
+  public boolean userExists (final String user) throws Exception {
+    return delegate.userExists(user);
+  }
+
+  public GrantedAuthority[] getAuthoritiesForUser (final String user) {
+    return delegate.getAuthoritiesForUser(user);
+  }
+
+  public Future<Boolean> userExistsAsync (final String user) {
+    return submit(new Callable<Boolean>() {
+      public Boolean call() throws Exception {
+        return Boolean.valueOf(delegate.userExists(user));
+      }
+    });
+  }
+
+  public Future<GrantedAuthority[]> getAuthoritiesForUserAsync (final String user) {
+    return submit(new Callable<GrantedAuthority[]>() {
+      public GrantedAuthority[] call() {
+        return delegate.getAuthoritiesForUser(user);
+      }
+    });
+  }
+
+  /**
+   * Runs lookup on the executor, or returns a future failed with the executor's
+   * RejectedExecutionException if it refuses it.
+   */
+  private <V> Future<V> submit (final Callable<V> lookup) {
+    try {
+      return executor().submit(lookup);
+    } catch (RejectedExecutionException e) {
+      rejectedLookups.incrementAndGet();
+      final SettableFuture<V> failed = new SettableFuture<V>();
+      failed.setException(e);
+      return failed;
+    }
+  }
+
+  private ExecutorService executor() {
+    final ExecutorService existing = executor;
+    return (existing != null) ? existing : createExecutor();
+  }
+
+  private synchronized ExecutorService createExecutor() {
+    if (executor == null) {
+      final AtomicInteger count = new AtomicInteger();
+      final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            public Thread newThread (final Runnable r) {
+              final Thread thread = new Thread(r, "user-provider-lookup-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          }, new ThreadPoolExecutor.AbortPolicy());
+      pool.allowCoreThreadTimeOut(true);
+      executor = pool;
+    }
+    return executor;
+  }
+
+  /**
+   * Sets the number of threads in the pool the adapter creates. Has no effect if an
+   * executor was supplied.
+   */
+  public synchronized void setThreads (final int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException ("threads < 1");
+    }
+    this.threads = threads;
+    if (ownsExecutor && executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * Sets the number of lookups which may wait for a thread of the pool the adapter creates;
+   * further lookups fail. Has no effect if an executor was supplied.
+   */
+  public synchronized void setQueueSize (final int queueSize) {
+    if (queueSize < 1) {
+      throw new IllegalArgumentException ("queueSize < 1");
+    }
+    this.queueSize = queueSize;
+    if (ownsExecutor && executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  /**
+   * Returns the number of lookups failed because the executor refused them.
+   */
+  public long getRejectedLookups() {
+    return rejectedLookups.get();
+  }
+
+  /**
+   * Stops the pool created by the adapter, if any.
+   */
+  public synchronized void destroy() {
+    if (ownsExecutor && executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+}
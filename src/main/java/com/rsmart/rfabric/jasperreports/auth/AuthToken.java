@@ -2,54 +2,236 @@ package com.rsmart.rfabric.jasperreports.auth;
 
 /**
  * Represents an authorization token sent in an HTTP request. The token will be composed of
- * a user name, and a random string (a 'nonce'), and a hash. The 
+ * a user name, and a random string (a 'nonce'), and a hash. Two formats are accepted:
+ *
+ * <pre>
+ *   [hash];[name];[nonce]                                   legacy (version 1)
+ *   v2;[key id];[issued at];[expires at];[name];[nonce];[mac] version 2
+ * </pre>
+ *
+ * The legacy hash is the Base64 encoding of the hex encoded HMAC of [name];[nonce]. A
+ * version 2 token carries the key id the HMAC was computed with and its validity period
+ * in seconds since the epoch; its mac is the unpadded base64url encoding of the raw HMAC
+ * of everything before the last separator, see {@link #getSignedContent()}.
+ *
+ * The token is parsed by scanning for separators; only the offsets of its parts are
+ * recorded, and each part is extracted the first time it is asked for.
  * @author duffy
  *
  */
 public class AuthToken {
-  
+
   public static final String TOKEN_SEPARATOR = ";";
+  public static final String V2_PREFIX = "v2" + TOKEN_SEPARATOR;
+
+  /** returned by getIssuedAt() and getExpiresAt() for tokens which carry no timestamps */
+  public static final long NO_TIMESTAMP = -1;
+
+  private static final char SEPARATOR = ';';
+
+  private final String token;
+  private final int version;
+
+  private final int hashStart;
+  private final int hashEnd;
+  private final int nameStart;
+  private final int nameEnd;
+  private final int nonceStart;
+  private final int nonceEnd;
+  private final int keyIdStart;
+  private final int keyIdEnd;
+  private final int signedStart;
+  private final int signedEnd;
+  private final long issuedAt;
+  private final long expiresAt;
 
-  private String token = null;
+  // extracted on first use; racing threads extract equal strings
   private String hash = null;
   private String name = null;
   private String nonce = null;
-  
+  private String keyId = null;
+  private String signedContent = null;
+
   /**
-   * Parses a token string of the form [hash];[name];[nonce] into its component parts.
+   * Parses a token string of the form [hash];[name];[nonce], or
+   * v2;[key id];[issued at];[expires at];[name];[nonce];[mac], into its component parts.
    * Throws an IllegalArgumentException if the token is malformed.
-   * 
+   *
    * @param token
    */
   public AuthToken (final String token) {
     if (token == null || token.isEmpty()) {
       throw new IllegalArgumentException ("token is empty");
     }
-    
+
     this.token = token;
-    
-    final String parts[] = token.split(TOKEN_SEPARATOR);
-    if (parts == null || parts.length != 3) {
+    final int length = token.length();
+
+    if (token.startsWith(V2_PREFIX)) {
+      final int s0 = V2_PREFIX.length() - 1;
+      final int s1 = separatorAfter(s0);
+      final int s2 = separatorAfter(s1);
+      final int s3 = separatorAfter(s2);
+      final int s4 = separatorAfter(s3);
+      final int s5 = separatorAfter(s4);
+      if (token.indexOf(SEPARATOR, s5 + 1) >= 0) {
+        throw new IllegalArgumentException ("malformed token");
+      }
+
+      version = 2;
+      keyIdStart = s0 + 1;
+      keyIdEnd = s1;
+      issuedAt = parseTimestamp(s1 + 1, s2);
+      expiresAt = parseTimestamp(s2 + 1, s3);
+      nameStart = s3 + 1;
+      nameEnd = s4;
+      nonceStart = s4 + 1;
+      nonceEnd = s5;
+      hashStart = s5 + 1;
+      hashEnd = length;
+      signedStart = 0;
+      signedEnd = s5;
+    } else {
+      final int s0 = separatorAfter(-1);
+      final int s1 = separatorAfter(s0);
+      if (token.indexOf(SEPARATOR, s1 + 1) >= 0) {
+        throw new IllegalArgumentException ("malformed token");
+      }
+
+      version = 1;
+      hashStart = 0;
+      hashEnd = s0;
+      nameStart = s0 + 1;
+      nameEnd = s1;
+      nonceStart = s1 + 1;
+      nonceEnd = length;
+      keyIdStart = keyIdEnd = -1;
+      issuedAt = expiresAt = NO_TIMESTAMP;
+      signedStart = s0 + 1;
+      signedEnd = length;
+    }
+  }
+
+  private int separatorAfter (final int from) {
+    final int index = token.indexOf(SEPARATOR, from + 1);
+    if (index < 0) {
       throw new IllegalArgumentException ("malformed token");
     }
-    
-    hash = parts[0];
-    name = parts[1];
-    nonce = parts[2];
+    return index;
   }
-  
+
+  private long parseTimestamp (final int start, final int end) {
+    if (start >= end || end - start > 12) {
+      throw new IllegalArgumentException ("malformed timestamp in token");
+    }
+    long value = 0;
+    for (int i = start; i < end; i++) {
+      final char c = token.charAt(i);
+      if (c < '0' || c > '9') {
+        throw new IllegalArgumentException ("malformed timestamp in token");
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /**
+   * @return 1 for a legacy token, 2 for a version 2 token
+   */
+  public int getVersion() {
+    return version;
+  }
+
   public String getHash() {
+    String hash = this.hash;
+    if (hash == null) {
+      hash = token.substring(hashStart, hashEnd);
+      this.hash = hash;
+    }
     return hash;
   }
-  
+
   public String getName() {
+    String name = this.name;
+    if (name == null) {
+      name = token.substring(nameStart, nameEnd);
+      this.name = name;
+    }
     return name;
   }
-  
+
   public String getNonce() {
+    String nonce = this.nonce;
+    if (nonce == null) {
+      nonce = token.substring(nonceStart, nonceEnd);
+      this.nonce = nonce;
+    }
     return nonce;
   }
-  
+
+  /**
+   * @return the id of the key the token was signed with, or null for a legacy token
+   */
+  public String getKeyId() {
+    if (version < 2) {
+      return null;
+    }
+    String keyId = this.keyId;
+    if (keyId == null) {
+      keyId = token.substring(keyIdStart, keyIdEnd);
+      this.keyId = keyId;
+    }
+    return keyId;
+  }
+
+  /**
+   * @return the time the token was issued, in seconds since the epoch, or NO_TIMESTAMP
+   */
+  public long getIssuedAt() {
+    return issuedAt;
+  }
+
+  /**
+   * @return the time the token expires, in seconds since the epoch, or NO_TIMESTAMP
+   */
+  public long getExpiresAt() {
+    return expiresAt;
+  }
+
+  /**
+   * Returns the part of the token covered by its HMAC: [name];[nonce] for a legacy token,
+   * everything up to the separator before the mac for a version 2 token.
+   */
+  public String getSignedContent() {
+    String signedContent = this.signedContent;
+    if (signedContent == null) {
+      signedContent = token.substring(signedStart, signedEnd);
+      this.signedContent = signedContent;
+    }
+    return signedContent;
+  }
+
+  /**
+   * @return the length of the hash, without extracting it
+   */
+  public int getHashLength() {
+    return hashEnd - hashStart;
+  }
+
+  /**
+   * @return true if the name is empty, without extracting it
+   */
+  public boolean isNameEmpty() {
+    return nameEnd == nameStart;
+  }
+
+  /**
+   * @return true if the nonce is empty, without extracting it
+   */
+  public boolean isNonceEmpty() {
+    return nonceEnd == nonceStart;
+  }
+
   public String toString() {
     return token;
   }
@@ -21,28 +21,29 @@
  */
 package com.rsmart.rfabric.jasperreports.auth;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import org.springframework.security.Authentication;
 import org.springframework.security.GrantedAuthority;
 
+import com.rsmart.rfabric.logging.FormattedLogger;
+
 /**
- * Utility class for dealing with authentication token semantics. 
+ * Utility class for dealing with authentication token semantics. An AuthTokenAuthentication
+ * presents a request's token for authentication; the result of authenticating it is an
+ * {@link AuthenticatedToken}.
  * Note: Class is thread safe.
  */
 public class AuthTokenAuthentication implements Authentication{
 
   private static final long serialVersionUID = 3812168356075957938L;
 
-  private static final Log LOG = LogFactory.getLog(AuthTokenAuthentication.class);
+  private static final FormattedLogger LOG = FormattedLogger.getLogger(AuthTokenAuthentication.class);
 
-  protected transient Signature             signature = new Signature();
   protected transient AuthToken             authToken = null;
   protected transient String                name = null;
   protected transient GrantedAuthority[]    authorities = null;
 
   public AuthTokenAuthentication(final AuthToken token) {
-    LOG.debug("new AuthToken(****, " + token + ")");
+    LOG.debug("new AuthToken(****, %s)", token);
     
     this.authToken = token;
   }
@@ -52,7 +53,7 @@ public class AuthTokenAuthentication implements Authentication{
    * 
    */
   public final boolean isAuthenticated() {
-    LOG.debug("isAuthenticated(): " + (name != null));
+    LOG.debug("isAuthenticated(): %b", name != null);
     return (name != null);
   }
   
@@ -61,7 +62,7 @@ public class AuthTokenAuthentication implements Authentication{
    * 
    */
   public final String getName() {
-    LOG.debug("getName(): " + name);
+    LOG.debug("getName(): %s", name);
     return name;
   }
   
@@ -70,7 +71,7 @@ public class AuthTokenAuthentication implements Authentication{
   }
 
   public GrantedAuthority[] getAuthorities() {
-    LOG.debug("[" + name + "].getAuthorities()");
+    LOG.debug("[%s].getAuthorities()", name);
     return authorities;
   }
   
@@ -79,7 +80,7 @@ public class AuthTokenAuthentication implements Authentication{
   }
 
   public Object getCredentials() {
-    LOG.debug("[" + name + "].getCredentials(): " + authToken);
+    LOG.debug("[%s].getCredentials(): %s", name, authToken);
     return authToken;
   }
 
@@ -88,13 +89,13 @@ public class AuthTokenAuthentication implements Authentication{
   }
 
   public Object getPrincipal() {
-    LOG.debug("getPrincipal(): " + name);
+    LOG.debug("getPrincipal(): %s", name);
     return getName();
   }
 
 
   public void setAuthenticated(boolean authenticated) throws IllegalArgumentException {
-    LOG.debug("setAuthenticated(" + authenticated + ")");
+    LOG.debug("setAuthenticated(%b)", authenticated);
     if (authenticated) {
       LOG.error ("Illegal attempt to set status to authenticated externally");
       throw new IllegalArgumentException ("Cannot set authenticated to true externally");
@@ -1,11 +1,32 @@
 package com.rsmart.rfabric.jasperreports.auth;
 
-import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.rsmart.rfabric.cache.ExpiringCache;
+import com.rsmart.rfabric.cache.ExpiringCache.CacheLoader;
+import com.rsmart.rfabric.metrics.LatencyHistogram;
+import com.rsmart.rfabric.metrics.Metrics;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.security.Authentication;
 import org.springframework.security.AuthenticationException;
+import org.springframework.security.AuthenticationServiceException;
+import org.springframework.security.GrantedAuthority;
 import org.springframework.security.providers.AuthenticationProvider;
 
 /**
@@ -16,10 +37,29 @@ import org.springframework.security.providers.AuthenticationProvider;
  * accomplished by generating am HMAC from the name and the nonce contained in the 
  * AuthToken credential, using a secret key shared with the client service at configuration
  * time. If the generate HMAC equals the hash contained in the AuthToken the token is
- * deemed valid.
+ * deemed valid. Version 2 tokens are signed over their key id and validity period as well,
+ * and are refused outside that period. The secret is turned into a {@link KeyedSignature} once, when it is set,
+ * so concurrent requests never share a Mac or re-initialize the key. Several secrets can be
+ * accepted at once from a {@link KeyRing}, fixed or read from a {@link KeyRingFile} which is
+ * reloaded when it changes; a version 2 token is verified with the key its key id names.
  * 
- * Next an ExternalUserProvider is checked to determine if the user name is recognized.
- * If so the same ExternalUserProvider is queried for GrantedAuthorities for that user.
+ * Only then is an ExternalUserProvider checked to determine if the user name is recognized,
+ * so forged or garbage tokens never cost a round trip to the user directory. If the user
+ * is recognized the same ExternalUserProvider is queried for GrantedAuthorities for that user.
+ * The checks run as ordered {@link Stage}s and the number of tokens rejected by each stage
+ * is counted. If the ExternalUserProvider is an {@link AsyncExternalUserProvider} the user
+ * and authority lookups are started together and the request waits, for at most
+ * userLookupTimeout milliseconds, for the slower of the two instead of their sum.
+ * A {@link ResolvingUserProvider} is asked for both answers with a single lookup.
+ * If a cache time to live is configured, the user and authorities resolved for
+ * a verified token are reused for repeated requests bearing the same token.
+ * A successful authentication is returned as an immutable {@link AuthenticatedToken} whose
+ * authorities are the canonical array of its roles from {@link Authorities}.
+ * Batches of tokens can be verified at once with verifyAll(), which spreads the work over
+ * batchParallelism threads and looks each user up once; call destroy() to stop them.
+ * The latency of every authentication is recorded by {@link Outcome}, and that of the
+ * signature, directory and authority stages by whether they passed, rejected the token
+ * or failed; see {@link Metrics} for their JMX names.
  * GrantedAuthorities are simply role names recognized by the JasperReports Server which
  * the user fills.
  * 
@@ -31,80 +71,875 @@ import org.springframework.security.providers.AuthenticationProvider;
 public class AuthTokenAuthenticationProvider implements AuthenticationProvider {
   private static final Log LOG = LogFactory.getLog(AuthTokenAuthenticationProvider.class);
 
-  protected transient Signature signature = new Signature();
+  /**
+   * The ordered stages a token passes through in authenticate(). Each stage is more
+   * expensive than the one before it and is only reached if every earlier stage passed.
+   */
+  public enum Stage {
+    /** token parts are present, the hash has the length of an HMAC and the key is ours */
+    PARSE,
+    /** the hash is the HMAC of the signed content of the token */
+    SIGNATURE,
+    /** the token has not expired or been replayed */
+    FRESHNESS,
+    /** the ExternalUserProvider recognizes the user */
+    DIRECTORY,
+    /** the ExternalUserProvider resolved the user's authorities */
+    AUTHORITIES
+  }
+  
+  /**
+   * How an authentication ended, for its latency histograms.
+   */
+  public enum Outcome {
+    VALID("valid"),
+    MALFORMED("malformed"),
+    BAD_SIGNATURE("badSignature"),
+    STALE("stale"),
+    UNKNOWN_USER("unknownUser"),
+    PROVIDER_ERROR("providerError");
+    
+    private final String metricName;
+    
+    Outcome (final String metricName) {
+      this.metricName = metricName;
+    }
+    
+    public String getMetricName () {
+      return metricName;
+    }
+    
+    static Outcome rejectedBy (final Stage stage) {
+      switch (stage) {
+        case PARSE: return MALFORMED;
+        case SIGNATURE: return BAD_SIGNATURE;
+        case FRESHNESS: return STALE;
+        default: return UNKNOWN_USER;
+      }
+    }
+  }
+  
+  private static final String COMPONENT = "AuthTokenAuthenticationProvider";
+  private static final int PASSED = 0;
+  private static final int REJECTED = 1;
+  private static final int FAILED = 2;
+  private static final String[] STAGE_RESULTS = { "passed", "rejected", "failed" };
+
+  protected transient volatile KeyRing keyRing = null;
+  protected transient volatile KeyRingFile keyRingFile = null;
   protected transient String secret = null;
   protected transient ExternalUserProvider userProvider = null;
+  protected transient volatile ReplayGuard replayGuard = null;
+  protected transient String keyId = null;
+  
+  private long clockSkew = 30000;
+  private volatile KeyRing verifiedWith = null;
+  
+  private final AtomicLongArray rejects = new AtomicLongArray(Stage.values().length);
+  
+  private final Metrics.Registrations metrics = Metrics.registrations(COMPONENT);
+  private final LatencyHistogram[] outcomeLatencies = new LatencyHistogram[Outcome.values().length];
+  private final LatencyHistogram[][] stageLatencies = new LatencyHistogram[Stage.values().length][];
+  {
+    for (final Outcome outcome : Outcome.values()) {
+      outcomeLatencies[outcome.ordinal()] = metrics.histogram("authenticate", outcome.getMetricName());
+    }
+    for (final Stage stage : new Stage[] { Stage.SIGNATURE, Stage.DIRECTORY, Stage.AUTHORITIES }) {
+      final LatencyHistogram[] results = new LatencyHistogram[STAGE_RESULTS.length];
+      for (int i = 0; i < results.length; i++) {
+        results[i] = metrics.histogram(stage.name().toLowerCase(), STAGE_RESULTS[i]);
+      }
+      stageLatencies[stage.ordinal()] = results;
+    }
+  }
+  
+  private long userLookupTimeout = 10000;
+  private int batchParallelism = Runtime.getRuntime().availableProcessors();
+  private volatile ExecutorService batchExecutor = null;
+  private long cacheTimeToLive = 0;
+  private int cacheMaximumSize = 10000;
+  private boolean cacheStatisticsEnabled = true;
+  private volatile ExpiringCache<TokenDigest, VerifiedPrincipal> cache = null;
   
   public AuthTokenAuthenticationProvider () {}
   
   public AuthTokenAuthenticationProvider (final String secret) {
-    this.secret = secret;
+    setSecret(secret);
   }
   
-  public void setSecret (final String secret) {
+  /**
+   * Sets the shared secret and precomputes the signing key for it. An empty secret
+   * leaves the provider unkeyed; authenticate() will then refuse every token.
+   * 
+   * @param secret
+   */
+  public synchronized void setSecret (final String secret) {
     this.secret = secret;
+    this.keyRing = (secret == null || "".equals(secret)) ? null : KeyRing.of(keyId, secret);
+  }
+  
+  /**
+   * Sets the secrets tokens are verified with, replacing any set with setSecret().
+   * 
+   * @param keyRing
+   */
+  public void setKeyRing (final KeyRing keyRing) {
+    this.keyRing = keyRing;
+  }
+  
+  /**
+   * Sets a file the secrets are read from, and read again whenever it changes. Takes
+   * precedence over setSecret() and setKeyRing(); null reverts to them.
+   * 
+   * @param keyRingFile
+   */
+  public void setKeyRingFile (final KeyRingFile keyRingFile) {
+    this.keyRingFile = keyRingFile;
+  }
+  
+  public KeyRingFile getKeyRingFile () {
+    return keyRingFile;
+  }
+  
+  /**
+   * Returns the KeyRing in use, read from the keyRingFile if one is set. Whenever it differs
+   * from the KeyRing of the previous call the verified-authentication cache is cleared, so
+   * tokens verified with a secret which has since been removed are verified again.
+   */
+  public KeyRing getKeyRing () {
+    final KeyRingFile keyRingFile = this.keyRingFile;
+    final KeyRing keyRing = (keyRingFile != null) ? keyRingFile.getKeyRing() : this.keyRing;
+    if (keyRing != verifiedWith) {
+      synchronized (this) {
+        final ExpiringCache<TokenDigest, VerifiedPrincipal> cache = this.cache;
+        if (keyRing != verifiedWith && cache != null) {
+          cache.clear();
+        }
+        verifiedWith = keyRing;
+      }
+    }
+    return keyRing;
+  }
+  
+  /**
+   * Sets how long, in milliseconds, a verified token's user and authorities are reused
+   * before the token is verified again. 0 (the default) disables the cache.
+   * 
+   * @param cacheTimeToLive
+   */
+  public synchronized void setCacheTimeToLive (final long cacheTimeToLive) {
+    this.cacheTimeToLive = cacheTimeToLive;
+    configureCache();
+  }
+  
+  /**
+   * Sets the number of verified tokens cached before the oldest are evicted.
+   * 
+   * @param cacheMaximumSize
+   */
+  public synchronized void setCacheMaximumSize (final int cacheMaximumSize) {
+    this.cacheMaximumSize = cacheMaximumSize;
+    configureCache();
+  }
+  
+  /**
+   * Turns collection of cache hit, miss and eviction counts on or off.
+   * 
+   * @param cacheStatisticsEnabled
+   */
+  public synchronized void setCacheStatisticsEnabled (final boolean cacheStatisticsEnabled) {
+    this.cacheStatisticsEnabled = cacheStatisticsEnabled;
+    final ExpiringCache<TokenDigest, VerifiedPrincipal> cache = this.cache;
+    if (cache != null) {
+      cache.setStatisticsEnabled(cacheStatisticsEnabled);
+    }
+  }
+  
+  private void configureCache() {
+    if (cacheTimeToLive <= 0) {
+      cache = null;
+      return;
+    }
+    final ExpiringCache<TokenDigest, VerifiedPrincipal> cache =
+        new ExpiringCache<TokenDigest, VerifiedPrincipal>(cacheTimeToLive, cacheMaximumSize);
+    cache.setStatisticsEnabled(cacheStatisticsEnabled);
+    this.cache = cache;
   }
   
   public void setExternalUserProvider (final ExternalUserProvider provider) {
     this.userProvider = provider;
   }
   
+  /**
+   * Sets the id of the key tokens must name if they are in the version 2 format and the
+   * secret is set with setSecret(). null (the default) accepts any key id; legacy tokens
+   * carry none.
+   * 
+   * @param keyId
+   */
+  public synchronized void setKeyId (final String keyId) {
+    this.keyId = keyId;
+    if (secret != null && !"".equals(secret)) {
+      this.keyRing = KeyRing.of(keyId, secret);
+    }
+  }
+  
+  public String getKeyId () {
+    return keyId;
+  }
+  
+  /**
+   * Sets how far, in milliseconds, the clocks of token issuers may be ahead of or behind
+   * ours when the issue and expiry times of version 2 tokens are checked.
+   * 
+   * @param clockSkew
+   */
+  public void setClockSkew (final long clockSkew) {
+    this.clockSkew = clockSkew;
+  }
+  
+  public long getClockSkew () {
+    return clockSkew;
+  }
+  
+  /**
+   * Sets the guard used by the freshness stage to refuse a nonce which has already been
+   * presented. With a guard every token is single use within its window, including tokens
+   * found in the verified-authentication cache. null (the default) disables replay checks.
+   * 
+   * @param replayGuard
+   */
+  public void setReplayGuard (final ReplayGuard replayGuard) {
+    this.replayGuard = replayGuard;
+  }
+  
+  public ReplayGuard getReplayGuard () {
+    return replayGuard;
+  }
+  
+  /**
+   * Sets how long, in milliseconds, a request waits for an AsyncExternalUserProvider to
+   * answer both lookups before authentication fails.
+   * 
+   * @param userLookupTimeout
+   */
+  public void setUserLookupTimeout (final long userLookupTimeout) {
+    this.userLookupTimeout = userLookupTimeout;
+  }
+  
+  public long getUserLookupTimeout () {
+    return userLookupTimeout;
+  }
+  
   public Authentication authenticate(final Authentication authn)
       throws AuthenticationException {
     
-    if (!supports(authn.getClass()) || authn == null) {
+    if (authn == null || !supports(authn.getClass())) {
       throw new IllegalArgumentException ("Expecting AuthTokenAuthentication object as argument");
     }
 
-    final AuthTokenAuthentication authentication = (AuthTokenAuthentication) authn;
+    if (authn.isAuthenticated()) {
+      return authn;
+    }
     
-    if (authentication.isAuthenticated()) {
-      return authentication;
+    final long started = System.nanoTime();
+    final AuthToken authToken = (AuthToken) authn.getCredentials();
+
+    final KeyRing keyRing = getKeyRing();
+    if (keyRing == null) {
+      LOG.error("sharedSecret is empty");
+      throw new IllegalStateException("sharedSecret == null || empty");
+    }
+    final KeyedSignature signature = keyRing.getSignature(authToken);
+
+    // stages run cheapest first; the user provider is only consulted for tokens we signed
+    if (!isWellFormed(authToken, signature)) {
+      reject(Stage.PARSE);
+      outcomeLatencies[Outcome.MALFORMED.ordinal()].recordSince(started);
+      LOG.warn("malformed token: " + authToken);
+      return null;
+    }
+    
+    final TokenDigest digest = TokenDigest.of(authToken);
+    final VerifiedPrincipal principal;
+    try {
+      principal = verifyCached(authToken, digest, signature);
+    } catch (Rejection rejection) {
+      reject(rejection.stage);
+      outcomeLatencies[Outcome.rejectedBy(rejection.stage).ordinal()].recordSince(started);
+      if (rejection.stage == Stage.DIRECTORY) {
+        authn.setAuthenticated(false);
+        return authn;
+      }
+      return null;
+    } catch (RuntimeException e) {
+      outcomeLatencies[Outcome.PROVIDER_ERROR.ordinal()].recordSince(started);
+      throw e;
+    }
+    
+    outcomeLatencies[Outcome.VALID.ordinal()].recordSince(started);
+    LOG.debug("token is valid");
+    // the user is Ok, we will trust it.
+    return new AuthenticatedToken(authToken, digest, principal, validUntil(authToken));
+  }
+
+  /**
+   * Verifies a well formed token, consulting the verified-authentication cache first if
+   * one is configured. A cached token has already passed every stage, so only its
+   * freshness is checked again; concurrent misses on the same token share one verification,
+   * and every caller but the one which ran it checks freshness itself, so a ReplayGuard
+   * admits a token presented by several callers at once only once.
+   */
+  private VerifiedPrincipal verifyCached (final AuthToken authToken, final TokenDigest digest,
+      final KeyedSignature signature) {
+    final ExpiringCache<TokenDigest, VerifiedPrincipal> cache = this.cache;
+    if (cache == null) {
+      return verify(authToken, signature);
     }
     
-    final AuthToken authToken = (AuthToken) authentication.getCredentials();
+    final VerifiedPrincipal cached = cache.getIfPresent(digest);
+    if (cached != null) {
+      checkFresh(authToken);
+      return cached;
+    }
+    // the cache runs the loader on the thread which missed, if at all
+    final boolean[] verified = new boolean[1];
+    final VerifiedPrincipal shared = cache.get(digest, new CacheLoader<TokenDigest, VerifiedPrincipal>() {
+      public VerifiedPrincipal load (final TokenDigest key) {
+        verified[0] = true;
+        return verify(authToken, signature);
+      }
+    });
+    if (!verified[0]) {
+      checkFresh(authToken);
+    }
+    return shared;
+  }
 
-    if (secret == null || "".equals(secret)) {
+  /**
+   * Verifies a batch of tokens, e.g. to check tokens before work is queued under them. The
+   * parse, signature and expiry checks of the batch are spread over batchParallelism
+   * threads; each distinct user is then looked up once, however many of the tokens name
+   * it, and those lookups are spread in the same way. Nonces are not recorded with the
+   * ReplayGuard, so a token verified in a batch can still be used once, and the
+   * verified-authentication cache is neither consulted nor filled. Tokens rejected by a
+   * stage are counted as in authenticate().
+   * 
+   * @param tokens complete token strings
+   * @return the result for each token, in the order of tokens
+   */
+  public List<TokenVerification> verifyAll (final List<String> tokens) {
+    final KeyRing keyRing = getKeyRing();
+    if (keyRing == null) {
       LOG.error("sharedSecret is empty");
       throw new IllegalStateException("sharedSecret == null || empty");
     }
+    
+    final TokenVerification[] results = new TokenVerification[tokens.size()];
+    final AuthToken[] screened = new AuthToken[tokens.size()];
+    inParallel(tokens.size(), new Slice() {
+      public void run (final int from, final int to) {
+        for (int i = from; i < to; i++) {
+          try {
+            final AuthToken authToken = new AuthToken(tokens.get(i));
+            final Outcome rejection = screen(authToken, keyRing);
+            if (rejection == null) {
+              screened[i] = authToken;
+            } else {
+              results[i] = TokenVerification.rejected(rejection);
+            }
+          } catch (IllegalArgumentException e) {
+            reject(Stage.PARSE);
+            results[i] = TokenVerification.rejected(Outcome.MALFORMED);
+          }
+        }
+      }
+    });
+    
+    // one lookup per user, with any of the user's tokens
+    final Map<String, Integer> users = new LinkedHashMap<String, Integer>();
+    final List<AuthToken> lookups = new ArrayList<AuthToken>();
+    for (final AuthToken authToken : screened) {
+      if (authToken != null && !users.containsKey(authToken.getName())) {
+        users.put(authToken.getName(), lookups.size());
+        lookups.add(authToken);
+      }
+    }
+    final TokenVerification[] found = new TokenVerification[lookups.size()];
+    inParallel(lookups.size(), new Slice() {
+      public void run (final int from, final int to) {
+        for (int i = from; i < to; i++) {
+          try {
+            found[i] = TokenVerification.valid(lookUp(lookups.get(i)));
+          } catch (Rejection rejection) {
+            found[i] = TokenVerification.rejected(Outcome.UNKNOWN_USER);
+          } catch (RuntimeException e) {
+            found[i] = TokenVerification.rejected(Outcome.PROVIDER_ERROR);
+          }
+        }
+      }
+    });
+    
+    for (int i = 0; i < screened.length; i++) {
+      if (screened[i] != null) {
+        results[i] = found[users.get(screened[i].getName())];
+        if (results[i].getOutcome() == Outcome.UNKNOWN_USER) {
+          reject(Stage.DIRECTORY);
+        }
+      }
+    }
+    return Arrays.asList(results);
+  }
+  
+  /**
+   * Stages 1 to 3 for a token of a batch, without recording its nonce.
+   * 
+   * @return the outcome of a token they reject; null if it passed them
+   */
+  private Outcome screen (final AuthToken authToken, final KeyRing keyRing) {
+    final KeyedSignature signature = keyRing.getSignature(authToken);
+    if (!isWellFormed(authToken, signature)) {
+      reject(Stage.PARSE);
+      return Outcome.MALFORMED;
+    }
+    final long started = System.nanoTime();
+    if (!isSignatureValid(authToken, signature)) {
+      timeStage(Stage.SIGNATURE, REJECTED, started);
+      reject(Stage.SIGNATURE);
+      return Outcome.BAD_SIGNATURE;
+    }
+    timeStage(Stage.SIGNATURE, PASSED, started);
+    if (!isCurrent(authToken)) {
+      reject(Stage.FRESHNESS);
+      return Outcome.STALE;
+    }
+    return null;
+  }
+  
+  /**
+   * A range of the items of a batch, processed by one thread.
+   */
+  private interface Slice {
+    void run (int from, int to);
+  }
+  
+  /**
+   * Splits count items into up to batchParallelism slices of about equal size and runs
+   * them concurrently, one on the calling thread and the others on the batch executor, and
+   * returns when all of them are done.
+   */
+  private void inParallel (final int count, final Slice slice) {
+    final int slices = Math.min(batchParallelism, count);
+    if (slices < 2) {
+      slice.run(0, count);
+      return;
+    }
+    
+    final ExecutorService executor = getBatchExecutor();
+    final int size = (count + slices - 1) / slices;
+    final List<Future<?>> futures = new ArrayList<Future<?>>(slices - 1);
+    for (int start = size; start < count; start += size) {
+      final int from = start;
+      final int to = Math.min(start + size, count);
+      futures.add(executor.submit(new Runnable() {
+        public void run() {
+          slice.run(from, to);
+        }
+      }));
+    }
+    slice.run(0, size);
+    
+    try {
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      for (final Future<?> future : futures) {
+        future.cancel(true);
+      }
+      Thread.currentThread().interrupt();
+      throw new AuthenticationServiceException ("Interrupted while verifying a batch of tokens", e);
+    } catch (ExecutionException e) {
+      throw new AuthenticationServiceException ("Unable to verify a batch of tokens", e.getCause());
+    }
+  }
+  
+  private synchronized ExecutorService getBatchExecutor() {
+    if (batchExecutor == null) {
+      final AtomicInteger count = new AtomicInteger();
+      batchExecutor = Executors.newFixedThreadPool(batchParallelism, new ThreadFactory() {
+        public Thread newThread (final Runnable r) {
+          final Thread thread = new Thread(r, "tokenauth-batch-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return batchExecutor;
+  }
+  
+  /**
+   * Sets the number of threads a batch given to verifyAll() is spread over, including the
+   * calling thread. Defaults to the number of processors.
+   * 
+   * @param batchParallelism
+   */
+  public synchronized void setBatchParallelism (final int batchParallelism) {
+    this.batchParallelism = batchParallelism;
+    shutdownBatchExecutor();
+  }
+  
+  public int getBatchParallelism () {
+    return batchParallelism;
+  }
+  
+  /**
+   * Stops the threads verifyAll() uses, if it was ever called with more than one slice,
+   * and unpublishes the latency histograms.
+   */
+  public synchronized void destroy () {
+    shutdownBatchExecutor();
+    metrics.unregister();
+  }
+
+  private synchronized void shutdownBatchExecutor () {
+    if (batchExecutor != null) {
+      batchExecutor.shutdown();
+      batchExecutor = null;
+    }
+  }
 
+  /**
+   * Runs the signature, freshness, directory and authority stages in order.
+   * 
+   * @throws Rejection naming the first stage which rejected the token
+   */
+  protected VerifiedPrincipal verify (final AuthToken authToken, final KeyedSignature signature) {
+    final long signatureStarted = System.nanoTime();
+    if (!isSignatureValid(authToken, signature)) {
+      timeStage(Stage.SIGNATURE, REJECTED, signatureStarted);
+      LOG.warn("invalid token: " + authToken);
+      throw new Rejection(Stage.SIGNATURE);
+    }
+    timeStage(Stage.SIGNATURE, PASSED, signatureStarted);
+    
+    checkFresh(authToken);
+    
+    return lookUp(authToken);
+  }
+  
+  /**
+   * Runs the directory and authority stages for a token which passed the others.
+   * 
+   * @throws Rejection if the user is not recognized
+   * @throws AuthenticationServiceException if the ExternalUserProvider fails
+   */
+  protected VerifiedPrincipal lookUp (final AuthToken authToken) {
     final String name = authToken.getName();
     
-    if (!userProvider.userExists(name)) {
+    final ExternalUserProvider userProvider = this.userProvider;
+    if (userProvider instanceof AsyncExternalUserProvider) {
+      return lookUpConcurrently(name, authToken, (AsyncExternalUserProvider) userProvider);
+    }
+    if (userProvider instanceof ResolvingUserProvider) {
+      return lookUpResolving(name, authToken, (ResolvingUserProvider) userProvider);
+    }
+    
+    final long directoryStarted = System.nanoTime();
+    if (!userExists(name, authToken)) {
+      timeStage(Stage.DIRECTORY, REJECTED, directoryStarted);
       LOG.error("User does not exist for token " + authToken);
-      authn.setAuthenticated(false);
-      return authn;
+      throw new Rejection(Stage.DIRECTORY);
     }
+    timeStage(Stage.DIRECTORY, PASSED, directoryStarted);
     
+    final long authoritiesStarted = System.nanoTime();
+    final GrantedAuthority[] authorities = resolveAuthorities(name, authToken);
+    timeStage(Stage.AUTHORITIES, PASSED, authoritiesStarted);
+    return new VerifiedPrincipal(name, Authorities.canonical(authorities));
+  }
+  
+  private void timeStage (final Stage stage, final int result, final long started) {
+    stageLatencies[stage.ordinal()][result].recordSince(started);
+  }
+  
+  private void checkFresh (final AuthToken authToken) {
+    if (!isFresh(authToken)) {
+      LOG.warn("stale token: " + authToken);
+      throw new Rejection(Stage.FRESHNESS);
+    }
+  }
+
+  /**
+   * Stage 1: rejects tokens whose parts are empty, whose hash cannot possibly be an HMAC
+   * produced by their key, or which name a key the key ring does not hold (signature is null).
+   */
+  protected boolean isWellFormed (final AuthToken authToken, final KeyedSignature signature) {
+    if (signature == null || authToken.isNameEmpty() || authToken.isNonceEmpty()) {
+      return false;
+    }
+    if (authToken.getVersion() == 1) {
+      return authToken.getHashLength() == signature.getEncodedHMACLength();
+    }
+    return authToken.getHashLength() == signature.getEncodedRawHMACLength()
+        && authToken.getExpiresAt() >= authToken.getIssuedAt();
+  }
+  
+  /**
+   * Stage 2: decodes the token hash in the encoding of the token's version and compares it,
+   * in constant time, with the HMAC of the token's signed content.
+   */
+  protected boolean isSignatureValid (final AuthToken authToken, final KeyedSignature signature) {
+    return (authToken.getVersion() == 1)
+        ? signature.verifyRFC2104HMAC(authToken.getSignedContent(), authToken.getHash())
+        : signature.verifyRawHMAC(authToken.getSignedContent(), authToken.getHash());
+  }
+  
+  /**
+   * @return the time, in milliseconds since the epoch, after which isFresh() refuses a
+   *   token on account of its age; Long.MAX_VALUE for tokens which do not expire
+   */
+  protected long validUntil (final AuthToken authToken) {
+    return (authToken.getVersion() > 1) ? authToken.getExpiresAt() * 1000 + clockSkew : Long.MAX_VALUE;
+  }
+  
+  /**
+   * Stage 3: expiry and replay checks for a token with a valid signature. A version 2
+   * token is refused before it was issued or after it expired, allowing for clockSkew.
+   * Legacy tokens carry no expiry, so they are only refused if a ReplayGuard has seen
+   * their nonce before.
+   */
+  protected boolean isFresh (final AuthToken authToken) {
+    if (!isCurrent(authToken)) {
+      return false;
+    }
+    final ReplayGuard replayGuard = this.replayGuard;
+    return replayGuard == null || replayGuard.firstUse(authToken.getName(), authToken.getNonce());
+  }
+  
+  /**
+   * The time checks of stage 3: whether a version 2 token is within its validity period,
+   * allowing for clockSkew. Legacy tokens are always current.
+   */
+  protected boolean isCurrent (final AuthToken authToken) {
+    if (authToken.getVersion() > 1) {
+      final long now = System.currentTimeMillis();
+      return authToken.getIssuedAt() * 1000 <= now + clockSkew
+          && authToken.getExpiresAt() * 1000 >= now - clockSkew;
+    }
+    return true;
+  }
+  
+  /**
+   * Stage 4: asks the ExternalUserProvider whether it recognizes the user.
+   */
+  protected boolean userExists (final String name, final AuthToken authToken) {
+    final long started = System.nanoTime();
     try {
-      //validate the hash
-      final String message = name + AuthToken.TOKEN_SEPARATOR + authToken.getNonce();
-      final String hmac = signature.calculateRFC2104HMACWithEncoding(message, secret, true);
-      if (hmac.equals(authToken.getHash())) {
-        LOG.debug("token is valid");
-        // the user is Ok, we will trust it.
-        authentication.setName(name);
-        authentication.setAuthorities(userProvider.getAuthoritiesForUser(name));
-        return authentication;
-      } else {
-        LOG.warn("invalid token: " + authToken);
+      return userProvider.userExists(name);
+    } catch (Exception e) {
+      timeStage(Stage.DIRECTORY, FAILED, started);
+      reject(Stage.DIRECTORY);
+      LOG.error ("Failed to look up user for token " + authToken, e);
+      throw new AuthenticationServiceException ("Unable to look up user " + name, e);
+    }
+  }
+  
+  /**
+   * Stage 5: asks the ExternalUserProvider for the roles filled by the user.
+   */
+  protected GrantedAuthority[] resolveAuthorities (final String name, final AuthToken authToken) {
+    final long started = System.nanoTime();
+    try {
+      return userProvider.getAuthoritiesForUser(name);
+    } catch (RuntimeException e) {
+      timeStage(Stage.AUTHORITIES, FAILED, started);
+      reject(Stage.AUTHORITIES);
+      LOG.error ("Failed to resolve authorities for token " + authToken, e);
+      throw new AuthenticationServiceException ("Unable to resolve authorities for " + name, e);
+    }
+  }
+  
+  /**
+   * Stages 4 and 5 for an AsyncExternalUserProvider: both lookups are started before
+   * either is awaited. The authority lookup is cancelled if the user is not recognized.
+   * Both stages are timed from the start of the lookups until the request has its answer.
+   */
+  protected VerifiedPrincipal lookUpConcurrently (final String name, final AuthToken authToken,
+      final AsyncExternalUserProvider provider) {
+    final long started = System.nanoTime();
+    final long deadline = started + TimeUnit.MILLISECONDS.toNanos(userLookupTimeout);
+    final Future<Boolean> exists = provider.userExistsAsync(name);
+    final Future<GrantedAuthority[]> authorities = provider.getAuthoritiesForUserAsync(name);
+    
+    final Boolean found;
+    try {
+      found = await(exists, deadline);
+    } catch (Exception e) {
+      timeStage(Stage.DIRECTORY, FAILED, started);
+      authorities.cancel(true);
+      reject(Stage.DIRECTORY);
+      LOG.error ("Failed to look up user for token " + authToken, e);
+      throw new AuthenticationServiceException ("Unable to look up user " + name, e);
+    }
+    
+    if (!Boolean.TRUE.equals(found)) {
+      timeStage(Stage.DIRECTORY, REJECTED, started);
+      authorities.cancel(true);
+      LOG.error("User does not exist for token " + authToken);
+      throw new Rejection(Stage.DIRECTORY);
+    }
+    timeStage(Stage.DIRECTORY, PASSED, started);
+    
+    try {
+      final VerifiedPrincipal principal = new VerifiedPrincipal(name,
+          Authorities.canonical(await(authorities, deadline)));
+      timeStage(Stage.AUTHORITIES, PASSED, started);
+      return principal;
+    } catch (Exception e) {
+      timeStage(Stage.AUTHORITIES, FAILED, started);
+      reject(Stage.AUTHORITIES);
+      LOG.error ("Failed to resolve authorities for token " + authToken, e);
+      throw new AuthenticationServiceException ("Unable to resolve authorities for " + name, e);
+    }
+  }
+  
+  /**
+   * Stages 4 and 5 for a ResolvingUserProvider, answered by a single lookup; both stages
+   * are timed by it.
+   */
+  protected VerifiedPrincipal lookUpResolving (final String name, final AuthToken authToken,
+      final ResolvingUserProvider provider) {
+    final long started = System.nanoTime();
+    final GrantedAuthority[] authorities;
+    try {
+      authorities = provider.resolveUser(name);
+    } catch (Exception e) {
+      timeStage(Stage.DIRECTORY, FAILED, started);
+      reject(Stage.DIRECTORY);
+      LOG.error ("Failed to look up user for token " + authToken, e);
+      throw new AuthenticationServiceException ("Unable to look up user " + name, e);
+    }
+    
+    if (authorities == null) {
+      timeStage(Stage.DIRECTORY, REJECTED, started);
+      LOG.error("User does not exist for token " + authToken);
+      throw new Rejection(Stage.DIRECTORY);
+    }
+    timeStage(Stage.DIRECTORY, PASSED, started);
+    timeStage(Stage.AUTHORITIES, PASSED, started);
+    return new VerifiedPrincipal(name, Authorities.canonical(authorities));
+  }
+  
+  /**
+   * Waits for future until the deadline, given in System.nanoTime() terms, and unwraps the
+   * exception it failed with. A future still running at the deadline is cancelled.
+   */
+  private static <V> V await (final Future<V> future, final long deadline) throws Exception {
+    try {
+      return future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
       }
-    } catch (InvalidKeyException ike) {
-      LOG.error ("Failed to validate token: " + authToken, ike);
-      throw new IllegalStateException ("Invalid key used for hashing", ike);
+      throw e;
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      throw e;
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw e;
     }
+  }
+  
+  protected void reject (final Stage stage) {
+    rejects.incrementAndGet(stage.ordinal());
+  }
+  
+  /**
+   * Returns the number of tokens rejected by the given stage since startup.
+   * 
+   * @param stage
+   * @return
+   */
+  public long getRejectCount (final Stage stage) {
+    return rejects.get(stage.ordinal());
+  }
+  
+  /**
+   * Returns the number of tokens rejected by each stage since startup, in stage order.
+   * 
+   * @return
+   */
+  public Map<Stage, Long> getRejectCounts () {
+    final Map<Stage, Long> counts = new EnumMap<Stage, Long>(Stage.class);
+    for (final Stage stage : Stage.values()) {
+      counts.put(stage, getRejectCount(stage));
+    }
+    return counts;
+  }
+  
+  /**
+   * Returns the latencies of the authentications which ended with the given outcome.
+   * Shared by every instance of this class, like the MBean publishing them.
+   * 
+   * @param outcome
+   * @return
+   */
+  public LatencyHistogram getLatency (final Outcome outcome) {
+    return outcomeLatencies[outcome.ordinal()];
+  }
+  
+  public long getCacheHitCount () {
+    final ExpiringCache<TokenDigest, VerifiedPrincipal> cache = this.cache;
+    return (cache == null) ? 0 : cache.getHitCount();
+  }
+  
+  public long getCacheMissCount () {
+    final ExpiringCache<TokenDigest, VerifiedPrincipal> cache = this.cache;
+    return (cache == null) ? 0 : cache.getMissCount();
+  }
+  
+  public long getCacheEvictionCount () {
+    final ExpiringCache<TokenDigest, VerifiedPrincipal> cache = this.cache;
+    return (cache == null) ? 0 : cache.getEvictionCount();
+  }
+  
+  public int getCacheSize () {
+    final ExpiringCache<TokenDigest, VerifiedPrincipal> cache = this.cache;
+    return (cache == null) ? 0 : cache.size();
+  }
+  
+  /**
+   * Thrown by a stage to abandon verification of a token. Carries no stack trace since
+   * rejections are routine and may be frequent.
+   */
+  protected static final class Rejection extends RuntimeException {
+    private static final long serialVersionUID = 6419337710263512214L;
     
-    return null;
+    final Stage stage;
+    
+    Rejection (final Stage stage) {
+      super(stage.name());
+      this.stage = stage;
+    }
+    
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
   }
 
   @SuppressWarnings("rawtypes")
   public boolean supports(Class authTokenClass) {
+    final boolean supported = AuthTokenAuthentication.class.isAssignableFrom(authTokenClass)
+        || AuthenticatedToken.class.isAssignableFrom(authTokenClass);
     if (LOG.isDebugEnabled()) {
-      LOG.debug("supports(\"" + authTokenClass.getName() + "\") reports: " +
-          AuthTokenAuthentication.class.isAssignableFrom(authTokenClass));      
+      LOG.debug("supports(\"" + authTokenClass.getName() + "\") reports: " + supported);
     }
-    return (AuthTokenAuthentication.class.isAssignableFrom(authTokenClass));
+    return supported;
   }
 
 }
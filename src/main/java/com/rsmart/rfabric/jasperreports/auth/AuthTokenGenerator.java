@@ -1,38 +1,195 @@
 package com.rsmart.rfabric.jasperreports.auth;
 
-import java.security.InvalidKeyException;
-import java.security.SecureRandom;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Prints AuthTokens. Given a user, prints a token for that user; otherwise reads user names,
+ * one per line, from a file or stdin and prints a token for each, in the same order. The
+ * names are minted in chunks on several threads with one {@link AuthTokenMinter} while the
+ * next chunk is read, so millions of tokens take one JVM and seconds.
+ */
 public class AuthTokenGenerator {
 
+  /** user names minted per task */
+  static final int CHUNK_SIZE = 1024;
+
+  private static final String USAGE = "Usage:\n"
+      + "\tjava " + AuthTokenGenerator.class.getName() + " [options] <shared secret> [<user>]\n"
+      + "\tjava " + AuthTokenGenerator.class.getName() + " [options] -keyRing <file> [<user>]\n"
+      + "Without a user, a token is printed for each user name read from -users or stdin.\n"
+      + "Options:\n"
+      + "\t-users <file>     read user names from file instead of stdin\n"
+      + "\t-keyId <id>       mint version 2 tokens for this key id of the shared secret\n"
+      + "\t-keyRing <file>   mint version 2 tokens with the active key of a key ring file\n"
+      + "\t-ttl <seconds>    lifetime of version 2 tokens, by default 3600\n"
+      + "\t-threads <n>      minting threads, by default the number of processors";
+
   /**
    * @param args
    */
   public static void main(String[] args) {
-    if (args.length < 2) {
-      System.out.println("Usage:\n\tjava " + AuthTokenGenerator.class.getName() + " <shared secret> <user>");
+    String users = null;
+    String keyId = null;
+    String keyRingFile = null;
+    long timeToLive = 3600;
+    int threads = Runtime.getRuntime().availableProcessors();
+    final List<String> operands = new ArrayList<String>();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if ("-users".equals(args[i]) && i + 1 < args.length) {
+          users = args[++i];
+        } else if ("-keyId".equals(args[i]) && i + 1 < args.length) {
+          keyId = args[++i];
+        } else if ("-keyRing".equals(args[i]) && i + 1 < args.length) {
+          keyRingFile = args[++i];
+        } else if ("-ttl".equals(args[i]) && i + 1 < args.length) {
+          timeToLive = Long.parseLong(args[++i]);
+        } else if ("-threads".equals(args[i]) && i + 1 < args.length) {
+          threads = Integer.parseInt(args[++i]);
+        } else if (args[i].startsWith("-") && args[i].length() > 1) {
+          throw new IllegalArgumentException("unknown option " + args[i]);
+        } else {
+          operands.add(args[i]);
+        }
+      }
+      final int secrets = (keyRingFile == null) ? 1 : 0;
+      if (operands.size() < secrets) {
+        throw new IllegalArgumentException("missing shared secret");
+      }
+      if (threads < 1) {
+        throw new IllegalArgumentException("-threads must be at least 1");
+      }
+      if (operands.size() > secrets + 1) {
+        System.err.println ("Extra command line arguments ignored");
+      }
+
+      final AuthTokenMinter minter;
+      if (keyRingFile != null) {
+        final InputStream in = new FileInputStream(keyRingFile);
+        try {
+          minter = new AuthTokenMinter(KeyRing.load(in), timeToLive);
+        } finally {
+          in.close();
+        }
+      } else if (keyId != null) {
+        minter = new AuthTokenMinter(new KeyedSignature(operands.get(0)), keyId, timeToLive);
+      } else {
+        minter = new AuthTokenMinter(operands.get(0));
+      }
+
+      if (operands.size() > secrets) {
+        System.out.println (minter.mint(operands.get(secrets)));
+        return;
+      }
+
+      final InputStream in = (users == null) ? System.in : new FileInputStream(users);
+      final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"), 1 << 16);
+      try {
+        mintAll(minter, new BufferedReader(new InputStreamReader(in, "UTF-8"), 1 << 16), out, threads);
+      } finally {
+        out.flush();
+        in.close();
+      }
+    } catch (NumberFormatException e) {
+      System.err.println (USAGE);
+      System.exit(1);
+    } catch (IllegalArgumentException e) {
+      System.err.println (e.getMessage());
+      System.err.println (USAGE);
+      System.exit(1);
+    } catch (IOException e) {
+      e.printStackTrace();
       System.exit(1);
     }
-    if (args.length > 2) {
-      System.err.println ("Extra command line arguments ignored");
-    }
-    
-    final String secret = args[0];
-    final String user = args[1];
-    
-    final Signature signature = new Signature();
-    final SecureRandom rand = new SecureRandom();
-    final int nonce = rand.nextInt();
-    final String toSign = user + AuthToken.TOKEN_SEPARATOR + nonce;
-    final String hmac;
+  }
+
+  /**
+   * Mints a token for every user name read, one per line, and writes the tokens one per
+   * line in the same order. Blank lines are skipped. Chunks of names are minted by a pool of
+   * threads while the next are read; at most two chunks per thread are held at once.
+   *
+   * @return the number of tokens written
+   * @throws IllegalArgumentException naming the line of the first invalid user name
+   */
+  static long mintAll (final AuthTokenMinter minter, final BufferedReader users, final Writer out,
+      final int threads) throws IOException {
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final Deque<Future<String>> pending = new ArrayDeque<Future<String>>();
+    long count = 0;
+    long line = 0;
     try {
-      hmac = signature.calculateRFC2104HMACWithEncoding(toSign, secret, true);
-      System.out.println (hmac + AuthToken.TOKEN_SEPARATOR + toSign);
-    } catch (InvalidKeyException e) {
-      e.printStackTrace();
-      System.exit(0);
+      List<String> chunk = new ArrayList<String>(CHUNK_SIZE);
+      for (String user = users.readLine(); user != null; user = users.readLine()) {
+        line++;
+        user = user.trim();
+        if (user.length() == 0) {
+          continue;
+        }
+        if (user.contains(AuthToken.TOKEN_SEPARATOR)) {
+          throw new IllegalArgumentException("line " + line + ": invalid user name: \"" + user + "\"");
+        }
+        chunk.add(user);
+        if (chunk.size() == CHUNK_SIZE) {
+          if (pending.size() == 2 * threads) {
+            write(pending.removeFirst(), out);
+          }
+          pending.addLast(executor.submit(mint(minter, chunk)));
+          count += chunk.size();
+          chunk = new ArrayList<String>(CHUNK_SIZE);
+        }
+      }
+      if (!chunk.isEmpty()) {
+        pending.addLast(executor.submit(mint(minter, chunk)));
+        count += chunk.size();
+      }
+      while (!pending.isEmpty()) {
+        write(pending.removeFirst(), out);
+      }
+      return count;
+    } finally {
+      executor.shutdownNow();
     }
-    
   }
 
+  private static Callable<String> mint (final AuthTokenMinter minter, final List<String> chunk) {
+    return new Callable<String>() {
+      public String call() {
+        final StringBuilder tokens = new StringBuilder(chunk.size() * 128);
+        for (final String user : chunk) {
+          tokens.append(minter.mint(user)).append('\n');
+        }
+        return tokens.toString();
+      }
+    };
+  }
+
+  private static void write (final Future<String> tokens, final Writer out) throws IOException {
+    try {
+      out.write(tokens.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
 }
@@ -0,0 +1,176 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Mints AuthTokens for any number of users, from any number of threads. The secret is
+ * keyed once, as a {@link KeyedSignature}, when the minter is created. Every thread draws
+ * nonces from its own SecureRandom, seeded from the system's, so threads never wait for one
+ * another, and builds its tokens in its own buffer.
+ *
+ * A minter made with a secret or a bare KeyedSignature mints legacy tokens; one made with a
+ * key id and a time to live, or with a {@link KeyRing}, mints version 2 tokens signed with
+ * that key and valid from the moment they are minted for timeToLive seconds. See
+ * {@link AuthToken} for both formats.
+ * Note: Class is immutable and thread safe.
+ */
+public final class AuthTokenMinter {
+
+  /** random bytes in a nonce; hex encoded, so a nonce never contains the token separator */
+  public static final int NONCE_BYTES = 16;
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  private static final SecureRandom SEEDS = new SecureRandom();
+
+  private final KeyedSignature signature;
+  private final String keyId;
+  private final long timeToLive;
+
+  private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  /**
+   * A thread's nonce source and the buffers it builds tokens in.
+   */
+  private static final class Scratch {
+    final SecureRandom random = newRandom();
+    final byte[] nonce = new byte[NONCE_BYTES];
+    final StringBuilder token = new StringBuilder(128);
+  }
+
+  private static SecureRandom newRandom() {
+    SecureRandom random;
+    try {
+      // a generator of its own; the default NativePRNG is shared by every instance
+      random = SecureRandom.getInstance("SHA1PRNG");
+    } catch (NoSuchAlgorithmException e) {
+      random = new SecureRandom();
+    }
+    final byte[] seed = new byte[20];
+    SEEDS.nextBytes(seed);
+    random.setSeed(seed);
+    return random;
+  }
+
+  /**
+   * Creates a minter of legacy tokens signed with the given secret.
+   *
+   * @throws IllegalArgumentException if the secret is empty
+   */
+  public AuthTokenMinter (final String secret) {
+    this(new KeyedSignature(secret));
+  }
+
+  /**
+   * Creates a minter of legacy tokens signed with the given key.
+   */
+  public AuthTokenMinter (final KeyedSignature signature) {
+    if (signature == null) {
+      throw new IllegalArgumentException ("signature == null");
+    }
+    this.signature = signature;
+    this.keyId = null;
+    this.timeToLive = 0;
+  }
+
+  /**
+   * Creates a minter of version 2 tokens naming keyId and signed with its key.
+   *
+   * @param timeToLive seconds for which a token is valid
+   * @throws IllegalArgumentException if keyId is empty or contains the token separator, or
+   *   timeToLive is not positive
+   */
+  public AuthTokenMinter (final KeyedSignature signature, final String keyId, final long timeToLive) {
+    if (signature == null) {
+      throw new IllegalArgumentException ("signature == null");
+    }
+    if (keyId == null || keyId.length() == 0 || keyId.contains(AuthToken.TOKEN_SEPARATOR)) {
+      throw new IllegalArgumentException ("invalid key id: \"" + keyId + "\"");
+    }
+    if (timeToLive <= 0) {
+      throw new IllegalArgumentException ("timeToLive <= 0");
+    }
+    this.signature = signature;
+    this.keyId = keyId;
+    this.timeToLive = timeToLive;
+  }
+
+  /**
+   * Creates a minter of version 2 tokens signed with the active key of a KeyRing.
+   *
+   * @param timeToLive seconds for which a token is valid
+   * @throws IllegalArgumentException if the KeyRing has no active key id
+   */
+  public AuthTokenMinter (final KeyRing keyRing, final long timeToLive) {
+    this(keyRing.getActive(), keyRing.getActiveKeyId(), timeToLive);
+  }
+
+  /**
+   * @return the key id of the version 2 tokens minted; null if legacy tokens are minted
+   */
+  public String getKeyId() {
+    return keyId;
+  }
+
+  /**
+   * @return seconds for which a version 2 token is valid; 0 if legacy tokens are minted
+   */
+  public long getTimeToLive() {
+    return timeToLive;
+  }
+
+  /**
+   * Mints a token for a user with a fresh nonce.
+   *
+   * @throws IllegalArgumentException if user is empty or contains the token separator
+   */
+  public String mint (final String user) {
+    return mint(user, System.currentTimeMillis() / 1000);
+  }
+
+  /**
+   * Mints a token for a user with a fresh nonce; a version 2 token is issued at now.
+   *
+   * @param now seconds since the epoch
+   */
+  String mint (final String user, final long now) {
+    if (user == null || user.length() == 0 || user.contains(AuthToken.TOKEN_SEPARATOR)) {
+      throw new IllegalArgumentException ("invalid user name: \"" + user + "\"");
+    }
+
+    final Scratch scratch = this.scratch.get();
+    final StringBuilder token = scratch.token;
+    token.setLength(0);
+    if (keyId == null) {
+      token.append(user).append(AuthToken.TOKEN_SEPARATOR);
+      appendNonce(token, scratch);
+      final String signed = token.toString();
+      return signature.calculateRFC2104HMACWithEncoding(signed, true) + AuthToken.TOKEN_SEPARATOR + signed;
+    }
+
+    token.append(AuthToken.V2_PREFIX).append(keyId).append(AuthToken.TOKEN_SEPARATOR)
+        .append(now).append(AuthToken.TOKEN_SEPARATOR)
+        .append(now + timeToLive).append(AuthToken.TOKEN_SEPARATOR)
+        .append(user).append(AuthToken.TOKEN_SEPARATOR);
+    appendNonce(token, scratch);
+    final String signed = token.toString();
+    return token.append(AuthToken.TOKEN_SEPARATOR).append(signature.calculateRawHMACWithEncoding(signed)).toString();
+  }
+
+  private static void appendNonce (final StringBuilder token, final Scratch scratch) {
+    final byte[] nonce = scratch.nonce;
+    scratch.random.nextBytes(nonce);
+    for (int i = 0; i < nonce.length; i++) {
+      token.append(HEX_DIGITS[(nonce[i] >> 4) & 0xF]).append(HEX_DIGITS[nonce[i] & 0xF]);
+    }
+  }
+
+  public String toString() {
+    return (keyId == null) ? "AuthTokenMinter[legacy]" : "AuthTokenMinter[v2, keyId=" + keyId + ", timeToLive=" + timeToLive + "]";
+  }
+}
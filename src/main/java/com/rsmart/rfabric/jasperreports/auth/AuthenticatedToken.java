@@ -0,0 +1,110 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import org.springframework.security.Authentication;
+import org.springframework.security.GrantedAuthority;
+
+/**
+ * The result of successfully authenticating an AuthToken: the token, and the trusted user
+ * name and authorities it was verified for. Unlike the AuthTokenAuthentication a request
+ * is presented as, it carries no Signature and is never filled in after construction; the
+ * authorities array is the canonical one from {@link Authorities}, shared with every other
+ * user filling the same roles, and getAuthorities() returns a copy of it.
+ *
+ * It also records the {@link TokenDigest} of the token, when it was authenticated and until
+ * when the token itself remains valid, so that a filter finding it in the SecurityContext
+ * of a later request bearing the same token can trust it without authenticating again.
+ *
+ * The only change an AuthenticatedToken allows is setAuthenticated(false), after which it
+ * reports no name, principal or authorities and the token it carries has to be
+ * authenticated again. The token is not serialized with it; its digest is.
+ * Note: Class is thread safe.
+ */
+public final class AuthenticatedToken implements Authentication {
+
+  private static final long serialVersionUID = -6244385526431532785L;
+
+  private final transient AuthToken authToken;
+  private final TokenDigest tokenDigest;
+  private final String name;
+  private final GrantedAuthority[] authorities;
+  private final long authenticatedAt = System.currentTimeMillis();
+  private final long validUntil;
+  private volatile boolean authenticated = true;
+
+  /**
+   * @param validUntil the time, in milliseconds since the epoch, after which the token is
+   *   no longer valid; Long.MAX_VALUE if it does not expire
+   */
+  public AuthenticatedToken (final AuthToken authToken, final TokenDigest tokenDigest,
+      final VerifiedPrincipal principal, final long validUntil) {
+    this.authToken = authToken;
+    this.tokenDigest = tokenDigest;
+    this.name = principal.getName();
+    this.authorities = principal.authorities();
+    this.validUntil = validUntil;
+  }
+
+  /**
+   * Reports whether this is a still authenticated result for the token with the given
+   * digest, authenticated no more than maximumAge milliseconds before now and not expired.
+   */
+  public boolean isCurrentFor (final TokenDigest digest, final long maximumAge, final long now) {
+    return authenticated
+        && now - authenticatedAt < maximumAge
+        && now <= validUntil
+        && tokenDigest.equals(digest);
+  }
+
+  public TokenDigest getTokenDigest() {
+    return tokenDigest;
+  }
+
+  /**
+   * @return when the token was authenticated, in milliseconds since the epoch
+   */
+  public long getAuthenticatedAt() {
+    return authenticatedAt;
+  }
+
+  /**
+   * @return when the token expires, in milliseconds since the epoch; Long.MAX_VALUE if never
+   */
+  public long getValidUntil() {
+    return validUntil;
+  }
+
+  public boolean isAuthenticated() {
+    return authenticated;
+  }
+
+  public void setAuthenticated (final boolean authenticated) throws IllegalArgumentException {
+    if (authenticated) {
+      throw new IllegalArgumentException ("Cannot set authenticated to true externally");
+    }
+    this.authenticated = false;
+  }
+
+  public String getName() {
+    return authenticated ? name : null;
+  }
+
+  public GrantedAuthority[] getAuthorities() {
+    return authenticated ? Authorities.copy(authorities) : null;
+  }
+
+  public Object getCredentials() {
+    return authToken;
+  }
+
+  public Object getDetails() {
+    return null;
+  }
+
+  public Object getPrincipal() {
+    return getName();
+  }
+
+  public String toString() {
+    return "AuthenticatedToken[" + name + (authenticated ? "" : ", revoked") + "]";
+  }
+}
@@ -0,0 +1,132 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.security.GrantedAuthority;
+import org.springframework.security.GrantedAuthorityImpl;
+
+/**
+ * A registry of interned GrantedAuthority instances and of canonical authority arrays.
+ * Every authority of a given name is the same GrantedAuthority instance, and every user
+ * filling the same set of roles shares one array holding them sorted by name, so cached
+ * principals and the authentications kept in sessions hold a reference each rather than
+ * their own copies.
+ *
+ * The registry holds at most MAXIMUM_ENTRIES names and as many role sets; beyond that,
+ * authorities and arrays are still returned but no longer shared.
+ * Note: Class is thread safe; the arrays it returns must not be modified, so they are
+ * only held internally and handed to callers as a {@link #copy(GrantedAuthority[])}.
+ */
+public final class Authorities {
+
+  static final int MAXIMUM_ENTRIES = 4096;
+
+  private static final GrantedAuthority[] NONE = new GrantedAuthority[0];
+
+  private static final ConcurrentMap<String, GrantedAuthority> AUTHORITIES =
+      new ConcurrentHashMap<String, GrantedAuthority>();
+  private static final ConcurrentMap<RoleSet, GrantedAuthority[]> ROLE_SETS =
+      new ConcurrentHashMap<RoleSet, GrantedAuthority[]>();
+
+  private Authorities() {}
+
+  /**
+   * Returns the interned authority of a name, creating it the first time it is asked for.
+   */
+  public static GrantedAuthority authority (final String name) {
+    if (name == null) {
+      throw new IllegalArgumentException ("name == null");
+    }
+    final GrantedAuthority existing = AUTHORITIES.get(name);
+    if (existing != null) {
+      return existing;
+    }
+    final GrantedAuthority created = new GrantedAuthorityImpl(name);
+    if (AUTHORITIES.size() >= MAXIMUM_ENTRIES) {
+      return created;
+    }
+    final GrantedAuthority raced = AUTHORITIES.putIfAbsent(name, created);
+    return (raced != null) ? raced : created;
+  }
+
+  /**
+   * Returns the canonical array of the set of roles named by authorities: interned
+   * authorities sorted by name, without duplicates. Arrays holding an authority which
+   * cannot be represented as a name (getAuthority() returns null) are returned as they are.
+   *
+   * @param authorities as resolved by an ExternalUserProvider; may be null
+   */
+  public static GrantedAuthority[] canonical (final GrantedAuthority[] authorities) {
+    if (authorities == null) {
+      return null;
+    }
+    if (authorities.length == 0) {
+      return NONE;
+    }
+
+    final String[] names = new String[authorities.length];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = (authorities[i] == null) ? null : authorities[i].getAuthority();
+      if (names[i] == null) {
+        return authorities;
+      }
+    }
+    final RoleSet roles = new RoleSet(names);
+    final GrantedAuthority[] existing = ROLE_SETS.get(roles);
+    if (existing != null) {
+      return existing;
+    }
+
+    final GrantedAuthority[] created = new GrantedAuthority[roles.names.length];
+    for (int i = 0; i < created.length; i++) {
+      created[i] = authority(roles.names[i]);
+    }
+    if (ROLE_SETS.size() >= MAXIMUM_ENTRIES) {
+      return created;
+    }
+    final GrantedAuthority[] raced = ROLE_SETS.putIfAbsent(roles, created);
+    return (raced != null) ? raced : created;
+  }
+
+  /**
+   * Returns a copy of an authority array, e.g. of a canonical one, for a caller which may
+   * modify it.
+   *
+   * @param authorities may be null
+   */
+  public static GrantedAuthority[] copy (final GrantedAuthority[] authorities) {
+    return (authorities == null) ? null : authorities.clone();
+  }
+
+  /**
+   * The sorted, distinct names of a set of roles.
+   */
+  private static final class RoleSet {
+    final String[] names;
+    final int hashCode;
+
+    RoleSet (final String[] names) {
+      Arrays.sort(names);
+      int distinct = 1;
+      for (int i = 1; i < names.length; i++) {
+        if (!names[i].equals(names[distinct - 1])) {
+          names[distinct++] = names[i];
+        }
+      }
+      this.names = (distinct == names.length) ? names : Arrays.copyOf(names, distinct);
+      this.hashCode = Arrays.hashCode(this.names);
+    }
+
+    @Override
+    public boolean equals (final Object o) {
+      return (o instanceof RoleSet) && Arrays.equals(names, ((RoleSet) o).names);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
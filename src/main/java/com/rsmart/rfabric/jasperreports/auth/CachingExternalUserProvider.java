@@ -0,0 +1,302 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.GrantedAuthority;
+
+import com.rsmart.rfabric.cache.ExpiringCache;
+import com.rsmart.rfabric.cache.ExpiringCache.CacheLoader;
+import com.rsmart.rfabric.cache.ExpiringCache.CacheLoaderException;
+
+/**
+ * Decorates any ExternalUserProvider with caches for userExists and getAuthoritiesForUser.
+ * The two answers are cached separately, each with its own time to live. Users the
+ * delegate does not recognize are remembered for a shorter time, so a burst of logins by
+ * an unknown user costs one lookup without hiding a newly created user for long.
+ *
+ * Entries which are read after the refresh-ahead ratio of their time to live has passed
+ * are reloaded in the background while the cached answer is still returned, so users who
+ * log in often never wait on an expired entry. Call destroy() to stop the refresh threads.
+ *
+ * Wrap providers which answer from a remote directory, such as KIM. Providers which answer
+ * from memory, e.g. ListUserProvider, are as fast as the cache, and caching them would only
+ * hide changes to their users file for up to the time to live.
+ *
+ * Typical Spring configuration:
+ * <pre>
+ *   &lt;bean id="cachingUserProvider" class="...CachingExternalUserProvider" destroy-method="destroy"&gt;
+ *     &lt;constructor-arg ref="kimUserProvider"/&gt;
+ *     &lt;property name="existsTimeToLive" value="300000"/&gt;
+ *   &lt;/bean&gt;
+ * </pre>
+ */
+public class CachingExternalUserProvider implements ExternalUserProvider {
+  private static final Log LOG = LogFactory.getLog(CachingExternalUserProvider.class);
+
+  private final ExternalUserProvider delegate;
+
+  private long existsTimeToLive = 300000;
+  private long missingTimeToLive = 30000;
+  private long authoritiesTimeToLive = 300000;
+  private int maximumSize = 10000;
+  private double refreshAheadRatio = 0.75;
+  private int refreshThreads = 2;
+  private boolean statisticsEnabled = true;
+
+  private volatile Caches caches = null;
+  private ExecutorService refreshExecutor = null;
+
+  private final CacheLoader<String, Boolean> existsLoader = new CacheLoader<String, Boolean>() {
+    public Boolean load (final String user) throws Exception {
+      return Boolean.valueOf(delegate.userExists(user));
+    }
+  };
+
+  private final CacheLoader<String, GrantedAuthority[]> authoritiesLoader =
+      new CacheLoader<String, GrantedAuthority[]>() {
+    public GrantedAuthority[] load (final String user) {
+      return delegate.getAuthoritiesForUser(user);
+    }
+  };
+
+  public CachingExternalUserProvider (final ExternalUserProvider delegate) {
+    if (delegate == null) {
+      throw new IllegalArgumentException ("delegate == null");
+    }
+    this.delegate = delegate;
+  }
+
+  public ExternalUserProvider getDelegate() {
+    return delegate;
+  }
+
+  public boolean userExists (final String user) throws Exception {
+    if (user == null) {
+      return delegate.userExists(user);
+    }
+    try {
+      return caches().exists.get(user, existsLoader).booleanValue();
+    } catch (CacheLoaderException e) {
+      // unwrap the delegate's checked exception
+      throw (Exception) e.getCause();
+    }
+  }
+
+  public GrantedAuthority[] getAuthoritiesForUser (final String user) {
+    if (user == null) {
+      return delegate.getAuthoritiesForUser(user);
+    }
+    // the cached array is shared by every caller
+    return Authorities.copy(caches().authorities.get(user, authoritiesLoader));
+  }
+
+  /**
+   * Drops everything cached for the given user, e.g. after their roles have changed.
+   *
+   * @param user
+   */
+  public void invalidate (final String user) {
+    final Caches caches = this.caches;
+    if (caches != null) {
+      caches.exists.invalidate(user);
+      caches.authorities.invalidate(user);
+    }
+  }
+
+  private Caches caches() {
+    Caches caches = this.caches;
+    if (caches == null) {
+      synchronized (this) {
+        caches = this.caches;
+        if (caches == null) {
+          caches = new Caches();
+          this.caches = caches;
+        }
+      }
+    }
+    return caches;
+  }
+
+  /**
+   * Stops the background refresh threads and drops all cached entries.
+   */
+  public synchronized void destroy() {
+    if (refreshExecutor != null) {
+      refreshExecutor.shutdownNow();
+      refreshExecutor = null;
+    }
+    caches = null;
+  }
+
+  /**
+   * Both caches, built together from the current configuration.
+   */
+  private final class Caches {
+    final ExpiringCache<String, Boolean> exists;
+    final ExpiringCache<String, GrantedAuthority[]> authorities;
+
+    Caches() {
+      exists = new ExpiringCache<String, Boolean>(existsTimeToLive, maximumSize) {
+        @Override
+        protected long timeToLive (final Boolean exists) {
+          return exists.booleanValue() ? existsTimeToLive : missingTimeToLive;
+        }
+
+        @Override
+        protected long now() {
+          return CachingExternalUserProvider.this.now();
+        }
+      };
+      authorities = new ExpiringCache<String, GrantedAuthority[]>(authoritiesTimeToLive, maximumSize) {
+        @Override
+        protected long now() {
+          return CachingExternalUserProvider.this.now();
+        }
+      };
+
+      exists.setStatisticsEnabled(statisticsEnabled);
+      authorities.setStatisticsEnabled(statisticsEnabled);
+
+      if (refreshThreads > 0 && refreshAheadRatio < 1.0) {
+        if (refreshExecutor == null) {
+          refreshExecutor = newRefreshExecutor(refreshThreads);
+        }
+        exists.setRefreshAhead(refreshExecutor, refreshAheadRatio);
+        authorities.setRefreshAhead(refreshExecutor, refreshAheadRatio);
+      }
+      LOG.debug("caching " + delegate.getClass().getName() + " for up to " + maximumSize + " users");
+    }
+  }
+
+  /**
+   * Returns the time, in milliseconds, entries are loaded and expire by.
+   */
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  private static ExecutorService newRefreshExecutor (final int threads) {
+    final AtomicInteger count = new AtomicInteger();
+    // bounded queue: refreshes beyond it are dropped, the entry then expires and reloads
+    return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(1000), new ThreadFactory() {
+          public Thread newThread (final Runnable r) {
+            final Thread thread = new Thread(r, "user-provider-refresh-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Sets how long, in milliseconds, a positive userExists answer is cached.
+   */
+  public synchronized void setExistsTimeToLive (final long existsTimeToLive) {
+    this.existsTimeToLive = existsTimeToLive;
+    caches = null;
+  }
+
+  public long getExistsTimeToLive() {
+    return existsTimeToLive;
+  }
+
+  /**
+   * Sets how long, in milliseconds, the fact that a user does not exist is cached.
+   */
+  public synchronized void setMissingTimeToLive (final long missingTimeToLive) {
+    this.missingTimeToLive = missingTimeToLive;
+    caches = null;
+  }
+
+  public long getMissingTimeToLive() {
+    return missingTimeToLive;
+  }
+
+  /**
+   * Sets how long, in milliseconds, a user's authorities are cached.
+   */
+  public synchronized void setAuthoritiesTimeToLive (final long authoritiesTimeToLive) {
+    this.authoritiesTimeToLive = authoritiesTimeToLive;
+    caches = null;
+  }
+
+  public long getAuthoritiesTimeToLive() {
+    return authoritiesTimeToLive;
+  }
+
+  /**
+   * Sets the number of users each cache holds before the oldest are evicted.
+   */
+  public synchronized void setMaximumSize (final int maximumSize) {
+    this.maximumSize = maximumSize;
+    caches = null;
+  }
+
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  /**
+   * Sets the fraction of an entry's time to live after which a read refreshes it in the
+   * background. 1.0 disables refresh-ahead.
+   */
+  public synchronized void setRefreshAheadRatio (final double refreshAheadRatio) {
+    this.refreshAheadRatio = refreshAheadRatio;
+    caches = null;
+  }
+
+  public double getRefreshAheadRatio() {
+    return refreshAheadRatio;
+  }
+
+  /**
+   * Sets the number of background threads used for refresh-ahead. 0 disables refresh-ahead.
+   */
+  public synchronized void setRefreshThreads (final int refreshThreads) {
+    this.refreshThreads = refreshThreads;
+    if (refreshExecutor != null) {
+      refreshExecutor.shutdown();
+      refreshExecutor = null;
+    }
+    caches = null;
+  }
+
+  public int getRefreshThreads() {
+    return refreshThreads;
+  }
+
+  /**
+   * Turns collection of hit, miss and eviction counts on or off.
+   */
+  public synchronized void setStatisticsEnabled (final boolean statisticsEnabled) {
+    this.statisticsEnabled = statisticsEnabled;
+    caches = null;
+  }
+
+  public long getHitCount() {
+    final Caches caches = this.caches;
+    return (caches == null) ? 0 : caches.exists.getHitCount() + caches.authorities.getHitCount();
+  }
+
+  public long getMissCount() {
+    final Caches caches = this.caches;
+    return (caches == null) ? 0 : caches.exists.getMissCount() + caches.authorities.getMissCount();
+  }
+
+  public long getEvictionCount() {
+    final Caches caches = this.caches;
+    return (caches == null) ? 0 : caches.exists.getEvictionCount() + caches.authorities.getEvictionCount();
+  }
+
+  public long getRefreshCount() {
+    final Caches caches = this.caches;
+    return (caches == null) ? 0 : caches.exists.getRefreshCount() + caches.authorities.getRefreshCount();
+  }
+}
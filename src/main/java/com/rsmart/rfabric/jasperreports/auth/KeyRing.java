@@ -0,0 +1,160 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The secrets tokens may be signed with, each under a key id, as {@link KeyedSignature}s
+ * keyed once when the KeyRing is created. Version 2 tokens name their key id and are
+ * verified with that key alone, found with a single map lookup; legacy tokens carry no
+ * key id and are verified with the legacy key. The active key is the one new tokens are
+ * signed with; every other key is retiring, still accepted until it is removed.
+ *
+ * A KeyRing is read from properties such as
+ * <pre>
+ *   active=k2
+ *   key.k1=the old secret
+ *   key.k2=the new secret
+ *   # optional: the key legacy tokens are verified with, by default the active key
+ *   legacy=k1
+ *   # optional: the Mac algorithm of every key, by default HmacSHA1
+ *   algorithm=HmacSHA1
+ * </pre>
+ * To rotate a secret, add it as a new key, make it active once every issuer has it, and
+ * remove the old key once the tokens signed with it have expired.
+ * Note: Class is immutable and thread safe.
+ */
+public final class KeyRing {
+
+  public static final String ACTIVE = "active";
+  public static final String LEGACY = "legacy";
+  public static final String ALGORITHM = "algorithm";
+  public static final String KEY_PREFIX = "key.";
+
+  private final Map<String, KeyedSignature> keys;
+  private final String activeKeyId;
+  private final KeyedSignature active;
+  private final KeyedSignature legacy;
+  private final KeyedSignature anyKey;
+
+  private KeyRing (final Map<String, KeyedSignature> keys, final String activeKeyId,
+      final KeyedSignature legacy, final KeyedSignature anyKey) {
+    this.keys = keys;
+    this.activeKeyId = activeKeyId;
+    this.active = (anyKey != null) ? anyKey : keys.get(activeKeyId);
+    this.legacy = legacy;
+    this.anyKey = anyKey;
+  }
+
+  /**
+   * Creates a KeyRing holding a single secret, as configured with
+   * {@link AuthTokenAuthenticationProvider#setSecret(String)}. With a null keyId the secret
+   * verifies version 2 tokens of any key id; otherwise only those naming keyId. It always
+   * verifies legacy tokens.
+   */
+  public static KeyRing of (final String keyId, final String secret) {
+    final KeyedSignature signature = new KeyedSignature(secret);
+    if (keyId == null) {
+      return new KeyRing(Collections.<String, KeyedSignature>emptyMap(), null, signature, signature);
+    }
+    return new KeyRing(Collections.singletonMap(keyId, signature), keyId, signature, null);
+  }
+
+  /**
+   * Reads a KeyRing from properties in the format described above.
+   *
+   * @throws IllegalArgumentException if a key id or secret is missing or invalid, or the
+   *   active or legacy key id names no key
+   */
+  public static KeyRing of (final Properties properties) {
+    final String algorithm = properties.getProperty(ALGORITHM, KeyedSignature.DEFAULT_ALGORITHM).trim();
+    final Map<String, KeyedSignature> keys = new HashMap<String, KeyedSignature>();
+    for (final String name : properties.stringPropertyNames()) {
+      if (!name.startsWith(KEY_PREFIX)) {
+        continue;
+      }
+      final String keyId = name.substring(KEY_PREFIX.length());
+      if (keyId.length() == 0 || keyId.contains(AuthToken.TOKEN_SEPARATOR)) {
+        throw new IllegalArgumentException ("invalid key id: \"" + keyId + "\"");
+      }
+      final String secret = properties.getProperty(name);
+      if (secret.length() == 0) {
+        throw new IllegalArgumentException ("empty secret for key " + keyId);
+      }
+      keys.put(keyId, new KeyedSignature(secret, algorithm));
+    }
+
+    final String activeKeyId = properties.getProperty(ACTIVE, "").trim();
+    if (!keys.containsKey(activeKeyId)) {
+      throw new IllegalArgumentException ("active key \"" + activeKeyId + "\" is not in the key ring");
+    }
+    final String legacyKeyId = properties.getProperty(LEGACY, activeKeyId).trim();
+    if (!keys.containsKey(legacyKeyId)) {
+      throw new IllegalArgumentException ("legacy key \"" + legacyKeyId + "\" is not in the key ring");
+    }
+    return new KeyRing(Collections.unmodifiableMap(keys), activeKeyId, keys.get(legacyKeyId), null);
+  }
+
+  /**
+   * Reads a KeyRing from a UTF-8 properties stream; see {@link #of(Properties)}.
+   */
+  public static KeyRing load (final InputStream in) throws IOException {
+    final Properties properties = new Properties();
+    properties.load(new InputStreamReader(in, "UTF-8"));
+    return of(properties);
+  }
+
+  /**
+   * Returns the key a token is to be verified with, or null if this KeyRing holds no key
+   * for it.
+   */
+  public KeyedSignature getSignature (final AuthToken authToken) {
+    if (authToken.getVersion() == 1) {
+      return legacy;
+    }
+    if (anyKey != null) {
+      return anyKey;
+    }
+    final String keyId = authToken.getKeyId();
+    return (keyId == null) ? null : keys.get(keyId);
+  }
+
+  /**
+   * @return the key of keyId, or null if there is none
+   */
+  public KeyedSignature getSignature (final String keyId) {
+    return (anyKey != null) ? anyKey : keys.get(keyId);
+  }
+
+  /**
+   * @return the id of the key new tokens are signed with; null for a single secret
+   *   accepting any key id
+   */
+  public String getActiveKeyId() {
+    return activeKeyId;
+  }
+
+  /**
+   * @return the key new tokens are signed with
+   */
+  public KeyedSignature getActive() {
+    return active;
+  }
+
+  /**
+   * @return the ids of every key, active and retiring
+   */
+  public Set<String> getKeyIds() {
+    return keys.keySet();
+  }
+
+  public String toString() {
+    return "KeyRing[active=" + activeKeyId + ", keys=" + keys.keySet() + "]";
+  }
+}
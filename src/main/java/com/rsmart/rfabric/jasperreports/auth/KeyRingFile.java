@@ -0,0 +1,105 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A {@link KeyRing} read from a local properties file and read again whenever the file
+ * changes, so secrets can be rotated without a restart. Callers ask for the current
+ * KeyRing on every use; at most once every checkInterval milliseconds, one of them checks
+ * the file's modification time and size and, if either changed, reads it. The new KeyRing
+ * replaces the old one atomically. A file which cannot be read or holds an invalid
+ * KeyRing is logged and the previous KeyRing stays in use.
+ * Note: Class is thread safe.
+ */
+public class KeyRingFile {
+  private static final Log LOG = LogFactory.getLog(KeyRingFile.class);
+
+  public static final long DEFAULT_CHECK_INTERVAL = 10000;
+
+  private final File file;
+  private final long checkInterval;
+  private final AtomicLong nextCheck = new AtomicLong();
+
+  private volatile KeyRing keyRing;
+  private volatile long lastModified;
+  private volatile long length;
+
+  /**
+   * Reads the file for the first time.
+   *
+   * @throws IOException if the file cannot be read
+   * @throws IllegalArgumentException if it does not hold a valid KeyRing
+   */
+  public KeyRingFile (final File file, final long checkInterval) throws IOException {
+    this.file = file;
+    this.checkInterval = checkInterval;
+    load();
+  }
+
+  public KeyRingFile (final File file) throws IOException {
+    this(file, DEFAULT_CHECK_INTERVAL);
+  }
+
+  /**
+   * Returns the current KeyRing, reading the file first if it is due to be checked and has
+   * changed.
+   */
+  public KeyRing getKeyRing() {
+    final long now = System.currentTimeMillis();
+    final long next = nextCheck.get();
+    if (now >= next && nextCheck.compareAndSet(next, now + checkInterval)) {
+      reloadIfModified();
+    }
+    return keyRing;
+  }
+
+  /**
+   * Reads the file now if it changed since it was last read.
+   *
+   * @return true if a new KeyRing was read
+   */
+  public boolean reloadIfModified() {
+    if (file.lastModified() == lastModified && file.length() == length) {
+      return false;
+    }
+    try {
+      load();
+      LOG.info("Reloaded " + keyRing + " from " + file);
+      return true;
+    } catch (IOException e) {
+      LOG.error("Unable to read key ring " + file + "; keeping " + keyRing, e);
+    } catch (IllegalArgumentException e) {
+      LOG.error("Invalid key ring " + file + ": " + e.getMessage() + "; keeping " + keyRing);
+    }
+    return false;
+  }
+
+  private synchronized void load() throws IOException {
+    final long modified = file.lastModified();
+    final long size = file.length();
+    final InputStream in = new FileInputStream(file);
+    try {
+      keyRing = KeyRing.load(in);
+    } finally {
+      // a broken file is not read again until it changes
+      lastModified = modified;
+      length = size;
+      in.close();
+    }
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public long getCheckInterval() {
+    return checkInterval;
+  }
+}
@@ -0,0 +1,388 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Thread safe counterpart to {@link Signature} which is keyed once, at configuration time.
+ * A prototype Mac is initialized with the secret when the KeyedSignature is constructed,
+ * and every thread computes its HMACs on its own clone of that prototype, so no Mac is
+ * ever shared between threads and the key is never re-encoded or re-initialized per call.
+ *
+ * The encoding produced by {@link #calculateRFC2104HMACWithEncoding(String, boolean)} is
+ * identical to {@link Signature#calculateRFC2104HMACWithEncoding(String, String, boolean)}.
+ *
+ * Tokens are checked with {@link #verifyRFC2104HMAC(String, String)} and
+ * {@link #verifyRawHMAC(String, String)}, which decode the presented hash and compute the
+ * HMAC into buffers owned by the calling thread and compare the raw bytes in constant
+ * time, instead of encoding the computed HMAC as a String and comparing with equals.
+ *
+ * @author duffy
+ *
+ */
+public class KeyedSignature {
+
+  public static final String DEFAULT_ALGORITHM = "HmacSHA1";
+
+  private static final String UTF8 = "UTF-8";
+
+  private final String algorithm;
+  private final SecretKeySpec signingKey;
+  private final Mac prototype;
+  private final boolean cloneable;
+
+  /** base64url digit values; -1 for other characters, including the standard alphabet's + and / */
+  private static final byte[] BASE64_VALUES = new byte[128];
+  static {
+    Arrays.fill(BASE64_VALUES, (byte) -1);
+    for (int i = 0; i < 26; i++) {
+      BASE64_VALUES['A' + i] = (byte) i;
+      BASE64_VALUES['a' + i] = (byte) (26 + i);
+    }
+    for (int i = 0; i < 10; i++) {
+      BASE64_VALUES['0' + i] = (byte) (52 + i);
+    }
+    BASE64_VALUES['-'] = 62;
+    BASE64_VALUES['_'] = 63;
+  }
+
+  private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch(newMac());
+    }
+  };
+
+  /**
+   * A thread's Mac and the buffers it verifies HMACs with.
+   */
+  private static final class Scratch {
+    final Mac mac;
+    final byte[] presented;
+    final byte[] computed;
+    final byte[] hex;
+    byte[] data = new byte[256];
+
+    Scratch (final Mac mac) {
+      this.mac = mac;
+      this.presented = new byte[mac.getMacLength()];
+      this.computed = new byte[mac.getMacLength()];
+      this.hex = new byte[2 * mac.getMacLength()];
+    }
+  }
+
+  /**
+   * Creates a KeyedSignature for the given secret using HmacSHA1.
+   *
+   * @param secret
+   * @throws IllegalArgumentException if the secret is empty
+   * @throws IllegalStateException if the Mac cannot be created or keyed
+   */
+  public KeyedSignature (final String secret) {
+    this(secret, DEFAULT_ALGORITHM);
+  }
+
+  /**
+   * Creates a KeyedSignature for the given secret and Mac algorithm.
+   *
+   * @param secret
+   * @param algorithm
+   * @throws IllegalArgumentException if the secret is empty
+   * @throws IllegalStateException if the Mac cannot be created or keyed
+   */
+  public KeyedSignature (final String secret, final String algorithm) {
+    if (secret == null || secret.isEmpty()) {
+      throw new IllegalArgumentException ("secret == null || empty");
+    }
+
+    this.algorithm = algorithm;
+    try {
+      signingKey = new SecretKeySpec(secret.getBytes(UTF8), algorithm);
+      prototype = Mac.getInstance(algorithm);
+      prototype.init(signingKey);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (InvalidKeyException e) {
+      throw new IllegalStateException("Invalid key used for hashing", e);
+    }
+
+    cloneable = isCloneable(prototype);
+  }
+
+  private static boolean isCloneable (final Mac mac) {
+    try {
+      mac.clone();
+      return true;
+    } catch (CloneNotSupportedException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Produces a new, keyed Mac for the calling thread. Cloning the prototype avoids the
+   * provider lookup and the key schedule; providers which do not support cloning fall
+   * back to a fresh instance initialized with the precomputed key.
+   */
+  private Mac newMac() {
+    try {
+      if (cloneable) {
+        return (Mac) prototype.clone();
+      }
+      final Mac mac = Mac.getInstance(algorithm);
+      mac.init(signingKey);
+      return mac;
+    } catch (CloneNotSupportedException e) {
+      throw new IllegalStateException(e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (InvalidKeyException e) {
+      throw new IllegalStateException("Invalid key used for hashing", e);
+    }
+  }
+
+  public String getAlgorithm() {
+    return algorithm;
+  }
+
+  /**
+   * @return the length in bytes of the raw HMAC
+   */
+  public int getMacLength() {
+    return prototype.getMacLength();
+  }
+
+  /**
+   * @return the length of the URL safe (unpadded) encoding produced by
+   *         calculateRFC2104HMACWithEncoding(data, true)
+   */
+  public int getEncodedHMACLength() {
+    final int hexLength = 2 * getMacLength();
+    return (4 * hexLength + 2) / 3;
+  }
+
+  /**
+   * @return the length of the unpadded base64url encoding of the raw HMAC produced by
+   *         calculateRawHMACWithEncoding(data)
+   */
+  public int getEncodedRawHMACLength() {
+    return (4 * getMacLength() + 2) / 3;
+  }
+
+  /**
+   * Computes the raw HMAC of the given bytes with the calling thread's Mac.
+   *
+   * @param data
+   * @return the raw HMAC bytes
+   */
+  public byte[] calculateRawHMAC (final byte[] data) {
+    if (data == null) {
+      throw new IllegalArgumentException("byte[] data == null");
+    }
+    return scratch.get().mac.doFinal(data);
+  }
+
+  /**
+   * Calculate an RFC2104 compliant HMAC (Hash-based Message Authentication Code) of the
+   * UTF-8 bytes of data, hex encoded and then Base64 encoded.
+   *
+   * @param data
+   *            The data to be signed.
+   * @param urlSafe
+   *            true if the token needs to be URL safe.
+   * @return The Base64-encoded RFC 2104-compliant HMAC signature.
+   */
+  public String calculateRFC2104HMACWithEncoding (final String data, final boolean urlSafe) {
+    if (data == null) {
+      throw new IllegalArgumentException("String data == null");
+    }
+    try {
+      final byte[] rawHmac = calculateRawHMAC(data.getBytes(UTF8));
+      final byte[] hexBytes = new Hex().encode(rawHmac);
+      return new String(Base64.encodeBase64(hexBytes, false, urlSafe), UTF8);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Calculates the HMAC of the UTF-8 bytes of data, as used by version 2 tokens: the raw
+   * HMAC bytes, base64url encoded without padding.
+   *
+   * @param data
+   *            The data to be signed.
+   * @return the encoded HMAC
+   */
+  public String calculateRawHMACWithEncoding (final String data) {
+    if (data == null) {
+      throw new IllegalArgumentException("String data == null");
+    }
+    try {
+      return Base64.encodeBase64URLSafeString(calculateRawHMAC(data.getBytes(UTF8)));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Checks that hash is the HMAC of data in the encoding of
+   * {@link #calculateRFC2104HMACWithEncoding(String, boolean)} with urlSafe true: the lower
+   * case hex digits of the HMAC, base64url encoded without padding. That spelling is the
+   * only one accepted, so a token's text identifies it for caching and replay detection.
+   *
+   * @param data
+   * @param hash the presented hash
+   * @return true if hash is the HMAC of data
+   */
+  public boolean verifyRFC2104HMAC (final String data, final String hash) {
+    if (data == null || hash == null) {
+      return false;
+    }
+    final Scratch scratch = this.scratch.get();
+    return decodeBase64(hash, scratch.hex) && decodeHex(scratch.hex, scratch.presented)
+        && matches(data, scratch);
+  }
+
+  /**
+   * Checks that hash is the HMAC of data in the encoding of
+   * {@link #calculateRawHMACWithEncoding(String)}, which is the only spelling accepted.
+   *
+   * @param data
+   * @param hash the presented hash
+   * @return true if hash is the HMAC of data
+   */
+  public boolean verifyRawHMAC (final String data, final String hash) {
+    if (data == null || hash == null) {
+      return false;
+    }
+    final Scratch scratch = this.scratch.get();
+    return decodeBase64(hash, scratch.presented) && matches(data, scratch);
+  }
+
+  /**
+   * Computes the HMAC of data into scratch.computed and compares it with scratch.presented.
+   * Every byte is compared, so the time taken does not reveal how many bytes matched.
+   */
+  private static boolean matches (final String data, final Scratch scratch) {
+    final int length = encodeUTF8(data, scratch);
+    try {
+      scratch.mac.update(scratch.data, 0, length);
+      scratch.mac.doFinal(scratch.computed, 0);
+    } catch (ShortBufferException e) {
+      throw new IllegalStateException(e);
+    }
+
+    final byte[] presented = scratch.presented;
+    final byte[] computed = scratch.computed;
+    int difference = 0;
+    for (int i = 0; i < computed.length; i++) {
+      difference |= presented[i] ^ computed[i];
+    }
+    return difference == 0;
+  }
+
+  /**
+   * Encodes s as UTF-8 into scratch.data, growing it if needed, like String.getBytes("UTF-8")
+   * but without allocating. Unpaired surrogates are encoded as '?'.
+   *
+   * @return the number of bytes written
+   */
+  private static int encodeUTF8 (final String s, final Scratch scratch) {
+    final int length = s.length();
+    if (scratch.data.length < 3 * length) {
+      scratch.data = new byte[3 * length];
+    }
+    final byte[] out = scratch.data;
+    int o = 0;
+    for (int i = 0; i < length; i++) {
+      final char c = s.charAt(i);
+      if (c < 0x80) {
+        out[o++] = (byte) c;
+      } else if (c < 0x800) {
+        out[o++] = (byte) (0xC0 | (c >> 6));
+        out[o++] = (byte) (0x80 | (c & 0x3F));
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+          final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+          out[o++] = (byte) (0xF0 | (codePoint >> 18));
+          out[o++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+          out[o++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+          out[o++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+          out[o++] = (byte) '?';
+        }
+      } else {
+        out[o++] = (byte) (0xE0 | (c >> 12));
+        out[o++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        out[o++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+    return o;
+  }
+
+  /**
+   * Decodes canonical base64url text into out: the URL safe alphabet, no padding, and any
+   * bits of the last digit beyond the encoded bytes zero. Every byte sequence has exactly
+   * one such spelling.
+   *
+   * @return false if s is not canonical base64url or does not decode to exactly out.length
+   *   bytes
+   */
+  private static boolean decodeBase64 (final String s, final byte[] out) {
+    final int length = s.length();
+    if (length % 4 == 1 || length * 3 / 4 != out.length) {
+      return false;
+    }
+    int bits = 0;
+    int pending = 0;
+    int o = 0;
+    for (int i = 0; i < length; i++) {
+      final char c = s.charAt(i);
+      final int value = (c < 128) ? BASE64_VALUES[c] : -1;
+      if (value < 0) {
+        return false;
+      }
+      bits = ((bits << 6) | value) & 0xFFFF;
+      pending += 6;
+      if (pending >= 8) {
+        pending -= 8;
+        out[o++] = (byte) (bits >> pending);
+      }
+    }
+    return (bits & ((1 << pending) - 1)) == 0;
+  }
+
+  /**
+   * Decodes the lower case hex digits in hex into out.
+   *
+   * @return false if hex holds anything but lower case hex digits
+   */
+  private static boolean decodeHex (final byte[] hex, final byte[] out) {
+    for (int i = 0; i < out.length; i++) {
+      final int high = hexDigit(hex[2 * i]);
+      final int low = hexDigit(hex[2 * i + 1]);
+      if (high < 0 || low < 0) {
+        return false;
+      }
+      out[i] = (byte) ((high << 4) | low);
+    }
+    return true;
+  }
+
+  private static int hexDigit (final byte c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    }
+    return (c >= 'a' && c <= 'f') ? c - 'a' + 10 : -1;
+  }
+}
@@ -2,6 +2,8 @@ package com.rsmart.rfabric.jasperreports.auth;
 
 import com.jaspersoft.jasperserver.api.metadata.xml.domain.impl.OperationResult;
 import com.jaspersoft.jasperserver.remote.ServicesUtils;
+import com.rsmart.rfabric.metrics.LatencyHistogram;
+import com.rsmart.rfabric.metrics.Metrics;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,6 +33,15 @@ import java.util.List;
  * Implements a Servlet filter which extracts an AuthToken from an HTTP header or a CGI
  * parameter. If the AuthToken is found an AuthTokenAuthentication object is constructed
  * and is passed to the Spring Security AuthenticationManager to handle authentication.
+ * The time taken to authenticate requests bearing a token is recorded by outcome:
+ * authenticated, rejected or malformed; see {@link Metrics}.
+ *
+ * If contextTimeToLive is set, a request whose SecurityContext, e.g. as restored from its
+ * session by HttpSessionContextIntegrationFilter, already holds an {@link AuthenticatedToken}
+ * for the identical token, compared by {@link TokenDigest}, is passed on without
+ * authenticating again, provided that authentication is less than contextTimeToLive
+ * milliseconds old and the token has not expired. Such requests are recorded as reused.
+ * The default of 0 authenticates every request.
  */
 public class RESTTokenAuthenticationFilter implements Filter, ApplicationContextAware  {
 
@@ -41,10 +52,19 @@ public class RESTTokenAuthenticationFilter implements Filter, ApplicationContext
 
     private static ApplicationContext applicationContext = null;
     private static ServicesUtils servicesUtils = null;
+
+    private static final String COMPONENT = "RESTTokenAuthenticationFilter";
+    private final Metrics.Registrations metrics = Metrics.registrations(COMPONENT);
+    private final LatencyHistogram authenticatedLatency = metrics.histogram("doFilter", "authenticated");
+    private final LatencyHistogram rejectedLatency = metrics.histogram("doFilter", "rejected");
+    private final LatencyHistogram malformedLatency = metrics.histogram("doFilter", "malformed");
+    private final LatencyHistogram reusedLatency = metrics.histogram("doFilter", "reused");
     
     private AuthenticationManager authenticationManager;
+    private long contextTimeToLive = 0;
 
     public void destroy() {
+        metrics.unregister();
     }
     
     /**
@@ -83,14 +103,28 @@ public class RESTTokenAuthenticationFilter implements Filter, ApplicationContext
     	final HttpServletRequest request = (HttpServletRequest) servletRequest;
     	final HttpServletResponse response = (HttpServletResponse) servletResponse;
 
+      final long started = System.nanoTime();
       //create credentials
-    	AuthToken credential = getToken(request);
+    	AuthToken credential;
+    	try {
+    	  credential = getToken(request);
+    	} catch (IllegalArgumentException e) {
+    	  malformedLatency.recordSince(started);
+    	  throw e;
+    	}
     	
     	if(credential == null) {
     	  chain.doFilter(servletRequest, servletResponse);
     	  return;
     	}
 
+    	if (isAuthenticatedInContext(credential)) {
+    	  log.debug("request has an AuthToken already authenticated in its SecurityContext");
+    	  reusedLatency.recordSince(started);
+    	  chain.doFilter(request, response);
+    	  return;
+    	}
+
     	log.debug("request has an AuthToken - attempting to authenticate");
     	
     	//create Authentication object
@@ -109,6 +143,7 @@ public class RESTTokenAuthenticationFilter implements Filter, ApplicationContext
         }
 
         SecurityContextHolder.getContext().setAuthentication(null);
+        rejectedLatency.recordSince(started);
 
         // Send an error message in the form of OperationResult...
         response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
@@ -119,14 +154,44 @@ public class RESTTokenAuthenticationFilter implements Filter, ApplicationContext
       }
 
       if (log.isDebugEnabled()) {
-        log.debug("User " + authToken.getName() + " authenticated: " + authResult);
+        log.debug("User " + authResult.getName() + " authenticated: " + authResult);
       }
 
       SecurityContextHolder.getContext().setAuthentication(authResult);
+      authenticatedLatency.recordSince(started);
 
       chain.doFilter(request, response);
     }
 
+    /**
+     * Reports whether the current SecurityContext holds a still current authentication of
+     * the identical token.
+     */
+    protected boolean isAuthenticatedInContext(final AuthToken credential) {
+      final long contextTimeToLive = this.contextTimeToLive;
+      if (contextTimeToLive <= 0) {
+        return false;
+      }
+      final Authentication current = SecurityContextHolder.getContext().getAuthentication();
+      if (!(current instanceof AuthenticatedToken)) {
+        return false;
+      }
+      return ((AuthenticatedToken) current).isCurrentFor(TokenDigest.of(credential),
+          contextTimeToLive, System.currentTimeMillis());
+    }
+
+    public long getContextTimeToLive() {
+        return contextTimeToLive;
+    }
+
+    /**
+     * @param contextTimeToLive the age in milliseconds beyond which an authentication found
+     *   in the SecurityContext is no longer trusted for a repeated token; 0 disables reuse
+     */
+    public void setContextTimeToLive(final long contextTimeToLive) {
+        this.contextTimeToLive = contextTimeToLive;
+    }
+
     public AuthenticationManager getAuthenticationManager() {
         return authenticationManager;
     }
@@ -0,0 +1,315 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Detects the reuse of a token's nonce within a sliding window, in fixed memory.
+ *
+ * The window is divided into a ring of time buckets. Each nonce seen is recorded in the
+ * bucket for the current time; when time moves past the oldest bucket it is replaced by an
+ * empty one, so nonces are forgotten between window - bucketWidth and window milliseconds
+ * after they were first seen. Every bucket is sized up front for its share of
+ * expectedNonces and never grows.
+ *
+ * A bucket records a 64 bit fingerprint of the user name and nonce twice: in a Bloom filter,
+ * which answers "never seen" for almost every fresh nonce without touching anything else,
+ * and in an open addressing table of fingerprints, which confirms or refutes the Bloom
+ * filter's "maybe". Both are updated with compare-and-set only. While the table has room, a
+ * nonce is reported as replayed only if its fingerprint was actually recorded, and of two
+ * threads presenting the same nonce at once exactly one wins. A bucket which receives more
+ * nonces than its table can hold stops filling the table and relies on its Bloom filter
+ * alone, which was sized for the configured false positive rate.
+ *
+ * Tokens without an expiry can be replayed after the window has passed; the window should
+ * be at least as long as the lifetime of any token accepted by the provider.
+ *
+ * A bucket is allocated in full when its time slot starts, so a guard holds up to
+ * bucketCount of them. Each takes 8 bytes per table slot, that is 16 to 32 bytes per
+ * nonce of its share, plus about 3 bytes per nonce for the Bloom filter at a false positive
+ * rate of one in a million: a whole window costs 20 to 36 bytes per expected nonce, e.g.
+ * about 7 MB for 200,000 nonces in 12 buckets. Size expectedNonces from the peak rate at
+ * which tokens are presented times the window, not from the number of users.
+ */
+public class ReplayGuard {
+
+  private final long bucketWidth;
+  private final int bucketCount;
+  private final int bloomBits;
+  private final int bloomHashes;
+  private final int tableSlots;
+  private final int tableCapacity;
+
+  private final AtomicReferenceArray<Bucket> buckets;
+  private final AtomicLong replays = new AtomicLong();
+
+  /**
+   * @param window milliseconds for which a nonce is remembered
+   * @param bucketCount number of time buckets the window is divided into, at least 2
+   * @param expectedNonces number of nonces expected within one window
+   * @param falsePositiveRate tolerated probability, once a bucket's table is full, that a
+   *        fresh nonce is mistaken for a replay
+   */
+  public ReplayGuard (final long window, final int bucketCount, final long expectedNonces,
+      final double falsePositiveRate) {
+    if (bucketCount < 2) {
+      throw new IllegalArgumentException ("bucketCount < 2");
+    }
+    if (window < bucketCount) {
+      throw new IllegalArgumentException ("window < bucketCount");
+    }
+    if (expectedNonces <= 0) {
+      throw new IllegalArgumentException ("expectedNonces <= 0");
+    }
+    if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+      throw new IllegalArgumentException ("falsePositiveRate must be > 0 and < 1");
+    }
+
+    this.bucketWidth = window / bucketCount;
+    this.bucketCount = bucketCount;
+
+    final long perBucket = Math.max(1, (expectedNonces + bucketCount - 1) / bucketCount);
+
+    // a lookup consults every bucket, so each gets an equal share of the error budget
+    final double perBucketRate = falsePositiveRate / bucketCount;
+    final double ln2 = Math.log(2);
+    final long bits = (long) Math.ceil(-perBucket * Math.log(perBucketRate) / (ln2 * ln2));
+    if (bits > Integer.MAX_VALUE - 63) {
+      throw new IllegalArgumentException ("expectedNonces too large for falsePositiveRate");
+    }
+    this.bloomBits = (int) ((bits + 63) & ~63L);
+    this.bloomHashes = Math.max(1, (int) Math.round((double) bloomBits / perBucket * ln2));
+
+    // room for half as many again as expected before the bucket degrades to Bloom only
+    this.tableSlots = nextPowerOfTwo(perBucket * 2);
+    this.tableCapacity = tableSlots / 4 * 3;
+
+    this.buckets = new AtomicReferenceArray<Bucket>(bucketCount);
+  }
+
+  private static int nextPowerOfTwo (final long n) {
+    if (n > (1 << 30)) {
+      throw new IllegalArgumentException ("expectedNonces too large");
+    }
+    int power = 1;
+    while (power < n) {
+      power <<= 1;
+    }
+    return power;
+  }
+
+  /**
+   * Records the nonce of a token for the given user and reports whether it was new.
+   *
+   * @param name
+   * @param nonce
+   * @return true the first time a name and nonce are presented within the window, false
+   *         if they have been seen before
+   */
+  public boolean firstUse (final String name, final String nonce) {
+    final long fingerprint = fingerprint(name, nonce);
+    final long epoch = now() / bucketWidth;
+
+    final Bucket current = bucketFor(epoch);
+    for (int i = 0; i < bucketCount; i++) {
+      final Bucket bucket = buckets.get(i);
+      if (bucket != null && bucket != current && bucket.epoch > epoch - bucketCount
+          && bucket.contains(fingerprint)) {
+        replays.incrementAndGet();
+        return false;
+      }
+    }
+    if (!current.add(fingerprint)) {
+      replays.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the bucket for epoch, replacing the one in its slot if that has gone stale.
+   */
+  private Bucket bucketFor (final long epoch) {
+    final int slot = (int) (epoch % bucketCount);
+    while (true) {
+      final Bucket bucket = buckets.get(slot);
+      if (bucket != null && bucket.epoch >= epoch) {
+        return bucket;
+      }
+      final Bucket fresh = new Bucket(epoch);
+      if (buckets.compareAndSet(slot, bucket, fresh)) {
+        return fresh;
+      }
+    }
+  }
+
+  /**
+   * A 64 bit hash of name;nonce, never 0 since 0 marks an empty table slot.
+   */
+  static long fingerprint (final String name, final String nonce) {
+    long h = 0x9E3779B97F4A7C15L;
+    h = mix(h, name);
+    h = (h ^ ';') * 0x100000001B3L;
+    h = mix(h, nonce);
+    h = finish(h);
+    return (h == 0) ? 1 : h;
+  }
+
+  private static long mix (long h, final String s) {
+    final int length = s.length();
+    for (int i = 0; i < length; i++) {
+      h = (h ^ s.charAt(i)) * 0x100000001B3L;
+    }
+    return h ^ length;
+  }
+
+  private static long finish (long h) {
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * @return the number of nonces reported as replayed
+   */
+  public long getReplayCount() {
+    return replays.get();
+  }
+
+  /**
+   * @return the memory held by the buckets when all of them are in use, in bytes
+   */
+  public long getFootprint() {
+    return (long) bucketCount * (bloomBits / 8 + tableSlots * 8L);
+  }
+
+  public long getBucketWidth() {
+    return bucketWidth;
+  }
+
+  public int getBucketCount() {
+    return bucketCount;
+  }
+
+  /**
+   * The nonces first seen during one bucketWidth.
+   */
+  private final class Bucket {
+    final long epoch;
+    private final AtomicLongArray bloom = new AtomicLongArray(bloomBits / 64);
+    private final AtomicLongArray table = new AtomicLongArray(tableSlots);
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile boolean overflowed = false;
+
+    Bucket (final long epoch) {
+      this.epoch = epoch;
+    }
+
+    boolean contains (final long fingerprint) {
+      if (!mightContain(fingerprint)) {
+        return false;
+      }
+      return overflowed || tableContains(fingerprint);
+    }
+
+    /**
+     * @return false if the fingerprint was already recorded
+     */
+    boolean add (final long fingerprint) {
+      final boolean maybeSeen = !setBloomBits(fingerprint);
+      if (!overflowed) {
+        if (size.incrementAndGet() <= tableCapacity) {
+          return tableAdd(fingerprint);
+        }
+        overflowed = true;
+      }
+      return !maybeSeen;
+    }
+
+    private boolean mightContain (final long fingerprint) {
+      final int h1 = (int) fingerprint;
+      final int h2 = (int) (fingerprint >>> 32);
+      for (int i = 1; i <= bloomHashes; i++) {
+        final int bit = bitIndex(h1 + i * h2);
+        if ((bloom.get(bit >>> 6) & (1L << bit)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @return true if any bit was newly set, i.e. the fingerprint was certainly not present
+     */
+    private boolean setBloomBits (final long fingerprint) {
+      final int h1 = (int) fingerprint;
+      final int h2 = (int) (fingerprint >>> 32);
+      boolean changed = false;
+      for (int i = 1; i <= bloomHashes; i++) {
+        final int bit = bitIndex(h1 + i * h2);
+        final int word = bit >>> 6;
+        final long mask = 1L << bit;
+        long current;
+        while (((current = bloom.get(word)) & mask) == 0) {
+          if (bloom.compareAndSet(word, current, current | mask)) {
+            changed = true;
+            break;
+          }
+        }
+      }
+      return changed;
+    }
+
+    private int bitIndex (final int combined) {
+      return (combined & Integer.MAX_VALUE) % bloomBits;
+    }
+
+    private boolean tableContains (final long fingerprint) {
+      final int mask = tableSlots - 1;
+      for (int slot = (int) fingerprint & mask, probes = 0; probes < tableSlots; slot = (slot + 1) & mask, probes++) {
+        final long present = table.get(slot);
+        if (present == fingerprint) {
+          return true;
+        }
+        if (present == 0) {
+          return false;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Linear probing insert. Slots are never cleared, so a thread which loses a race for a
+     * slot to the same fingerprint sees it on the re-read.
+     *
+     * @return false if the fingerprint was already present
+     */
+    private boolean tableAdd (final long fingerprint) {
+      final int mask = tableSlots - 1;
+      for (int slot = (int) fingerprint & mask, probes = 0; probes < tableSlots; slot = (slot + 1) & mask, probes++) {
+        long present = table.get(slot);
+        if (present == 0) {
+          if (table.compareAndSet(slot, 0, fingerprint)) {
+            return true;
+          }
+          present = table.get(slot);
+        }
+        if (present == fingerprint) {
+          return false;
+        }
+      }
+      // unreachable while size is kept below the number of slots
+      overflowed = true;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,21 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import org.springframework.security.GrantedAuthority;
+
+/**
+ * An ExternalUserProvider which can determine whether a user exists and resolve the
+ * user's roles with a single lookup, e.g. one query joining users to their roles. The
+ * AuthTokenAuthenticationProvider then asks it once instead of calling userExists and
+ * getAuthoritiesForUser in turn.
+ */
+public interface ResolvingUserProvider extends ExternalUserProvider {
+
+  /**
+   * Resolves the roles filled by the given user, if the external service recognizes it.
+   *
+   * @param user
+   * @return the user's authorities, empty if the user fills no roles; null if the user
+   *   does not exist
+   */
+  public GrantedAuthority[] resolveUser(String user) throws Exception;
+}
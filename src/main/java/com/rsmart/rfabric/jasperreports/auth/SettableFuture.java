@@ -0,0 +1,55 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A Future which is completed explicitly, by whichever thread receives the result, rather
+ * than by running a task. Used to hand the outcome of a callback, such as a JAX-WS
+ * AsyncHandler, to a caller waiting on a Future.
+ *
+ * @param <V> result type
+ */
+public final class SettableFuture<V> extends FutureTask<V> {
+
+  private static final Callable<Object> NEVER_RUN = new Callable<Object>() {
+    public Object call() {
+      throw new IllegalStateException("SettableFuture is completed by set(), not run()");
+    }
+  };
+
+  @SuppressWarnings("unchecked")
+  public SettableFuture() {
+    super((Callable<V>) NEVER_RUN);
+  }
+
+  /**
+   * Creates a future which is already completed with value.
+   */
+  public static <V> SettableFuture<V> of (final V value) {
+    final SettableFuture<V> future = new SettableFuture<V>();
+    future.set(value);
+    return future;
+  }
+
+  /**
+   * Completes the future with value, unless it has already completed or been cancelled.
+   */
+  @Override
+  public void set (final V value) {
+    super.set(value);
+  }
+
+  /**
+   * Completes the future with failure, unless it has already completed or been cancelled.
+   */
+  @Override
+  public void setException (final Throwable failure) {
+    super.setException(failure);
+  }
+
+  @Override
+  public void run() {
+    throw new UnsupportedOperationException("SettableFuture is completed by set(), not run()");
+  }
+}
@@ -130,7 +130,7 @@ public class Signature {
 			mac.init(signingKey);
 	
 			// Compute the hmac on input data bytes
-			final byte[] rawHmac = mac.doFinal(data.getBytes());
+			final byte[] rawHmac = mac.doFinal(data.getBytes("UTF-8"));
 	
 			// Convert raw bytes to Hex
       byte[] hexBytes = new Hex().encode(rawHmac);
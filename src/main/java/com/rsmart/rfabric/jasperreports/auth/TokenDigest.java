@@ -0,0 +1,77 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * A SHA-256 digest of a complete token string. Used as the identity of a token wherever
+ * a token has to be remembered (caches, security contexts) so that the token itself, a
+ * bearer credential, is never retained as a key.
+ * Note: Class is immutable and thread safe.
+ */
+public final class TokenDigest implements Serializable {
+
+  private static final long serialVersionUID = 4315020935764582193L;
+
+  private static final String ALGORITHM = "SHA-256";
+
+  private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance(ALGORITHM);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  };
+
+  private final byte[] digest;
+  private final int hashCode;
+
+  private TokenDigest (final byte[] digest) {
+    this.digest = digest;
+    this.hashCode = Arrays.hashCode(digest);
+  }
+
+  public static TokenDigest of (final AuthToken token) {
+    return of(token.toString());
+  }
+
+  public static TokenDigest of (final String token) {
+    if (token == null) {
+      throw new IllegalArgumentException ("token == null");
+    }
+    try {
+      return new TokenDigest(DIGESTS.get().digest(token.getBytes("UTF-8")));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public boolean equals (final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof TokenDigest)) {
+      return false;
+    }
+    return MessageDigest.isEqual(digest, ((TokenDigest) o).digest);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public String toString() {
+    return Hex.encodeHexString(digest);
+  }
+}
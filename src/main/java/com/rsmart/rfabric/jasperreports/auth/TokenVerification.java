@@ -0,0 +1,56 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import org.springframework.security.GrantedAuthority;
+
+import com.rsmart.rfabric.jasperreports.auth.AuthTokenAuthenticationProvider.Outcome;
+
+/**
+ * The result of verifying one token of a batch with
+ * {@link AuthTokenAuthenticationProvider#verifyAll(java.util.List)}: the outcome and, for a
+ * valid token, the user and authorities it was verified for.
+ * Note: Class is immutable and thread safe.
+ */
+public final class TokenVerification {
+
+  private final Outcome outcome;
+  private final VerifiedPrincipal principal;
+
+  private TokenVerification (final Outcome outcome, final VerifiedPrincipal principal) {
+    this.outcome = outcome;
+    this.principal = principal;
+  }
+
+  static TokenVerification valid (final VerifiedPrincipal principal) {
+    return new TokenVerification(Outcome.VALID, principal);
+  }
+
+  static TokenVerification rejected (final Outcome outcome) {
+    return new TokenVerification(outcome, null);
+  }
+
+  public boolean isValid() {
+    return outcome == Outcome.VALID;
+  }
+
+  public Outcome getOutcome() {
+    return outcome;
+  }
+
+  /**
+   * @return the verified user name; null unless the token is valid
+   */
+  public String getName() {
+    return (principal == null) ? null : principal.getName();
+  }
+
+  /**
+   * @return a copy of the user's authorities; null unless the token is valid
+   */
+  public GrantedAuthority[] getAuthorities() {
+    return (principal == null) ? null : principal.getAuthorities();
+  }
+
+  public String toString() {
+    return (principal == null) ? outcome.getMetricName() : outcome.getMetricName() + "[" + principal + "]";
+  }
+}
@@ -0,0 +1,148 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.GrantedAuthority;
+
+import com.rsmart.rfabric.metrics.LatencyHistogram;
+import com.rsmart.rfabric.metrics.Metrics;
+
+/**
+ * The REST endpoint of {@link AuthTokenAuthenticationProvider#verifyAll(List)}. It is
+ * placed last in the filter chain of its own URL, after the filters which authenticate and
+ * authorize the caller, and answers every request itself. A POST carries the tokens in
+ * its body, one per line; the response is a JSON object whose results array holds, in the
+ * same order, each token's outcome and, for valid tokens, the user name and authorities:
+ * <pre>
+ *   {"results":[{"outcome":"valid","name":"jdoe","authorities":["ROLE_USER"]},{"outcome":"stale"}]}
+ * </pre>
+ * Tokens are never echoed back. Batches of more than maximumBatchSize tokens are refused
+ * with 413. The time taken by each batch is recorded as verifyAll/ok; see {@link Metrics}.
+ */
+public class TokenVerificationFilter implements Filter {
+  private static final Log LOG = LogFactory.getLog(TokenVerificationFilter.class);
+
+  private static final String COMPONENT = "TokenVerificationFilter";
+  private final Metrics.Registrations metrics = Metrics.registrations(COMPONENT);
+  private final LatencyHistogram batchLatency = metrics.histogram("verifyAll", "ok");
+
+  private AuthTokenAuthenticationProvider authenticationProvider;
+  private int maximumBatchSize = 10000;
+
+  public void doFilter (final ServletRequest servletRequest, final ServletResponse servletResponse,
+      final FilterChain chain) throws IOException, ServletException {
+    final HttpServletRequest request = (HttpServletRequest) servletRequest;
+    final HttpServletResponse response = (HttpServletResponse) servletResponse;
+
+    if (!"POST".equals(request.getMethod())) {
+      response.setHeader("Allow", "POST");
+      response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+      return;
+    }
+
+    final List<String> tokens = new ArrayList<String>();
+    final BufferedReader reader = request.getReader();
+    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+      line = line.trim();
+      if (line.length() > 0) {
+        if (tokens.size() == maximumBatchSize) {
+          response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+              "more than " + maximumBatchSize + " tokens");
+          return;
+        }
+        tokens.add(line);
+      }
+    }
+
+    final long started = System.nanoTime();
+    final List<TokenVerification> results = authenticationProvider.verifyAll(tokens);
+    batchLatency.recordSince(started);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("verified a batch of " + tokens.size() + " tokens");
+    }
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    final PrintWriter writer = response.getWriter();
+    writeResults(writer, results);
+    writer.flush();
+  }
+
+  static void writeResults (final Appendable out, final List<TokenVerification> results) throws IOException {
+    out.append("{\"results\":[");
+    for (int i = 0; i < results.size(); i++) {
+      final TokenVerification result = results.get(i);
+      out.append(i == 0 ? "{" : ",{");
+      out.append("\"outcome\":");
+      appendString(out, result.getOutcome().getMetricName());
+      if (result.isValid()) {
+        out.append(",\"name\":");
+        appendString(out, result.getName());
+        out.append(",\"authorities\":[");
+        final GrantedAuthority[] authorities = result.getAuthorities();
+        for (int j = 0; authorities != null && j < authorities.length; j++) {
+          if (j > 0) {
+            out.append(',');
+          }
+          appendString(out, authorities[j].getAuthority());
+        }
+        out.append(']');
+      }
+      out.append('}');
+    }
+    out.append("]}");
+  }
+
+  private static void appendString (final Appendable out, final String value) throws IOException {
+    out.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        out.append('\\').append(c);
+      } else if (c < 0x20) {
+        out.append(String.format("\\u%04x", (int) c));
+      } else {
+        out.append(c);
+      }
+    }
+    out.append('"');
+  }
+
+  public AuthTokenAuthenticationProvider getAuthenticationProvider() {
+    return authenticationProvider;
+  }
+
+  public void setAuthenticationProvider (final AuthTokenAuthenticationProvider authenticationProvider) {
+    this.authenticationProvider = authenticationProvider;
+  }
+
+  public int getMaximumBatchSize() {
+    return maximumBatchSize;
+  }
+
+  public void setMaximumBatchSize (final int maximumBatchSize) {
+    this.maximumBatchSize = maximumBatchSize;
+  }
+
+  public void init (final FilterConfig filterConfig) throws ServletException {
+  }
+
+  public void destroy() {
+    metrics.unregister();
+  }
+}
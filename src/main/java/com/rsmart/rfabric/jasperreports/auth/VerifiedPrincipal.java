@@ -0,0 +1,45 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import org.springframework.security.GrantedAuthority;
+
+/**
+ * The outcome of successfully verifying an AuthToken: the trusted user name and the
+ * authorities the ExternalUserProvider resolved for it.
+ * Note: Class is immutable and thread safe; it holds the canonical authorities array and
+ * returns copies of it.
+ */
+public final class VerifiedPrincipal {
+
+  private final String name;
+  private final GrantedAuthority[] authorities;
+
+  public VerifiedPrincipal (final String name, final GrantedAuthority[] authorities) {
+    if (name == null) {
+      throw new IllegalArgumentException ("name == null");
+    }
+    this.name = name;
+    this.authorities = authorities;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return a copy of the user's authorities
+   */
+  public GrantedAuthority[] getAuthorities() {
+    return Authorities.copy(authorities);
+  }
+
+  /**
+   * @return the shared authorities array itself, which must not be modified
+   */
+  GrantedAuthority[] authorities() {
+    return authorities;
+  }
+
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,225 @@
+package com.rsmart.rfabric.jasperreports.auth.jdbc;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.GrantedAuthority;
+
+import com.rsmart.rfabric.jasperreports.auth.Authorities;
+import com.rsmart.rfabric.jasperreports.auth.ResolvingUserProvider;
+
+/**
+ * An ExternalUserProvider which answers from a relational user and role store. A user is
+ * resolved with one query which takes the user name as its only parameter and returns a
+ * row per role the user fills, with the role name in its first column, a single row with
+ * a NULL role for a user without roles, and no rows for an unknown user. The default
+ * query joins a users table to a user_roles table:
+ * <pre>
+ *   SELECT r.role_name FROM users u LEFT JOIN user_roles r ON r.user_name = u.user_name WHERE u.user_name = ?
+ * </pre>
+ *
+ * The query runs on a {@link StatementPool} of at most maximumConnections connections,
+ * each of which prepares it once. A statement which fails on a connection that has been
+ * idle is retried once on a new connection, so connections dropped by the database do
+ * not fail lookups. As a {@link ResolvingUserProvider} it answers the
+ * AuthTokenAuthenticationProvider's userExists and getAuthoritiesForUser with a single
+ * round trip; userExists and getAuthoritiesForUser themselves each run the query.
+ *
+ * Typical Spring configuration:
+ * <pre>
+ *   &lt;bean id="jdbcUserProvider" class="...JdbcUserProvider" destroy-method="destroy"&gt;
+ *     &lt;property name="dataSource" ref="userDataSource"/&gt;
+ *     &lt;property name="maximumConnections" value="20"/&gt;
+ *   &lt;/bean&gt;
+ * </pre>
+ * Note: Class is thread safe once configured.
+ */
+public class JdbcUserProvider implements ResolvingUserProvider {
+  private static final Log LOG = LogFactory.getLog(JdbcUserProvider.class);
+
+  public static final String DEFAULT_QUERY = "SELECT r.role_name FROM users u"
+      + " LEFT JOIN user_roles r ON r.user_name = u.user_name WHERE u.user_name = ?";
+
+  private DataSource dataSource = null;
+  private String query = DEFAULT_QUERY;
+  private int maximumConnections = 10;
+  private long borrowTimeout = 5000;
+  private int queryTimeout = 0;
+
+  private volatile StatementPool pool = null;
+
+  public boolean userExists (final String user) throws SQLException {
+    return (user != null && resolveUser(user) != null);
+  }
+
+  public GrantedAuthority[] getAuthoritiesForUser (final String user) {
+    if (user == null) {
+      return null;
+    }
+    try {
+      return resolveUser(user);
+    } catch (SQLException e) {
+      throw new IllegalStateException ("Unable to resolve authorities for " + user, e);
+    }
+  }
+
+  /**
+   * Runs the query for a user.
+   *
+   * @return a copy of the canonical array of the user's roles, empty if the user fills none;
+   *   null if the user does not exist
+   */
+  public GrantedAuthority[] resolveUser (final String user) throws SQLException {
+    final StatementPool pool = pool();
+    StatementPool.Lease lease = pool.borrow();
+    try {
+      try {
+        return query(lease.getStatement(), user);
+      } catch (SQLException e) {
+        if (!lease.isReused()) {
+          throw e;
+        }
+        LOG.warn("Lookup failed on an idle connection, retrying on a new one: " + e.getMessage());
+        lease.discard();
+        pool.release(lease);
+        lease = null;
+        pool.clear();
+        lease = pool.borrow();
+        return query(lease.getStatement(), user);
+      }
+    } catch (SQLException e) {
+      if (lease != null) {
+        lease.discard();
+      }
+      throw e;
+    } finally {
+      pool.release(lease);
+    }
+  }
+
+  private GrantedAuthority[] query (final PreparedStatement statement, final String user) throws SQLException {
+    statement.setString(1, user);
+    final ResultSet rows = statement.executeQuery();
+    try {
+      if (!rows.next()) {
+        return null;
+      }
+      final List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>(4);
+      do {
+        final String role = rows.getString(1);
+        if (role != null) {
+          authorities.add(Authorities.authority(role));
+        }
+      } while (rows.next());
+      return Authorities.copy(Authorities.canonical(authorities.toArray(new GrantedAuthority[authorities.size()])));
+    } finally {
+      rows.close();
+      statement.clearParameters();
+    }
+  }
+
+  private StatementPool pool() throws SQLException {
+    StatementPool pool = this.pool;
+    if (pool == null) {
+      synchronized (this) {
+        pool = this.pool;
+        if (pool == null) {
+          if (dataSource == null) {
+            throw new SQLException ("dataSource is not set");
+          }
+          pool = new StatementPool(dataSource, query, maximumConnections, borrowTimeout) {
+            @Override
+            protected void prepared (final PreparedStatement statement) throws SQLException {
+              if (queryTimeout > 0) {
+                statement.setQueryTimeout(queryTimeout);
+              }
+            }
+          };
+          this.pool = pool;
+        }
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * Closes every pooled connection.
+   */
+  public synchronized void destroy() {
+    if (pool != null) {
+      pool.close();
+      pool = null;
+    }
+  }
+
+  public synchronized void setDataSource (final DataSource dataSource) {
+    this.dataSource = dataSource;
+    destroy();
+  }
+
+  public DataSource getDataSource() {
+    return dataSource;
+  }
+
+  /**
+   * Sets the query resolving a user; see above for what it must return.
+   */
+  public synchronized void setQuery (final String query) {
+    this.query = query;
+    destroy();
+  }
+
+  public String getQuery() {
+    return query;
+  }
+
+  /**
+   * Sets the number of connections which may be open at once.
+   */
+  public synchronized void setMaximumConnections (final int maximumConnections) {
+    this.maximumConnections = maximumConnections;
+    destroy();
+  }
+
+  public int getMaximumConnections() {
+    return maximumConnections;
+  }
+
+  /**
+   * Sets how long, in milliseconds, a lookup waits for a connection when all are in use.
+   */
+  public synchronized void setBorrowTimeout (final long borrowTimeout) {
+    this.borrowTimeout = borrowTimeout;
+    destroy();
+  }
+
+  public long getBorrowTimeout() {
+    return borrowTimeout;
+  }
+
+  /**
+   * Sets how long, in seconds, the query may run; 0 for no limit.
+   */
+  public synchronized void setQueryTimeout (final int queryTimeout) {
+    this.queryTimeout = queryTimeout;
+    destroy();
+  }
+
+  public int getQueryTimeout() {
+    return queryTimeout;
+  }
+
+  /**
+   * @return the pool of connections, or null before the first lookup
+   */
+  public StatementPool getStatementPool() {
+    return pool;
+  }
+}
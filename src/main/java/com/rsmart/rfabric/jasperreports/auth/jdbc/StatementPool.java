@@ -0,0 +1,228 @@
+package com.rsmart.rfabric.jasperreports.auth.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A bounded, thread safe pool of database connections, each holding one statement
+ * prepared from a fixed query. A connection is opened and its statement prepared the
+ * first time it is needed and both are kept for reuse, so a lookup costs one round trip
+ * to execute the statement. At most maximumSize connections are open at once; a borrow
+ * waits up to borrowTimeout milliseconds for one to be released.
+ *
+ * <pre>
+ *   final StatementPool.Lease lease = pool.borrow();
+ *   try {
+ *     ... lease.getStatement() ...
+ *   } catch (SQLException e) {
+ *     lease.discard();
+ *     throw e;
+ *   } finally {
+ *     pool.release(lease);
+ *   }
+ * </pre>
+ */
+public class StatementPool {
+  private static final Log LOG = LogFactory.getLog(StatementPool.class);
+
+  private final DataSource dataSource;
+  private final String query;
+  private final int maximumSize;
+  private final long borrowTimeout;
+
+  private final BlockingQueue<Lease> idle = new LinkedBlockingQueue<Lease>();
+  private final Semaphore permits;
+  private final AtomicLong opened = new AtomicLong();
+  private volatile boolean closed = false;
+
+  /**
+   * A borrowed connection and its prepared statement.
+   */
+  public static final class Lease {
+    private final Connection connection;
+    private final PreparedStatement statement;
+    private final boolean reused;
+    private boolean broken = false;
+
+    private Lease (final Connection connection, final PreparedStatement statement, final boolean reused) {
+      this.connection = connection;
+      this.statement = statement;
+      this.reused = reused;
+    }
+
+    public PreparedStatement getStatement() {
+      return statement;
+    }
+
+    /**
+     * @return true if the connection was used before; a failure may then mean it went
+     *   stale while idle
+     */
+    public boolean isReused() {
+      return reused;
+    }
+
+    /**
+     * Marks the connection as broken; it is closed instead of returned to the pool.
+     */
+    public void discard() {
+      broken = true;
+    }
+
+    private Lease reuse() {
+      return new Lease(connection, statement, true);
+    }
+
+    private void close() {
+      try {
+        statement.close();
+      } catch (SQLException e) {
+        LOG.debug("Unable to close statement", e);
+      }
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        LOG.debug("Unable to close connection", e);
+      }
+    }
+  }
+
+  /**
+   * @param maximumSize number of connections which may be open at once
+   * @param borrowTimeout milliseconds a borrow waits for a connection to be released
+   */
+  public StatementPool (final DataSource dataSource, final String query, final int maximumSize,
+      final long borrowTimeout) {
+    if (dataSource == null || query == null) {
+      throw new IllegalArgumentException ("dataSource == null || query == null");
+    }
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException ("maximumSize < 1");
+    }
+    this.dataSource = dataSource;
+    this.query = query;
+    this.maximumSize = maximumSize;
+    this.borrowTimeout = borrowTimeout;
+    this.permits = new Semaphore(maximumSize, true);
+  }
+
+  /**
+   * Takes an idle connection, or opens one if none is idle and fewer than maximumSize are
+   * open.
+   *
+   * @return a lease which must be released when the caller is done with it
+   * @throws SQLException if no connection was released in time or one cannot be opened
+   */
+  public Lease borrow() throws SQLException {
+    if (closed) {
+      throw new SQLException ("statement pool is closed");
+    }
+    try {
+      if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+        throw new SQLException ("timed out after " + borrowTimeout + "ms waiting for one of "
+            + maximumSize + " connections");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException ("interrupted waiting for a connection");
+    }
+
+    final Lease lease = idle.poll();
+    if (lease != null) {
+      return lease.reuse();
+    }
+    try {
+      return open();
+    } catch (SQLException e) {
+      permits.release();
+      throw e;
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  private Lease open() throws SQLException {
+    final Connection connection = dataSource.getConnection();
+    try {
+      final PreparedStatement statement = connection.prepareStatement(query);
+      prepared(statement);
+      opened.incrementAndGet();
+      return new Lease(connection, statement, false);
+    } catch (SQLException e) {
+      connection.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Called with each newly prepared statement, e.g. to set its query timeout.
+   */
+  protected void prepared (final PreparedStatement statement) throws SQLException {
+  }
+
+  /**
+   * Returns a lease to the pool, closing its connection if it was discarded or the pool
+   * was closed.
+   */
+  public void release (final Lease lease) {
+    if (lease == null) {
+      return;
+    }
+    if (lease.broken || closed) {
+      lease.close();
+    } else {
+      idle.offer(lease);
+    }
+    permits.release();
+    if (closed) {
+      clear();
+    }
+  }
+
+  /**
+   * Closes every idle connection.
+   */
+  public void clear() {
+    for (Lease lease = idle.poll(); lease != null; lease = idle.poll()) {
+      lease.close();
+    }
+  }
+
+  /**
+   * Closes every idle connection, and every borrowed one as it is released.
+   */
+  public void close() {
+    closed = true;
+    clear();
+  }
+
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  /**
+   * @return number of idle connections
+   */
+  public int getIdleCount() {
+    return idle.size();
+  }
+
+  /**
+   * @return number of connections opened since the pool was constructed
+   */
+  public long getOpenedCount() {
+    return opened.get();
+  }
+}
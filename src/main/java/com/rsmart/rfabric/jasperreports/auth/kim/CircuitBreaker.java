@@ -0,0 +1,385 @@
+package com.rsmart.rfabric.jasperreports.auth.kim;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rsmart.rfabric.logging.FormattedLogger;
+
+/**
+ * Stops requests to a remote service which is failing or slow. A request, which may make
+ * several calls to the service, first acquires a {@link Permit} and reports through it
+ * once whether it succeeded. The outcomes of the last windowSize requests are kept; once
+ * at least minimumCalls have been reported, the circuit opens when the fraction of them
+ * which failed reaches failureRateThreshold, or the fraction which succeeded but took
+ * longer than slowCallDuration milliseconds from acquiring their permit reaches
+ * slowCallRateThreshold.
+ *
+ * While open, acquire() refuses every request, so callers fail fast instead of waiting on
+ * the service, and requests already under way can see from their permit that it opened and
+ * skip the calls they have left. After openDuration milliseconds the circuit is half open:
+ * up to halfOpenRequests trial requests are admitted, and it closes once all of them have
+ * succeeded in time, or opens again on the first which fails or is slow.
+ *
+ * A permit only counts in the state it was acquired in: outcomes reported after the
+ * circuit has changed state since, e.g. by requests admitted before it opened, are ignored.
+ *
+ * <pre>
+ *   final CircuitBreaker.Permit permit = breaker.acquire();
+ *   if (permit == null) {
+ *       ... fail fast ...
+ *   }
+ *   try {
+ *       ... calls, stopping early if permit.isCircuitOpen() ...
+ *       permit.succeeded();
+ *   }
+ *   catch (Exception e) {
+ *       permit.failed();
+ *   }
+ * </pre>
+ *
+ * Note: Class is thread safe.
+ */
+public class CircuitBreaker {
+    private static final FormattedLogger LOG = FormattedLogger.getLogger(CircuitBreaker.class);
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final byte SUCCEEDED = 0;
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    private String name = "circuit";
+    private int windowSize = 50;
+    private int minimumCalls = 20;
+    private double failureRateThreshold = 0.5;
+    private double slowCallRateThreshold = 0.8;
+    private volatile long slowCallDuration = 2000;
+    private long openDuration = 30000;
+    private int halfOpenRequests = 3;
+
+    // guarded by this
+    private State state = State.CLOSED;
+    private long epoch = 0;
+    private byte[] outcomes = new byte[windowSize];
+    private int next = 0;
+    private int recorded = 0;
+    private int failures = 0;
+    private int slowCalls = 0;
+    private long openedAt = 0;
+    private long halfOpenedAt = 0;
+    private int trialsAllowed = 0;
+    private int trialsSucceeded = 0;
+
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final AtomicLong timesOpened = new AtomicLong();
+
+    /**
+     * Leave for one request to call the service. Its outcome is reported once; later
+     * reports are ignored.
+     */
+    public static class Permit {
+        /** A permit for requests which are not guarded by a breaker; reports are ignored */
+        public static final Permit UNGUARDED = new Permit(null, 0, false, 0);
+
+        private final CircuitBreaker breaker;
+        private final long epoch;
+        private final boolean trial;
+        private final long started;
+        private final AtomicBoolean reported = new AtomicBoolean();
+
+        Permit(final CircuitBreaker breaker, final long epoch, final boolean trial, final long started) {
+            this.breaker = breaker;
+            this.epoch = epoch;
+            this.trial = trial;
+            this.started = started;
+        }
+
+        /**
+         * Reports that the request got its answers, slowly if it took longer than
+         * slowCallDuration.
+         */
+        public void succeeded() {
+            if (breaker != null && reported.compareAndSet(false, true)) {
+                breaker.record(this, breaker.now() - started > breaker.slowCallDuration ? SLOW : SUCCEEDED);
+            }
+        }
+
+        /**
+         * Reports that one of the request's calls failed or went unanswered. A request may
+         * report this as soon as it happens, and go on.
+         */
+        public void failed() {
+            if (breaker != null && reported.compareAndSet(false, true)) {
+                breaker.record(this, FAILED);
+            }
+        }
+
+        /**
+         * @return true if the circuit has opened since the permit was acquired; the request
+         *   should not make any more calls
+         */
+        public boolean isCircuitOpen() {
+            return breaker != null && breaker.isOpen();
+        }
+    }
+
+    /**
+     * @return a permit to call the service, or null if the request should fail fast
+     */
+    public synchronized Permit acquire() {
+        if (state == State.OPEN) {
+            if (now() - openedAt < openDuration) {
+                rejectedRequests.incrementAndGet();
+                return null;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialsAllowed >= halfOpenRequests) {
+                if (now() - halfOpenedAt < openDuration) {
+                    rejectedRequests.incrementAndGet();
+                    return null;
+                }
+                // the trials never reported back; start over
+                transition(State.HALF_OPEN);
+            }
+            trialsAllowed++;
+            return new Permit(this, epoch, true, now());
+        }
+        return new Permit(this, epoch, false, now());
+    }
+
+    private synchronized boolean isOpen() {
+        return state == State.OPEN;
+    }
+
+    private synchronized void record(final Permit permit, final byte outcome) {
+        if (permit.epoch != epoch) {
+            // acquired before the circuit last changed state
+            return;
+        }
+        switch (state) {
+        case OPEN:
+            return;
+        case HALF_OPEN:
+            if (!permit.trial) {
+                return;
+            }
+            if (outcome != SUCCEEDED) {
+                transition(State.OPEN);
+            }
+            else if (++trialsSucceeded >= halfOpenRequests) {
+                transition(State.CLOSED);
+            }
+            return;
+        default:
+            break;
+        }
+
+        if (recorded == outcomes.length) {
+            forget(outcomes[next]);
+        }
+        else {
+            recorded++;
+        }
+        outcomes[next] = outcome;
+        next = (next + 1) % outcomes.length;
+        if (outcome == FAILED) {
+            failures++;
+        }
+        else if (outcome == SLOW) {
+            slowCalls++;
+        }
+
+        if (recorded >= Math.min(minimumCalls, outcomes.length)
+            && (failures >= failureRateThreshold * recorded || slowCalls >= slowCallRateThreshold * recorded)) {
+            LOG.warn("%s opened: %d of the last %d requests failed and %d were slower than %d ms",
+                     name, failures, recorded, slowCalls, slowCallDuration);
+            transition(State.OPEN);
+        }
+    }
+
+    private void forget(final byte outcome) {
+        if (outcome == FAILED) {
+            failures--;
+        }
+        else if (outcome == SLOW) {
+            slowCalls--;
+        }
+    }
+
+    private void transition(final State to) {
+        epoch++;
+        if (to == State.OPEN) {
+            openedAt = now();
+            timesOpened.incrementAndGet();
+        }
+        else if (to == State.HALF_OPEN) {
+            halfOpenedAt = now();
+        }
+        if (to != State.CLOSED) {
+            trialsAllowed = 0;
+            trialsSucceeded = 0;
+        }
+        else {
+            reset();
+        }
+        if (state != to) {
+            LOG.info("%s is now %s", name, to);
+        }
+        state = to;
+    }
+
+    private void reset() {
+        outcomes = new byte[windowSize];
+        next = 0;
+        recorded = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the state of the circuit, moving it to half open if its open duration has passed.
+     *
+     * @return the state
+     */
+    public synchronized State getState() {
+        if (state == State.OPEN && now() - openedAt >= openDuration) {
+            transition(State.HALF_OPEN);
+        }
+        return state;
+    }
+
+    /**
+     * Returns the number of requests refused while the circuit was open.
+     *
+     * @return
+     */
+    public long getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    /**
+     * Returns the number of times the circuit has opened.
+     *
+     * @return
+     */
+    public long getTimesOpened() {
+        return timesOpened.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the name the circuit is logged under
+     *
+     * @param argName Value to assign to this.name
+     */
+    public void setName(final String argName) {
+        this.name = argName;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Sets the number of most recent requests the failure and slow call rates are taken over.
+     * Closes the circuit.
+     *
+     * @param argWindowSize Value to assign to this.windowSize
+     */
+    public synchronized void setWindowSize(final int argWindowSize) {
+        if (argWindowSize < 1) {
+            throw new IllegalArgumentException("windowSize < 1");
+        }
+        this.windowSize = argWindowSize;
+        transition(State.CLOSED);
+    }
+
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    /**
+     * Sets the number of requests which must be reported before the circuit may open.
+     *
+     * @param argMinimumCalls Value to assign to this.minimumCalls
+     */
+    public synchronized void setMinimumCalls(final int argMinimumCalls) {
+        this.minimumCalls = argMinimumCalls;
+    }
+
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * Sets the fraction, between 0 and 1, of failed requests at which the circuit opens.
+     *
+     * @param argFailureRateThreshold Value to assign to this.failureRateThreshold
+     */
+    public synchronized void setFailureRateThreshold(final double argFailureRateThreshold) {
+        this.failureRateThreshold = argFailureRateThreshold;
+    }
+
+    public double getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    /**
+     * Sets the fraction, between 0 and 1, of slow requests at which the circuit opens.
+     *
+     * @param argSlowCallRateThreshold Value to assign to this.slowCallRateThreshold
+     */
+    public synchronized void setSlowCallRateThreshold(final double argSlowCallRateThreshold) {
+        this.slowCallRateThreshold = argSlowCallRateThreshold;
+    }
+
+    public long getSlowCallDuration() {
+        return slowCallDuration;
+    }
+
+    /**
+     * Sets the time, in milliseconds, beyond which a successful request counts as slow.
+     *
+     * @param argSlowCallDuration Value to assign to this.slowCallDuration
+     */
+    public void setSlowCallDuration(final long argSlowCallDuration) {
+        this.slowCallDuration = argSlowCallDuration;
+    }
+
+    public long getOpenDuration() {
+        return openDuration;
+    }
+
+    /**
+     * Sets the time, in milliseconds, the circuit stays open before trial requests are let
+     * through.
+     *
+     * @param argOpenDuration Value to assign to this.openDuration
+     */
+    public synchronized void setOpenDuration(final long argOpenDuration) {
+        this.openDuration = argOpenDuration;
+    }
+
+    public int getHalfOpenRequests() {
+        return halfOpenRequests;
+    }
+
+    /**
+     * Sets the number of trial requests admitted while half open, all of which must succeed
+     * to close the circuit.
+     *
+     * @param argHalfOpenRequests Value to assign to this.halfOpenRequests
+     */
+    public synchronized void setHalfOpenRequests(final int argHalfOpenRequests) {
+        this.halfOpenRequests = argHalfOpenRequests;
+    }
+}
@@ -1,8 +1,26 @@
 package com.rsmart.rfabric.jasperreports.auth.kim;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.xml.ws.AsyncHandler;
+import javax.xml.ws.Response;
+
+import org.kuali.rice.core.v2_0.StringMapEntryListType;
 import org.kuali.rice.kim.v2_0.*;
 
 import org.apache.cxf.endpoint.Client;
@@ -11,16 +29,129 @@ import org.apache.cxf.message.Message;
 
 import org.springframework.security.GrantedAuthority;
 
-import com.rsmart.rfabric.jasperreports.auth.ExternalUserProvider;
+import com.rsmart.rfabric.cache.ExpiringCache;
+import com.rsmart.rfabric.jasperreports.auth.AsyncExternalUserProvider;
+import com.rsmart.rfabric.jasperreports.auth.Authorities;
+import com.rsmart.rfabric.jasperreports.auth.SettableFuture;
+import com.rsmart.rfabric.logging.FormattedLogger;
+import com.rsmart.rfabric.metrics.LatencyHistogram;
+import com.rsmart.rfabric.metrics.Metrics;
+
+/**
+ * Looks users up in Kuali Identity Management. A user's authorities are the entries of
+ * availableAuthorities for which KIM grants the user a permission of the same name in
+ * the permission namespace.
+ *
+ * If a permissionTemplateName is configured, all of a user's permissions based on that
+ * template are fetched with one getAuthorizedPermissionsByTemplate call and matched
+ * against availableAuthorities locally. Otherwise, or if that call fails, each authority
+ * is checked with its own hasPermission call.
+ *
+ * With a permissionCheckParallelism greater than 1 those hasPermission calls are issued
+ * concurrently on a shared pool of that many threads, so a login waits for roughly the
+ * slowest check rather than the sum of all of them. Checks which have not completed
+ * within permissionCheckDeadline milliseconds of the start of the login are cancelled and
+ * go unanswered; they are counted by getTimedOutPermissionChecks(). Call destroy()
+ * to stop the pool.
+ *
+ * Lookups borrow port proxies from a {@link PortPool} per service rather than creating a
+ * new CXF proxy for every call. Ports use the address published in the service's WSDL
+ * unless identityServiceAddress, permissionServiceAddress or roleServiceAddress is set.
+ *
+ * The asynchronous lookups use the JAX-WS async variants of getPrincipalByPrincipalName,
+ * getAuthorizedPermissionsByTemplate and hasPermission, so no thread of ours waits on KIM
+ * while they are in flight. Asynchronous hasPermission calls are all issued at once and
+ * are not subject to permissionCheckDeadline; the caller bounds its wait on the Future.
+ *
+ * Every KIM call is timed, by outcome: getPrincipalByPrincipalName as stage userExists
+ * (found, unknown or error), hasPermission (granted, denied or error) and
+ * getAuthorizedPermissionsByTemplate (ok or error); see {@link Metrics}.
+ *
+ * With a {@link CircuitBreaker}, each lookup reports one outcome to the breaker: failed if
+ * any of its KIM calls failed or went unanswered, and otherwise succeeded, slowly if the
+ * whole lookup took longer than the breaker's slowCallDuration. While the circuit is open
+ * lookups do not call KIM at all, and a lookup under way when it opens makes no further
+ * calls: it does not fall back from a failed template call, and its remaining permission
+ * checks go unanswered. With a
+ * staleTimeToLive greater than 0, the principals KIM recognized and the authorities it
+ * resolved completely are kept for that many milliseconds after KIM last answered for
+ * them; while the circuit is open, or when a lookup fails or some permission checks are not
+ * answered, those last known answers are served instead. A lookup which has neither fails:
+ * userExists and getAuthoritiesForUser throw, rather than answer with the authorities which
+ * happened to be answered, which a caching decorator would then keep as if they were the
+ * user's. Stale answers served are counted by getStaleAnswers().
+ */
+public class KimUserProvider implements AsyncExternalUserProvider {
+    private static final FormattedLogger LOG = FormattedLogger.getLogger(KimUserProvider.class);
+
+    public static final String DEFAULT_PERMISSION_NAMESPACE = "KR-SYS";
 
-import static com.rsmart.rfabric.logging.FormattedLogger.*;
+    private static final int MAXIMUM_IDLE_PORTS = 32;
+
+    private static final String COMPONENT = "KimUserProvider";
+    private final Metrics.Registrations metrics = Metrics.registrations(COMPONENT);
+    private final LatencyHistogram userFoundLatency = metrics.histogram("userExists", "found");
+    private final LatencyHistogram userUnknownLatency = metrics.histogram("userExists", "unknown");
+    private final LatencyHistogram userErrorLatency = metrics.histogram("userExists", "error");
+    private final LatencyHistogram permissionGrantedLatency = metrics.histogram("hasPermission", "granted");
+    private final LatencyHistogram permissionDeniedLatency = metrics.histogram("hasPermission", "denied");
+    private final LatencyHistogram permissionErrorLatency = metrics.histogram("hasPermission", "error");
+    private final LatencyHistogram templateOkLatency =
+        metrics.histogram("getAuthorizedPermissionsByTemplate", "ok");
+    private final LatencyHistogram templateErrorLatency =
+        metrics.histogram("getAuthorizedPermissionsByTemplate", "error");
 
-public class KimUserProvider implements ExternalUserProvider {
     protected IdentityService_Service identityService;
     protected RoleService_Service roleService;
     protected PermissionService_Service permissionService;
     protected List<String> availableAuthorities;
     protected String endpointUrl;
+    protected String permissionNamespace = DEFAULT_PERMISSION_NAMESPACE;
+    protected String permissionTemplateName;
+    protected int permissionCheckParallelism = 1;
+    protected long permissionCheckDeadline = 5000;
+
+    protected String identityServiceAddress;
+    protected String permissionServiceAddress;
+    protected String roleServiceAddress;
+
+    protected CircuitBreaker circuitBreaker;
+    protected long staleTimeToLive = 0;
+    protected int staleMaximumSize = 10000;
+
+    private volatile ExecutorService permissionCheckExecutor;
+    private volatile LastKnown lastKnown;
+
+    private final PortPool<IdentityService> identityPorts = new PortPool<IdentityService>(MAXIMUM_IDLE_PORTS) {
+            protected IdentityService create() {
+                return getKimIdentityService();
+            }
+        };
+    private final PortPool<PermissionService> permissionPorts = new PortPool<PermissionService>(MAXIMUM_IDLE_PORTS) {
+            protected PermissionService create() {
+                return getKimPermissionService();
+            }
+        };
+    private final PortPool<RoleService> rolePorts = new PortPool<RoleService>(MAXIMUM_IDLE_PORTS) {
+            protected RoleService create() {
+                return getKimRoleService();
+            }
+        };
+    private final AtomicLong timedOutPermissionChecks = new AtomicLong();
+    private final AtomicLong staleAnswers = new AtomicLong();
+
+    /**
+     * The principals KIM last recognized and the authorities it last resolved for them.
+     */
+    private static final class LastKnown {
+        final ExpiringCache<String, Boolean> users;
+        final ExpiringCache<String, GrantedAuthority[]> authorities;
+
+        LastKnown(final long timeToLive, final int maximumSize) {
+            users = new ExpiringCache<String, Boolean>(timeToLive, maximumSize);
+            authorities = new ExpiringCache<String, GrantedAuthority[]>(timeToLive, maximumSize);
+        }
+    }
 
     /**
      * Gets the value of endpointUrl
@@ -59,40 +190,819 @@ public class KimUserProvider implements ExternalUserProvider {
         this.availableAuthorities = argAvailableAuthorities;
     }
 
+    /**
+     * Gets the value of permissionNamespace
+     *
+     * @return the value of permissionNamespace
+     */
+    public String getPermissionNamespace() {
+        return this.permissionNamespace;
+    }
+
+    /**
+     * Sets the namespace of the permissions checked for availableAuthorities
+     *
+     * @param argPermissionNamespace Value to assign to this.permissionNamespace
+     */
+    public void setPermissionNamespace(final String argPermissionNamespace) {
+        this.permissionNamespace = argPermissionNamespace;
+    }
+
+    /**
+     * Gets the value of permissionTemplateName
+     *
+     * @return the value of permissionTemplateName
+     */
+    public String getPermissionTemplateName() {
+        return this.permissionTemplateName;
+    }
+
+    /**
+     * Sets the name of the KIM permission template shared by the permissions named in
+     * availableAuthorities. Enables bulk authority resolution; null disables it.
+     *
+     * @param argPermissionTemplateName Value to assign to this.permissionTemplateName
+     */
+    public void setPermissionTemplateName(final String argPermissionTemplateName) {
+        this.permissionTemplateName = argPermissionTemplateName;
+    }
+
+    /**
+     * Gets the value of permissionCheckParallelism
+     *
+     * @return the value of permissionCheckParallelism
+     */
+    public int getPermissionCheckParallelism() {
+        return this.permissionCheckParallelism;
+    }
+
+    /**
+     * Sets the maximum number of hasPermission calls in flight at once, across all logins.
+     * 1 checks each authority in turn on the calling thread.
+     *
+     * @param argPermissionCheckParallelism Value to assign to this.permissionCheckParallelism
+     */
+    public synchronized void setPermissionCheckParallelism(final int argPermissionCheckParallelism) {
+        this.permissionCheckParallelism = argPermissionCheckParallelism;
+        if (permissionCheckExecutor != null) {
+            permissionCheckExecutor.shutdown();
+            permissionCheckExecutor = null;
+        }
+    }
+
+    /**
+     * Gets the value of permissionCheckDeadline
+     *
+     * @return the value of permissionCheckDeadline
+     */
+    public long getPermissionCheckDeadline() {
+        return this.permissionCheckDeadline;
+    }
+
+    /**
+     * Sets the time, in milliseconds, a login waits for its concurrent hasPermission calls.
+     * Checks still outstanding after it go unanswered.
+     *
+     * @param argPermissionCheckDeadline Value to assign to this.permissionCheckDeadline
+     */
+    public void setPermissionCheckDeadline(final long argPermissionCheckDeadline) {
+        this.permissionCheckDeadline = argPermissionCheckDeadline;
+    }
+
+    /**
+     * Returns the number of concurrent hasPermission calls which missed their login's
+     * deadline and went unanswered.
+     *
+     * @return
+     */
+    public long getTimedOutPermissionChecks() {
+        return timedOutPermissionChecks.get();
+    }
+
+    /**
+     * Gets the value of circuitBreaker
+     *
+     * @return the value of circuitBreaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    /**
+     * Sets the circuit breaker guarding KIM calls; null calls KIM however it behaves.
+     *
+     * @param argCircuitBreaker Value to assign to this.circuitBreaker
+     */
+    public void setCircuitBreaker(final CircuitBreaker argCircuitBreaker) {
+        this.circuitBreaker = argCircuitBreaker;
+    }
+
+    /**
+     * Gets the value of staleTimeToLive
+     *
+     * @return the value of staleTimeToLive
+     */
+    public long getStaleTimeToLive() {
+        return this.staleTimeToLive;
+    }
+
+    /**
+     * Sets the time, in milliseconds, KIM's last answers for a principal may be served
+     * after it last gave them. 0 keeps none.
+     *
+     * @param argStaleTimeToLive Value to assign to this.staleTimeToLive
+     */
+    public synchronized void setStaleTimeToLive(final long argStaleTimeToLive) {
+        this.staleTimeToLive = argStaleTimeToLive;
+        lastKnown = null;
+    }
+
+    /**
+     * Gets the value of staleMaximumSize
+     *
+     * @return the value of staleMaximumSize
+     */
+    public int getStaleMaximumSize() {
+        return this.staleMaximumSize;
+    }
+
+    /**
+     * Sets the number of principals whose last answers are kept.
+     *
+     * @param argStaleMaximumSize Value to assign to this.staleMaximumSize
+     */
+    public synchronized void setStaleMaximumSize(final int argStaleMaximumSize) {
+        this.staleMaximumSize = argStaleMaximumSize;
+        lastKnown = null;
+    }
+
+    /**
+     * Returns the number of lookups answered from KIM's last known answers.
+     *
+     * @return
+     */
+    public long getStaleAnswers() {
+        return staleAnswers.get();
+    }
+
+    /**
+     * Stops the pool used for concurrent permission checks and unpublishes the latency
+     * histograms.
+     */
+    public synchronized void destroy() {
+        if (permissionCheckExecutor != null) {
+            permissionCheckExecutor.shutdownNow();
+            permissionCheckExecutor = null;
+        }
+        metrics.unregister();
+    }
+
     public boolean userExists(final String user) throws Exception {
-        return getKimIdentityService().getPrincipalByPrincipalName(new GetPrincipalByPrincipalName() {{ setPrincipalName(user); }}) != null;
+        final CircuitBreaker.Permit permit = acquireKimPermit();
+        if (permit == null) {
+            if (isKnownUser(user)) {
+                return true;
+            }
+            throw circuitOpen(user);
+        }
+        final IdentityService port = identityPorts.borrow();
+        final long started = System.nanoTime();
+        try {
+            final boolean exists = principalExists(port.getPrincipalByPrincipalName(principalNameRequest(user)));
+            (exists ? userFoundLatency : userUnknownLatency).recordSince(started);
+            permit.succeeded();
+            rememberUser(user, exists);
+            return exists;
+        }
+        catch (Exception e) {
+            userErrorLatency.recordSince(started);
+            permit.failed();
+            if (isKnownUser(user)) {
+                return true;
+            }
+            throw e;
+        }
+        finally {
+            identityPorts.release(port);
+        }
+    }
+
+    public Future<Boolean> userExistsAsync(final String user) {
+        final SettableFuture<Boolean> result = new SettableFuture<Boolean>();
+        final CircuitBreaker.Permit permit = acquireKimPermit();
+        if (permit == null) {
+            if (isKnownUser(user)) {
+                result.set(true);
+            }
+            else {
+                result.setException(circuitOpen(user));
+            }
+            return result;
+        }
+        final IdentityService port = identityPorts.borrow();
+        final PortHandler<IdentityService, GetPrincipalByPrincipalNameResponse> handler =
+            new PortHandler<IdentityService, GetPrincipalByPrincipalNameResponse>(identityPorts, port) {
+                protected void completed(final GetPrincipalByPrincipalNameResponse response) {
+                    final boolean exists = principalExists(response);
+                    (exists ? userFoundLatency : userUnknownLatency).recordSince(started);
+                    permit.succeeded();
+                    rememberUser(user, exists);
+                    result.set(exists);
+                }
+                protected void failed(final Throwable cause) {
+                    userErrorLatency.recordSince(started);
+                    permit.failed();
+                    if (isKnownUser(user)) {
+                        result.set(true);
+                    }
+                    else {
+                        result.setException(cause);
+                    }
+                }
+            };
+        try {
+            port.getPrincipalByPrincipalNameAsync(principalNameRequest(user), handler);
+        }
+        catch (RuntimeException e) {
+            handler.notSent(e);
+        }
+        return result;
+    }
+
+    protected GetPrincipalByPrincipalName principalNameRequest(final String user) {
+        final GetPrincipalByPrincipalName request = new GetPrincipalByPrincipalName();
+        request.setPrincipalName(user);
+        return request;
+    }
+
+    /**
+     * KIM answers with an empty response, not a fault, for a principal name it does not know.
+     */
+    protected boolean principalExists(final GetPrincipalByPrincipalNameResponse response) {
+        return response != null && response.getPrincipal() != null;
     }
 
-    @SuppressWarnings("serial")
     public GrantedAuthority[] getAuthoritiesForUser(final String user) {
+        final CircuitBreaker.Permit permit = acquireKimPermit();
+        if (permit == null) {
+            return lastKnownAuthoritiesWhileOpen(user);
+        }
+        if (getPermissionTemplateName() != null) {
+            try {
+                final GrantedAuthority[] authorities = getAuthoritiesByTemplate(user);
+                permit.succeeded();
+                return settle(user, authorities, true);
+            }
+            catch (Exception e) {
+                permit.failed();
+                if (permit.isCircuitOpen()) {
+                    LOG.warn("Bulk permission lookup failed for: %s: reason: %s; KIM circuit is open", user, e.getMessage());
+                    return lastKnownAuthoritiesWhileOpen(user);
+                }
+                LOG.warn("Bulk permission lookup failed for: %s: reason: %s; checking each authority", user, e.getMessage());
+            }
+        }
+        final AtomicInteger unanswered = new AtomicInteger();
+        final GrantedAuthority[] authorities = getAuthoritiesByPermission(user, permit, unanswered);
+        report(permit, unanswered.get() == 0);
+        return settle(user, authorities, unanswered.get() == 0);
+    }
+
+    /**
+     * Returns the authorities a lookup resolved, remembering them if every check was
+     * answered. If some were not, the user's last known authorities are returned instead.
+     *
+     * @throws IllegalStateException if some checks were not answered and no last known
+     *   authorities are kept for the user
+     */
+    protected GrantedAuthority[] settle(final String user, final GrantedAuthority[] authorities, final boolean complete) {
+        if (complete) {
+            rememberAuthorities(user, authorities);
+            return authorities;
+        }
+        final GrantedAuthority[] stale = lastKnownAuthorities(user);
+        if (stale == null) {
+            throw new IllegalStateException("KIM did not answer every permission check for: " + user);
+        }
+        return stale;
+    }
+
+    /**
+     * Resolves all of the user's authorities with a single getAuthorizedPermissionsByTemplate
+     * call, keeping only the permissions named in availableAuthorities.
+     *
+     * @param user
+     * @return the user's authorities, in availableAuthorities order
+     * @throws Exception if the permission service call fails
+     */
+    protected GrantedAuthority[] getAuthoritiesByTemplate(final String user) throws Exception {
+        final GetAuthorizedPermissionsByTemplateResponse.Permissions permissions;
+        final PermissionService port = permissionPorts.borrow();
+        final long started = System.nanoTime();
+        try {
+            permissions = port.getAuthorizedPermissionsByTemplate(user, getPermissionNamespace(),
+                getPermissionTemplateName(), new StringMapEntryListType(), new StringMapEntryListType());
+            templateOkLatency.recordSince(started);
+        }
+        catch (Exception e) {
+            templateErrorLatency.recordSince(started);
+            throw e;
+        }
+        finally {
+            permissionPorts.release(port);
+        }
+
+        return grantedAuthorities(permissions);
+    }
+
+    /**
+     * Keeps the entries of availableAuthorities which are among the user's active
+     * permissions in the permission namespace.
+     */
+    protected GrantedAuthority[] grantedAuthorities(final GetAuthorizedPermissionsByTemplateResponse.Permissions permissions) {
+        final Set<String> granted = new HashSet<String>();
+        if (permissions != null) {
+            for (final PermissionType permission : permissions.getPermission()) {
+                if (permission.isActive() && getPermissionNamespace().equals(permission.getNamespaceCode())) {
+                    granted.add(permission.getName());
+                }
+            }
+        }
+
         final List<GrantedAuthority> authorities = new LinkedList<GrantedAuthority>();
-        
         for (final String authorityName : availableAuthorities) {
-            try {
-                if (getKimPermissionService().hasPermission(user, "KR-SYS", authorityName)) {
-                    authorities.add(new GrantedAuthority() {
-                            
-                            public int compareTo(Object o) {
-                                GrantedAuthority that = (GrantedAuthority)o;
-                                return getAuthority().compareTo(that.getAuthority());
-                            }
-                            
-                            public String getAuthority() {
-                                return authorityName;
+            if (granted.contains(authorityName)) {
+                authorities.add(newAuthority(authorityName));
+            }
+        }
+        final GrantedAuthority[] retval = new GrantedAuthority[authorities.size()];
+        return authorities.toArray(retval);
+    }
+
+    public Future<GrantedAuthority[]> getAuthoritiesForUserAsync(final String user) {
+        final SettableFuture<GrantedAuthority[]> result = new SettableFuture<GrantedAuthority[]>();
+        final CircuitBreaker.Permit permit = acquireKimPermit();
+        if (permit == null) {
+            setLastKnownAuthoritiesWhileOpen(user, result);
+            return result;
+        }
+        if (getPermissionTemplateName() == null) {
+            checkPermissionsAsync(user, permit, result);
+            return result;
+        }
+
+        final PermissionService port = permissionPorts.borrow();
+        final PortHandler<PermissionService, GetAuthorizedPermissionsByTemplateResponse> handler =
+            new PortHandler<PermissionService, GetAuthorizedPermissionsByTemplateResponse>(permissionPorts, port) {
+                protected void completed(final GetAuthorizedPermissionsByTemplateResponse response) {
+                    templateOkLatency.recordSince(started);
+                    permit.succeeded();
+                    result.set(settle(user, grantedAuthorities(response.getPermissions()), true));
+                }
+                protected void failed(final Throwable cause) {
+                    templateErrorLatency.recordSince(started);
+                    permit.failed();
+                    if (permit.isCircuitOpen()) {
+                        LOG.warn("Bulk permission lookup failed for: %s: reason: %s; KIM circuit is open", user, cause.getMessage());
+                        setLastKnownAuthoritiesWhileOpen(user, result);
+                        return;
+                    }
+                    LOG.warn("Bulk permission lookup failed for: %s: reason: %s; checking each authority", user, cause.getMessage());
+                    checkPermissionsAsync(user, permit, result);
+                }
+            };
+        try {
+            port.getAuthorizedPermissionsByTemplateAsync(user, getPermissionNamespace(), getPermissionTemplateName(),
+                new StringMapEntryListType(), new StringMapEntryListType(), handler);
+        }
+        catch (RuntimeException e) {
+            handler.notSent(e);
+        }
+        return result;
+    }
+
+    /**
+     * Issues one asynchronous hasPermission call per entry of availableAuthorities and
+     * completes result once all of them have answered. Authorities whose check fails, or
+     * which are not checked because the circuit opened, go unanswered: the user's last known
+     * authorities are then served if any are kept, and otherwise result fails with an
+     * IllegalStateException.
+     */
+    protected void checkPermissionsAsync(final String user, final CircuitBreaker.Permit permit,
+                                         final SettableFuture<GrantedAuthority[]> result) {
+        final int count = availableAuthorities.size();
+        if (count == 0) {
+            permit.succeeded();
+            result.set(new GrantedAuthority[0]);
+            return;
+        }
+
+        // each check writes its own slot before counting down; the thread which counts
+        // down last therefore sees every answer
+        final boolean[] granted = new boolean[count];
+        final AtomicInteger outstanding = new AtomicInteger(count);
+        final AtomicInteger unanswered = new AtomicInteger();
+        final Runnable countDown = new Runnable() {
+                public void run() {
+                    if (outstanding.decrementAndGet() == 0) {
+                        final List<GrantedAuthority> authorities = new LinkedList<GrantedAuthority>();
+                        for (int j = 0; j < count; j++) {
+                            if (granted[j]) {
+                                authorities.add(newAuthority(availableAuthorities.get(j)));
                             }
-                        });
+                        }
+                        report(permit, unanswered.get() == 0);
+                        try {
+                            result.set(settle(user, authorities.toArray(new GrantedAuthority[authorities.size()]),
+                                              unanswered.get() == 0));
+                        }
+                        catch (IllegalStateException e) {
+                            result.setException(e);
+                        }
+                    }
                 }
+            };
+
+        for (int i = 0; i < count; i++) {
+            if (permit.isCircuitOpen()) {
+                unanswered.incrementAndGet();
+                countDown.run();
+                continue;
+            }
+            final int slot = i;
+            final String authorityName = availableAuthorities.get(i);
+            final PermissionService port = permissionPorts.borrow();
+            final PortHandler<PermissionService, HasPermissionResponse> handler =
+                new PortHandler<PermissionService, HasPermissionResponse>(permissionPorts, port) {
+                    protected void completed(final HasPermissionResponse response) {
+                        granted[slot] = response.isHasPermission();
+                        (granted[slot] ? permissionGrantedLatency : permissionDeniedLatency).recordSince(started);
+                        countDown.run();
+                    }
+                    protected void failed(final Throwable cause) {
+                        permissionErrorLatency.recordSince(started);
+                        unanswered.incrementAndGet();
+                        LOG.warn("Unable to determine permissions for: %s: reason: %s", user, cause.getMessage());
+                        countDown.run();
+                    }
+                };
+            try {
+                port.hasPermissionAsync(user, getPermissionNamespace(), authorityName, handler);
+            }
+            catch (RuntimeException e) {
+                handler.notSent(e);
+            }
+        }
+    }
+
+    /**
+     * Releases the port an asynchronous call was made on as soon as its response arrives,
+     * then passes the response, or the reason it failed, on. A handler is created just
+     * before its call is issued; started is the System.nanoTime() of its creation.
+     */
+    protected abstract static class PortHandler<T, R> implements AsyncHandler<R> {
+        private final PortPool<T> pool;
+        private final T port;
+        protected final long started = System.nanoTime();
+
+        protected PortHandler(final PortPool<T> pool, final T port) {
+            this.pool = pool;
+            this.port = port;
+        }
+
+        public void handleResponse(final Response<R> response) {
+            pool.release(port);
+            final R value;
+            try {
+                value = response.get();
+            }
+            catch (ExecutionException e) {
+                failed(e.getCause());
+                return;
             }
             catch (Exception e) {
-                warn("Unable to determine permissions for: %s: reason: %s", user, e.getMessage());
+                failed(e);
+                return;
+            }
+            completed(value);
+        }
+
+        /**
+         * Called instead of handleResponse when the call could not be issued at all.
+         */
+        void notSent(final RuntimeException e) {
+            pool.release(port);
+            failed(e);
+        }
+
+        protected abstract void completed(R response);
+
+        protected abstract void failed(Throwable cause);
+    }
+
+    /**
+     * Resolves the user's authorities with one hasPermission call per entry of
+     * availableAuthorities, concurrently if permissionCheckParallelism allows. Authorities
+     * whose check fails, misses the deadline or is not made because the circuit opened go
+     * unanswered.
+     *
+     * @param user
+     * @param permit the lookup's leave to call KIM
+     * @param unanswered incremented for each check which was not answered
+     * @return the user's authorities, in availableAuthorities order
+     */
+    protected GrantedAuthority[] getAuthoritiesByPermission(final String user, final CircuitBreaker.Permit permit,
+                                                            final AtomicInteger unanswered) {
+        final ExecutorService executor = getPermissionCheckExecutor();
+        if (executor == null || availableAuthorities.size() < 2) {
+            return getAuthoritiesSequentially(user, permit, unanswered);
+        }
+
+        final List<Callable<Boolean>> checks = new ArrayList<Callable<Boolean>>(availableAuthorities.size());
+        for (final String authorityName : availableAuthorities) {
+            checks.add(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        if (permit.isCircuitOpen()) {
+                            throw circuitOpen(user);
+                        }
+                        final PermissionService port = permissionPorts.borrow();
+                        try {
+                            return hasPermission(port, user, authorityName);
+                        }
+                        finally {
+                            permissionPorts.release(port);
+                        }
+                    }
+                });
+        }
+
+        final List<Future<Boolean>> results;
+        try {
+            results = executor.invokeAll(checks, getPermissionCheckDeadline(), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while determining permissions for: %s", user);
+            unanswered.addAndGet(checks.size());
+            return new GrantedAuthority[0];
+        }
+
+        final List<GrantedAuthority> authorities = new LinkedList<GrantedAuthority>();
+        int timedOut = 0;
+        for (int i = 0; i < results.size(); i++) {
+            final String authorityName = availableAuthorities.get(i);
+            try {
+                if (results.get(i).get()) {
+                    authorities.add(newAuthority(authorityName));
+                }
+            }
+            catch (CancellationException e) {
+                timedOut++;
+                unanswered.incrementAndGet();
+            }
+            catch (ExecutionException e) {
+                unanswered.incrementAndGet();
+                LOG.warn("Unable to determine permissions for: %s: reason: %s", user, e.getCause().getMessage());
+            }
+            catch (InterruptedException e) {
+                unanswered.incrementAndGet();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (timedOut > 0) {
+            timedOutPermissionChecks.addAndGet(timedOut);
+            LOG.warn("%d permission checks for: %s missed the %d ms deadline and went unanswered",
+                     timedOut, user, getPermissionCheckDeadline());
+        }
+        final GrantedAuthority[] retval = new GrantedAuthority[authorities.size()];
+        return authorities.toArray(retval);
+    }
+
+    /**
+     * Checks each entry of availableAuthorities in turn on the calling thread, stopping
+     * once the circuit opens.
+     *
+     * @param unanswered incremented for each check which failed or was not made
+     */
+    protected GrantedAuthority[] getAuthoritiesSequentially(final String user, final CircuitBreaker.Permit permit,
+                                                            final AtomicInteger unanswered) {
+        final List<GrantedAuthority> authorities = new LinkedList<GrantedAuthority>();
+        
+        final PermissionService port = permissionPorts.borrow();
+        try {
+            for (int i = 0; i < availableAuthorities.size(); i++) {
+                if (permit.isCircuitOpen()) {
+                    unanswered.addAndGet(availableAuthorities.size() - i);
+                    LOG.warn("KIM circuit opened while determining permissions for: %s", user);
+                    break;
+                }
+                final String authorityName = availableAuthorities.get(i);
+                try {
+                    if (hasPermission(port, user, authorityName)) {
+                        authorities.add(newAuthority(authorityName));
+                    }
+                }
+                catch (Exception e) {
+                    unanswered.incrementAndGet();
+                    LOG.warn("Unable to determine permissions for: %s: reason: %s", user, e.getMessage());
+                }
             }
         }
+        finally {
+            permissionPorts.release(port);
+        }
         final GrantedAuthority[] retval = new GrantedAuthority[authorities.size()];
         return authorities.toArray(retval);
     }
 
+    /**
+     * Asks KIM whether the user has the permission named authorityName, timing the call.
+     */
+    protected boolean hasPermission(final PermissionService port, final String user, final String authorityName)
+        throws Exception {
+        final long started = System.nanoTime();
+        try {
+            final boolean granted = port.hasPermission(user, getPermissionNamespace(), authorityName);
+            (granted ? permissionGrantedLatency : permissionDeniedLatency).recordSince(started);
+            return granted;
+        }
+        catch (Exception e) {
+            permissionErrorLatency.recordSince(started);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the lookup's leave to call KIM, or null if the circuit breaker is open
+     */
+    protected CircuitBreaker.Permit acquireKimPermit() {
+        final CircuitBreaker breaker = circuitBreaker;
+        return (breaker == null) ? CircuitBreaker.Permit.UNGUARDED : breaker.acquire();
+    }
+
+    /**
+     * Reports a lookup to the circuit breaker: succeeded if all of its KIM calls were answered.
+     */
+    private void report(final CircuitBreaker.Permit permit, final boolean complete) {
+        if (complete) {
+            permit.succeeded();
+        }
+        else {
+            permit.failed();
+        }
+    }
+
+    private IllegalStateException circuitOpen(final String user) {
+        return new IllegalStateException("KIM circuit is open and nothing is known of: " + user);
+    }
+
+    /**
+     * @return the user's last known authorities
+     * @throws IllegalStateException if none are kept
+     */
+    private GrantedAuthority[] lastKnownAuthoritiesWhileOpen(final String user) {
+        final GrantedAuthority[] stale = lastKnownAuthorities(user);
+        if (stale == null) {
+            throw circuitOpen(user);
+        }
+        return stale;
+    }
+
+    private void setLastKnownAuthoritiesWhileOpen(final String user, final SettableFuture<GrantedAuthority[]> result) {
+        try {
+            result.set(lastKnownAuthoritiesWhileOpen(user));
+        }
+        catch (IllegalStateException e) {
+            result.setException(e);
+        }
+    }
+
+    /**
+     * Returns the last answers kept, creating the store on first use, or null if
+     * staleTimeToLive keeps none.
+     */
+    private LastKnown getLastKnown() {
+        final LastKnown existing = lastKnown;
+        if (existing != null || staleTimeToLive <= 0) {
+            return existing;
+        }
+        return createLastKnown();
+    }
+
+    private synchronized LastKnown createLastKnown() {
+        if (lastKnown == null && staleTimeToLive > 0) {
+            lastKnown = new LastKnown(staleTimeToLive, staleMaximumSize);
+        }
+        return lastKnown;
+    }
+
+    private void rememberUser(final String user, final boolean exists) {
+        final LastKnown known = getLastKnown();
+        if (known == null) {
+            return;
+        }
+        if (exists) {
+            known.users.put(user, Boolean.TRUE);
+        }
+        else {
+            known.users.invalidate(user);
+            known.authorities.invalidate(user);
+        }
+    }
+
+    private void rememberAuthorities(final String user, final GrantedAuthority[] authorities) {
+        final LastKnown known = getLastKnown();
+        if (known != null) {
+            known.authorities.put(user, Authorities.copy(authorities));
+        }
+    }
+
+    /**
+     * @return true if KIM recognized the user within staleTimeToLive; counted as a stale answer
+     */
+    private boolean isKnownUser(final String user) {
+        final LastKnown known = getLastKnown();
+        if (known == null || known.users.getIfPresent(user) == null) {
+            return false;
+        }
+        staleAnswers.incrementAndGet();
+        LOG.debug("Serving last known existence of: %s", user);
+        return true;
+    }
+
+    /**
+     * @return the authorities KIM last resolved completely for the user within
+     *   staleTimeToLive, or null; counted as a stale answer
+     */
+    private GrantedAuthority[] lastKnownAuthorities(final String user) {
+        final LastKnown known = getLastKnown();
+        final GrantedAuthority[] stale = (known == null) ? null : known.authorities.getIfPresent(user);
+        if (stale != null) {
+            staleAnswers.incrementAndGet();
+            LOG.debug("Serving last known authorities of: %s", user);
+        }
+        return Authorities.copy(stale);
+    }
+
+    /**
+     * Returns the shared pool for concurrent permission checks, creating it on first use,
+     * or null if permissionCheckParallelism does not call for one.
+     */
+    protected ExecutorService getPermissionCheckExecutor() {
+        final ExecutorService existing = permissionCheckExecutor;
+        if (existing != null || permissionCheckParallelism < 2) {
+            return existing;
+        }
+        return createPermissionCheckExecutor();
+    }
+
+    private synchronized ExecutorService createPermissionCheckExecutor() {
+        if (permissionCheckExecutor == null && permissionCheckParallelism > 1) {
+            final AtomicInteger count = new AtomicInteger();
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                permissionCheckParallelism, permissionCheckParallelism, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(final Runnable r) {
+                            final Thread thread = new Thread(r, "kim-permission-check-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            permissionCheckExecutor = executor;
+        }
+        return permissionCheckExecutor;
+    }
+
+    /**
+     * Gets the authority granted by a permission of the same name
+     * 
+     * @return the interned {@link GrantedAuthority} of <code>authorityName</code>
+     */
+    protected GrantedAuthority newAuthority(final String authorityName) {
+        return Authorities.authority(authorityName);
+    }
+
+    /**
+     * Points port at address, if one is configured; otherwise the port keeps the address
+     * published in its WSDL.
+     */
+    protected <T> T configurePort(final T port, final String address) {
+        if (address != null) {
+            final Client client = ClientProxy.getClient(port);
+            client.getRequestContext().put(Message.ENDPOINT_ADDRESS, address);
+        }
+        return port;
+    }
+
+    /**
+     * Creates a new, configured IdentityService port. Lookups borrow pooled ports rather
+     * than calling this for every request.
+     *
+     * @return a new port
+     */
     public IdentityService getKimIdentityService() {
-        return getIdentityService().getIdentityServicePort();
+        return configurePort(getIdentityService().getIdentityServicePort(), getIdentityServiceAddress());
     }
         
     /**
@@ -111,13 +1021,35 @@ public class KimUserProvider implements ExternalUserProvider {
      */
     public void setIdentityService(final IdentityService_Service argIdentityService) {
         this.identityService = argIdentityService;
+        identityPorts.clear();
+    }
+
+    /**
+     * Gets the value of identityServiceAddress
+     *
+     * @return the value of identityServiceAddress
+     */
+    public String getIdentityServiceAddress() {
+        return this.identityServiceAddress;
+    }
 
-        final Client client = ClientProxy.getClient(getKimIdentityService());
-        client.getRequestContext().put(Message.ENDPOINT_ADDRESS, getEndpointUrl()) ;        
+    /**
+     * Sets the endpoint address used by IdentityService ports instead of the WSDL's
+     *
+     * @param argIdentityServiceAddress Value to assign to this.identityServiceAddress
+     */
+    public void setIdentityServiceAddress(final String argIdentityServiceAddress) {
+        this.identityServiceAddress = argIdentityServiceAddress;
+        identityPorts.clear();
     }
 
+    /**
+     * Creates a new, configured RoleService port.
+     *
+     * @return a new port
+     */
     public RoleService getKimRoleService() {
-        return getRoleService().getRoleServicePort();
+        return configurePort(getRoleService().getRoleServicePort(), getRoleServiceAddress());
     }
 
     /**
@@ -136,14 +1068,36 @@ public class KimUserProvider implements ExternalUserProvider {
      */
     public void setRoleService(final RoleService_Service argRoleService) {
         this.roleService = argRoleService;
+        rolePorts.clear();
+    }
 
-        final Client client = ClientProxy.getClient(getKimRoleService());
-        client.getRequestContext().put(Message.ENDPOINT_ADDRESS, getEndpointUrl()) ;        
+    /**
+     * Gets the value of roleServiceAddress
+     *
+     * @return the value of roleServiceAddress
+     */
+    public String getRoleServiceAddress() {
+        return this.roleServiceAddress;
     }
 
-    
+    /**
+     * Sets the endpoint address used by RoleService ports instead of the WSDL's
+     *
+     * @param argRoleServiceAddress Value to assign to this.roleServiceAddress
+     */
+    public void setRoleServiceAddress(final String argRoleServiceAddress) {
+        this.roleServiceAddress = argRoleServiceAddress;
+        rolePorts.clear();
+    }
+
+    /**
+     * Creates a new, configured PermissionService port. Lookups borrow pooled ports rather
+     * than calling this for every request.
+     *
+     * @return a new port
+     */
     public PermissionService getKimPermissionService() {
-        return getPermissionService().getPermissionServicePort();
+        return configurePort(getPermissionService().getPermissionServicePort(), getPermissionServiceAddress());
     }
 
     /**
@@ -162,8 +1116,34 @@ public class KimUserProvider implements ExternalUserProvider {
      */
     public void setPermissionService(final PermissionService_Service argPermissionService) {
         this.permissionService = argPermissionService;
+        permissionPorts.clear();
+    }
 
-        final Client client = ClientProxy.getClient(getKimPermissionService());
-        client.getRequestContext().put(Message.ENDPOINT_ADDRESS, getEndpointUrl()) ;        
+    /**
+     * Gets the value of permissionServiceAddress
+     *
+     * @return the value of permissionServiceAddress
+     */
+    public String getPermissionServiceAddress() {
+        return this.permissionServiceAddress;
+    }
+
+    /**
+     * Sets the endpoint address used by PermissionService ports instead of the WSDL's
+     *
+     * @param argPermissionServiceAddress Value to assign to this.permissionServiceAddress
+     */
+    public void setPermissionServiceAddress(final String argPermissionServiceAddress) {
+        this.permissionServiceAddress = argPermissionServiceAddress;
+        permissionPorts.clear();
+    }
+
+    /**
+     * Returns the number of port proxies created so far, for all services.
+     *
+     * @return
+     */
+    public long getCreatedPortCount() {
+        return identityPorts.getCreatedCount() + permissionPorts.getCreatedCount() + rolePorts.getCreatedCount();
     }
 }
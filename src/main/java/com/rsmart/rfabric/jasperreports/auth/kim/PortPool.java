@@ -0,0 +1,100 @@
+package com.rsmart.rfabric.jasperreports.auth.kim;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe pool of configured JAX-WS port proxies. Creating a CXF port builds a new
+ * proxy, conduit and interceptor chain, so lookups borrow an already configured port and
+ * release it when done instead. A borrow never blocks: if no idle port is available a new
+ * one is created. At most maximumIdle released ports are kept.
+ *
+ * <pre>
+ *   final PermissionService port = pool.borrow();
+ *   try {
+ *       ...
+ *   }
+ *   finally {
+ *       pool.release(port);
+ *   }
+ * </pre>
+ *
+ * @param <T> the service endpoint interface
+ */
+public abstract class PortPool<T> {
+    private final Queue<T> idle = new ConcurrentLinkedQueue<T>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicLong created = new AtomicLong();
+    private final int maximumIdle;
+
+    /**
+     * @param maximumIdle number of released ports kept for reuse
+     */
+    public PortPool(final int maximumIdle) {
+        this.maximumIdle = maximumIdle;
+    }
+
+    /**
+     * Creates and configures a new port.
+     *
+     * @return a port ready for use
+     */
+    protected abstract T create();
+
+    /**
+     * Takes an idle port from the pool, or creates one if none is idle.
+     *
+     * @return a port which must be released when the caller is done with it
+     */
+    public T borrow() {
+        final T port = idle.poll();
+        if (port != null) {
+            idleCount.decrementAndGet();
+            return port;
+        }
+        created.incrementAndGet();
+        return create();
+    }
+
+    /**
+     * Returns a borrowed port to the pool, or discards it if the pool is full.
+     *
+     * @param port
+     */
+    public void release(final T port) {
+        if (port == null) {
+            return;
+        }
+        if (idleCount.incrementAndGet() <= maximumIdle) {
+            idle.offer(port);
+        }
+        else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Discards every idle port, e.g. after the service they were created from changes.
+     */
+    public void clear() {
+        while (idle.poll() != null) {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return number of idle ports
+     */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * @return number of ports created since the pool was constructed
+     */
+    public long getCreatedCount() {
+        return created.get();
+    }
+}
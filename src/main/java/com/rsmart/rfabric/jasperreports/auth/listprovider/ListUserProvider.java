@@ -1,34 +1,213 @@
 package com.rsmart.rfabric.jasperreports.auth.listprovider;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.security.GrantedAuthority;
 
+import com.rsmart.rfabric.jasperreports.auth.Authorities;
 import com.rsmart.rfabric.jasperreports.auth.ExternalUserProvider;
 
+/**
+ * An ExternalUserProvider which answers from a directory of users and their roles, set
+ * as a map of {@link User}s in the Spring configuration or read from a local properties
+ * file of user names and comma separated roles:
+ * <pre>
+ *   jdoe@email.com=ROLE_USER
+ *   jasperadmin=ROLE_ADMINISTRATOR,ROLE_USER
+ * </pre>
+ * Each user's roles are turned into the canonical authority array of {@link Authorities}
+ * once, when the directory is loaded, and that array is returned as it is.
+ *
+ * The directory is an immutable snapshot replaced as a whole, so lookups read a single
+ * volatile reference and never lock or see a directory half loaded. A users file is
+ * checked at most once every checkInterval milliseconds, by one of the callers, and read
+ * again if its modification time or size changed; a file which cannot be read is logged
+ * and the previous directory stays in use.
+ * Note: Class is thread safe; it returns copies of the authorities arrays it shares.
+ */
 public class ListUserProvider implements ExternalUserProvider {
-  private Map<String, User> users = null;
-  
+  private static final Log LOG = LogFactory.getLog(ListUserProvider.class);
+
+  public static final long DEFAULT_CHECK_INTERVAL = 10000;
+
+  private volatile Directory directory = Directory.EMPTY;
+
+  private File usersFile = null;
+  private long checkInterval = DEFAULT_CHECK_INTERVAL;
+  private final AtomicLong nextCheck = new AtomicLong();
+  private volatile long lastModified;
+  private volatile long length;
+
+  /**
+   * A snapshot of the users and of the authorities computed for them.
+   */
+  private static final class Directory {
+    static final Directory EMPTY = new Directory(Collections.<String, User>emptyMap());
+
+    final Map<String, User> users;
+    final Map<String, GrantedAuthority[]> authorities;
+
+    Directory (final Map<String, User> users) {
+      final Map<String, GrantedAuthority[]> authorities = new HashMap<String, GrantedAuthority[]>(users.size() * 2);
+      for (final Map.Entry<String, User> entry : users.entrySet()) {
+        authorities.put(entry.getKey(), toAuthorities(entry.getValue()));
+      }
+      this.users = Collections.unmodifiableMap(new HashMap<String, User>(users));
+      this.authorities = authorities;
+    }
+
+    private static GrantedAuthority[] toAuthorities (final User user) {
+      final List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
+      if (user != null && user.getRoles() != null) {
+        for (final Role role : user.getRoles()) {
+          if (role != null && role.getRoleName() != null) {
+            authorities.add(Authorities.authority(role.getRoleName()));
+          }
+        }
+      }
+      return Authorities.canonical(authorities.toArray(new GrantedAuthority[authorities.size()]));
+    }
+  }
+
+  /**
+   * Replaces the directory with the given users, keyed by user name.
+   */
   public void setUsers(Map<String, User> users) {
-    this.users = users;
+    directory = (users == null) ? Directory.EMPTY : new Directory(users);
   }
-  
+
   public Map<String, User> getUsers() {
-    return users;
+    return current().users;
+  }
+
+  /**
+   * Reads the directory from a properties file of user names and their comma separated
+   * roles, and reads it again whenever it changes.
+   *
+   * @throws IOException if the file cannot be read
+   */
+  public void setUsersFile (final File usersFile) throws IOException {
+    this.usersFile = usersFile;
+    if (usersFile != null) {
+      load(usersFile);
+    }
+  }
+
+  public File getUsersFile() {
+    return usersFile;
   }
-  
+
+  public void setCheckInterval (final long checkInterval) {
+    this.checkInterval = checkInterval;
+  }
+
+  public long getCheckInterval() {
+    return checkInterval;
+  }
+
   public boolean userExists(String user) {
-    return (users != null && users.containsKey(user));
+    return (user != null && current().authorities.containsKey(user));
   }
 
   public GrantedAuthority[] getAuthoritiesForUser(String user) {
-    if (users == null || user == null)
+    if (user == null)
       return null;
-    
-    final User userObj = users.get(user);
-    
-    // TODO Auto-generated method stub
-    return null;
+
+    return Authorities.copy(current().authorities.get(user));
+  }
+
+  /**
+   * Returns the current directory, reading the users file first if it is due to be
+   * checked and has changed.
+   */
+  private Directory current() {
+    if (usersFile != null) {
+      final long now = System.currentTimeMillis();
+      final long next = nextCheck.get();
+      if (now >= next && nextCheck.compareAndSet(next, now + checkInterval)) {
+        reloadIfModified();
+      }
+    }
+    return directory;
   }
 
+  /**
+   * Reads the users file now if it changed since it was last read.
+   *
+   * @return true if a new directory was read
+   */
+  public boolean reloadIfModified() {
+    final File file = usersFile;
+    if (file == null || (file.lastModified() == lastModified && file.length() == length)) {
+      return false;
+    }
+    try {
+      load(file);
+      LOG.info("Reloaded " + directory.users.size() + " users from " + file);
+      return true;
+    } catch (IOException e) {
+      LOG.error("Unable to read users " + file + "; keeping " + directory.users.size() + " users", e);
+    }
+    return false;
+  }
+
+  private synchronized void load (final File file) throws IOException {
+    final long modified = file.lastModified();
+    final long size = file.length();
+    final InputStream in = new FileInputStream(file);
+    try {
+      directory = new Directory(read(in));
+    } finally {
+      // a broken file is not read again until it changes
+      lastModified = modified;
+      length = size;
+      in.close();
+    }
+  }
+
+  /**
+   * Reads users from a UTF-8 properties stream of user names and comma separated roles.
+   */
+  static Map<String, User> read (final InputStream in) throws IOException {
+    final Properties properties = new Properties();
+    properties.load(new InputStreamReader(in, "UTF-8"));
+
+    final Map<String, Role> roles = new HashMap<String, Role>();
+    final Map<String, User> users = new HashMap<String, User>();
+    for (final String name : properties.stringPropertyNames()) {
+      final List<Role> userRoles = new ArrayList<Role>();
+      for (String roleName : properties.getProperty(name).split(",")) {
+        roleName = roleName.trim();
+        if (roleName.length() == 0) {
+          continue;
+        }
+        Role role = roles.get(roleName);
+        if (role == null) {
+          role = new Role();
+          role.setRoleName(roleName);
+          roles.put(roleName, role);
+        }
+        userRoles.add(role);
+      }
+
+      final User user = new User();
+      user.setName(name);
+      user.setRoles(userRoles);
+      users.put(name, user);
+    }
+    return users;
+  }
 }
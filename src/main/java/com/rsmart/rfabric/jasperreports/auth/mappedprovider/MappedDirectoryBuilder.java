@@ -0,0 +1,319 @@
+package com.rsmart.rfabric.jasperreports.auth.mappedprovider;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Compiles a user directory, as read by {@link MappedUserProvider}, from CSV rows of a
+ * principal name followed by the roles it fills:
+ * <pre>
+ *   # principal,role,role...
+ *   jdoe@email.com,ROLE_USER
+ *   jasperadmin,ROLE_ADMINISTRATOR,ROLE_USER
+ * </pre>
+ * Fields are trimmed and may not be quoted; blank lines and lines starting with # are
+ * skipped. A principal listed on several rows fills the roles of all of them.
+ *
+ * The file is written in big endian byte order:
+ * <pre>
+ *   header     magic, version, user count, slot count, role count, role set count and the
+ *              offsets of the four sections below, each an int
+ *   roles      per role: the length of its UTF-8 name as a short, then the name
+ *   role sets  per role set: the number of its roles as a short, then their role ids
+ *              as shorts
+ *   slots      slot count (a power of two, at least twice the user count) pairs of the
+ *              FNV-1a hash of a principal's UTF-8 name and the offset of its entry within
+ *              the entries section, -1 for an empty slot; linearly probed
+ *   entries    per principal: its role set id as an int, the length of its UTF-8 name as
+ *              a short, then the name
+ * </pre>
+ * The file is written next to its destination and renamed over it, so a server starting
+ * meanwhile reads either the old directory or the new one.
+ *
+ * Note: Class is not thread safe.
+ */
+public class MappedDirectoryBuilder {
+
+  static final int MAGIC = 0x544b5544;
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 40;
+  static final int SLOT_SIZE = 8;
+  static final int EMPTY_SLOT = -1;
+  static final int MAXIMUM_NAME_LENGTH = 0xffff;
+  static final int MAXIMUM_ROLES = 0x7fff;
+
+  private static final String UTF8 = "UTF-8";
+
+  private final Map<String, Integer> roleIds = new HashMap<String, Integer>();
+  private final List<String> roles = new ArrayList<String>();
+  private final Map<List<Integer>, Integer> roleSetIds = new HashMap<List<Integer>, Integer>();
+  private final List<List<Integer>> roleSets = new ArrayList<List<Integer>>();
+  private final Map<String, Integer> principals = new LinkedHashMap<String, Integer>();
+
+  /**
+   * Adds a principal filling the given roles, in addition to any roles it was added with
+   * before.
+   *
+   * @throws IllegalArgumentException if the name or a role is empty or too long
+   */
+  public void add (final String principal, final Collection<String> roleNames) {
+    if (principal == null || principal.length() == 0 || utf8(principal).length > MAXIMUM_NAME_LENGTH) {
+      throw new IllegalArgumentException ("invalid principal name: \"" + principal + "\"");
+    }
+
+    final TreeSet<Integer> ids = new TreeSet<Integer>();
+    final Integer existing = principals.get(principal);
+    if (existing != null) {
+      ids.addAll(roleSets.get(existing));
+    }
+    for (final String role : roleNames) {
+      ids.add(roleId(role));
+    }
+    principals.put(principal, roleSetId(new ArrayList<Integer>(ids)));
+  }
+
+  private int roleId (final String role) {
+    final Integer id = roleIds.get(role);
+    if (id != null) {
+      return id;
+    }
+    if (role == null || role.length() == 0 || utf8(role).length > MAXIMUM_NAME_LENGTH) {
+      throw new IllegalArgumentException ("invalid role name: \"" + role + "\"");
+    }
+    if (roles.size() == MAXIMUM_ROLES) {
+      throw new IllegalArgumentException ("more than " + MAXIMUM_ROLES + " roles");
+    }
+    roleIds.put(role, roles.size());
+    roles.add(role);
+    return roles.size() - 1;
+  }
+
+  private int roleSetId (final List<Integer> ids) {
+    final Integer id = roleSetIds.get(ids);
+    if (id != null) {
+      return id;
+    }
+    roleSetIds.put(ids, roleSets.size());
+    roleSets.add(ids);
+    return roleSets.size() - 1;
+  }
+
+  /**
+   * Adds the principals of CSV rows, as described above.
+   *
+   * @return the number of rows read
+   * @throws IllegalArgumentException naming the line of an invalid row
+   */
+  public long read (final BufferedReader csv) throws IOException {
+    long line = 0;
+    long rows = 0;
+    for (String row = csv.readLine(); row != null; row = csv.readLine()) {
+      line++;
+      row = row.trim();
+      if (row.length() == 0 || row.startsWith("#")) {
+        continue;
+      }
+      final String[] fields = row.split(",");
+      final List<String> roleNames = new ArrayList<String>(fields.length - 1);
+      for (int i = 1; i < fields.length; i++) {
+        final String role = fields[i].trim();
+        if (role.length() > 0) {
+          roleNames.add(role);
+        }
+      }
+      try {
+        add(fields[0].trim(), roleNames);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException ("line " + line + ": " + e.getMessage());
+      }
+      rows++;
+    }
+    return rows;
+  }
+
+  public int getUserCount() {
+    return principals.size();
+  }
+
+  public int getRoleSetCount() {
+    return roleSets.size();
+  }
+
+  /**
+   * Writes the directory to file, replacing it.
+   *
+   * @throws IllegalStateException if the directory is too large to be mapped
+   */
+  public void write (final File file) throws IOException {
+    final int slotCount = slotCount(principals.size());
+    final int[] hashes = new int[slotCount];
+    final int[] offsets = new int[slotCount];
+    Arrays.fill(offsets, EMPTY_SLOT);
+
+    long entriesSize = 0;
+    for (final String principal : principals.keySet()) {
+      final byte[] name = utf8(principal);
+      final int hash = hash(name, name.length);
+      int slot = hash & (slotCount - 1);
+      while (offsets[slot] != EMPTY_SLOT) {
+        slot = (slot + 1) & (slotCount - 1);
+      }
+      hashes[slot] = hash;
+      offsets[slot] = (int) entriesSize;
+      entriesSize += 6 + name.length;
+      if (entriesSize > Integer.MAX_VALUE) {
+        throw new IllegalStateException ("directory too large to be mapped");
+      }
+    }
+
+    final byte[][] roleNames = new byte[roles.size()][];
+    long rolesSize = 0;
+    for (int i = 0; i < roleNames.length; i++) {
+      roleNames[i] = utf8(roles.get(i));
+      rolesSize += 2 + roleNames[i].length;
+    }
+    long roleSetsSize = 0;
+    for (final List<Integer> roleSet : roleSets) {
+      roleSetsSize += 2 + 2 * roleSet.size();
+    }
+
+    final long rolesOffset = HEADER_SIZE;
+    final long roleSetsOffset = rolesOffset + rolesSize;
+    final long slotsOffset = roleSetsOffset + roleSetsSize;
+    final long entriesOffset = slotsOffset + (long) slotCount * SLOT_SIZE;
+    if (entriesOffset + entriesSize > Integer.MAX_VALUE) {
+      throw new IllegalStateException ("directory too large to be mapped");
+    }
+
+    final File temporary = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(principals.size());
+      out.writeInt(slotCount);
+      out.writeInt(roles.size());
+      out.writeInt(roleSets.size());
+      out.writeInt((int) rolesOffset);
+      out.writeInt((int) roleSetsOffset);
+      out.writeInt((int) slotsOffset);
+      out.writeInt((int) entriesOffset);
+
+      for (final byte[] name : roleNames) {
+        out.writeShort(name.length);
+        out.write(name);
+      }
+      for (final List<Integer> roleSet : roleSets) {
+        out.writeShort(roleSet.size());
+        for (final Integer id : roleSet) {
+          out.writeShort(id);
+        }
+      }
+      for (int slot = 0; slot < slotCount; slot++) {
+        out.writeInt(hashes[slot]);
+        out.writeInt(offsets[slot]);
+      }
+      for (final Map.Entry<String, Integer> principal : principals.entrySet()) {
+        final byte[] name = utf8(principal.getKey());
+        out.writeInt(principal.getValue());
+        out.writeShort(name.length);
+        out.write(name);
+      }
+    } finally {
+      out.close();
+    }
+
+    if (!temporary.renameTo(file)) {
+      // renameTo does not replace an existing file on every platform
+      if (!file.delete() || !temporary.renameTo(file)) {
+        temporary.delete();
+        throw new IOException ("Unable to replace " + file);
+      }
+    }
+  }
+
+  /**
+   * @return the smallest power of two at least twice the number of users
+   */
+  static int slotCount (final int users) {
+    final int slots = Integer.highestOneBit(Math.max(2 * users, 2) - 1) << 1;
+    if (slots <= 0) {
+      throw new IllegalStateException ("too many users");
+    }
+    return slots;
+  }
+
+  /**
+   * The 32 bit FNV-1a hash of the first length bytes.
+   */
+  static int hash (final byte[] bytes, final int length) {
+    int hash = 0x811c9dc5;
+    for (int i = 0; i < length; i++) {
+      hash ^= bytes[i] & 0xff;
+      hash *= 0x01000193;
+    }
+    return hash;
+  }
+
+  static byte[] utf8 (final String s) {
+    try {
+      return s.getBytes(UTF8);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String fromUtf8 (final byte[] bytes) {
+    try {
+      return new String(bytes, UTF8);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Compiles a directory file from a CSV file, or stdin.
+   */
+  public static void main (final String[] args) {
+    if (args.length < 2) {
+      System.err.println("Usage:\n\tjava " + MappedDirectoryBuilder.class.getName() + " <csv file>|- <directory file>");
+      System.exit(1);
+    }
+
+    final long started = System.currentTimeMillis();
+    final MappedDirectoryBuilder builder = new MappedDirectoryBuilder();
+    try {
+      final BufferedReader csv = new BufferedReader(new InputStreamReader(
+          "-".equals(args[0]) ? System.in : new FileInputStream(args[0]), UTF8), 1 << 16);
+      try {
+        builder.read(csv);
+      } finally {
+        csv.close();
+      }
+      builder.write(new File(args[1]));
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+    System.err.println("Wrote " + builder.getUserCount() + " users in " + builder.getRoleSetCount()
+        + " role sets to " + args[1] + " in " + (System.currentTimeMillis() - started) + "ms");
+  }
+}
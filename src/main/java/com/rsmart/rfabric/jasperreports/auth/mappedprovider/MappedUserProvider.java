@@ -0,0 +1,180 @@
+package com.rsmart.rfabric.jasperreports.auth.mappedprovider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.GrantedAuthority;
+
+import com.rsmart.rfabric.jasperreports.auth.Authorities;
+import com.rsmart.rfabric.jasperreports.auth.ExternalUserProvider;
+
+/**
+ * An ExternalUserProvider which answers from a directory file compiled by
+ * {@link MappedDirectoryBuilder}, for user bases too large to keep as objects on the heap.
+ * The file is memory mapped read only: its hashed index of principal names and their
+ * entries stay off the heap, in pages the operating system loads on demand and shares
+ * between processes, and a lookup reads a few slots and compares one name in place. Only
+ * the role set table, a canonical authority array from {@link Authorities} per distinct
+ * set of roles, is read onto the heap, so loading takes as long as reading the header and
+ * that table, whatever the number of users.
+ *
+ * To change the directory, compile a new file over the old one and restart; the mapping
+ * of the old file stays valid until then.
+ * Note: Class is thread safe; it returns copies of the role set arrays it shares.
+ */
+public class MappedUserProvider implements ExternalUserProvider {
+  private static final Log LOG = LogFactory.getLog(MappedUserProvider.class);
+
+  private volatile Directory directory = null;
+  private File directoryFile = null;
+
+  /**
+   * A mapped directory file.
+   */
+  private static final class Directory {
+    final ByteBuffer buffer;
+    final int userCount;
+    final int slotMask;
+    final int slotsOffset;
+    final int entriesOffset;
+    final GrantedAuthority[][] roleSets;
+
+    Directory (final ByteBuffer buffer) {
+      this.buffer = buffer;
+      if (buffer.limit() < MappedDirectoryBuilder.HEADER_SIZE
+          || buffer.getInt(0) != MappedDirectoryBuilder.MAGIC) {
+        throw new IllegalArgumentException ("not a user directory file");
+      }
+      if (buffer.getInt(4) != MappedDirectoryBuilder.VERSION) {
+        throw new IllegalArgumentException ("unsupported user directory version " + buffer.getInt(4));
+      }
+      userCount = buffer.getInt(8);
+      final int slotCount = buffer.getInt(12);
+      final int roleCount = buffer.getInt(16);
+      final int roleSetCount = buffer.getInt(20);
+      final int rolesOffset = buffer.getInt(24);
+      final int roleSetsOffset = buffer.getInt(28);
+      slotsOffset = buffer.getInt(32);
+      entriesOffset = buffer.getInt(36);
+      if (Integer.bitCount(slotCount) != 1 || slotCount < 2 * userCount
+          || (long) slotsOffset + (long) slotCount * MappedDirectoryBuilder.SLOT_SIZE > entriesOffset
+          || entriesOffset > buffer.limit()) {
+        throw new IllegalArgumentException ("corrupt user directory header");
+      }
+      slotMask = slotCount - 1;
+
+      final ByteBuffer table = buffer.duplicate();
+      table.position(rolesOffset);
+      final GrantedAuthority[] roles = new GrantedAuthority[roleCount];
+      for (int i = 0; i < roleCount; i++) {
+        final byte[] name = new byte[table.getShort() & 0xffff];
+        table.get(name);
+        roles[i] = Authorities.authority(MappedDirectoryBuilder.fromUtf8(name));
+      }
+      table.position(roleSetsOffset);
+      roleSets = new GrantedAuthority[roleSetCount][];
+      for (int i = 0; i < roleSetCount; i++) {
+        final GrantedAuthority[] roleSet = new GrantedAuthority[table.getShort() & 0xffff];
+        for (int j = 0; j < roleSet.length; j++) {
+          roleSet[j] = roles[table.getShort() & 0xffff];
+        }
+        roleSets[i] = Authorities.canonical(roleSet);
+      }
+    }
+
+    /**
+     * @return the role set id of a principal, or -1 if the directory does not hold it
+     */
+    int find (final String principal) {
+      final byte[] name = MappedDirectoryBuilder.utf8(principal);
+      final int hash = MappedDirectoryBuilder.hash(name, name.length);
+      for (int slot = hash & slotMask, probes = 0; probes <= slotMask; slot = (slot + 1) & slotMask, probes++) {
+        final int at = slotsOffset + slot * MappedDirectoryBuilder.SLOT_SIZE;
+        final int offset = buffer.getInt(at + 4);
+        if (offset == MappedDirectoryBuilder.EMPTY_SLOT) {
+          return -1;
+        }
+        if (buffer.getInt(at) == hash && matches(entriesOffset + offset + 4, name)) {
+          return buffer.getInt(entriesOffset + offset);
+        }
+      }
+      return -1;
+    }
+
+    private boolean matches (final int at, final byte[] name) {
+      if ((buffer.getShort(at) & 0xffff) != name.length) {
+        return false;
+      }
+      for (int i = 0; i < name.length; i++) {
+        if (buffer.get(at + 2 + i) != name[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Maps a directory file and reads its role sets.
+   *
+   * @throws IOException if the file cannot be read
+   * @throws IllegalArgumentException if it is not a valid directory file
+   */
+  public void setDirectoryFile (final File directoryFile) throws IOException {
+    final long started = System.currentTimeMillis();
+    final RandomAccessFile file = new RandomAccessFile(directoryFile, "r");
+    final MappedByteBuffer buffer;
+    try {
+      if (file.length() > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException ("user directory file too large: " + directoryFile);
+      }
+      // the mapping outlives the channel
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+    } finally {
+      file.close();
+    }
+    try {
+      directory = new Directory(buffer);
+    } catch (IndexOutOfBoundsException e) {
+      throw new IllegalArgumentException ("truncated user directory file: " + directoryFile);
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException ("truncated user directory file: " + directoryFile);
+    }
+    this.directoryFile = directoryFile;
+    LOG.info("Mapped " + directory.userCount + " users in " + directory.roleSets.length + " role sets from "
+        + directoryFile + " in " + (System.currentTimeMillis() - started) + "ms");
+  }
+
+  public File getDirectoryFile() {
+    return directoryFile;
+  }
+
+  /**
+   * @return the number of users in the directory
+   */
+  public int getUserCount() {
+    final Directory directory = this.directory;
+    return (directory == null) ? 0 : directory.userCount;
+  }
+
+  public boolean userExists (final String user) {
+    final Directory directory = this.directory;
+    return (directory != null && user != null && directory.find(user) >= 0);
+  }
+
+  public GrantedAuthority[] getAuthoritiesForUser (final String user) {
+    final Directory directory = this.directory;
+    if (directory == null || user == null) {
+      return null;
+    }
+    final int roleSet = directory.find(user);
+    return (roleSet < 0) ? null : Authorities.copy(directory.roleSets[roleSet]);
+  }
+}
@@ -15,21 +15,29 @@
  */
 package com.rsmart.rfabric.logging;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.util.Formatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
- * Class with static methods wrapping {@link Log} methods. Automatically sets up Log for you. It's called the <code>FormattedLogger</code> because
- * it handles everything in ansi-C standard printf format. For example, <code>printf("The epoch time is now %d", new Date().getTime())</code>.<br/>
+ * Wraps a {@link Log} with methods taking a message pattern and its parameters. It's called the <code>FormattedLogger</code> because
+ * it handles everything in ansi-C standard printf format. For example, <code>LOG.debug("The epoch time is now %d", new Date().getTime())</code>.<br/>
  * <br/>
  *  
- * To use these just do
+ * Each class looks its logger up once and keeps it:
  * <code>
- * import edu.uconn.logging.FormattedLogger.*
+ * private static final FormattedLogger LOG = FormattedLogger.getLogger(MyClass.class);
  * </code>
+ * <br/>
+ * <br/>
+ * 
+ * Every method checks the level before doing anything else, so a statement below the configured level costs one level check: the
+ * pattern is not formatted and, for up to three parameters, no parameter array is created. Parameters which are primitives are still
+ * boxed by the caller; guard statements with expensive parameters with {@link #isDebugEnabled()} and friends. Messages which are logged
+ * are formatted into a buffer kept by each thread.
  * 
  * @see org.apache.commons.logging.Log
  * 
@@ -38,114 +46,407 @@ import org.apache.commons.logging.LogFactory;
 public class FormattedLogger {
     
     /**
-     * Applies a pattern with parameters to create a {@link String} used as a logging message
-     *  
+     * Buffers larger than this are dropped after use rather than kept by their thread
+     */
+    private static final int MAXIMUM_BUFFER = 8192;
+    
+    private static final ConcurrentMap<String, FormattedLogger> LOGGERS = new ConcurrentHashMap<String, FormattedLogger>();
+    
+    private static final ThreadLocal<MessageBuffer> BUFFERS = new ThreadLocal<MessageBuffer>() {
+        @Override
+        protected MessageBuffer initialValue() {
+            return new MessageBuffer();
+        }
+    };
+    
+    private final Log log;
+    
+    /**
+     * @param log to write messages to
+     */
+    protected FormattedLogger(Log log) {
+        this.log = log;
+    }
+    
+    /**
+     * Gets the logger for a class, creating it the first time it is asked for
+     * 
+     * @param type the class logging
+     * @return FormattedLogger writing to the {@link Log} of <code>type</code>
+     */
+    public static FormattedLogger getLogger(Class<?> type) {
+        final FormattedLogger existing = LOGGERS.get(type.getName());
+        if (existing != null) {
+            return existing;
+        }
+        final FormattedLogger created = new FormattedLogger(LogFactory.getLog(type));
+        final FormattedLogger raced = LOGGERS.putIfAbsent(type.getName(), created);
+        return (raced != null) ? raced : created;
+    }
+    
+    /**
+     * Gets the value of the log property
+     * 
+     * @return {@link Log} messages are written to
+     */
+    public Log getLog() {
+        return log;
+    }
+    
+    /**
+     * Applies a pattern with parameters to create a {@link String} used as a logging message. The message is formatted into the calling
+     * thread's buffer unless that buffer is in use, which happens when a parameter logs from its own <code>toString()</code>.
      * 
      * @param pattern to format against
      * @param objs an array of objects used as parameters to the <code>pattern</code>
      * @return Logging Message
      */
-    private static final String getMessage(String pattern, Object ... objs) {
-        StringWriter retval = new StringWriter();
-        PrintWriter writer = new PrintWriter(retval);
-        
-        writer.printf(pattern, objs);
+    static String getMessage(String pattern, Object ... objs) {
+        if (objs.length == 0 && pattern.indexOf('%') < 0) {
+            return pattern;
+        }
         
-        return retval.toString();
+        final MessageBuffer buffer = BUFFERS.get();
+        if (buffer.inUse) {
+            return String.format(pattern, objs);
+        }
+        buffer.inUse = true;
+        try {
+            buffer.text.setLength(0);
+            buffer.formatter.format(pattern, objs);
+            return buffer.text.toString();
+        }
+        finally {
+            buffer.inUse = false;
+            if (buffer.text.capacity() > MAXIMUM_BUFFER) {
+                BUFFERS.remove();
+            }
+        }
+    }
+    
+    public boolean isTraceEnabled() {
+        return log.isTraceEnabled();
+    }
+    
+    public boolean isDebugEnabled() {
+        return log.isDebugEnabled();
+    }
+    
+    public boolean isInfoEnabled() {
+        return log.isInfoEnabled();
     }
     
+    public boolean isWarnEnabled() {
+        return log.isWarnEnabled();
+    }
+    
+    public boolean isErrorEnabled() {
+        return log.isErrorEnabled();
+    }
+    
+    public boolean isFatalEnabled() {
+        return log.isFatalEnabled();
+    }
+
     /**
-     * Uses {@link StackTraceElement[]} from {@link Throwable} to determine the calling class. Then, the {@link Log} is retrieved for it by
-     * convention
+     * Wraps {@link Log#trace(Object)}
      * 
+     * @param pattern to format against
+     * @param obj the parameter of the <code>pattern</code>
+     */
+    public void trace(String pattern, Object obj) {
+        if (log.isTraceEnabled()) {
+            log.trace(getMessage(pattern, obj));
+        }
+    }
+
+    /**
+     * Wraps {@link Log#trace(Object)}
      * 
-     * @return Log for the calling class
+     * @param pattern to format against
+     * @param obj1 the first parameter of the <code>pattern</code>
+     * @param obj2 the second parameter of the <code>pattern</code>
      */
-    private static final Log getLog() {
-        try {
-            return LogFactory.getLog(Class.forName(new Throwable().getStackTrace()[3].getClassName()));
+    public void trace(String pattern, Object obj1, Object obj2) {
+        if (log.isTraceEnabled()) {
+            log.trace(getMessage(pattern, obj1, obj2));
         }
-        catch (Exception e) {
-            return LogFactory.getLog(FormattedLogger.class);
+    }
+
+    /**
+     * Wraps {@link Log#trace(Object)}
+     * 
+     * @param pattern to format against
+     * @param obj1 the first parameter of the <code>pattern</code>
+     * @param obj2 the second parameter of the <code>pattern</code>
+     * @param obj3 the third parameter of the <code>pattern</code>
+     */
+    public void trace(String pattern, Object obj1, Object obj2, Object obj3) {
+        if (log.isTraceEnabled()) {
+            log.trace(getMessage(pattern, obj1, obj2, obj3));
         }
     }
 
     /**
-     * Wraps {@link Log#trace(String)}
+     * Wraps {@link Log#trace(Object)}
      * 
      * @param pattern to format against
      * @param objs an array of objects used as parameters to the <code>pattern</code>
      */
-    public static final void trace(String pattern, Object ... objs) {
-        Log log = getLog();
+    public void trace(String pattern, Object ... objs) {
         if (log.isTraceEnabled()) {
             log.trace(getMessage(pattern, objs));
         }
     }
 
     /**
-     * Wraps {@link Log#debug(String)}
+     * Wraps {@link Log#debug(Object)}
+     * 
+     * @param pattern to format against
+     * @param obj the parameter of the <code>pattern</code>
+     */
+    public void debug(String pattern, Object obj) {
+        if (log.isDebugEnabled()) {
+            log.debug(getMessage(pattern, obj));
+        }
+    }
+
+    /**
+     * Wraps {@link Log#debug(Object)}
+     * 
+     * @param pattern to format against
+     * @param obj1 the first parameter of the <code>pattern</code>
+     * @param obj2 the second parameter of the <code>pattern</code>
+     */
+    public void debug(String pattern, Object obj1, Object obj2) {
+        if (log.isDebugEnabled()) {
+            log.debug(getMessage(pattern, obj1, obj2));
+        }
+    }
+
+    /**
+     * Wraps {@link Log#debug(Object)}
+     * 
+     * @param pattern to format against
+     * @param obj1 the first parameter of the <code>pattern</code>
+     * @param obj2 the second parameter of the <code>pattern</code>
+     * @param obj3 the third parameter of the <code>pattern</code>
+     */
+    public void debug(String pattern, Object obj1, Object obj2, Object obj3) {
+        if (log.isDebugEnabled()) {
+            log.debug(getMessage(pattern, obj1, obj2, obj3));
+        }
+    }
+
+    /**
+     * Wraps {@link Log#debug(Object)}
      * 
      * @param pattern to format against
      * @param objs an array of objects used as parameters to the <code>pattern</code>
      */
-    public static final void debug(String pattern, Object ... objs) {
-        Log log = getLog();
+    public void debug(String pattern, Object ... objs) {
         if (log.isDebugEnabled()) {
             log.debug(getMessage(pattern, objs));
         }
     }
 
     /**
-     * Wraps {@link Log#info(String)}
+     * Wraps {@link Log#info(Object)}
+     * 
+     * @param pattern to format against
+     * @param obj the parameter of the <code>pattern</code>
+     */
+    public void info(String pattern, Object obj) {
+        if (log.isInfoEnabled()) {
+            log.info(getMessage(pattern, obj));
+        }
+    }
+
+    /**
+     * Wraps {@link Log#info(Object)}
+     * 
+     * @param pattern to format against
+     * @param obj1 the first parameter of the <code>pattern</code>
+     * @param obj2 the second parameter of the <code>pattern</code>
+     */
+    public void info(String pattern, Object obj1, Object obj2) {
+        if (log.isInfoEnabled()) {
+            log.info(getMessage(pattern, obj1, obj2));
+        }
+    }
+
+    /**
+     * Wraps {@link Log#info(Object)}
+     * 
+     * @param pattern to format against
+     * @param obj1 the first parameter of the <code>pattern</code>
+     * @param obj2 the second parameter of the <code>pattern</code>
+     * @param obj3 the third parameter of the <code>pattern</code>
+     */
+    public void info(String pattern, Object obj1, Object obj2, Object obj3) {
+        if (log.isInfoEnabled()) {
+            log.info(getMessage(pattern, obj1, obj2, obj3));
+        }
+    }
+
+    /**
+     * Wraps {@link Log#info(Object)}
      * 
      * @param pattern to format against
      * @param objs an array of objects used as parameters to the <code>pattern</code>
      */
-    public static final void info(String pattern, Object ... objs) {
-        Log log = getLog();
+    public void info(String pattern, Object ... objs) {
         if (log.isInfoEnabled()) {
             log.info(getMessage(pattern, objs));
         }
     }
 
     /**
-     * Wraps {@link Log#warn(String)}
+     * Wraps {@link Log#warn(Object)}
+     * 
+     * @param pattern to format against
+     * @param obj the parameter of the <code>pattern</code>
+     */
+    public void warn(String pattern, Object obj) {
+        if (log.isWarnEnabled()) {
+            log.warn(getMessage(pattern, obj));
+        }
+    }
+
+    /**
+     * Wraps {@link Log#warn(Object)}
+     * 
+     * @param pattern to format against
+     * @param obj1 the first parameter of the <code>pattern</code>
+     * @param obj2 the second parameter of the <code>pattern</code>
+     */
+    public void warn(String pattern, Object obj1, Object obj2) {
+        if (log.isWarnEnabled()) {
+            log.warn(getMessage(pattern, obj1, obj2));
+        }
+    }
+
+    /**
+     * Wraps {@link Log#warn(Object)}
+     * 
+     * @param pattern to format against
+     * @param obj1 the first parameter of the <code>pattern</code>
+     * @param obj2 the second parameter of the <code>pattern</code>
+     * @param obj3 the third parameter of the <code>pattern</code>
+     */
+    public void warn(String pattern, Object obj1, Object obj2, Object obj3) {
+        if (log.isWarnEnabled()) {
+            log.warn(getMessage(pattern, obj1, obj2, obj3));
+        }
+    }
+
+    /**
+     * Wraps {@link Log#warn(Object)}
      * 
      * @param pattern to format against
      * @param objs an array of objects used as parameters to the <code>pattern</code>
      */
-    public static final void warn(String pattern, Object ... objs) {
-        Log log = getLog();
+    public void warn(String pattern, Object ... objs) {
         if (log.isWarnEnabled()) {
             log.warn(getMessage(pattern, objs));
         }
     }
 
     /**
-     * Wraps {@link Log#error(String)}
+     * Wraps {@link Log#warn(Object, Throwable)}
+     * 
+     * @param t the cause to log with the message
+     * @param pattern to format against
+     * @param objs an array of objects used as parameters to the <code>pattern</code>
+     */
+    public void warn(Throwable t, String pattern, Object ... objs) {
+        if (log.isWarnEnabled()) {
+            log.warn(getMessage(pattern, objs), t);
+        }
+    }
+
+    /**
+     * Wraps {@link Log#error(Object)}
+     * 
+     * @param pattern to format against
+     * @param obj the parameter of the <code>pattern</code>
+     */
+    public void error(String pattern, Object obj) {
+        if (log.isErrorEnabled()) {
+            log.error(getMessage(pattern, obj));
+        }
+    }
+
+    /**
+     * Wraps {@link Log#error(Object)}
+     * 
+     * @param pattern to format against
+     * @param obj1 the first parameter of the <code>pattern</code>
+     * @param obj2 the second parameter of the <code>pattern</code>
+     */
+    public void error(String pattern, Object obj1, Object obj2) {
+        if (log.isErrorEnabled()) {
+            log.error(getMessage(pattern, obj1, obj2));
+        }
+    }
+
+    /**
+     * Wraps {@link Log#error(Object)}
+     * 
+     * @param pattern to format against
+     * @param obj1 the first parameter of the <code>pattern</code>
+     * @param obj2 the second parameter of the <code>pattern</code>
+     * @param obj3 the third parameter of the <code>pattern</code>
+     */
+    public void error(String pattern, Object obj1, Object obj2, Object obj3) {
+        if (log.isErrorEnabled()) {
+            log.error(getMessage(pattern, obj1, obj2, obj3));
+        }
+    }
+
+    /**
+     * Wraps {@link Log#error(Object)}
+     * 
+     * @param pattern to format against
+     * @param objs an array of objects used as parameters to the <code>pattern</code>
+     */
+    public void error(String pattern, Object ... objs) {
+        if (log.isErrorEnabled()) {
+            log.error(getMessage(pattern, objs));
+        }
+    }
+
+    /**
+     * Wraps {@link Log#error(Object, Throwable)}
      * 
+     * @param t the cause to log with the message
      * @param pattern to format against
      * @param objs an array of objects used as parameters to the <code>pattern</code>
      */
-    public static final void error(String pattern, Object ... objs) {
-        Log log = getLog();
+    public void error(Throwable t, String pattern, Object ... objs) {
         if (log.isErrorEnabled()) {
-            getLog().error(getMessage(pattern, objs));
+            log.error(getMessage(pattern, objs), t);
         }
     }
     
     /**
-     * Wraps {@link Log#fatal(String)}
+     * Wraps {@link Log#fatal(Object)}
      * 
      * @param pattern to format against
      * @param objs an array of objects used as parameters to the <code>pattern</code>
      */
-    public static final void fatal(String pattern, Object ... objs) {
-        Log log = getLog();
+    public void fatal(String pattern, Object ... objs) {
         if (log.isFatalEnabled()) {
             log.fatal(getMessage(pattern, objs));
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * A thread's message buffer and the {@link Formatter} writing to it
+     */
+    private static final class MessageBuffer {
+        final StringBuilder text = new StringBuilder(256);
+        final Formatter formatter = new Formatter(text);
+        boolean inUse;
+    }
+}
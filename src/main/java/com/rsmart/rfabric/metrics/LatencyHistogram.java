@@ -0,0 +1,141 @@
+package com.rsmart.rfabric.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe histogram of latencies with a resolution of one microsecond, in the manner
+ * of HdrHistogram: values below 64 microseconds have a bucket each, and every power of two
+ * above is split into 32 buckets, so a percentile is never more than about 3% below the
+ * value it stands for. Values beyond 2^40 microseconds (about 12 days) share the last bucket.
+ *
+ * Recording is lock free and allocates nothing: it increments one bucket, adds to the sum
+ * and raises the maximum with compare-and-set. Readers compute percentiles from a copy of
+ * the buckets, so they see a consistent distribution while recording goes on; the count,
+ * sum and maximum are read separately and may be a few records apart from it.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+  private static final int LINEAR_BUCKETS = 64;
+  private static final int SUB_BUCKETS = 32;
+  private static final int MAXIMUM_EXPONENT = 40;
+  private static final int BUCKETS = LINEAR_BUCKETS + (MAXIMUM_EXPONENT - 5) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong maximum = new AtomicLong();
+
+  /**
+   * @return the bucket holding a value in microseconds
+   */
+  static int bucketOf (final long micros) {
+    if (micros < LINEAR_BUCKETS) {
+      return (micros < 0) ? 0 : (int) micros;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    if (exponent > MAXIMUM_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    // the top six bits of the value, 32 to 63, pick the sub-bucket
+    return LINEAR_BUCKETS + (exponent - 6) * SUB_BUCKETS + (int) (micros >>> (exponent - 5)) - SUB_BUCKETS;
+  }
+
+  /**
+   * @return the smallest value in microseconds held by a bucket
+   */
+  static long lowerBoundOf (final int bucket) {
+    if (bucket < LINEAR_BUCKETS) {
+      return bucket;
+    }
+    final int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 6;
+    return (long) ((bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS) << (exponent - 5);
+  }
+
+  /**
+   * Records a latency.
+   *
+   * @param nanos the latency in nanoseconds
+   */
+  public void record (final long nanos) {
+    final long micros = nanos / 1000;
+    counts.incrementAndGet(bucketOf(micros));
+    sum.addAndGet(micros);
+    long seen = maximum.get();
+    while (micros > seen && !maximum.compareAndSet(seen, micros)) {
+      seen = maximum.get();
+    }
+  }
+
+  /**
+   * Records the time elapsed since startNanos, a value of System.nanoTime().
+   */
+  public void recordSince (final long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    sum.set(0);
+    maximum.set(0);
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  public double getMeanMillis() {
+    final long count = getCount();
+    return (count == 0) ? 0 : sum.get() / 1000.0 / count;
+  }
+
+  public double getMaxMillis() {
+    return maximum.get() / 1000.0;
+  }
+
+  public double getP50Millis() {
+    return getPercentile(0.5) / 1000.0;
+  }
+
+  public double getP90Millis() {
+    return getPercentile(0.9) / 1000.0;
+  }
+
+  public double getP99Millis() {
+    return getPercentile(0.99) / 1000.0;
+  }
+
+  public double getP999Millis() {
+    return getPercentile(0.999) / 1000.0;
+  }
+
+  /**
+   * Returns the latency, in microseconds, below which the given fraction of the recorded
+   * latencies fall: the lower bound of the bucket holding it. 0 if nothing was recorded.
+   *
+   * @param quantile between 0 and 1
+   */
+  public long getPercentile (final double quantile) {
+    final long[] snapshot = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+
+    final long target = Math.max((long) Math.ceil(quantile * count), 1);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= target) {
+        return lowerBoundOf(i);
+      }
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,27 @@
+package com.rsmart.rfabric.metrics;
+
+/**
+ * The JMX view of a {@link LatencyHistogram}. Times are in milliseconds; percentiles are
+ * the lower bounds of the buckets holding them.
+ */
+public interface LatencyHistogramMBean {
+
+  long getCount();
+
+  double getMeanMillis();
+
+  double getMaxMillis();
+
+  double getP50Millis();
+
+  double getP90Millis();
+
+  double getP99Millis();
+
+  double getP999Millis();
+
+  /**
+   * Forgets everything recorded so far.
+   */
+  void reset();
+}
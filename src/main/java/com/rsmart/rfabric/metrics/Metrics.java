@@ -0,0 +1,136 @@
+package com.rsmart.rfabric.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The latency histograms of the authentication path, one per component, stage and
+ * outcome, each published to the platform MBeanServer as
+ * com.rsmart.rfabric:type=Latency,component=[component],stage=[stage],outcome=[outcome].
+ * A histogram's count is the number of times the stage ended with that outcome.
+ *
+ * Each component instance takes its histograms through its own {@link Registrations},
+ * once, when it is created, and keeps them; instances of the same component share them.
+ * A histogram stays published while any instance holds it: when an instance is destroyed
+ * it releases its registrations, and the last instance to release a histogram unpublishes
+ * it, so that a redeployed copy of the web application can publish its own under the same
+ * names and the old copy's classes are not held by the MBeanServer.
+ *
+ * A histogram which cannot be registered, e.g. because another copy of this library in the
+ * same JVM already registered its name, still records and can be read through its
+ * component; it is never unregistered by this class.
+ */
+public final class Metrics {
+  private static final Log LOG = LogFactory.getLog(Metrics.class);
+
+  public static final String DOMAIN = "com.rsmart.rfabric";
+
+  // guarded by HISTOGRAMS
+  private static final Map<String, Published> HISTOGRAMS = new HashMap<String, Published>();
+
+  private Metrics() {}
+
+  /**
+   * A histogram and the number of registrations holding it.
+   */
+  private static final class Published {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    boolean registered;
+    int holders;
+  }
+
+  /**
+   * The histograms taken by one component instance, released together when it is
+   * destroyed. Thread safe.
+   */
+  public static final class Registrations {
+    private final String component;
+    // guarded by this
+    private final List<String> held = new ArrayList<String>();
+
+    private Registrations (final String component) {
+      this.component = component;
+    }
+
+    /**
+     * Returns the histogram of the component's stage ending with an outcome, publishing it
+     * if no other instance holds it.
+     */
+    public synchronized LatencyHistogram histogram (final String stage, final String outcome) {
+      final String name = objectName(component, stage, outcome);
+      held.add(name);
+      return acquire(name);
+    }
+
+    /**
+     * Releases every histogram taken so far, unpublishing those no other instance holds.
+     * Histograms already handed out keep recording. Calling it again does nothing.
+     */
+    public synchronized void unregister() {
+      for (final String name : held) {
+        release(name);
+      }
+      held.clear();
+    }
+  }
+
+  /**
+   * Returns a new set of registrations for an instance of component.
+   */
+  public static Registrations registrations (final String component) {
+    return new Registrations(component);
+  }
+
+  private static LatencyHistogram acquire (final String name) {
+    synchronized (HISTOGRAMS) {
+      Published published = HISTOGRAMS.get(name);
+      if (published == null) {
+        published = new Published();
+        try {
+          ManagementFactory.getPlatformMBeanServer().registerMBean(published.histogram, new ObjectName(name));
+          published.registered = true;
+        } catch (JMException e) {
+          LOG.warn("Unable to publish latency histogram " + name + ": " + e);
+        } catch (SecurityException e) {
+          LOG.warn("Unable to publish latency histogram " + name + ": " + e);
+        }
+        HISTOGRAMS.put(name, published);
+      }
+      published.holders++;
+      return published.histogram;
+    }
+  }
+
+  private static void release (final String name) {
+    synchronized (HISTOGRAMS) {
+      final Published published = HISTOGRAMS.get(name);
+      if (published == null || --published.holders > 0) {
+        return;
+      }
+      HISTOGRAMS.remove(name);
+      if (!published.registered) {
+        return;
+      }
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+      } catch (JMException e) {
+        LOG.warn("Unable to unpublish latency histogram " + name + ": " + e);
+      } catch (SecurityException e) {
+        LOG.warn("Unable to unpublish latency histogram " + name + ": " + e);
+      }
+    }
+  }
+
+  public static String objectName (final String component, final String stage, final String outcome) {
+    return DOMAIN + ":type=Latency,component=" + component + ",stage=" + stage + ",outcome=" + outcome;
+  }
+}
@@ -0,0 +1,161 @@
+package com.rsmart.rfabric.cache;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.rsmart.rfabric.cache.ExpiringCache.CacheLoader;
+
+public class TestExpiringCache {
+
+  private final AtomicInteger loads = new AtomicInteger();
+
+  private final CacheLoader<String, String> upperCase = new CacheLoader<String, String>() {
+    public String load(final String key) {
+      loads.incrementAndGet();
+      return key.toUpperCase();
+    }
+  };
+
+  /**
+   * A cache whose clock is advanced by hand.
+   */
+  private static class ManualClockCache extends ExpiringCache<String, String> {
+    long time = 0;
+
+    ManualClockCache(final long timeToLive, final int maximumSize) {
+      super(timeToLive, maximumSize);
+    }
+
+    @Override
+    protected long now() {
+      return time;
+    }
+  }
+
+  @Test
+  public void testValueIsLoadedOnce() throws Exception {
+    final ExpiringCache<String, String> cache = new ExpiringCache<String, String>(60000, 10);
+
+    assertEquals("A", cache.get("a", upperCase));
+    assertEquals("A", cache.get("a", upperCase));
+    assertEquals("A", cache.getIfPresent("a"));
+    assertEquals(1, loads.get());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(2, cache.getHitCount());
+  }
+
+  @Test
+  public void testExpiredValueIsReloaded() throws Exception {
+    final ManualClockCache cache = new ManualClockCache(1000, 10);
+
+    cache.get("a", upperCase);
+    cache.time = 999;
+    assertEquals("A", cache.getIfPresent("a"));
+    cache.time = 1000;
+    assertNull(cache.getIfPresent("a"));
+    assertEquals("A", cache.get("a", upperCase));
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void testPutReplacesValueAndRestartsItsTimeToLive() throws Exception {
+    final ManualClockCache cache = new ManualClockCache(1000, 10);
+
+    cache.get("a", upperCase);
+    cache.time = 500;
+    cache.put("a", "a");
+    cache.time = 1499;
+    assertEquals("a", cache.getIfPresent("a"));
+    cache.time = 1500;
+    assertNull(cache.getIfPresent("a"));
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  public void testRepeatedPutsOfOneKeyKeepTheEvictionOrderBounded() throws Exception {
+    final ManualClockCache cache = new ManualClockCache(60000, 10);
+
+    // a long lived entry at the head of the eviction order, so nothing behind it expires
+    cache.put("b", "B");
+    for (int i = 0; i < 1000; i++) {
+      cache.time = i;
+      cache.put("a", "a" + i);
+    }
+    assertEquals(2, cache.size());
+    // the live entries and at most the dead nodes awaiting the next compaction
+    assertTrue(cache.evictionOrderSize() <= 2 + cache.getMaximumSize());
+    assertEquals("a999", cache.getIfPresent("a"));
+  }
+
+  @Test
+  public void testOldestEntriesAreEvicted() throws Exception {
+    final ExpiringCache<String, String> cache = new ExpiringCache<String, String>(60000, 2);
+
+    cache.get("a", upperCase);
+    cache.get("b", upperCase);
+    cache.get("c", upperCase);
+
+    assertEquals(2, cache.size());
+    assertNull(cache.getIfPresent("a"));
+    assertEquals("C", cache.getIfPresent("c"));
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  @Test
+  public void testNullIsNotCached() throws Exception {
+    final ExpiringCache<String, String> cache = new ExpiringCache<String, String>(60000, 10);
+    final CacheLoader<String, String> nothing = new CacheLoader<String, String>() {
+      public String load(final String key) {
+        loads.incrementAndGet();
+        return null;
+      }
+    };
+
+    assertNull(cache.get("a", nothing));
+    assertNull(cache.get("a", nothing));
+    assertEquals(2, loads.get());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testConcurrentMissesShareOneLoad() throws Exception {
+    final ExpiringCache<String, String> cache = new ExpiringCache<String, String>(60000, 10);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CacheLoader<String, String> slow = new CacheLoader<String, String>() {
+      public String load(final String key) throws Exception {
+        loads.incrementAndGet();
+        release.await();
+        return key.toUpperCase();
+      }
+    };
+
+    final int threads = 16;
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicInteger correct = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int i = 0; i < threads; i++) {
+      executor.execute(new Runnable() {
+        public void run() {
+          if ("A".equals(cache.get("a", slow))) {
+            correct.incrementAndGet();
+          }
+          done.countDown();
+        }
+      });
+    }
+    Thread.sleep(100);
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    executor.shutdown();
+
+    assertEquals(1, loads.get());
+    assertEquals(threads, correct.get());
+  }
+}
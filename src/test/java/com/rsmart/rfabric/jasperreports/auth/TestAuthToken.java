@@ -0,0 +1,71 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestAuthToken {
+
+  private static final String HASH = "bogushash";
+  private static final String USER = "jdoe@email.com";
+  private static final String NONCE = "nonce";
+
+  @Test
+  public void testParsesLegacyToken() {
+    final AuthToken token = new AuthToken(HASH + ";" + USER + ";" + NONCE);
+
+    assertEquals(1, token.getVersion());
+    assertEquals(HASH, token.getHash());
+    assertEquals(HASH.length(), token.getHashLength());
+    assertEquals(USER, token.getName());
+    assertEquals(NONCE, token.getNonce());
+    assertEquals(USER + ";" + NONCE, token.getSignedContent());
+    assertNull(token.getKeyId());
+    assertEquals(AuthToken.NO_TIMESTAMP, token.getExpiresAt());
+  }
+
+  @Test
+  public void testParsesV2Token() {
+    final AuthToken token = new AuthToken("v2;k1;1700000000;1700000300;" + USER + ";" + NONCE + ";" + HASH);
+
+    assertEquals(2, token.getVersion());
+    assertEquals("k1", token.getKeyId());
+    assertEquals(1700000000L, token.getIssuedAt());
+    assertEquals(1700000300L, token.getExpiresAt());
+    assertEquals(USER, token.getName());
+    assertEquals(NONCE, token.getNonce());
+    assertEquals(HASH, token.getHash());
+    assertEquals("v2;k1;1700000000;1700000300;" + USER + ";" + NONCE, token.getSignedContent());
+  }
+
+  @Test
+  public void testEmptyPartsAreParsedButReported() {
+    final AuthToken token = new AuthToken(HASH + ";;");
+
+    assertTrue(token.isNameEmpty());
+    assertTrue(token.isNonceEmpty());
+  }
+
+  @Test
+  public void testRejectsMalformedTokens() {
+    final String[] malformed = {
+        "",
+        HASH,
+        HASH + ";" + USER,
+        HASH + ";" + USER + ";" + NONCE + ";extra",
+        "v2;k1;1700000000;" + USER + ";" + NONCE + ";" + HASH,
+        "v2;k1;1700000000;1700000300;" + USER + ";" + NONCE + ";" + HASH + ";extra",
+        "v2;k1;17000x0000;1700000300;" + USER + ";" + NONCE + ";" + HASH,
+        "v2;k1;;1700000300;" + USER + ";" + NONCE + ";" + HASH,
+        "v2;k1;1700000000;1700000300000000;" + USER + ";" + NONCE + ";" + HASH
+    };
+    for (final String token : malformed) {
+      try {
+        new AuthToken(token);
+        fail("accepted " + token);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+}
@@ -2,16 +2,36 @@ package com.rsmart.rfabric.jasperreports.auth;
 
 import static org.junit.Assert.*;
 
+import java.lang.management.ManagementFactory;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.codec.binary.Hex;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import static org.mockito.Mockito.*;
 import org.springframework.security.Authentication;
+import org.springframework.security.AuthenticationServiceException;
 import org.springframework.security.GrantedAuthority;
 
 import com.rsmart.rfabric.jasperreports.auth.AuthToken;
@@ -19,6 +39,7 @@ import com.rsmart.rfabric.jasperreports.auth.AuthTokenAuthentication;
 import com.rsmart.rfabric.jasperreports.auth.AuthTokenAuthenticationProvider;
 import com.rsmart.rfabric.jasperreports.auth.ExternalUserProvider;
 import com.rsmart.rfabric.jasperreports.auth.Signature;
+import com.rsmart.rfabric.metrics.Metrics;
 
 @RunWith(MockitoJUnitRunner.class)
 public class TestAuthTokenAuthenticationProvider {
@@ -52,13 +73,24 @@ public class TestAuthTokenAuthenticationProvider {
     byte bytes[] = new byte[20];
     secRand.nextBytes(bytes);
     
-    final String nonce = new String(bytes);
+    // hex encode so the nonce can never contain the token separator
+    final String nonce = Hex.encodeHexString(bytes);
     final String toSign = user + AuthToken.TOKEN_SEPARATOR + nonce;
     final String hmac = signature.calculateRFC2104HMACWithEncoding(toSign, SECRET_KEY, true);
     
     return hmac + AuthToken.TOKEN_SEPARATOR + toSign;
   }
   
+  protected String generateV2Token (final String user, final String keyId, final long issuedAt,
+      final long expiresAt) throws Exception {
+    byte bytes[] = new byte[20];
+    secRand.nextBytes(bytes);
+    
+    final String toSign = AuthToken.V2_PREFIX + keyId + ";" + issuedAt + ";" + expiresAt + ";"
+        + user + ";" + Hex.encodeHexString(bytes);
+    return toSign + ";" + new KeyedSignature(SECRET_KEY).calculateRawHMACWithEncoding(toSign);
+  }
+  
   @Test
   public void testAuthenticateValidToken() throws Exception {
     final String token = generateToken(JOHNDOE);
@@ -78,6 +110,36 @@ public class TestAuthTokenAuthenticationProvider {
     assertEquals(authorities[0].getAuthority(), MASTER_OF_THE_UNIVERSE);
   }
 
+  @Test
+  public void testAuthenticatedTokensShareTheCanonicalRoleSet() throws Exception {
+    final Authentication first = authnProvider.authenticate(
+        new AuthTokenAuthentication(new AuthToken(generateToken(JOHNDOE))));
+    final Authentication second = authnProvider.authenticate(
+        new AuthTokenAuthentication(new AuthToken(generateToken(JOHNDOE))));
+
+    assertTrue(first instanceof AuthenticatedToken);
+    assertNotSame(first, second);
+    assertSame(Authorities.authority(MASTER_OF_THE_UNIVERSE), first.getAuthorities()[0]);
+    // the role set is shared, but callers only ever see copies of it
+    assertNotSame(first.getAuthorities(), second.getAuthorities());
+    first.getAuthorities()[0] = null;
+    assertSame(Authorities.authority(MASTER_OF_THE_UNIVERSE), first.getAuthorities()[0]);
+    assertSame(Authorities.authority(MASTER_OF_THE_UNIVERSE), second.getAuthorities()[0]);
+  }
+
+  @Test
+  public void testRevokedAuthenticationIsVerifiedAgain() throws Exception {
+    final Authentication result = authnProvider.authenticate(
+        new AuthTokenAuthentication(new AuthToken(generateToken(JOHNDOE))));
+    result.setAuthenticated(false);
+
+    final Authentication again = authnProvider.authenticate(result);
+
+    assertTrue(again.isAuthenticated());
+    assertEquals(JOHNDOE, again.getName());
+    verify(userProvider, times(2)).userExists(JOHNDOE);
+  }
+
   @Test
   public void testAuthenticateInvalidToken() throws Exception {
     final String token = generateToken(NOTAUSER);
@@ -95,4 +157,345 @@ public class TestAuthTokenAuthenticationProvider {
     
     assertNull(authorities);
   }
+
+  @Test
+  public void testForgedTokenNeverReachesUserProvider() throws Exception {
+    final String token = generateToken(JOHNDOE);
+    final String forged = token.replace(JOHNDOE, NOTAUSER);
+    
+    AuthTokenAuthentication authentication = new AuthTokenAuthentication(new AuthToken(forged));
+    
+    assertNull(authnProvider.authenticate(authentication));
+    verify(userProvider, never()).userExists(anyString());
+    verify(userProvider, never()).getAuthoritiesForUser(anyString());
+    assertEquals(1, authnProvider.getRejectCount(AuthTokenAuthenticationProvider.Stage.SIGNATURE));
+  }
+
+  @Test
+  public void testMalformedHashIsRejectedBeforeSignatureCheck() throws Exception {
+    final AuthToken authToken = new AuthToken("short" + AuthToken.TOKEN_SEPARATOR + JOHNDOE
+        + AuthToken.TOKEN_SEPARATOR + "nonce");
+    
+    assertNull(authnProvider.authenticate(new AuthTokenAuthentication(authToken)));
+    verify(userProvider, never()).userExists(anyString());
+    assertEquals(1, authnProvider.getRejectCount(AuthTokenAuthenticationProvider.Stage.PARSE));
+    assertEquals(0, authnProvider.getRejectCount(AuthTokenAuthenticationProvider.Stage.SIGNATURE));
+  }
+
+  @Test
+  public void testUnknownUserIsCountedByDirectoryStage() throws Exception {
+    authnProvider.authenticate(new AuthTokenAuthentication(new AuthToken(generateToken(NOTAUSER))));
+    
+    assertEquals(1, authnProvider.getRejectCount(AuthTokenAuthenticationProvider.Stage.DIRECTORY));
+    verify(userProvider, never()).getAuthoritiesForUser(NOTAUSER);
+  }
+
+  @Test
+  public void testAuthenticationLatencyIsRecordedByOutcome() throws Exception {
+    final long valid = authnProvider.getLatency(AuthTokenAuthenticationProvider.Outcome.VALID).getCount();
+    final long forged = authnProvider.getLatency(AuthTokenAuthenticationProvider.Outcome.BAD_SIGNATURE).getCount();
+    final long unknown = authnProvider.getLatency(AuthTokenAuthenticationProvider.Outcome.UNKNOWN_USER).getCount();
+    final long failed = authnProvider.getLatency(AuthTokenAuthenticationProvider.Outcome.PROVIDER_ERROR).getCount();
+    when(userProvider.userExists("broken")).thenThrow(new IllegalStateException("directory down"));
+    
+    authnProvider.authenticate(new AuthTokenAuthentication(new AuthToken(generateToken(JOHNDOE))));
+    authnProvider.authenticate(new AuthTokenAuthentication(new AuthToken(generateToken(JOHNDOE).replace(JOHNDOE, NOTAUSER))));
+    authnProvider.authenticate(new AuthTokenAuthentication(new AuthToken(generateToken(NOTAUSER))));
+    try {
+      authnProvider.authenticate(new AuthTokenAuthentication(new AuthToken(generateToken("broken"))));
+      fail("a failing user provider should fail authentication");
+    } catch (AuthenticationServiceException e) {
+      // expected
+    }
+    
+    assertEquals(valid + 1, authnProvider.getLatency(AuthTokenAuthenticationProvider.Outcome.VALID).getCount());
+    assertEquals(forged + 1, authnProvider.getLatency(AuthTokenAuthenticationProvider.Outcome.BAD_SIGNATURE).getCount());
+    assertEquals(unknown + 1, authnProvider.getLatency(AuthTokenAuthenticationProvider.Outcome.UNKNOWN_USER).getCount());
+    assertEquals(failed + 1, authnProvider.getLatency(AuthTokenAuthenticationProvider.Outcome.PROVIDER_ERROR).getCount());
+  }
+  
+  @Test
+  public void testCachedTokenSkipsUserProvider() throws Exception {
+    authnProvider.setCacheTimeToLive(60000);
+    final String token = generateToken(JOHNDOE);
+    
+    for (int i = 0; i < 3; i++) {
+      Authentication result = authnProvider.authenticate(new AuthTokenAuthentication(new AuthToken(token)));
+      assertTrue(result.isAuthenticated());
+      assertEquals(JOHNDOE, result.getName());
+      assertEquals(MASTER_OF_THE_UNIVERSE, result.getAuthorities()[0].getAuthority());
+    }
+    
+    verify(userProvider, times(1)).userExists(JOHNDOE);
+    verify(userProvider, times(1)).getAuthoritiesForUser(JOHNDOE);
+    assertEquals(2, authnProvider.getCacheHitCount());
+    assertEquals(1, authnProvider.getCacheMissCount());
+  }
+
+  @Test
+  public void testAsyncProviderOverlapsLookups() throws Exception {
+    // each lookup only answers if the other one arrives while it waits
+    final CountDownLatch rendezvous = new CountDownLatch(2);
+    when(userProvider.userExists(JOHNDOE)).thenAnswer(new Answer<Boolean>() {
+      public Boolean answer(final InvocationOnMock invocation) throws Throwable {
+        rendezvous.countDown();
+        return rendezvous.await(2, TimeUnit.SECONDS);
+      }
+    });
+    when(userProvider.getAuthoritiesForUser(JOHNDOE)).thenAnswer(new Answer<GrantedAuthority[]>() {
+      public GrantedAuthority[] answer(final InvocationOnMock invocation) throws Throwable {
+        rendezvous.countDown();
+        return rendezvous.await(2, TimeUnit.SECONDS) ? new GrantedAuthority[] { authority } : null;
+      }
+    });
+    final AsyncUserProviderAdapter adapter = new AsyncUserProviderAdapter(userProvider);
+    authnProvider.setExternalUserProvider(adapter);
+    
+    try {
+      Authentication result = authnProvider.authenticate(new AuthTokenAuthentication(new AuthToken(generateToken(JOHNDOE))));
+      
+      assertTrue(result.isAuthenticated());
+      assertEquals(MASTER_OF_THE_UNIVERSE, result.getAuthorities()[0].getAuthority());
+    } finally {
+      adapter.destroy();
+    }
+  }
+
+  @Test
+  public void testAsyncProviderFailsLookupsBeyondItsQueue() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    when(userProvider.userExists(JOHNDOE)).thenAnswer(new Answer<Boolean>() {
+      public Boolean answer(final InvocationOnMock invocation) throws Throwable {
+        release.await();
+        return true;
+      }
+    });
+    final AsyncUserProviderAdapter adapter = new AsyncUserProviderAdapter(userProvider);
+    adapter.setThreads(1);
+    adapter.setQueueSize(1);
+    
+    try {
+      final Future<Boolean> running = adapter.userExistsAsync(JOHNDOE);
+      final Future<Boolean> queued = adapter.userExistsAsync(JOHNDOE);
+      final Future<Boolean> refused = adapter.userExistsAsync(JOHNDOE);
+      
+      assertTrue(refused.isDone());
+      try {
+        refused.get();
+        fail("expected the lookup beyond the queue to fail");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+      }
+      assertEquals(1, adapter.getRejectedLookups());
+      
+      release.countDown();
+      assertTrue(running.get(10, TimeUnit.SECONDS));
+      assertTrue(queued.get(10, TimeUnit.SECONDS));
+    } finally {
+      release.countDown();
+      adapter.destroy();
+    }
+  }
+
+  @Test
+  public void testAsyncProviderRejectsUnknownUser() throws Exception {
+    final AsyncUserProviderAdapter adapter = new AsyncUserProviderAdapter(userProvider);
+    authnProvider.setExternalUserProvider(adapter);
+    
+    try {
+      Authentication result = authnProvider.authenticate(new AuthTokenAuthentication(new AuthToken(generateToken(NOTAUSER))));
+      
+      assertFalse(result.isAuthenticated());
+      assertEquals(1, authnProvider.getRejectCount(AuthTokenAuthenticationProvider.Stage.DIRECTORY));
+    } finally {
+      adapter.destroy();
+    }
+  }
+
+  @Test
+  public void testReplayedTokenIsRejected() throws Exception {
+    authnProvider.setReplayGuard(new ReplayGuard(60000, 6, 1000, 0.001));
+    final String token = generateToken(JOHNDOE);
+    
+    assertTrue(authnProvider.authenticate(new AuthTokenAuthentication(new AuthToken(token))).isAuthenticated());
+    assertNull(authnProvider.authenticate(new AuthTokenAuthentication(new AuthToken(token))));
+    assertEquals(1, authnProvider.getRejectCount(AuthTokenAuthenticationProvider.Stage.FRESHNESS));
+    verify(userProvider, times(1)).userExists(JOHNDOE);
+  }
+
+  @Test
+  public void testConcurrentReplaysOfCachedTokenAreRejected() throws Exception {
+    final int threads = 8;
+    authnProvider.setReplayGuard(new ReplayGuard(60000, 6, 1000, 0.001));
+    authnProvider.setCacheTimeToLive(60000);
+    final String token = generateToken(JOHNDOE);
+    final CountDownLatch arrived = new CountDownLatch(threads);
+    // hold the first verification until every caller has presented the token, so the
+    // others find its load in flight
+    when(userProvider.userExists(JOHNDOE)).thenAnswer(new Answer<Boolean>() {
+      public Boolean answer(final InvocationOnMock invocation) throws Throwable {
+        arrived.await(5, TimeUnit.SECONDS);
+        Thread.sleep(50);
+        return true;
+      }
+    });
+    
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Future<Authentication>> results = new ArrayList<Future<Authentication>>();
+      for (int i = 0; i < threads; i++) {
+        results.add(executor.submit(new Callable<Authentication>() {
+          public Authentication call() {
+            arrived.countDown();
+            return authnProvider.authenticate(new AuthTokenAuthentication(new AuthToken(token)));
+          }
+        }));
+      }
+      int admitted = 0;
+      for (final Future<Authentication> result : results) {
+        if (result.get(10, TimeUnit.SECONDS) != null) {
+          admitted++;
+        }
+      }
+      assertEquals(1, admitted);
+      assertEquals(threads - 1, authnProvider.getRejectCount(AuthTokenAuthenticationProvider.Stage.FRESHNESS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testAuthenticateV2Token() throws Exception {
+    final long now = System.currentTimeMillis() / 1000;
+    final AuthToken authToken = new AuthToken(generateV2Token(JOHNDOE, "k1", now, now + 300));
+    
+    Authentication result = authnProvider.authenticate(new AuthTokenAuthentication(authToken));
+    
+    assertTrue(result.isAuthenticated());
+    assertEquals(JOHNDOE, result.getName());
+  }
+
+  @Test
+  public void testExpiredV2TokenIsStale() throws Exception {
+    final long now = System.currentTimeMillis() / 1000;
+    final AuthToken authToken = new AuthToken(generateV2Token(JOHNDOE, "k1", now - 600, now - 300));
+    
+    assertNull(authnProvider.authenticate(new AuthTokenAuthentication(authToken)));
+    assertEquals(1, authnProvider.getRejectCount(AuthTokenAuthenticationProvider.Stage.FRESHNESS));
+    verify(userProvider, never()).userExists(anyString());
+  }
+
+  @Test
+  public void testKeyRingVerifiesEachTokenWithItsKey() throws Exception {
+    final Properties properties = new Properties();
+    properties.setProperty(KeyRing.ACTIVE, "k2");
+    properties.setProperty(KeyRing.KEY_PREFIX + "k1", SECRET_KEY);
+    properties.setProperty(KeyRing.KEY_PREFIX + "k2", "rotated secret");
+    authnProvider.setKeyRing(KeyRing.of(properties));
+    final long now = System.currentTimeMillis() / 1000;
+
+    final AuthToken retiring = new AuthToken(generateV2Token(JOHNDOE, "k1", now, now + 300));
+    assertTrue(authnProvider.authenticate(new AuthTokenAuthentication(retiring)).isAuthenticated());
+
+    final AuthToken unknown = new AuthToken(generateV2Token(JOHNDOE, "k3", now, now + 300));
+    assertNull(authnProvider.authenticate(new AuthTokenAuthentication(unknown)));
+    assertEquals(1, authnProvider.getRejectCount(AuthTokenAuthenticationProvider.Stage.PARSE));
+
+    final AuthToken misnamed = new AuthToken(generateV2Token(JOHNDOE, "k2", now, now + 300));
+    assertNull(authnProvider.authenticate(new AuthTokenAuthentication(misnamed)));
+    assertEquals(1, authnProvider.getRejectCount(AuthTokenAuthenticationProvider.Stage.SIGNATURE));
+  }
+
+  @Test
+  public void testV2TokenForOtherKeyIsMalformed() throws Exception {
+    authnProvider.setKeyId("k2");
+    final long now = System.currentTimeMillis() / 1000;
+    final AuthToken authToken = new AuthToken(generateV2Token(JOHNDOE, "k1", now, now + 300));
+    
+    assertNull(authnProvider.authenticate(new AuthTokenAuthentication(authToken)));
+    assertEquals(1, authnProvider.getRejectCount(AuthTokenAuthenticationProvider.Stage.PARSE));
+  }
+
+  @Test
+  public void testTamperedV2ExpiryFailsSignature() throws Exception {
+    final long now = System.currentTimeMillis() / 1000;
+    final String token = generateV2Token(JOHNDOE, "k1", now, now + 300);
+    final String extended = token.replace(";" + (now + 300) + ";", ";" + (now + 86400) + ";");
+    
+    assertNull(authnProvider.authenticate(new AuthTokenAuthentication(new AuthToken(extended))));
+    assertEquals(1, authnProvider.getRejectCount(AuthTokenAuthenticationProvider.Stage.SIGNATURE));
+  }
+
+  @Test
+  public void testVerifyAllLooksEachUserUpOnce() throws Exception {
+    authnProvider.setBatchParallelism(2);
+    final List<String> tokens = Arrays.asList(generateToken(JOHNDOE), "garbage",
+        generateToken(NOTAUSER), generateToken(JOHNDOE),
+        generateToken(JOHNDOE) + "0", generateToken(NOTAUSER));
+    try {
+      final List<TokenVerification> results = authnProvider.verifyAll(tokens);
+      
+      assertEquals(6, results.size());
+      assertTrue(results.get(0).isValid());
+      assertEquals(JOHNDOE, results.get(0).getName());
+      assertEquals(MASTER_OF_THE_UNIVERSE, results.get(0).getAuthorities()[0].getAuthority());
+      assertEquals(AuthTokenAuthenticationProvider.Outcome.MALFORMED, results.get(1).getOutcome());
+      assertEquals(AuthTokenAuthenticationProvider.Outcome.UNKNOWN_USER, results.get(2).getOutcome());
+      assertTrue(results.get(3).isValid());
+      assertEquals(AuthTokenAuthenticationProvider.Outcome.BAD_SIGNATURE, results.get(4).getOutcome());
+      assertEquals(AuthTokenAuthenticationProvider.Outcome.UNKNOWN_USER, results.get(5).getOutcome());
+      
+      verify(userProvider, times(1)).userExists(JOHNDOE);
+      verify(userProvider, times(1)).getAuthoritiesForUser(JOHNDOE);
+      verify(userProvider, times(1)).userExists(NOTAUSER);
+      assertEquals(2, authnProvider.getRejectCount(AuthTokenAuthenticationProvider.Stage.DIRECTORY));
+    } finally {
+      authnProvider.destroy();
+    }
+  }
+
+  @Test
+  public void testVerifyAllLeavesTokensUsable() throws Exception {
+    authnProvider.setReplayGuard(new ReplayGuard(60000, 6, 1000, 0.001));
+    final String token = generateToken(JOHNDOE);
+    try {
+      assertTrue(authnProvider.verifyAll(Arrays.asList(token)).get(0).isValid());
+      assertNotNull(authnProvider.authenticate(new AuthTokenAuthentication(new AuthToken(token))));
+    } finally {
+      authnProvider.destroy();
+    }
+  }
+
+  private static long publishedCount (final AuthTokenAuthenticationProvider.Outcome outcome) throws Exception {
+    final ObjectName name = new ObjectName(Metrics.objectName("AuthTokenAuthenticationProvider", "authenticate",
+        outcome.getMetricName()));
+    return (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Count");
+  }
+
+  @Test
+  public void testSettingBatchParallelismKeepsHistogramsPublished() throws Exception {
+    authnProvider.setBatchParallelism(2);
+    final long before = publishedCount(AuthTokenAuthenticationProvider.Outcome.VALID);
+
+    assertTrue(authnProvider.authenticate(new AuthTokenAuthentication(new AuthToken(generateToken(JOHNDOE))))
+        .isAuthenticated());
+    // the published histogram is still the one the provider records into
+    assertEquals(before + 1, publishedCount(AuthTokenAuthenticationProvider.Outcome.VALID));
+    authnProvider.destroy();
+  }
+
+  @Test
+  public void testDestroyingOneProviderLeavesAnothersHistogramsPublished() throws Exception {
+    final AuthTokenAuthenticationProvider other = new AuthTokenAuthenticationProvider();
+    other.setExternalUserProvider(userProvider);
+    other.setSecret(SECRET_KEY);
+    authnProvider.destroy();
+    authnProvider.destroy();
+    final long before = publishedCount(AuthTokenAuthenticationProvider.Outcome.VALID);
+
+    assertTrue(other.authenticate(new AuthTokenAuthentication(new AuthToken(generateToken(JOHNDOE))))
+        .isAuthenticated());
+    assertEquals(before + 1, publishedCount(AuthTokenAuthenticationProvider.Outcome.VALID));
+    other.destroy();
+  }
 }
@@ -0,0 +1,127 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.GrantedAuthority;
+
+public class TestAuthTokenMinter {
+
+  private static final String SECRET_KEY = "secret key";
+  private static final String JOHNDOE = "jdoe@email.com";
+
+  private final AuthTokenAuthenticationProvider authnProvider = new AuthTokenAuthenticationProvider(SECRET_KEY);
+
+  @Before
+  public void createProvider() throws Exception {
+    final ExternalUserProvider userProvider = mock(ExternalUserProvider.class);
+    when(userProvider.userExists(anyString())).thenReturn(true);
+    when(userProvider.getAuthoritiesForUser(anyString())).thenReturn(new GrantedAuthority[0]);
+    authnProvider.setExternalUserProvider(userProvider);
+  }
+
+  private boolean accepted (final String token) {
+    return authnProvider.authenticate(new AuthTokenAuthentication(new AuthToken(token))) != null;
+  }
+
+  @Test
+  public void testLegacyTokenMatchesSignature() throws Exception {
+    final AuthToken authToken = new AuthToken(new AuthTokenMinter(SECRET_KEY).mint(JOHNDOE));
+
+    assertEquals(1, authToken.getVersion());
+    assertEquals(JOHNDOE, authToken.getName());
+    assertEquals(2 * AuthTokenMinter.NONCE_BYTES, authToken.getNonce().length());
+    assertEquals(new Signature().calculateRFC2104HMACWithEncoding(authToken.getSignedContent(), SECRET_KEY, true),
+        authToken.getHash());
+    assertTrue(accepted(authToken.toString()));
+  }
+
+  @Test
+  public void testV2TokenIsValidForTimeToLive() throws Exception {
+    final AuthTokenMinter minter = new AuthTokenMinter(new KeyedSignature(SECRET_KEY), "k1", 300);
+    final AuthToken authToken = new AuthToken(minter.mint(JOHNDOE, 1000));
+
+    assertEquals(2, authToken.getVersion());
+    assertEquals("k1", authToken.getKeyId());
+    assertEquals(1000, authToken.getIssuedAt());
+    assertEquals(1300, authToken.getExpiresAt());
+    assertTrue(accepted(minter.mint(JOHNDOE)));
+  }
+
+  @Test
+  public void testKeyRingMinterSignsWithActiveKey() throws Exception {
+    final AuthTokenMinter minter = new AuthTokenMinter(KeyRing.of("k2", SECRET_KEY), 60);
+    assertEquals("k2", minter.getKeyId());
+    assertTrue(accepted(minter.mint(JOHNDOE)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUserWithSeparatorIsRefused() {
+    new AuthTokenMinter(SECRET_KEY).mint("j;doe");
+  }
+
+  @Test
+  public void testConcurrentMintersDrawDistinctNonces() throws Exception {
+    final AuthTokenMinter minter = new AuthTokenMinter(SECRET_KEY);
+    final ConcurrentHashMap<String, Boolean> seen = new ConcurrentHashMap<String, Boolean>();
+    final CountDownLatch done = new CountDownLatch(4);
+    for (int t = 0; t < 4; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 5000; i++) {
+            seen.put(new AuthToken(minter.mint(JOHNDOE)).getNonce(), Boolean.TRUE);
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertEquals(20000, seen.size());
+  }
+
+  @Test
+  public void testMintAllKeepsInputOrder() throws Exception {
+    final StringBuilder users = new StringBuilder();
+    final int count = 3 * AuthTokenGenerator.CHUNK_SIZE + 7;
+    for (int i = 0; i < count; i++) {
+      users.append("user").append(i).append((i % 100 == 0) ? "\n\n" : "\n");
+    }
+    final StringWriter out = new StringWriter();
+
+    assertEquals(count, AuthTokenGenerator.mintAll(new AuthTokenMinter(SECRET_KEY),
+        new BufferedReader(new StringReader(users.toString())), out, 3));
+
+    final String[] tokens = out.toString().split("\n");
+    assertEquals(count, tokens.length);
+    final Set<String> distinct = new HashSet<String>();
+    for (int i = 0; i < count; i++) {
+      assertEquals("user" + i, new AuthToken(tokens[i]).getName());
+      distinct.add(tokens[i]);
+    }
+    assertEquals(count, distinct.size());
+    assertTrue(accepted(tokens[count - 1]));
+  }
+
+  @Test
+  public void testMintAllNamesLineOfInvalidUser() throws Exception {
+    try {
+      AuthTokenGenerator.mintAll(new AuthTokenMinter(SECRET_KEY),
+          new BufferedReader(new StringReader("jdoe\n\nj;doe\n")), new StringWriter(), 2);
+      fail("user name with a separator was minted");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("line 3:"));
+    }
+  }
+}
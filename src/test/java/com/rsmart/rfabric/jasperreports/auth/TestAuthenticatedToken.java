@@ -0,0 +1,63 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.springframework.security.GrantedAuthority;
+
+public class TestAuthenticatedToken {
+
+  private static final String USER = "jdoe@email.com";
+
+  private final AuthToken token = new AuthToken(
+      "bogus hash" + AuthToken.TOKEN_SEPARATOR + USER + AuthToken.TOKEN_SEPARATOR + "nonce");
+  private final GrantedAuthority[] authorities =
+      Authorities.canonical(new GrantedAuthority[] { Authorities.authority("ROLE_USER") });
+
+  @Test
+  public void testCarriesTheVerifiedPrincipal() {
+    final AuthenticatedToken authn = new AuthenticatedToken(token, TokenDigest.of(token),
+        new VerifiedPrincipal(USER, authorities), Long.MAX_VALUE);
+
+    assertTrue(authn.isAuthenticated());
+    assertEquals(USER, authn.getName());
+    assertEquals(USER, authn.getPrincipal());
+    assertArrayEquals(authorities, authn.getAuthorities());
+    assertNotSame(authorities, authn.getAuthorities());
+    assertSame(token, authn.getCredentials());
+  }
+
+  @Test
+  public void testRevocation() {
+    final AuthenticatedToken authn = new AuthenticatedToken(token, TokenDigest.of(token),
+        new VerifiedPrincipal(USER, authorities), Long.MAX_VALUE);
+
+    try {
+      authn.setAuthenticated(true);
+      fail("authentication cannot be granted externally");
+    } catch (IllegalArgumentException e) {
+      assertTrue(authn.isAuthenticated());
+    }
+
+    authn.setAuthenticated(false);
+    assertFalse(authn.isAuthenticated());
+    assertNull(authn.getName());
+    assertNull(authn.getAuthorities());
+    assertSame(token, authn.getCredentials());
+  }
+
+  @Test
+  public void testIsCurrentOnlyForTheSameTokenWithinItsAgeAndValidity() {
+    final long now = System.currentTimeMillis();
+    final AuthenticatedToken authn = new AuthenticatedToken(token, TokenDigest.of(token),
+        new VerifiedPrincipal(USER, authorities), now + 60000);
+
+    assertTrue(authn.isCurrentFor(TokenDigest.of(token.toString()), 1000, now));
+    assertFalse(authn.isCurrentFor(TokenDigest.of(token + "x"), 1000, now));
+    assertFalse(authn.isCurrentFor(TokenDigest.of(token), 1000, authn.getAuthenticatedAt() + 1000));
+    assertFalse(authn.isCurrentFor(TokenDigest.of(token), 120000, now + 60001));
+
+    authn.setAuthenticated(false);
+    assertFalse(authn.isCurrentFor(TokenDigest.of(token), 1000, now));
+  }
+}
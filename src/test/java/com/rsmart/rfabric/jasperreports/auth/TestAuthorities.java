@@ -0,0 +1,45 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.Test;
+import org.springframework.security.GrantedAuthority;
+import org.springframework.security.GrantedAuthorityImpl;
+
+public class TestAuthorities {
+
+  @Test
+  public void testAuthoritiesAreInterned() {
+    final GrantedAuthority user = Authorities.authority("ROLE_USER");
+
+    assertSame(user, Authorities.authority("ROLE_USER"));
+    assertEquals("ROLE_USER", user.getAuthority());
+    assertNotSame(user, Authorities.authority("ROLE_ADMINISTRATOR"));
+  }
+
+  @Test
+  public void testIdenticalRoleSetsShareOneArray() {
+    final GrantedAuthority[] first = Authorities.canonical(new GrantedAuthority[] {
+        new GrantedAuthorityImpl("ROLE_USER"), new GrantedAuthorityImpl("ROLE_ADMINISTRATOR") });
+    final GrantedAuthority[] second = Authorities.canonical(new GrantedAuthority[] {
+        new GrantedAuthorityImpl("ROLE_ADMINISTRATOR"), new GrantedAuthorityImpl("ROLE_USER"),
+        new GrantedAuthorityImpl("ROLE_USER") });
+
+    assertSame(first, second);
+    assertEquals(2, first.length);
+    assertSame(Authorities.authority("ROLE_ADMINISTRATOR"), first[0]);
+    assertSame(Authorities.authority("ROLE_USER"), first[1]);
+    assertNotSame(first, Authorities.canonical(new GrantedAuthority[] { Authorities.authority("ROLE_USER") }));
+  }
+
+  @Test
+  public void testEmptyAndUnnamedAuthorities() {
+    assertNull(Authorities.canonical(null));
+    assertSame(Authorities.canonical(new GrantedAuthority[0]), Authorities.canonical(new GrantedAuthority[0]));
+
+    final GrantedAuthority unnamed = mock(GrantedAuthority.class);
+    final GrantedAuthority[] complex = new GrantedAuthority[] { Authorities.authority("ROLE_USER"), unnamed };
+    assertSame(complex, Authorities.canonical(complex));
+  }
+}
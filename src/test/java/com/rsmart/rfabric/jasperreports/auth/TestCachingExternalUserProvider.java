@@ -0,0 +1,112 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.security.GrantedAuthority;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TestCachingExternalUserProvider {
+
+  private static final String JOHNDOE = "jdoe@email.com";
+  private static final String NOTAUSER = "nobody";
+  private static final String BROKEN = "broken";
+
+  @Mock
+  private ExternalUserProvider delegate;
+
+  @Mock
+  private GrantedAuthority authority;
+
+  /**
+   * A provider whose clock is advanced by hand.
+   */
+  private static class ManualClockProvider extends CachingExternalUserProvider {
+    long time = 0;
+
+    ManualClockProvider(final ExternalUserProvider delegate) {
+      super(delegate);
+    }
+
+    @Override
+    protected long now() {
+      return time;
+    }
+  }
+
+  private ManualClockProvider provider;
+
+  @Before
+  public void createProvider() throws Exception {
+    when(delegate.userExists(JOHNDOE)).thenReturn(true);
+    when(delegate.userExists(NOTAUSER)).thenReturn(false);
+    when(delegate.userExists(BROKEN)).thenThrow(new Exception("directory unavailable"));
+    when(delegate.getAuthoritiesForUser(JOHNDOE)).thenReturn(new GrantedAuthority[] { authority });
+
+    provider = new ManualClockProvider(delegate);
+    provider.setRefreshThreads(0);
+  }
+
+  @Test
+  public void testAnswersAreCachedSeparately() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      assertTrue(provider.userExists(JOHNDOE));
+      assertSame(authority, provider.getAuthoritiesForUser(JOHNDOE)[0]);
+    }
+
+    verify(delegate, times(1)).userExists(JOHNDOE);
+    verify(delegate, times(1)).getAuthoritiesForUser(JOHNDOE);
+  }
+
+  @Test
+  public void testUnknownUserIsCachedForMissingTimeToLive() throws Exception {
+    provider.setMissingTimeToLive(50);
+
+    assertFalse(provider.userExists(NOTAUSER));
+    provider.time = 49;
+    assertFalse(provider.userExists(NOTAUSER));
+    verify(delegate, times(1)).userExists(NOTAUSER);
+
+    provider.time = 50;
+    assertFalse(provider.userExists(NOTAUSER));
+    verify(delegate, times(2)).userExists(NOTAUSER);
+  }
+
+  @Test
+  public void testDelegateExceptionIsNotCached() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      try {
+        provider.userExists(BROKEN);
+        fail("expected the delegate's exception");
+      } catch (Exception e) {
+        assertEquals("directory unavailable", e.getMessage());
+      }
+    }
+    verify(delegate, times(2)).userExists(BROKEN);
+  }
+
+  @Test
+  public void testHotEntryIsRefreshedInBackground() throws Exception {
+    provider.setRefreshThreads(1);
+    provider.setExistsTimeToLive(200);
+    provider.setRefreshAheadRatio(0.1);
+    try {
+      assertTrue(provider.userExists(JOHNDOE));
+      provider.time = 19;
+      assertTrue(provider.userExists(JOHNDOE));
+      verify(delegate, times(1)).userExists(JOHNDOE);
+
+      // past a tenth of the time to live the hit is served and the entry reloaded behind it
+      provider.time = 20;
+      assertTrue(provider.userExists(JOHNDOE));
+      verify(delegate, timeout(1000).times(2)).userExists(JOHNDOE);
+    } finally {
+      provider.destroy();
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class TestKeyRing {
+
+  private static final String RING =
+      "active=k2\n" +
+      "legacy=k1\n" +
+      "key.k1=old secret\n" +
+      "key.k2=new secret\n";
+
+  private static AuthToken v2 (final String keyId) {
+    return new AuthToken("v2;" + keyId + ";1;2;jdoe@email.com;nonce;hash");
+  }
+
+  private static final AuthToken LEGACY = new AuthToken("hash;jdoe@email.com;nonce");
+
+  @Test
+  public void testTokensAreVerifiedWithTheKeyTheyName() throws Exception {
+    final KeyRing ring = KeyRing.load(new ByteArrayInputStream(RING.getBytes("UTF-8")));
+
+    assertEquals("k2", ring.getActiveKeyId());
+    assertSame(ring.getSignature("k2"), ring.getActive());
+    assertSame(ring.getSignature("k1"), ring.getSignature(v2("k1")));
+    assertSame(ring.getSignature("k2"), ring.getSignature(v2("k2")));
+    assertSame(ring.getSignature("k1"), ring.getSignature(LEGACY));
+    assertNull(ring.getSignature(v2("k3")));
+    assertEquals(2, ring.getKeyIds().size());
+
+    final String signed = "k1 content";
+    assertTrue(ring.getSignature("k1").verifyRawHMAC(signed,
+        new KeyedSignature("old secret").calculateRawHMACWithEncoding(signed)));
+  }
+
+  @Test
+  public void testLegacyTokensUseTheActiveKeyByDefault() {
+    final Properties properties = new Properties();
+    properties.setProperty("active", "k1");
+    properties.setProperty("key.k1", "secret");
+
+    final KeyRing ring = KeyRing.of(properties);
+    assertSame(ring.getActive(), ring.getSignature(LEGACY));
+  }
+
+  @Test
+  public void testSingleSecret() {
+    final KeyRing anyKeyId = KeyRing.of(null, "secret");
+    assertNotNull(anyKeyId.getSignature(v2("k1")));
+    assertSame(anyKeyId.getSignature(v2("k1")), anyKeyId.getSignature(LEGACY));
+
+    final KeyRing oneKeyId = KeyRing.of("k1", "secret");
+    assertNotNull(oneKeyId.getSignature(v2("k1")));
+    assertNull(oneKeyId.getSignature(v2("k2")));
+    assertSame(oneKeyId.getActive(), oneKeyId.getSignature(LEGACY));
+  }
+
+  @Test
+  public void testInvalidKeyRingsAreRefused() {
+    assertInvalid("key.k1=secret\n");
+    assertInvalid("active=k2\nkey.k1=secret\n");
+    assertInvalid("active=k1\nlegacy=k2\nkey.k1=secret\n");
+    assertInvalid("active=k1\nkey.k1=\n");
+    assertInvalid("active=k;1\nkey.k;1=secret\n");
+  }
+
+  private static void assertInvalid (final String ring) {
+    try {
+      KeyRing.load(new ByteArrayInputStream(ring.getBytes()));
+      fail("accepted " + ring);
+    } catch (IllegalArgumentException e) {
+      // expected
+    } catch (Exception e) {
+      fail(e.toString());
+    }
+  }
+}
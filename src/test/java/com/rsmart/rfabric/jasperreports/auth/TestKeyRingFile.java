@@ -0,0 +1,73 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestKeyRingFile {
+
+  private File file;
+
+  @Before
+  public void createFile() throws IOException {
+    file = File.createTempFile("keyring", ".properties");
+  }
+
+  @After
+  public void deleteFile() {
+    file.delete();
+  }
+
+  private void write (final String ring, final long modified) throws IOException {
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(ring.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    file.setLastModified(modified);
+  }
+
+  @Test
+  public void testChangedFileIsReloaded() throws Exception {
+    write("active=k1\nkey.k1=first\n", 1000000);
+    final KeyRingFile keyRingFile = new KeyRingFile(file, 0);
+    final KeyRing first = keyRingFile.getKeyRing();
+    assertEquals("k1", first.getActiveKeyId());
+    assertSame(first, keyRingFile.getKeyRing());
+
+    write("active=k2\nkey.k1=first\nkey.k2=second\n", 2000000);
+    final KeyRing second = keyRingFile.getKeyRing();
+    assertEquals("k2", second.getActiveKeyId());
+    assertNotNull(second.getSignature("k1"));
+  }
+
+  @Test
+  public void testInvalidFileKeepsThePreviousKeyRing() throws Exception {
+    write("active=k1\nkey.k1=first\n", 1000000);
+    final KeyRingFile keyRingFile = new KeyRingFile(file, 0);
+    final KeyRing first = keyRingFile.getKeyRing();
+
+    write("active=k2\nkey.k1=first\n", 2000000);
+    assertFalse(keyRingFile.reloadIfModified());
+    assertSame(first, keyRingFile.getKeyRing());
+  }
+
+  @Test
+  public void testFileIsCheckedAtMostOncePerInterval() throws Exception {
+    write("active=k1\nkey.k1=first\n", 1000000);
+    final KeyRingFile keyRingFile = new KeyRingFile(file, 3600000);
+    final KeyRing first = keyRingFile.getKeyRing();
+
+    write("active=k2\nkey.k2=second\n", 2000000);
+    assertSame(first, keyRingFile.getKeyRing());
+    assertTrue(keyRingFile.reloadIfModified());
+    assertEquals("k2", keyRingFile.getKeyRing().getActiveKeyId());
+  }
+}
@@ -0,0 +1,118 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+public class TestKeyedSignature {
+
+  protected final static String SECRET = "secret key";
+  protected final static String NONCE = "nonce";
+  protected final static String USER = "user";
+  private final static String BASE64URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+  @Test
+  public void testMatchesSignature() throws Exception {
+    final String token = USER + ";" + NONCE;
+    final KeyedSignature signature = new KeyedSignature(SECRET);
+
+    assertEquals(TestSignature.BONAFIDE_AND_TESTED_CORRECT_RESULT,
+       signature.calculateRFC2104HMACWithEncoding(token, true));
+    assertEquals(new Signature().calculateRFC2104HMAC(token, SECRET),
+       signature.calculateRFC2104HMACWithEncoding(token, false));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEmptySecretIsRejected() throws Exception {
+    new KeyedSignature("");
+  }
+
+  @Test
+  public void testConcurrentCallersAgree() throws Exception {
+    final KeyedSignature signature = new KeyedSignature(SECRET);
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int t = 0; t < 8; t++) {
+        results.add(executor.submit(new Callable<Boolean>() {
+          public Boolean call() throws Exception {
+            final Signature reference = new Signature();
+            for (int i = 0; i < 2000; i++) {
+              final String data = USER + i + ";" + NONCE;
+              if (!reference.calculateRFC2104HMACWithEncoding(data, SECRET, true)
+                  .equals(signature.calculateRFC2104HMACWithEncoding(data, true))) {
+                return false;
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      for (final Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testVerifiesEncodedHMAC() throws Exception {
+    final String token = USER + ";" + NONCE;
+    final KeyedSignature signature = new KeyedSignature(SECRET);
+
+    assertTrue(signature.verifyRFC2104HMAC(token, TestSignature.BONAFIDE_AND_TESTED_CORRECT_RESULT));
+    assertFalse(signature.verifyRFC2104HMAC(token + "x", TestSignature.BONAFIDE_AND_TESTED_CORRECT_RESULT));
+    assertFalse(signature.verifyRFC2104HMAC(token, "not a hash"));
+    assertFalse(signature.verifyRFC2104HMAC(token, ""));
+  }
+
+  @Test
+  public void testVerifiesRawHMAC() throws Exception {
+    final String[] messages = { USER + ";" + NONCE, "v2;k1;1;2;j\u00f6rg;\u20ac\ud83d\ude00;n", "\ud800 lone" };
+    final KeyedSignature signature = new KeyedSignature(SECRET);
+
+    for (final String message : messages) {
+      final String hash = signature.calculateRawHMACWithEncoding(message);
+      assertTrue(message, signature.verifyRawHMAC(message, hash));
+      assertFalse(message, signature.verifyRawHMAC(message + ";", hash));
+
+      final char last = hash.charAt(hash.length() - 2);
+      final String altered = hash.substring(0, hash.length() - 2) + (last == 'A' ? 'B' : 'A') + hash.charAt(hash.length() - 1);
+      assertFalse(message, signature.verifyRawHMAC(message, altered));
+    }
+    assertFalse(signature.verifyRawHMAC(messages[0], "too short"));
+  }
+
+  @Test
+  public void testOnlyCanonicalSpellingOfHMACIsAccepted() throws Exception {
+    final String token = USER + ";" + NONCE;
+    final KeyedSignature signature = new KeyedSignature(SECRET);
+    final String canonical = TestSignature.BONAFIDE_AND_TESTED_CORRECT_RESULT;
+
+    // padded, standard alphabet
+    assertFalse(signature.verifyRFC2104HMAC(token, signature.calculateRFC2104HMACWithEncoding(token, false)));
+    assertFalse(signature.verifyRFC2104HMAC(token, canonical + "=="));
+    // upper case hex digits, re-encoded
+    final String hex = new String(Base64.decodeBase64(canonical), "UTF-8");
+    assertFalse(signature.verifyRFC2104HMAC(token, Base64.encodeBase64URLSafeString(hex.toUpperCase().getBytes("UTF-8"))));
+
+    for (final String message : new String[] { token, "v2;k1;1;2;jdoe;n", "v2;k1;1;2;jdoe;m" }) {
+      final String hash = signature.calculateRawHMACWithEncoding(message);
+      assertTrue(message, signature.verifyRawHMAC(message, hash));
+      // a 20 byte HMAC leaves 2 unused bits in its last digit; setting them must not verify
+      final char last = hash.charAt(hash.length() - 1);
+      final char noisy = BASE64URL.charAt(BASE64URL.indexOf(last) | 1);
+      assertFalse(message, signature.verifyRawHMAC(message, hash.substring(0, hash.length() - 1) + noisy));
+      assertFalse(message, signature.verifyRawHMAC(message, hash.replace('-', '+').replace('_', '/') + "="));
+    }
+  }
+}
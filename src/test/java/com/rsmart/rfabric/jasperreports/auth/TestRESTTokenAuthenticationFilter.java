@@ -0,0 +1,107 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.security.Authentication;
+import org.springframework.security.AuthenticationManager;
+import org.springframework.security.GrantedAuthority;
+import org.springframework.security.context.SecurityContextHolder;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TestRESTTokenAuthenticationFilter {
+
+  private static final String USER = "jdoe@email.com";
+  private static final String TOKEN = "hash" + AuthToken.TOKEN_SEPARATOR + USER + AuthToken.TOKEN_SEPARATOR + "nonce";
+
+  private final RESTTokenAuthenticationFilter filter = new RESTTokenAuthenticationFilter();
+
+  @Mock
+  private AuthenticationManager authenticationManager;
+  @Mock
+  private HttpServletRequest request;
+  @Mock
+  private HttpServletResponse response;
+  @Mock
+  private FilterChain chain;
+
+  @Before
+  public void createFilter() {
+    filter.setAuthenticationManager(authenticationManager);
+    when(request.getHeader(RESTTokenAuthenticationFilter.AUTH_TOKEN_HEADER)).thenReturn(TOKEN);
+    when(authenticationManager.authenticate(any(Authentication.class))).thenAnswer(
+        new Answer<Authentication>() {
+          public Authentication answer(final InvocationOnMock invocation) {
+            return authenticated(((AuthTokenAuthentication) invocation.getArguments()[0]).getCredentials().toString());
+          }
+        });
+  }
+
+  @After
+  public void clearContext() {
+    SecurityContextHolder.clearContext();
+  }
+
+  private static AuthenticatedToken authenticated(final String token) {
+    return new AuthenticatedToken(new AuthToken(token), TokenDigest.of(token),
+        new VerifiedPrincipal(USER, new GrantedAuthority[0]), Long.MAX_VALUE);
+  }
+
+  @Test
+  public void testEveryRequestIsAuthenticatedByDefault() throws Exception {
+    filter.doFilter(request, response, chain);
+    filter.doFilter(request, response, chain);
+
+    verify(authenticationManager, times(2)).authenticate(any(Authentication.class));
+    verify(chain, times(2)).doFilter(request, response);
+  }
+
+  @Test
+  public void testAuthenticationInContextIsReusedForTheSameToken() throws Exception {
+    filter.setContextTimeToLive(60000);
+
+    filter.doFilter(request, response, chain);
+    final Authentication first = SecurityContextHolder.getContext().getAuthentication();
+    filter.doFilter(request, response, chain);
+
+    verify(authenticationManager, times(1)).authenticate(any(Authentication.class));
+    verify(chain, times(2)).doFilter(request, response);
+    assertSame(first, SecurityContextHolder.getContext().getAuthentication());
+  }
+
+  @Test
+  public void testAnotherTokenIsAuthenticated() throws Exception {
+    filter.setContextTimeToLive(60000);
+    SecurityContextHolder.getContext().setAuthentication(authenticated(TOKEN + "x"));
+
+    filter.doFilter(request, response, chain);
+
+    verify(authenticationManager).authenticate(any(Authentication.class));
+  }
+
+  @Test
+  public void testOldOrRevokedAuthenticationIsAuthenticatedAgain() throws Exception {
+    filter.setContextTimeToLive(1);
+    SecurityContextHolder.getContext().setAuthentication(authenticated(TOKEN));
+    Thread.sleep(5);
+    filter.doFilter(request, response, chain);
+
+    filter.setContextTimeToLive(60000);
+    SecurityContextHolder.getContext().getAuthentication().setAuthenticated(false);
+    filter.doFilter(request, response, chain);
+
+    verify(authenticationManager, times(2)).authenticate(any(Authentication.class));
+  }
+}
@@ -0,0 +1,111 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestReplayGuard {
+
+  private static final String JOHNDOE = "jdoe@email.com";
+
+  /**
+   * A guard whose clock is set by the test.
+   */
+  private static class ManualClockGuard extends ReplayGuard {
+    final AtomicLong time = new AtomicLong(1000000);
+
+    ManualClockGuard (final long window, final int buckets, final long expected, final double rate) {
+      super(window, buckets, expected, rate);
+    }
+
+    @Override
+    protected long now() {
+      return time.get();
+    }
+  }
+
+  @Test
+  public void testSecondUseIsReplay() {
+    final ReplayGuard guard = new ReplayGuard(60000, 6, 1000, 0.001);
+
+    assertTrue(guard.firstUse(JOHNDOE, "nonce-1"));
+    assertFalse(guard.firstUse(JOHNDOE, "nonce-1"));
+    assertTrue(guard.firstUse(JOHNDOE, "nonce-2"));
+    assertTrue(guard.firstUse("someone else", "nonce-1"));
+    assertEquals(1, guard.getReplayCount());
+  }
+
+  @Test
+  public void testNonceIsRememberedAcrossBucketsAndForgottenAfterWindow() {
+    final ManualClockGuard guard = new ManualClockGuard(60000, 6, 1000, 0.001);
+
+    assertTrue(guard.firstUse(JOHNDOE, "nonce"));
+    guard.time.addAndGet(45000);
+    assertFalse(guard.firstUse(JOHNDOE, "nonce"));
+    guard.time.addAndGet(60000);
+    assertTrue(guard.firstUse(JOHNDOE, "nonce"));
+  }
+
+  @Test
+  public void testNoFalsePositivesWhileTablesHaveRoom() {
+    final ReplayGuard guard = new ReplayGuard(60000, 2, 20000, 0.5);
+
+    for (int i = 0; i < 20000; i++) {
+      assertTrue(guard.firstUse(JOHNDOE, Integer.toString(i)));
+    }
+  }
+
+  @Test
+  public void testOverflowedBucketStillDetectsReplays() {
+    final ReplayGuard guard = new ReplayGuard(60000, 2, 100, 0.001);
+
+    for (int i = 0; i < 1000; i++) {
+      guard.firstUse(JOHNDOE, Integer.toString(i));
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertFalse(guard.firstUse(JOHNDOE, Integer.toString(i)));
+    }
+  }
+
+  @Test
+  public void testConcurrentUsesOfOneNonceHaveOneWinner() throws Exception {
+    final ReplayGuard guard = new ReplayGuard(60000, 6, 1000, 0.001);
+    final int threads = 8;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int round = 0; round < 50; round++) {
+        final String nonce = "nonce-" + round;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < threads; i++) {
+          results.add(executor.submit(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+              start.await();
+              return guard.firstUse(JOHNDOE, nonce);
+            }
+          }));
+        }
+        start.countDown();
+
+        int winners = 0;
+        for (final Future<Boolean> result : results) {
+          if (result.get()) {
+            winners++;
+          }
+        }
+        assertEquals(1, winners);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package com.rsmart.rfabric.jasperreports.auth;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.security.GrantedAuthority;
+
+import com.rsmart.rfabric.jasperreports.auth.AuthTokenAuthenticationProvider.Outcome;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TestTokenVerificationFilter {
+
+  private final TokenVerificationFilter filter = new TokenVerificationFilter();
+  private final StringWriter body = new StringWriter();
+
+  @Mock
+  private AuthTokenAuthenticationProvider authenticationProvider;
+  @Mock
+  private HttpServletRequest request;
+  @Mock
+  private HttpServletResponse response;
+  @Mock
+  private FilterChain chain;
+
+  @Before
+  public void createFilter() throws Exception {
+    filter.setAuthenticationProvider(authenticationProvider);
+    when(request.getMethod()).thenReturn("POST");
+    when(response.getWriter()).thenReturn(new PrintWriter(body));
+  }
+
+  private void post (final String content) throws Exception {
+    when(request.getReader()).thenReturn(new BufferedReader(new StringReader(content)));
+  }
+
+  @Test
+  public void testResultsAreWrittenInTokenOrder() throws Exception {
+    post("first\n\n  second  \n");
+    final List<TokenVerification> results = Arrays.asList(
+        TokenVerification.valid(new VerifiedPrincipal("j\"doe", new GrantedAuthority[] {
+            Authorities.authority("ROLE_USER"), Authorities.authority("ROLE_ADMINISTRATOR") })),
+        TokenVerification.rejected(Outcome.STALE));
+    when(authenticationProvider.verifyAll(Arrays.asList("first", "second"))).thenReturn(results);
+
+    filter.doFilter(request, response, chain);
+
+    assertEquals("{\"results\":[{\"outcome\":\"valid\",\"name\":\"j\\\"doe\",\"authorities\":"
+        + "[\"ROLE_USER\",\"ROLE_ADMINISTRATOR\"]},{\"outcome\":\"stale\"}]}", body.toString());
+    verify(response).setContentType("application/json");
+    verifyZeroInteractions(chain);
+  }
+
+  @Test
+  public void testOnlyPostIsAllowed() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+
+    filter.doFilter(request, response, chain);
+
+    verify(response).sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+    verifyZeroInteractions(authenticationProvider, chain);
+  }
+
+  @Test
+  public void testOversizedBatchIsRefused() throws Exception {
+    filter.setMaximumBatchSize(2);
+    post("a\nb\nc\n");
+
+    filter.doFilter(request, response, chain);
+
+    verify(response).sendError(eq(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE), anyString());
+    verifyZeroInteractions(authenticationProvider);
+  }
+}
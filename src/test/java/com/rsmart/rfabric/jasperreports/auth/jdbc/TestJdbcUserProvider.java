@@ -0,0 +1,126 @@
+package com.rsmart.rfabric.jasperreports.auth.jdbc;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.GrantedAuthority;
+
+import com.rsmart.rfabric.jasperreports.auth.AuthTokenAuthentication;
+import com.rsmart.rfabric.jasperreports.auth.AuthTokenAuthenticationProvider;
+import com.rsmart.rfabric.jasperreports.auth.AuthTokenMinter;
+import com.rsmart.rfabric.jasperreports.auth.AuthToken;
+
+public class TestJdbcUserProvider {
+
+  private static final AtomicInteger DATABASES = new AtomicInteger();
+
+  private final JdbcUserProvider provider = new JdbcUserProvider();
+  private JdbcDataSource dataSource;
+  private Connection keepAlive;
+
+  @Before
+  public void createDatabase() throws SQLException {
+    dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:users" + DATABASES.incrementAndGet());
+    // an in-memory database lives as long as a connection to it is open
+    keepAlive = dataSource.getConnection();
+    final Statement ddl = keepAlive.createStatement();
+    ddl.execute("CREATE TABLE users (user_name VARCHAR(100) PRIMARY KEY)");
+    ddl.execute("CREATE TABLE user_roles (user_name VARCHAR(100), role_name VARCHAR(100))");
+    ddl.execute("INSERT INTO users VALUES ('jdoe'), ('jasperadmin'), ('nobody')");
+    ddl.execute("INSERT INTO user_roles VALUES ('jdoe', 'ROLE_USER'), ('jasperadmin', 'ROLE_USER'),"
+        + " ('jasperadmin', 'ROLE_ADMINISTRATOR'), ('ghost', 'ROLE_USER')");
+    ddl.close();
+
+    provider.setDataSource(dataSource);
+    provider.setMaximumConnections(2);
+  }
+
+  @After
+  public void dropDatabase() throws SQLException {
+    provider.destroy();
+    keepAlive.close();
+  }
+
+  private static String[] names (final GrantedAuthority[] authorities) {
+    final String[] names = new String[authorities.length];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = authorities[i].getAuthority();
+    }
+    return names;
+  }
+
+  @Test
+  public void testOneQueryResolvesExistenceAndRoles() throws Exception {
+    assertArrayEquals(new String[] { "ROLE_ADMINISTRATOR", "ROLE_USER" }, names(provider.resolveUser("jasperadmin")));
+    assertArrayEquals(new String[] { "ROLE_USER" }, names(provider.resolveUser("jdoe")));
+    assertEquals(0, provider.resolveUser("nobody").length);
+    assertNull(provider.resolveUser("ghost"));
+
+    assertTrue(provider.userExists("nobody"));
+    assertFalse(provider.userExists("ghost"));
+    assertNull(provider.getAuthoritiesForUser("ghost"));
+    assertNotSame(provider.getAuthoritiesForUser("jdoe"), provider.getAuthoritiesForUser("jdoe"));
+    assertEquals(1, provider.getStatementPool().getOpenedCount());
+  }
+
+  @Test
+  public void testConnectionsAreBounded() throws Exception {
+    final CountDownLatch done = new CountDownLatch(8);
+    final AtomicInteger failures = new AtomicInteger();
+    for (int t = 0; t < 8; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 200; i++) {
+              if (provider.resolveUser("jdoe").length != 1) {
+                failures.incrementAndGet();
+              }
+            }
+          } catch (SQLException e) {
+            failures.incrementAndGet();
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    assertTrue(done.await(60, TimeUnit.SECONDS));
+    assertEquals(0, failures.get());
+    assertTrue(provider.getStatementPool().getOpenedCount() <= 2);
+  }
+
+  @Test
+  public void testStaleConnectionIsReplaced() throws Exception {
+    assertNotNull(provider.resolveUser("jdoe"));
+    // close the pooled connection behind the pool's back
+    final StatementPool.Lease lease = provider.getStatementPool().borrow();
+    lease.getStatement().getConnection().close();
+    provider.getStatementPool().release(lease);
+
+    assertNotNull(provider.resolveUser("jdoe"));
+    assertEquals(2, provider.getStatementPool().getOpenedCount());
+  }
+
+  @Test
+  public void testAuthenticationProviderResolvesWithOneLookup() throws Exception {
+    final AuthTokenAuthenticationProvider authnProvider = new AuthTokenAuthenticationProvider("secret key");
+    authnProvider.setExternalUserProvider(provider);
+    final AuthTokenMinter minter = new AuthTokenMinter("secret key");
+
+    assertArrayEquals(new String[] { "ROLE_ADMINISTRATOR", "ROLE_USER" }, names(authnProvider.authenticate(
+        new AuthTokenAuthentication(new AuthToken(minter.mint("jasperadmin")))).getAuthorities()));
+    assertFalse(authnProvider.authenticate(new AuthTokenAuthentication(new AuthToken(minter.mint("ghost")))).isAuthenticated());
+    assertEquals(1, authnProvider.getRejectCount(AuthTokenAuthenticationProvider.Stage.DIRECTORY));
+  }
+}
@@ -0,0 +1,156 @@
+package com.rsmart.rfabric.jasperreports.auth.kim;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rsmart.rfabric.jasperreports.auth.kim.CircuitBreaker.Permit;
+import com.rsmart.rfabric.jasperreports.auth.kim.CircuitBreaker.State;
+
+public class TestCircuitBreaker {
+
+  /**
+   * A breaker whose clock is advanced by hand.
+   */
+  private static class ManualClockBreaker extends CircuitBreaker {
+    long time = 0;
+
+    @Override
+    protected long now() {
+      return time;
+    }
+  }
+
+  private final ManualClockBreaker breaker = new ManualClockBreaker();
+
+  @Before
+  public void configure() {
+    breaker.setWindowSize(10);
+    breaker.setMinimumCalls(4);
+    breaker.setFailureRateThreshold(0.5);
+    breaker.setSlowCallRateThreshold(0.5);
+    breaker.setSlowCallDuration(100);
+    breaker.setOpenDuration(1000);
+    breaker.setHalfOpenRequests(2);
+  }
+
+  private void succeed(final int times) {
+    for (int i = 0; i < times; i++) {
+      breaker.acquire().succeeded();
+    }
+  }
+
+  private void fail(final int times) {
+    for (int i = 0; i < times; i++) {
+      breaker.acquire().failed();
+    }
+  }
+
+  private void succeedSlowly(final int times) {
+    for (int i = 0; i < times; i++) {
+      final Permit permit = breaker.acquire();
+      breaker.time += 500;
+      permit.succeeded();
+    }
+  }
+
+  @Test
+  public void testOpensAtFailureRateOnceMinimumCallsAreRecorded() {
+    fail(3);
+    assertEquals(State.CLOSED, breaker.getState());
+
+    succeed(1);
+    assertEquals(State.OPEN, breaker.getState());
+    assertNull(breaker.acquire());
+    assertEquals(1, breaker.getRejectedRequests());
+    assertEquals(1, breaker.getTimesOpened());
+  }
+
+  @Test
+  public void testOpensAtSlowCallRate() {
+    succeed(3);
+    succeedSlowly(2);
+    assertEquals(State.CLOSED, breaker.getState());
+
+    succeedSlowly(1);
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testOldOutcomesLeaveTheWindow() {
+    for (int round = 0; round < 2; round++) {
+      succeed(round == 0 ? 6 : 10);
+      fail(4);
+    }
+    // 8 failures in all, but only the last 4 are within the window of 10
+    assertEquals(State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testPermitReportsOnlyItsFirstOutcome() {
+    final Permit permit = breaker.acquire();
+    permit.failed();
+    for (int i = 0; i < 3; i++) {
+      permit.failed();
+    }
+    succeed(3);
+    assertEquals(State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testPermitSeesCircuitOpenWhileItsRequestIsUnderWay() {
+    final Permit permit = breaker.acquire();
+    assertFalse(permit.isCircuitOpen());
+    fail(4);
+    assertTrue(permit.isCircuitOpen());
+    assertFalse(Permit.UNGUARDED.isCircuitOpen());
+  }
+
+  @Test
+  public void testHalfOpenClosesAfterSuccessfulTrials() {
+    fail(4);
+    breaker.time = 1000;
+
+    final Permit first = breaker.acquire();
+    final Permit second = breaker.acquire();
+    assertNotNull(first);
+    assertNotNull(second);
+    assertNull(breaker.acquire());
+    assertEquals(State.HALF_OPEN, breaker.getState());
+
+    first.succeeded();
+    second.succeeded();
+    assertEquals(State.CLOSED, breaker.getState());
+    assertNotNull(breaker.acquire());
+  }
+
+  @Test
+  public void testHalfOpenIgnoresRequestsAdmittedBeforeItOpened() {
+    final Permit early = breaker.acquire();
+    final Permit late = breaker.acquire();
+    fail(4);
+    breaker.time = 1000;
+
+    final Permit trial = breaker.acquire();
+    early.succeeded();
+    late.succeeded();
+    assertEquals(State.HALF_OPEN, breaker.getState());
+
+    trial.succeeded();
+    breaker.acquire().succeeded();
+    assertEquals(State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testHalfOpenReopensOnSlowTrial() {
+    fail(4);
+    breaker.time = 1000;
+
+    succeedSlowly(1);
+    assertEquals(State.OPEN, breaker.getState());
+    assertEquals(2, breaker.getTimesOpened());
+    breaker.time = 2499;
+    assertNull(breaker.acquire());
+  }
+}
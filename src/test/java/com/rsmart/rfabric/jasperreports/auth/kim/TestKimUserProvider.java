@@ -0,0 +1,405 @@
+package com.rsmart.rfabric.jasperreports.auth.kim;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.ws.AsyncHandler;
+import javax.xml.ws.Response;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.kuali.rice.core.v2_0.StringMapEntryListType;
+import org.kuali.rice.kim.v2_0.GetAuthorizedPermissionsByTemplateResponse;
+import org.kuali.rice.kim.v2_0.HasPermissionResponse;
+import org.kuali.rice.kim.v2_0.PermissionService;
+import org.kuali.rice.kim.v2_0.PermissionService_Service;
+import org.kuali.rice.kim.v2_0.PermissionType;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.security.GrantedAuthority;
+
+import com.rsmart.rfabric.jasperreports.auth.CachingExternalUserProvider;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TestKimUserProvider {
+
+  private static final String JOHNDOE = "jdoe";
+  private static final String ADMIN = "ROLE_ADMINISTRATOR";
+  private static final String USER = "ROLE_USER";
+  private static final String TEMPLATE = "Jasper Role";
+
+  @Mock
+  private PermissionService_Service permissionServiceFactory;
+
+  @Mock
+  private PermissionService permissionService;
+
+  private KimUserProvider provider = new KimUserProvider();
+
+  @Before
+  public void createProvider() throws Exception {
+    when(permissionServiceFactory.getPermissionServicePort()).thenReturn(permissionService);
+    // bypass setPermissionService(), which needs a real CXF proxy
+    provider.permissionService = permissionServiceFactory;
+    provider.setAvailableAuthorities(Arrays.asList(ADMIN, USER));
+  }
+
+  @After
+  public void destroyProvider() {
+    provider.destroy();
+  }
+
+  private static Answer<Boolean> grantAfter(final long millis) {
+    return new Answer<Boolean>() {
+      public Boolean answer(final InvocationOnMock invocation) throws Throwable {
+        Thread.sleep(millis);
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Grants only if every party of the rendezvous arrives while this one waits, that is if the
+   * calls run at the same time.
+   */
+  private static Answer<Boolean> grantIfConcurrentWith(final CountDownLatch rendezvous) {
+    return new Answer<Boolean>() {
+      public Boolean answer(final InvocationOnMock invocation) throws Throwable {
+        rendezvous.countDown();
+        return rendezvous.await(2, TimeUnit.SECONDS);
+      }
+    };
+  }
+
+  /**
+   * Answers an asynchronous call by handing its handler an already completed response.
+   */
+  private static Answer<Future<?>> respond(final Object value, final Throwable failure) {
+    return new Answer<Future<?>>() {
+      @SuppressWarnings({ "unchecked", "rawtypes" })
+      public Future<?> answer(final InvocationOnMock invocation) throws Throwable {
+        final Object[] args = invocation.getArguments();
+        final CompletedResponse response = new CompletedResponse(value, failure);
+        ((AsyncHandler) args[args.length - 1]).handleResponse(response);
+        return response;
+      }
+    };
+  }
+
+  private static Answer<Future<?>> hasPermission(final boolean granted) {
+    final HasPermissionResponse response = new HasPermissionResponse();
+    response.setHasPermission(granted);
+    return respond(response, null);
+  }
+
+  private static final class CompletedResponse<T> implements Response<T> {
+    private final T value;
+    private final Throwable failure;
+
+    CompletedResponse(final T value, final Throwable failure) {
+      this.value = value;
+      this.failure = failure;
+    }
+
+    public T get() throws ExecutionException {
+      if (failure != null) {
+        throw new ExecutionException(failure);
+      }
+      return value;
+    }
+
+    public T get(final long timeout, final TimeUnit unit) throws ExecutionException {
+      return get();
+    }
+
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    public boolean isCancelled() {
+      return false;
+    }
+
+    public boolean isDone() {
+      return true;
+    }
+
+    public Map<String, Object> getContext() {
+      return Collections.emptyMap();
+    }
+  }
+
+  private static PermissionType permission(final String name) {
+    final PermissionType permission = new PermissionType();
+    permission.setName(name);
+    permission.setNamespaceCode(KimUserProvider.DEFAULT_PERMISSION_NAMESPACE);
+    permission.setActive(true);
+    return permission;
+  }
+
+  private static String[] names(final GrantedAuthority[] authorities) {
+    final String[] names = new String[authorities.length];
+    for (int i = 0; i < authorities.length; i++) {
+      names[i] = authorities[i].getAuthority();
+    }
+    return names;
+  }
+
+  @Test
+  public void testChecksEachAuthorityWithoutTemplate() throws Exception {
+    when(permissionService.hasPermission(JOHNDOE, "KR-SYS", ADMIN)).thenReturn(false);
+    when(permissionService.hasPermission(JOHNDOE, "KR-SYS", USER)).thenReturn(true);
+
+    assertArrayEquals(new String[] { USER }, names(provider.getAuthoritiesForUser(JOHNDOE)));
+  }
+
+  @Test
+  public void testTemplateResolvesAuthoritiesInOneCall() throws Exception {
+    final GetAuthorizedPermissionsByTemplateResponse.Permissions granted =
+        new GetAuthorizedPermissionsByTemplateResponse.Permissions();
+    granted.getPermission().add(permission(USER));
+    granted.getPermission().add(permission("SOME_OTHER_PERMISSION"));
+    granted.getPermission().add(permission(ADMIN));
+    when(permissionService.getAuthorizedPermissionsByTemplate(eq(JOHNDOE), eq("KR-SYS"), eq(TEMPLATE),
+        any(StringMapEntryListType.class), any(StringMapEntryListType.class))).thenReturn(granted);
+    provider.setPermissionTemplateName(TEMPLATE);
+
+    assertArrayEquals(new String[] { ADMIN, USER }, names(provider.getAuthoritiesForUser(JOHNDOE)));
+    verify(permissionService, never()).hasPermission(anyString(), anyString(), anyString());
+  }
+
+  @Test
+  public void testFallsBackToEachAuthorityWhenTemplateLookupFails() throws Exception {
+    when(permissionService.getAuthorizedPermissionsByTemplate(anyString(), anyString(), anyString(),
+        any(StringMapEntryListType.class), any(StringMapEntryListType.class)))
+        .thenThrow(new RuntimeException("unsupported"));
+    when(permissionService.hasPermission(JOHNDOE, "KR-SYS", ADMIN)).thenReturn(true);
+    provider.setPermissionTemplateName(TEMPLATE);
+
+    assertArrayEquals(new String[] { ADMIN }, names(provider.getAuthoritiesForUser(JOHNDOE)));
+  }
+
+  @Test
+  public void testChecksRunConcurrently() throws Exception {
+    final CountDownLatch rendezvous = new CountDownLatch(2);
+    when(permissionService.hasPermission(JOHNDOE, "KR-SYS", ADMIN)).thenAnswer(grantIfConcurrentWith(rendezvous));
+    when(permissionService.hasPermission(JOHNDOE, "KR-SYS", USER)).thenAnswer(grantIfConcurrentWith(rendezvous));
+    provider.setPermissionCheckParallelism(2);
+
+    // checked one after the other, the first check would give up waiting for the second
+    assertArrayEquals(new String[] { ADMIN, USER }, names(provider.getAuthoritiesForUser(JOHNDOE)));
+  }
+
+  @Test
+  public void testChecksMissingDeadlineFailTheLookup() throws Exception {
+    when(permissionService.hasPermission(JOHNDOE, "KR-SYS", ADMIN)).thenAnswer(grantAfter(2000));
+    when(permissionService.hasPermission(JOHNDOE, "KR-SYS", USER)).thenReturn(true);
+    provider.setPermissionCheckParallelism(2);
+    provider.setPermissionCheckDeadline(200);
+
+    try {
+      provider.getAuthoritiesForUser(JOHNDOE);
+      fail("expected the unanswered check to fail the lookup");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertEquals(1, provider.getTimedOutPermissionChecks());
+  }
+
+  @Test
+  public void testPartialAnswerIsNotCached() throws Exception {
+    when(permissionService.hasPermission(JOHNDOE, "KR-SYS", ADMIN)).thenAnswer(grantAfter(2000))
+        .thenReturn(true);
+    when(permissionService.hasPermission(JOHNDOE, "KR-SYS", USER)).thenReturn(true);
+    provider.setPermissionCheckParallelism(2);
+    provider.setPermissionCheckDeadline(200);
+    final CachingExternalUserProvider cache = new CachingExternalUserProvider(provider);
+    cache.setRefreshThreads(0);
+
+    try {
+      cache.getAuthoritiesForUser(JOHNDOE);
+      fail("expected the unanswered check to fail the lookup");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    // had USER alone been cached, the user would be served it without ADMIN until it expired
+    assertArrayEquals(new String[] { ADMIN, USER }, names(cache.getAuthoritiesForUser(JOHNDOE)));
+    verify(permissionService, times(2)).hasPermission(JOHNDOE, "KR-SYS", ADMIN);
+  }
+
+  @Test
+  public void testPortsAreReused() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      provider.getAuthoritiesForUser(JOHNDOE);
+    }
+
+    verify(permissionServiceFactory, times(1)).getPermissionServicePort();
+    assertEquals(1, provider.getCreatedPortCount());
+  }
+
+  private CircuitBreaker keepLastKnownAnswers() {
+    final CircuitBreaker breaker = new CircuitBreaker();
+    breaker.setWindowSize(2);
+    breaker.setMinimumCalls(2);
+    breaker.setOpenDuration(60000);
+    provider.setCircuitBreaker(breaker);
+    provider.setStaleTimeToLive(60000);
+    return breaker;
+  }
+
+  @Test
+  public void testFailingKimOpensCircuitAndLastKnownAuthoritiesAreServed() throws Exception {
+    final CircuitBreaker breaker = keepLastKnownAnswers();
+    when(permissionService.hasPermission(JOHNDOE, "KR-SYS", ADMIN)).thenReturn(true)
+        .thenThrow(new RuntimeException("fault"));
+    when(permissionService.hasPermission(JOHNDOE, "KR-SYS", USER)).thenReturn(true)
+        .thenThrow(new RuntimeException("fault"));
+
+    assertArrayEquals(new String[] { ADMIN, USER }, names(provider.getAuthoritiesForUser(JOHNDOE)));
+    // both checks fail: rather than no roles, the user keeps the last complete answer
+    assertArrayEquals(new String[] { ADMIN, USER }, names(provider.getAuthoritiesForUser(JOHNDOE)));
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+    // while open KIM is not called at all
+    assertArrayEquals(new String[] { ADMIN, USER }, names(provider.getAuthoritiesForUser(JOHNDOE)));
+    verify(permissionService, times(4)).hasPermission(anyString(), anyString(), anyString());
+    assertEquals(2, provider.getStaleAnswers());
+    assertEquals(1, breaker.getRejectedRequests());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testOpenCircuitFailsFastWithoutLastKnownAnswers() throws Exception {
+    keepLastKnownAnswers();
+    when(permissionService.hasPermission(anyString(), anyString(), anyString()))
+        .thenThrow(new RuntimeException("fault"));
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        provider.getAuthoritiesForUser(JOHNDOE);
+        fail("expected the failed checks to fail the lookup");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+    }
+    try {
+      provider.getAuthoritiesForUser(JOHNDOE);
+      fail("expected the open circuit to fail the lookup");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    try {
+      provider.getAuthoritiesForUserAsync(JOHNDOE).get(1, TimeUnit.SECONDS);
+      fail("expected the open circuit to fail the lookup");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    verify(permissionService, times(4)).hasPermission(anyString(), anyString(), anyString());
+    verify(permissionService, never()).hasPermissionAsync(anyString(), anyString(), anyString(), any(AsyncHandler.class));
+  }
+
+  /**
+   * Fails enough other lookups to open the breaker, then throws.
+   */
+  private static <T> Answer<T> openCircuitAndFail(final CircuitBreaker breaker) {
+    return new Answer<T>() {
+      public T answer(final InvocationOnMock invocation) throws Throwable {
+        for (int i = 0; i < breaker.getMinimumCalls(); i++) {
+          breaker.acquire().failed();
+        }
+        throw new RuntimeException("fault");
+      }
+    };
+  }
+
+  @Test
+  public void testTemplateFailureDoesNotFallBackOnceCircuitOpens() throws Exception {
+    final CircuitBreaker breaker = keepLastKnownAnswers();
+    when(permissionService.getAuthorizedPermissionsByTemplate(anyString(), anyString(), anyString(),
+        any(StringMapEntryListType.class), any(StringMapEntryListType.class)))
+        .thenAnswer(openCircuitAndFail(breaker));
+    provider.setPermissionTemplateName(TEMPLATE);
+
+    try {
+      provider.getAuthoritiesForUser(JOHNDOE);
+      fail("expected the open circuit to fail the lookup");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    verify(permissionService, never()).hasPermission(anyString(), anyString(), anyString());
+    assertEquals(1, breaker.getTimesOpened());
+  }
+
+  @Test
+  public void testRemainingChecksAreSkippedOnceCircuitOpens() throws Exception {
+    final CircuitBreaker breaker = keepLastKnownAnswers();
+    when(permissionService.hasPermission(JOHNDOE, "KR-SYS", ADMIN)).thenAnswer(openCircuitAndFail(breaker));
+
+    try {
+      provider.getAuthoritiesForUser(JOHNDOE);
+      fail("expected the skipped check to fail the lookup");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    verify(permissionService, never()).hasPermission(JOHNDOE, "KR-SYS", USER);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAsyncChecksEachAuthorityWithoutTemplate() throws Exception {
+    when(permissionService.hasPermissionAsync(eq(JOHNDOE), eq("KR-SYS"), eq(ADMIN), any(AsyncHandler.class)))
+        .thenAnswer(hasPermission(true));
+    when(permissionService.hasPermissionAsync(eq(JOHNDOE), eq("KR-SYS"), eq(USER), any(AsyncHandler.class)))
+        .thenAnswer(hasPermission(false));
+
+    final Future<GrantedAuthority[]> result = provider.getAuthoritiesForUserAsync(JOHNDOE);
+
+    assertArrayEquals(new String[] { ADMIN }, names(result.get(1, TimeUnit.SECONDS)));
+    verify(permissionService, never()).hasPermission(anyString(), anyString(), anyString());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAsyncCheckFailureFailsTheLookup() throws Exception {
+    when(permissionService.hasPermissionAsync(eq(JOHNDOE), eq("KR-SYS"), eq(ADMIN), any(AsyncHandler.class)))
+        .thenAnswer(hasPermission(true));
+    when(permissionService.hasPermissionAsync(eq(JOHNDOE), eq("KR-SYS"), eq(USER), any(AsyncHandler.class)))
+        .thenAnswer(respond(null, new RuntimeException("fault")));
+
+    try {
+      provider.getAuthoritiesForUserAsync(JOHNDOE).get(1, TimeUnit.SECONDS);
+      fail("expected the failed check to fail the lookup");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAsyncTemplateFallsBackToEachAuthority() throws Exception {
+    when(permissionService.getAuthorizedPermissionsByTemplateAsync(anyString(), anyString(), anyString(),
+        any(StringMapEntryListType.class), any(StringMapEntryListType.class), any(AsyncHandler.class)))
+        .thenAnswer(respond(null, new RuntimeException("unsupported")));
+    when(permissionService.hasPermissionAsync(eq(JOHNDOE), eq("KR-SYS"), anyString(), any(AsyncHandler.class)))
+        .thenAnswer(hasPermission(true));
+    provider.setPermissionTemplateName(TEMPLATE);
+
+    final Future<GrantedAuthority[]> result = provider.getAuthoritiesForUserAsync(JOHNDOE);
+
+    assertArrayEquals(new String[] { ADMIN, USER }, names(result.get(1, TimeUnit.SECONDS)));
+  }
+}
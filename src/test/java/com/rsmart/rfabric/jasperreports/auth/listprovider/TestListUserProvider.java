@@ -0,0 +1,108 @@
+package com.rsmart.rfabric.jasperreports.auth.listprovider;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.GrantedAuthority;
+
+public class TestListUserProvider {
+
+  private final ListUserProvider provider = new ListUserProvider();
+  private File file;
+
+  @Before
+  public void createFile() throws IOException {
+    file = File.createTempFile("users", ".properties");
+  }
+
+  @After
+  public void deleteFile() {
+    file.delete();
+  }
+
+  private void write (final String users, final long modified) throws IOException {
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(users.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    file.setLastModified(modified);
+  }
+
+  private static Role role (final String name) {
+    final Role role = new Role();
+    role.setRoleName(name);
+    return role;
+  }
+
+  private static User user (final String name, final Role... roles) {
+    final User user = new User();
+    user.setName(name);
+    user.setRoles(Arrays.asList(roles));
+    return user;
+  }
+
+  private static String[] names (final GrantedAuthority[] authorities) {
+    final String[] names = new String[authorities.length];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = authorities[i].getAuthority();
+    }
+    return names;
+  }
+
+  @Test
+  public void testAuthoritiesAreComputedOnceWhenUsersAreSet() {
+    final Map<String, User> users = new HashMap<String, User>();
+    users.put("jdoe", user("jdoe", role("ROLE_USER")));
+    users.put("admin", user("admin", role("ROLE_USER"), role("ROLE_ADMINISTRATOR")));
+    provider.setUsers(users);
+
+    assertTrue(provider.userExists("jdoe"));
+    assertFalse(provider.userExists("nobody"));
+    assertNull(provider.getAuthoritiesForUser("nobody"));
+    assertArrayEquals(new String[] { "ROLE_ADMINISTRATOR", "ROLE_USER" }, names(provider.getAuthoritiesForUser("admin")));
+    // callers get copies; changing one leaves the shared role set alone
+    provider.getAuthoritiesForUser("admin")[0] = null;
+    assertArrayEquals(new String[] { "ROLE_ADMINISTRATOR", "ROLE_USER" }, names(provider.getAuthoritiesForUser("admin")));
+
+    // the directory is a snapshot of the map it was set with
+    users.remove("jdoe");
+    assertTrue(provider.userExists("jdoe"));
+  }
+
+  @Test
+  public void testUsersFileIsReloadedWhenItChanges() throws Exception {
+    write("jdoe=ROLE_USER\njasperadmin = ROLE_ADMINISTRATOR, ROLE_USER\n", 1000000);
+    provider.setCheckInterval(0);
+    provider.setUsersFile(file);
+    assertArrayEquals(new String[] { "ROLE_ADMINISTRATOR", "ROLE_USER" }, names(provider.getAuthoritiesForUser("jasperadmin")));
+    final GrantedAuthority[] before = provider.getAuthoritiesForUser("jdoe");
+
+    write("jdoe=ROLE_USER,ROLE_ADMINISTRATOR\nnewuser=\n", 2000000);
+    assertFalse(provider.userExists("jasperadmin"));
+    assertTrue(provider.userExists("newuser"));
+    assertEquals(0, provider.getAuthoritiesForUser("newuser").length);
+    assertArrayEquals(new String[] { "ROLE_ADMINISTRATOR", "ROLE_USER" }, names(provider.getAuthoritiesForUser("jdoe")));
+    assertEquals(1, before.length);
+  }
+
+  @Test
+  public void testUnreadableFileKeepsThePreviousDirectory() throws Exception {
+    write("jdoe=ROLE_USER\n", 1000000);
+    provider.setUsersFile(file);
+
+    file.delete();
+    assertFalse(provider.reloadIfModified());
+    assertTrue(provider.userExists("jdoe"));
+  }
+}
@@ -0,0 +1,109 @@
+package com.rsmart.rfabric.jasperreports.auth.mappedprovider;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.GrantedAuthority;
+
+public class TestMappedUserProvider {
+
+  private final MappedDirectoryBuilder builder = new MappedDirectoryBuilder();
+  private final MappedUserProvider provider = new MappedUserProvider();
+  private File file;
+
+  @Before
+  public void createFile() throws IOException {
+    file = File.createTempFile("users", ".dir");
+  }
+
+  @After
+  public void deleteFile() {
+    file.delete();
+  }
+
+  private static String[] names (final GrantedAuthority[] authorities) {
+    final String[] names = new String[authorities.length];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = authorities[i].getAuthority();
+    }
+    return names;
+  }
+
+  @Test
+  public void testDirectoryCompiledFromCsv() throws Exception {
+    assertEquals(4, builder.read(new BufferedReader(new StringReader(
+        "# principal,role,role...\n"
+        + "jdoe@email.com, ROLE_USER\n"
+        + "\n"
+        + "jasperadmin,ROLE_USER,ROLE_ADMINISTRATOR\n"
+        + "nobody\n"
+        + "jdoe@email.com,ROLE_AUDITOR,\n"))));
+    builder.write(file);
+    provider.setDirectoryFile(file);
+
+    assertEquals(3, provider.getUserCount());
+    assertTrue(provider.userExists("jdoe@email.com"));
+    assertTrue(provider.userExists("nobody"));
+    assertFalse(provider.userExists("jdoe"));
+    assertNull(provider.getAuthoritiesForUser("jdoe"));
+    assertArrayEquals(new String[] { "ROLE_AUDITOR", "ROLE_USER" }, names(provider.getAuthoritiesForUser("jdoe@email.com")));
+    assertArrayEquals(new String[] { "ROLE_ADMINISTRATOR", "ROLE_USER" }, names(provider.getAuthoritiesForUser("jasperadmin")));
+    assertEquals(0, provider.getAuthoritiesForUser("nobody").length);
+  }
+
+  @Test
+  public void testUsersWithTheSameRolesShareOneArray() throws Exception {
+    for (int i = 0; i < 20000; i++) {
+      builder.add("user" + i + "@\u00e9cole.fr", (i % 2 == 0) ? Arrays.asList("ROLE_USER")
+          : Arrays.asList("ROLE_USER", "ROLE_ADMINISTRATOR"));
+    }
+    assertEquals(2, builder.getRoleSetCount());
+    builder.write(file);
+    provider.setDirectoryFile(file);
+
+    for (int i = 0; i < 20000; i++) {
+      assertEquals((i % 2 == 0) ? 1 : 2, provider.getAuthoritiesForUser("user" + i + "@\u00e9cole.fr").length);
+      assertFalse(provider.userExists("user" + i + "@ecole.fr"));
+    }
+    provider.getAuthoritiesForUser("user0@\u00e9cole.fr")[0] = null;
+    assertNotNull(provider.getAuthoritiesForUser("user2@\u00e9cole.fr")[0]);
+  }
+
+  @Test
+  public void testEmptyDirectory() throws Exception {
+    builder.write(file);
+    provider.setDirectoryFile(file);
+    assertEquals(0, provider.getUserCount());
+    assertFalse(provider.userExists("jdoe"));
+  }
+
+  @Test
+  public void testCsvErrorNamesTheLine() throws Exception {
+    try {
+      builder.read(new BufferedReader(new StringReader("jdoe,ROLE_USER\n,ROLE_USER\n")));
+      fail("row without a principal was read");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("line 2:"));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testOtherFilesAreRefused() throws Exception {
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write("jdoe=ROLE_USER\njasperadmin=ROLE_ADMINISTRATOR,ROLE_USER\n".getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    provider.setDirectoryFile(file);
+  }
+}
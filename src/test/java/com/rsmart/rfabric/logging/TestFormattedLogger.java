@@ -0,0 +1,85 @@
+package com.rsmart.rfabric.logging;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.apache.commons.logging.Log;
+import org.junit.Test;
+
+public class TestFormattedLogger {
+
+  /**
+   * A parameter which fails the test if it is ever formatted
+   */
+  private static final Object UNFORMATTABLE = new Object() {
+    @Override
+    public String toString() {
+      fail("a parameter of a disabled statement was formatted");
+      return null;
+    }
+  };
+
+  @Test
+  public void testLoggersAreResolvedOncePerClass() {
+    final FormattedLogger logger = FormattedLogger.getLogger(TestFormattedLogger.class);
+    assertSame(logger, FormattedLogger.getLogger(TestFormattedLogger.class));
+    assertNotSame(logger, FormattedLogger.getLogger(FormattedLogger.class));
+  }
+
+  @Test
+  public void testDisabledStatementsAreNotFormatted() {
+    final Log log = mock(Log.class);
+    final FormattedLogger logger = new FormattedLogger(log);
+
+    logger.debug("%s", UNFORMATTABLE);
+    logger.debug("%s %s", UNFORMATTABLE, UNFORMATTABLE);
+    logger.debug("%s %s %s", UNFORMATTABLE, UNFORMATTABLE, UNFORMATTABLE);
+    logger.debug("%s %s %s %s", UNFORMATTABLE, UNFORMATTABLE, UNFORMATTABLE, UNFORMATTABLE);
+    logger.warn(new Exception(), "%s", UNFORMATTABLE);
+
+    verify(log, never()).debug(any());
+    verify(log, never()).warn(any(), any(Throwable.class));
+  }
+
+  @Test
+  public void testEnabledStatementsAreFormatted() {
+    final Log log = mock(Log.class);
+    when(log.isWarnEnabled()).thenReturn(true);
+    when(log.isErrorEnabled()).thenReturn(true);
+    final FormattedLogger logger = new FormattedLogger(log);
+    final Exception cause = new Exception();
+
+    logger.warn("%d checks for: %s missed the %d ms deadline", 3, "jdoe", 250);
+    logger.warn("100%% of %s", "nothing");
+    logger.error(cause, "failed for: %s", "jdoe");
+
+    verify(log).warn("3 checks for: jdoe missed the 250 ms deadline");
+    verify(log).warn("100% of nothing");
+    verify(log).error("failed for: jdoe", cause);
+  }
+
+  @Test
+  public void testParametersMayLogWhileBeingFormatted() {
+    final Log log = mock(Log.class);
+    when(log.isInfoEnabled()).thenReturn(true);
+    final FormattedLogger logger = new FormattedLogger(log);
+    final Object chatty = new Object() {
+      @Override
+      public String toString() {
+        logger.info("formatting %s", "inner");
+        return "outer";
+      }
+    };
+
+    logger.info("[%s] [%s]", chatty, "last");
+
+    verify(log).info("formatting inner");
+    verify(log).info("[outer] [last]");
+  }
+
+  @Test
+  public void testMessagesWithoutParametersAreLoggedAsIs() {
+    assertEquals("plain", FormattedLogger.getMessage("plain"));
+    assertEquals("50%", FormattedLogger.getMessage("50%%"));
+  }
+}
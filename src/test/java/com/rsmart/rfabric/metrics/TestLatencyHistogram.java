@@ -0,0 +1,129 @@
+package com.rsmart.rfabric.metrics;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class TestLatencyHistogram {
+
+  private static final long MICROSECOND = 1000;
+
+  @Test
+  public void testBucketsCoverEveryValueWithinThreePercent() {
+    for (long micros = 0; micros < (1L << 41); micros = micros * 3 / 2 + 1) {
+      final long lower = LatencyHistogram.lowerBoundOf(LatencyHistogram.bucketOf(micros));
+      assertTrue(micros + " is below its bucket", lower <= micros);
+      assertTrue(micros + " is too far above its bucket", micros - lower <= micros / 32);
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000 * MICROSECOND);
+    }
+
+    assertEquals(1000, histogram.getCount());
+    assertEquals(500.5, histogram.getMeanMillis(), 0.001);
+    assertEquals(1000, histogram.getMaxMillis(), 0.001);
+    assertEquals(500, histogram.getP50Millis(), 500 * 0.04);
+    assertEquals(990, histogram.getP99Millis(), 990 * 0.04);
+    assertEquals(999, histogram.getP999Millis(), 999 * 0.04);
+  }
+
+  @Test
+  public void testEmptyAndReset() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getP99Millis(), 0);
+    assertEquals(0, histogram.getMeanMillis(), 0);
+
+    histogram.record(5 * MICROSECOND);
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMaxMillis(), 0);
+  }
+
+  @Test
+  public void testConcurrentRecordsAreAllCounted() throws Exception {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    final CountDownLatch done = new CountDownLatch(8);
+    for (int t = 0; t < 8; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 10000; i++) {
+            histogram.record(i * MICROSECOND);
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertEquals(80000, histogram.getCount());
+    assertEquals(9.999, histogram.getMaxMillis(), 0.0001);
+  }
+
+  @Test
+  public void testHistogramsArePublishedOnce() throws Exception {
+    final Metrics.Registrations first = Metrics.registrations("TestLatencyHistogram");
+    final Metrics.Registrations second = Metrics.registrations("TestLatencyHistogram");
+    final LatencyHistogram histogram = first.histogram("stage", "ok");
+    assertSame(histogram, second.histogram("stage", "ok"));
+
+    histogram.record(2000 * MICROSECOND);
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(Metrics.objectName("TestLatencyHistogram", "stage", "ok"));
+    assertEquals(1L, server.getAttribute(name, "Count"));
+    assertEquals(2.0, (Double) server.getAttribute(name, "MaxMillis"), 0.001);
+    first.unregister();
+    second.unregister();
+  }
+
+  @Test
+  public void testHistogramIsUnpublishedWhenItsLastHolderUnregisters() throws Exception {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(Metrics.objectName("TestUnregister", "stage", "ok"));
+    final Metrics.Registrations first = Metrics.registrations("TestUnregister");
+    final Metrics.Registrations second = Metrics.registrations("TestUnregister");
+    final LatencyHistogram histogram = first.histogram("stage", "ok");
+    second.histogram("stage", "ok");
+
+    first.unregister();
+    // unregistering again must not release the other instance's hold
+    first.unregister();
+    assertTrue(server.isRegistered(name));
+
+    second.unregister();
+    assertFalse(server.isRegistered(name));
+
+    // as after a redeploy: the name is free for a new histogram
+    final Metrics.Registrations redeployed = Metrics.registrations("TestUnregister");
+    assertNotSame(histogram, redeployed.histogram("stage", "ok"));
+    assertTrue(server.isRegistered(name));
+    redeployed.unregister();
+  }
+
+  @Test
+  public void testNamesRegisteredElsewhereAreNotUnregistered() throws Exception {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(Metrics.objectName("TestForeign", "stage", "ok"));
+    // e.g. another copy of this library, loaded by an older class loader
+    server.registerMBean(new LatencyHistogram(), name);
+    try {
+      final Metrics.Registrations registrations = Metrics.registrations("TestForeign");
+      registrations.histogram("stage", "ok");
+      registrations.unregister();
+      assertTrue(server.isRegistered(name));
+    } finally {
+      server.unregisterMBean(name);
+    }
+  }
+}